@@ -0,0 +1,113 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.view;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of running a document through {@link Canoe}, per document, for the shapes of markup
+ * that exercise different parts of the tokenizer: elements with no attributes, where the time goes
+ * on tag names; elements with several attributes, where it goes on attribute names, values and
+ * their classification; comments; and mostly text, which the bulk scan skips.
+ *
+ * <p>Output goes to a writer that discards it, so what is measured is the parser and not a copy.
+ * Compare runs of this benchmark before and after a tokenizer change, on the same machine:
+ *
+ * <pre>
+ * ./gradlew jmh --args='CanoeTokenizerBenchmark'
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CanoeTokenizerBenchmark {
+
+    private static final int ROWS = 2000;
+
+    @Param({"tags", "attributes", "comments", "text"})
+    public String document;
+
+    private char[] text;
+
+    private final Writer discard = new Writer() {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        String row;
+        switch (document) {
+            case "tags":
+                row = "<tr><td><b><i>x</i></b></td><td><span>y</span></td></tr>\n";
+                break;
+            case "attributes":
+                row = "<td class=\"row\" id=\"r1\" data-index='7' title=\"A title\" hidden>"
+                        + "<a href=\"/p?x=1\">x</a></td>\n";
+                break;
+            case "comments":
+                row = "<!-- a comment - with a dash --><td>x</td>\n";
+                break;
+            case "text":
+                row = "<p>A paragraph of ordinary text, which is what most of a page is.</p>\n";
+                break;
+            default:
+                throw new IllegalArgumentException(document);
+        }
+
+        StringBuilder sb = new StringBuilder("<!DOCTYPE html>\n<html><body><table>\n");
+        for (int i = 0; i < ROWS; i++) {
+            sb.append(row);
+        }
+
+        sb.append("</table></body></html>\n");
+        text = sb.toString().toCharArray();
+    }
+
+    @Benchmark
+    public int tokenize() throws IOException {
+        Canoe canoe = new Canoe(discard);
+        canoe.write(text, 0, text.length);
+        return canoe.currentContext();
+    }
+}
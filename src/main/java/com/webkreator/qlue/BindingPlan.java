@@ -0,0 +1,388 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.annotations.QlueBodyParameter;
+import com.webkreator.qlue.annotations.QlueParameter;
+import com.webkreator.qlue.editors.PropertyEditor;
+import com.webkreator.qlue.exceptions.QlueException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Everything parameter binding needs to know about one command object class, worked out once and
+ * then shared by every request that binds to an instance of that class. None of it depends on the
+ * request: the annotations, the property editors, the validation patterns and the transformation
+ * functions are all fixed when the class is loaded, so working them out again on every request is
+ * pure overhead. Instances are immutable and safe to share between threads.
+ */
+public final class BindingPlan {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Class<?> commandObjectClass;
+
+    private final List<FieldBinding> parameters;
+
+    private final List<FieldBinding> bodyParameters;
+
+    private final Map<String, FieldBinding> parametersByName;
+
+    /**
+     * Builds the plan for the given class.
+     *
+     * @param commandObjectClass the command object class
+     * @param fields             the fields to consider, as found by the application
+     * @param editors            resolves the property editor for a (component) type; may answer null
+     */
+    BindingPlan(Class<?> commandObjectClass, Collection<Field> fields, Function<Class<?>, PropertyEditor> editors) {
+        this.commandObjectClass = commandObjectClass;
+
+        List<FieldBinding> parameters = new ArrayList<>();
+        List<FieldBinding> bodyParameters = new ArrayList<>();
+
+        for (Field f : fields) {
+            QlueParameter qp = f.getAnnotation(QlueParameter.class);
+            QlueBodyParameter qbp = f.getAnnotation(QlueBodyParameter.class);
+            if ((qp == null) && (qbp == null)) {
+                continue;
+            }
+
+            // We bind only to public fields, but it commonly happens that the QlueParameter
+            // annotation is used on other field types, leading to frustration because it's
+            // not obvious why binding is not working. For this reason, we detect that problem
+            // here and force an error to inform the developer.
+            if ((qp != null) && !Modifier.isPublic(f.getModifiers())) {
+                throw new QlueException("QlueParameter used on a non-public field");
+            }
+
+            FieldBinding binding = new FieldBinding(f, qp, qbp, editors);
+
+            if (qbp != null) {
+                bodyParameters.add(binding);
+            }
+
+            if (qp != null) {
+                parameters.add(binding);
+            }
+        }
+
+        this.parameters = Collections.unmodifiableList(parameters);
+        this.bodyParameters = Collections.unmodifiableList(bodyParameters);
+
+        Map<String, FieldBinding> parametersByName = new HashMap<>();
+        for (FieldBinding binding : parameters) {
+            parametersByName.put(binding.getName(), binding);
+        }
+
+        this.parametersByName = Collections.unmodifiableMap(parametersByName);
+    }
+
+    public Class<?> getCommandObjectClass() {
+        return commandObjectClass;
+    }
+
+    /**
+     * Fields annotated with @QlueParameter.
+     */
+    public List<FieldBinding> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Returns the field annotated with @QlueParameter that has the given name, or null.
+     */
+    public FieldBinding getParameter(String name) {
+        return parametersByName.get(name);
+    }
+
+    /**
+     * Fields annotated with @QlueBodyParameter.
+     */
+    public List<FieldBinding> getBodyParameters() {
+        return bodyParameters;
+    }
+
+    /**
+     * Transformation functions that can be applied to parameter values
+     * before validation, as named in @QlueParameter.tfn().
+     */
+    enum Transformation {
+
+        TRIM {
+            @Override
+            String apply(String value) {
+                return value.trim();
+            }
+        },
+
+        LOWERCASE {
+            @Override
+            String apply(String value) {
+                return value.toLowerCase();
+            }
+        };
+
+        abstract String apply(String value);
+
+        static Transformation[] parse(String tfn) {
+            if (tfn.length() == 0) {
+                return new Transformation[0];
+            }
+
+            List<Transformation> list = new ArrayList<>();
+
+            StringTokenizer st = new StringTokenizer(tfn, " ,");
+            while (st.hasMoreTokens()) {
+                String t = st.nextToken();
+                if (t.compareTo("trim") == 0) {
+                    list.add(TRIM);
+                } else if (t.compareTo("lowercase") == 0) {
+                    list.add(LOWERCASE);
+                } else {
+                    throw new RuntimeException("Qlue: Invalid parameter transformation function: " + t);
+                }
+            }
+
+            return list.toArray(new Transformation[0]);
+        }
+    }
+
+    /**
+     * The binding metadata of a single field.
+     */
+    public static final class FieldBinding {
+
+        private final Field field;
+
+        private final String name;
+
+        private final Class<?> valueType;
+
+        private final boolean array;
+
+        private final boolean file;
+
+        private final QlueParameter parameter;
+
+        private final QlueBodyParameter bodyParameter;
+
+        private final PropertyEditor editor;
+
+        private final Pattern pattern;
+
+        private final Transformation[] transformations;
+
+        private final String fieldMissingMessage;
+
+        private final String valueWhenAbsent;
+
+        private final MethodHandle getter;
+
+        private final MethodHandle setter;
+
+        FieldBinding(Field field, QlueParameter qp, QlueBodyParameter qbp, Function<Class<?>, PropertyEditor> editors) {
+            this.field = field;
+            this.name = field.getName();
+            this.parameter = qp;
+            this.bodyParameter = qbp;
+            this.array = field.getType().isArray();
+            this.valueType = array ? field.getType().getComponentType() : field.getType();
+            this.file = QlueFile.class.isAssignableFrom(field.getType())
+                    || QlueUpload.class.isAssignableFrom(field.getType());
+
+            if ((qp != null) && !file) {
+                this.editor = editors.apply(valueType);
+                this.transformations = Transformation.parse(qp.tfn());
+
+                if (qp.pattern().length() != 0) {
+                    try {
+                        this.pattern = Pattern.compile(qp.pattern(), Pattern.DOTALL);
+                    } catch (PatternSyntaxException e) {
+                        throw new RuntimeException("Qlue: Invalid parameter validation pattern: " + qp.pattern());
+                    }
+                } else {
+                    this.pattern = null;
+                }
+            } else {
+                this.editor = null;
+                this.transformations = new Transformation[0];
+                this.pattern = null;
+            }
+
+            if ((qbp != null) && QlueBodyParameter.IDENTITY.equals(qbp.format())
+                    && !RequestBody.isSupportedType(field.getType())) {
+                throw new RuntimeException("Qlue: Unsupported type for identity body parameter: " + field);
+            }
+
+            if (qp != null) {
+                this.fieldMissingMessage = (qp.fieldMissingMessage().length() > 0)
+                        ? qp.fieldMissingMessage() : "qlue.validation.mandatory";
+                this.valueWhenAbsent = qp.valueWhenAbsent().equals(QlueApplication.NULL_SUBSTITUTE)
+                        ? null : qp.valueWhenAbsent();
+            } else {
+                this.fieldMissingMessage = null;
+                this.valueWhenAbsent = null;
+            }
+
+            this.getter = unreflect(field, false);
+            this.setter = unreflect(field, true);
+        }
+
+        /**
+         * Converts the field into a pair of method handles with erased types. Fields that cannot
+         * be accessed this way (e.g., final fields, or public fields of non-public classes) are
+         * left to plain reflection, which will then report the problem in the usual way when the
+         * field is actually used.
+         */
+        private static MethodHandle unreflect(Field f, boolean forSetter) {
+            try {
+                MethodHandle mh = forSetter ? LOOKUP.unreflectSetter(f) : LOOKUP.unreflectGetter(f);
+                if (Modifier.isStatic(f.getModifiers())) {
+                    mh = MethodHandles.dropArguments(mh, 0, Object.class);
+                }
+
+                return mh.asType(forSetter ? SETTER_TYPE : GETTER_TYPE);
+            } catch (IllegalAccessException e) {
+                return null;
+            }
+        }
+
+        public Field getField() {
+            return field;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The type values are converted to: the field type, or the
+         * component type for array fields.
+         */
+        public Class<?> getValueType() {
+            return valueType;
+        }
+
+        public boolean isArray() {
+            return array;
+        }
+
+        public boolean isFile() {
+            return file;
+        }
+
+        public QlueParameter getParameter() {
+            return parameter;
+        }
+
+        public QlueBodyParameter getBodyParameter() {
+            return bodyParameter;
+        }
+
+        /**
+         * Returns the property editor for this field's value type.
+         *
+         * @throws RuntimeException if there isn't one
+         */
+        public PropertyEditor getEditor() {
+            if (editor == null) {
+                throw new RuntimeException("Qlue: Binding does not know how to handle type: " + valueType);
+            }
+
+            return editor;
+        }
+
+        public String getFieldMissingMessage() {
+            return fieldMissingMessage;
+        }
+
+        /**
+         * The value to use when the parameter is absent, or null if there isn't one.
+         */
+        public String getValueWhenAbsent() {
+            return valueWhenAbsent;
+        }
+
+        /**
+         * Applies the configured transformation functions, in order.
+         */
+        public String transform(String value) {
+            for (Transformation t : transformations) {
+                value = t.apply(value);
+            }
+
+            return value;
+        }
+
+        /**
+         * Checks the value against the validation pattern; always
+         * true when no pattern has been configured.
+         */
+        public boolean matchesPattern(String value) {
+            return (pattern == null) || pattern.matcher(value).matches();
+        }
+
+        public Object get(Object target) throws IllegalAccessException {
+            if (getter == null) {
+                return field.get(target);
+            }
+
+            try {
+                return getter.invokeExact(target);
+            } catch (RuntimeException | java.lang.Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+        }
+
+        public void set(Object target, Object value) throws IllegalAccessException {
+            if (setter == null) {
+                field.set(target, value);
+                return;
+            }
+
+            try {
+                setter.invokeExact(target, value);
+            } catch (RuntimeException | java.lang.Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+        }
+    }
+}
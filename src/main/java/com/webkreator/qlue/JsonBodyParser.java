@@ -0,0 +1,229 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.Strictness;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses JSON request bodies for @QlueBodyParameter fields. Parsing goes straight through the
+ * type adapter for the target type, which is obtained from Gson once and then kept (and can be
+ * obtained ahead of time, during warm-up). Documents are subject to limits on their size, nesting
+ * depth and string length, so that a hostile request can't make us do an unbounded amount of work.
+ */
+public class JsonBodyParser {
+
+    /**
+     * Thrown when a document exceeds one of the configured limits.
+     */
+    public static class LimitExceededException extends JsonParseException {
+
+        private static final long serialVersionUID = 1L;
+
+        public LimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private final Gson gson;
+
+    private final int maxDepth;
+
+    private final int maxStringLength;
+
+    private final Map<Class<?>, TypeAdapter<?>> adapters = new ConcurrentHashMap<>();
+
+    /**
+     * @param gson            the Gson instance to obtain type adapters from
+     * @param maxDepth        the maximum nesting depth of arrays and objects
+     * @param maxStringLength the maximum length of strings and property names, in characters
+     */
+    public JsonBodyParser(Gson gson, int maxDepth, int maxStringLength) {
+        this.gson = gson;
+        this.maxDepth = maxDepth;
+        this.maxStringLength = maxStringLength;
+    }
+
+    /**
+     * Returns the type adapter for the given type, creating it on first use.
+     */
+    public TypeAdapter<?> getAdapter(Class<?> type) {
+        TypeAdapter<?> adapter = adapters.get(type);
+        if (adapter == null) {
+            adapter = adapters.computeIfAbsent(type, gson::getAdapter);
+        }
+
+        return adapter;
+    }
+
+    /**
+     * Creates a reader for a document that is to be read from the given stream, failing
+     * with LimitExceededException from parse() once more than maxSize bytes have been read.
+     *
+     * @param contentLength the declared document length, or -1 if not known
+     * @throws LimitExceededException if the declared length is already over the limit
+     */
+    public Reader newReader(InputStream in, long contentLength, Charset charset, long maxSize) {
+        if (contentLength > maxSize) {
+            throw new LimitExceededException(new SizeLimitExceededException(maxSize).getMessage());
+        }
+
+        return new InputStreamReader(new SizeLimitedInputStream(in, maxSize), charset);
+    }
+
+    /**
+     * Parses one JSON document, which must be the only content of the reader. As with
+     * Gson.fromJson(), an empty document produces null, and parsing is lenient.
+     *
+     * @throws LimitExceededException if the document exceeds one of the limits
+     * @throws JsonSyntaxException    if the document is not valid JSON, or doesn't match the type
+     */
+    public Object parse(Reader reader, Class<?> type) {
+        JsonReader jsonReader = new LimitedJsonReader(reader);
+        jsonReader.setStrictness(Strictness.LENIENT);
+        jsonReader.setNestingLimit(maxDepth);
+
+        boolean empty = true;
+        try {
+            jsonReader.peek();
+            empty = false;
+
+            Object value = getAdapter(type).read(jsonReader);
+
+            if (jsonReader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("JSON document was not fully consumed.");
+            }
+
+            return value;
+        } catch (SizeLimitExceededException e) {
+            throw new LimitExceededException(e.getMessage());
+        } catch (EOFException e) {
+            if (empty) {
+                return null;
+            }
+
+            throw new JsonSyntaxException(e);
+        } catch (MalformedJsonException | IllegalStateException e) {
+            // Includes documents that are nested too deeply.
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    /**
+     * Signals from within the input stream that the document is too large; it's converted into
+     * LimitExceededException once it reaches parse(), past the type adapters and the decoder.
+     */
+    private static class SizeLimitExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        SizeLimitExceededException(long maxSize) {
+            super("JSON document exceeds maximum size of " + maxSize + " bytes");
+        }
+    }
+
+    private static class SizeLimitedInputStream extends FilterInputStream {
+
+        private final long maxSize;
+
+        private long size;
+
+        SizeLimitedInputStream(InputStream in, long maxSize) {
+            super(in);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long n) throws SizeLimitExceededException {
+            size += n;
+            if (size > maxSize) {
+                throw new SizeLimitExceededException(maxSize);
+            }
+        }
+    }
+
+    private class LimitedJsonReader extends JsonReader {
+
+        LimitedJsonReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public String nextString() throws IOException {
+            return checkLength(super.nextString());
+        }
+
+        @Override
+        public String nextName() throws IOException {
+            return checkLength(super.nextName());
+        }
+
+        private String checkLength(String s) {
+            if (s.length() > maxStringLength) {
+                throw new LimitExceededException("JSON string exceeds maximum length of "
+                        + maxStringLength + " characters at path " + getPath());
+            }
+
+            return s;
+        }
+    }
+}
@@ -16,8 +16,6 @@
  */
 package com.webkreator.qlue;
 
-import com.webkreator.qlue.annotations.QlueCommandObject;
-import com.webkreator.qlue.annotations.QlueParameter;
 import com.webkreator.qlue.annotations.QluePersistentPage;
 import com.webkreator.qlue.exceptions.BadRequestException;
 import com.webkreator.qlue.exceptions.MethodNotAllowedException;
@@ -30,12 +28,13 @@ import com.webkreator.qlue.view.velocity.QlueVelocityTool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.Serializable;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Represents a single unit of work application will perform. This class handles both non-persistent
@@ -124,6 +123,10 @@ public abstract class Page implements Serializable {
 
     protected ShadowInput shadowInput = new ShadowInput();
 
+    private transient ReentrantLock serviceLock = new ReentrantLock();
+
+    private transient ReentrantLock commandObjectLock = new ReentrantLock();
+
     protected Page() {
     }
 
@@ -159,6 +162,10 @@ public abstract class Page implements Serializable {
         shadowInput = new ShadowInput();
     }
 
+    void setShadowInput(ShadowInput shadowInput) {
+        this.shadowInput = shadowInput;
+    }
+
     /**
      * Retrieve shadow input associated with page.
      */
@@ -204,9 +211,14 @@ public abstract class Page implements Serializable {
      * supplied context to choose which command object (out of several it might
      * be using) to return.
      */
-    public final synchronized Object getCommandObject() {
-        if (!commandObjectDetermined && (commandObject == null)) {
-            determineCommandObject();
+    public final Object getCommandObject() {
+        commandObjectLock.lock();
+        try {
+            if (!commandObjectDetermined && (commandObject == null)) {
+                determineCommandObject();
+            }
+        } finally {
+            commandObjectLock.unlock();
         }
 
         if (commandObject != null) {
@@ -223,43 +235,10 @@ public abstract class Page implements Serializable {
      * behavior.
      */
     protected void determineCommandObject() {
-
-        // Look for the command object among the page fields via the @QlueCommandObject annotation.
-        try {
-            Field[] fields = this.getClass().getFields();
-            for (Field f : fields) {
-                if (f.isAnnotationPresent(QlueCommandObject.class)) {
-                    commandObject = f.get(this);
-
-                    // If the command object doesn't exist, we try to create a new instance.
-                    if (commandObject == null) {
-                        try {
-                            // Our first attempt is to use the default constructor.
-                            commandObject = f.getType().newInstance();
-                            f.set(this, commandObject);
-                        } catch (InstantiationException ie) {
-                            // Inner classes have an implicit constructor that takes a reference to the parent object.
-                            // http://docs.oracle.com/javase/specs/jls/se8/html/jls-8.html#jls-8.8.1
-                            try {
-                                commandObject = f.getType().getConstructor(this.getClass()).newInstance(this);
-                                f.set(this, commandObject);
-                            } catch (NoSuchMethodException | InstantiationException | InvocationTargetException ex) {
-                                throw new RuntimeException("Unable to create command object: " + f.getType());
-                            }
-                        }
-                    }
-
-                    commandObjectDetermined = true;
-                    return;
-                }
-            }
-
-            // Leave null as a signal to use itself as the command object.
-            commandObject = null;
-            commandObjectDetermined = true;
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        }
+        // Look for the command object among the page fields via the @QlueCommandObject
+        // annotation; null is a signal to use the page itself as the command object.
+        commandObject = PageFactory.forClass(getClass()).getCommandObject(this);
+        commandObjectDetermined = true;
     }
 
     /**
@@ -577,26 +556,46 @@ public abstract class Page implements Serializable {
             return;
         }
 
-        // Look for QlueFile instances
-        Field[] fields = commandObject.getClass().getFields();
-        for (Field f : fields) {
-            if (f.isAnnotationPresent(QlueParameter.class)) {
-                if (QlueFile.class.isAssignableFrom(f.getType())) {
-                    // Delete temporary file
-                    QlueFile qf = null;
-                    try {
-                        qf = (QlueFile) f.get(commandObject);
-                        if (qf != null) {
-                            qf.delete();
-                        }
-                    } catch (Exception e) {
-                        qlueLog.error("Qlue: Failed deleting file " + qf, e);
+        // Files are bound only through a plan, so if there isn't one, there is nothing to
+        // delete. Building one here could fail again with the error that ended the request.
+        BindingPlan plan = app.findBindingPlan(commandObject.getClass());
+        if (plan == null) {
+            return;
+        }
+
+        // Look for QlueFile and QlueUpload instances
+        for (BindingPlan.FieldBinding binding : plan.getParameters()) {
+            if (binding.isFile()) {
+                // Delete temporary file
+                Object upload = null;
+                try {
+                    upload = binding.get(commandObject);
+                    if (upload instanceof QlueFile) {
+                        ((QlueFile) upload).delete();
+                    } else if (upload instanceof QlueUpload) {
+                        ((QlueUpload) upload).delete();
                     }
+                } catch (Exception e) {
+                    qlueLog.error("Qlue: Failed deleting file " + upload, e);
                 }
             }
         }
     }
 
+    /**
+     * Returns the lock that gives a request exclusive access to this page. Only persistent
+     * pages are ever used by more than one request, so only they need to be locked.
+     */
+    ReentrantLock getServiceLock() {
+        return serviceLock;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        serviceLock = new ReentrantLock();
+        commandObjectLock = new ReentrantLock();
+    }
+
     /**
      * Is page persistent?
      */
@@ -632,9 +631,7 @@ public abstract class Page implements Serializable {
     }
 
     void setRoutedResponseHeaders() {
-        for (Map.Entry<String, String> me : context.getResponseHeaders().entrySet()) {
-            context.response.setHeader(me.getKey(), me.getValue());
-        }
+        context.applyResponseHeaders();
     }
 
     protected boolean validateBean(Object object) {
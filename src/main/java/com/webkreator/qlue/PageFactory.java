@@ -0,0 +1,257 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.annotations.QlueCacheable;
+import com.webkreator.qlue.annotations.QlueCommandObject;
+import com.webkreator.qlue.annotations.QluePersistentPage;
+import com.webkreator.qlue.exceptions.QlueException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Creates instances of one page class, and of its command object. Everything that requires
+ * reflection (finding the constructors, checking access to them, and locating the field annotated
+ * with @QlueCommandObject) is done once per class, leaving only method handle invocations for
+ * each request. Factories are cached per class and are safe to share between threads.
+ */
+public final class PageFactory {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodType PAGE_CONSTRUCTOR_TYPE = MethodType.methodType(Page.class);
+
+    private static final MethodType COMMAND_OBJECT_CONSTRUCTOR_TYPE = MethodType.methodType(Object.class, Page.class);
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Page.class);
+
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Page.class, Object.class);
+
+    private static final ClassValue<PageFactory> FACTORIES = new ClassValue<PageFactory>() {
+        @Override
+        protected PageFactory computeValue(Class<?> type) {
+            return new PageFactory(type.asSubclass(Page.class));
+        }
+    };
+
+    private final Class<? extends Page> pageClass;
+
+    private final MethodHandle constructor;
+
+    private final String constructorProblem;
+
+    private final Field commandObjectField;
+
+    private final MethodHandle commandObjectGetter;
+
+    private final MethodHandle commandObjectSetter;
+
+    private final MethodHandle commandObjectConstructor;
+
+    private final QlueCacheable cacheable;
+
+    private PageFactory(Class<? extends Page> pageClass) {
+        this.pageClass = pageClass;
+
+        MethodHandle mh = null;
+        String problem = null;
+        if (Modifier.isAbstract(pageClass.getModifiers())) {
+            problem = "abstract class";
+        } else {
+            try {
+                mh = LOOKUP.findConstructor(pageClass, MethodType.methodType(void.class)).asType(PAGE_CONSTRUCTOR_TYPE);
+            } catch (NoSuchMethodException e) {
+                problem = "no default constructor";
+            } catch (IllegalAccessException e) {
+                problem = "default constructor not accessible";
+            }
+        }
+
+        this.constructor = mh;
+        this.constructorProblem = problem;
+
+        // The first public field annotated with @QlueCommandObject holds the command object.
+        Field field = null;
+        for (Field f : pageClass.getFields()) {
+            if (f.isAnnotationPresent(QlueCommandObject.class)) {
+                field = f;
+                break;
+            }
+        }
+
+        this.commandObjectField = field;
+
+        if (field != null) {
+            this.commandObjectGetter = unreflect(field, false);
+            this.commandObjectSetter = unreflect(field, true);
+            this.commandObjectConstructor = findCommandObjectConstructor(field.getType(), pageClass);
+        } else {
+            this.commandObjectGetter = null;
+            this.commandObjectSetter = null;
+            this.commandObjectConstructor = null;
+        }
+
+        // Persistent pages belong to a session, so their responses can't be shared.
+        QlueCacheable qc = pageClass.getAnnotation(QlueCacheable.class);
+        if ((qc != null) && (qc.ttl() > 0) && !pageClass.isAnnotationPresent(QluePersistentPage.class)) {
+            this.cacheable = qc;
+        } else {
+            this.cacheable = null;
+        }
+    }
+
+    /**
+     * Converts the field into a method handle. Fields that can't be accessed this way (e.g., final
+     * fields, or public fields of non-public classes) are left to plain reflection, which will then
+     * report the problem in the usual way when the field is actually used.
+     */
+    private static MethodHandle unreflect(Field f, boolean forSetter) {
+        try {
+            MethodHandle mh = forSetter ? LOOKUP.unreflectSetter(f) : LOOKUP.unreflectGetter(f);
+            if (Modifier.isStatic(f.getModifiers())) {
+                mh = MethodHandles.dropArguments(mh, 0, Page.class);
+            }
+
+            return mh.asType(forSetter ? SETTER_TYPE : GETTER_TYPE);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the factory for the given page class.
+     */
+    public static PageFactory forClass(Class<? extends Page> pageClass) {
+        return FACTORIES.get(pageClass);
+    }
+
+    /**
+     * Finds a way to create command objects of the given type, taking a page as the only parameter.
+     * Our first choice is the default constructor. Inner classes don't have one; instead they have an
+     * implicit constructor that takes a reference to the parent object, which in our case is the page.
+     * See http://docs.oracle.com/javase/specs/jls/se8/html/jls-8.html#jls-8.8.1
+     *
+     * @return a method handle, or null if the type has neither constructor
+     */
+    private static MethodHandle findCommandObjectConstructor(Class<?> type, Class<? extends Page> pageClass) {
+        if (Modifier.isAbstract(type.getModifiers()) || type.isInterface()) {
+            return null;
+        }
+
+        try {
+            MethodHandle mh = LOOKUP.findConstructor(type, MethodType.methodType(void.class));
+            return MethodHandles.dropArguments(mh.asType(MethodType.methodType(Object.class)), 0, Page.class);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            // Try an inner class constructor next.
+        }
+
+        for (Constructor<?> c : type.getConstructors()) {
+            if ((c.getParameterCount() == 1) && c.getParameterTypes()[0].isAssignableFrom(pageClass)) {
+                try {
+                    return LOOKUP.unreflectConstructor(c).asType(COMMAND_OBJECT_CONSTRUCTOR_TYPE);
+                } catch (IllegalAccessException e) {
+                    return null;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public Class<? extends Page> getPageClass() {
+        return pageClass;
+    }
+
+    /**
+     * Returns the class of the command object: the type of the field annotated
+     * with @QlueCommandObject if there is one, or the page class otherwise.
+     */
+    public Class<?> getCommandObjectClass() {
+        return (commandObjectField != null) ? commandObjectField.getType() : pageClass;
+    }
+
+    /**
+     * Returns the page's @QlueCacheable annotation, or null if its responses
+     * can't be cached, either because it doesn't have one or because it's persistent.
+     */
+    public QlueCacheable getCacheable() {
+        return cacheable;
+    }
+
+    /**
+     * Creates a new page instance.
+     *
+     * @throws QlueException if the page class can't be instantiated
+     */
+    public Page newPage() {
+        if (constructor == null) {
+            throw new QlueException("Error creating page instance: " + pageClass.getName() + ": " + constructorProblem);
+        }
+
+        try {
+            return (Page) constructor.invokeExact();
+        } catch (RuntimeException | java.lang.Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new QlueException("Error creating page instance: " + t.getMessage(), t);
+        }
+    }
+
+    /**
+     * Returns the command object of the given page, creating it first if the field
+     * annotated with @QlueCommandObject is empty. Returns null if the page class doesn't
+     * have such a field, which means that the page is its own command object.
+     */
+    Object getCommandObject(Page page) {
+        if (commandObjectField == null) {
+            return null;
+        }
+
+        try {
+            Object commandObject = (commandObjectGetter != null)
+                    ? commandObjectGetter.invokeExact(page) : commandObjectField.get(page);
+
+            // If the command object doesn't exist, we try to create a new instance.
+            if (commandObject == null) {
+                if (commandObjectConstructor == null) {
+                    throw new RuntimeException("Unable to create command object: " + commandObjectField.getType());
+                }
+
+                commandObject = commandObjectConstructor.invokeExact(page);
+
+                if (commandObjectSetter != null) {
+                    commandObjectSetter.invokeExact(page, commandObject);
+                } else {
+                    commandObjectField.set(page, commandObject);
+                }
+            }
+
+            return commandObject;
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (RuntimeException | java.lang.Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException("Unable to create command object: " + commandObjectField.getType(), t);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of how requests for persistent pages fare when they try to obtain exclusive
+ * access to their page: how many obtained it straight away, how many had to wait, how long they
+ * waited, and how many gave up. A high contention count is usually a sign of users working on the
+ * same page from several browser tabs, or of duplicate form submissions.
+ */
+public final class PageLockMetrics {
+
+    private final LongAdder acquisitions = new LongAdder();
+
+    private final LongAdder contended = new LongAdder();
+
+    private final LongAdder timeouts = new LongAdder();
+
+    private final LongAdder waitNanos = new LongAdder();
+
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+    void recordUncontended() {
+        acquisitions.increment();
+    }
+
+    void recordContended(long waited) {
+        acquisitions.increment();
+        contended.increment();
+        recordWait(waited);
+    }
+
+    void recordTimeout(long waited) {
+        contended.increment();
+        timeouts.increment();
+        recordWait(waited);
+    }
+
+    private void recordWait(long waited) {
+        waitNanos.add(waited);
+        maxWaitNanos.accumulate(waited);
+    }
+
+    /**
+     * Number of times a page lock was obtained.
+     */
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    /**
+     * Number of times a page lock was held by another request
+     * at the time it was needed, whether obtained later or not.
+     */
+    public long getContended() {
+        return contended.sum();
+    }
+
+    /**
+     * Number of requests that gave up waiting for a page lock.
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Total time spent waiting for page locks, in milliseconds.
+     */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+    }
+
+    /**
+     * The longest single wait for a page lock, in milliseconds.
+     */
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "acquisitions=" + getAcquisitions()
+                + ", contended=" + getContended()
+                + ", timeouts=" + getTimeouts()
+                + ", totalWaitMillis=" + getTotalWaitMillis()
+                + ", maxWaitMillis=" + getMaxWaitMillis();
+    }
+}
@@ -20,13 +20,18 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
 import com.webkreator.qlue.annotations.QlueBodyParameter;
+import com.webkreator.qlue.annotations.QlueCacheable;
 import com.webkreator.qlue.annotations.QlueParameter;
 import com.webkreator.qlue.annotations.QlueSchedule;
 import com.webkreator.qlue.editors.*;
 import com.webkreator.qlue.exceptions.*;
 import com.webkreator.qlue.router.QlueRouteManager;
+import com.webkreator.qlue.router.Route;
 import com.webkreator.qlue.router.RouteFactory;
 import com.webkreator.qlue.router.RouteManager;
+import com.webkreator.qlue.router.RouteReloadMetrics;
+import com.webkreator.qlue.router.RoutesReloader;
+import com.webkreator.qlue.router.RoutingMetrics;
 import com.webkreator.qlue.util.*;
 import com.webkreator.qlue.view.*;
 import com.webkreator.qlue.view.velocity.ClasspathVelocityViewFactory;
@@ -42,6 +47,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+import jakarta.servlet.RequestDispatcher;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.*;
 import jakarta.validation.ConstraintViolation;
@@ -54,12 +60,15 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 /**
  * This class represents one Qlue application. Very simple applications might
@@ -102,6 +111,52 @@ public class QlueApplication {
 
     private static final String PROPERTY_URGENT_EMAIL = "qlue.urgentEmail";
 
+    private static final String PROPERTY_WARMUP_ENABLED = "qlue.warmup.enabled";
+
+    private static final String PROPERTY_BODY_MAX_SIZE = "qlue.body.maxSize";
+
+    private static final String PROPERTY_BODY_SPOOL_THRESHOLD = "qlue.body.spoolThreshold";
+
+    private static final int DEFAULT_BODY_MAX_SIZE = 10 * 1024 * 1024;
+
+    private static final int DEFAULT_BODY_SPOOL_THRESHOLD = 64 * 1024;
+
+    private static final String PROPERTY_JSON_MAX_DEPTH = "qlue.json.maxDepth";
+
+    private static final String PROPERTY_JSON_MAX_STRING_LENGTH = "qlue.json.maxStringLength";
+
+    private static final int DEFAULT_JSON_MAX_DEPTH = 64;
+
+    private static final int DEFAULT_JSON_MAX_STRING_LENGTH = 1024 * 1024;
+
+    private static final String PROPERTY_PAGE_LOCK_TIMEOUT = "qlue.persistentPage.lockTimeout";
+
+    private static final int DEFAULT_PAGE_LOCK_TIMEOUT = 10000;
+
+    private static final String PROPERTY_ROUTER_CACHE_SIZE = "qlue.router.resolutionCacheSize";
+
+    private static final int DEFAULT_ROUTER_CACHE_SIZE = 10000;
+
+    private static final String PROPERTY_ROUTER_SCAN_PACKAGES = "qlue.router.scanPackages";
+
+    private static final String PROPERTY_ROUTES_RELOAD = "qlue.routes.reload";
+
+    private static final String PROPERTY_ROUTES_CONSTANT_RESPONSES = "qlue.routes.constantResponses";
+
+    private static final String PROPERTY_ROUTES_LIGHTWEIGHT = "qlue.routes.lightweight";
+
+    private static final String PROPERTY_RESPONSE_CACHE_MAX_SIZE = "qlue.responseCache.maxSize";
+
+    private static final int DEFAULT_RESPONSE_CACHE_MAX_SIZE = 16 * 1024 * 1024;
+
+    private static final String PROPERTY_RESPONSE_CACHE_WAIT_TIMEOUT = "qlue.responseCache.waitTimeout";
+
+    private static final int DEFAULT_RESPONSE_CACHE_WAIT_TIMEOUT = 10000;
+
+    private static final String PROPERTY_UPLOAD_SPOOL_DIR = "qlue.upload.spoolDir";
+
+    private static final String PROPERTY_UPLOAD_MEMORY_THRESHOLD = "qlue.upload.memoryThreshold";
+
     private String messagesFilename = "com/webkreator/qlue/messages";
 
     private Properties properties = new Properties();
@@ -140,6 +195,9 @@ public class QlueApplication {
 
     private int urgentCounter = -1;
 
+    // Guards urgentCounter. Never held while an email is being sent.
+    private final ReentrantLock urgentLock = new ReentrantLock();
+
     private SmtpEmailSender smtpEmailSender;
 
     private SmtpEmailSender asyncSmtpEmailSender;
@@ -158,6 +216,46 @@ public class QlueApplication {
 
     protected Gson bindingGson;
 
+    protected JsonBodyParser jsonBodyParser;
+
+    private final Map<Class<?>, BindingPlan> bindingPlans = new ConcurrentHashMap<>();
+
+    private int bodyMaxSize = DEFAULT_BODY_MAX_SIZE;
+
+    private int bodySpoolThreshold = DEFAULT_BODY_SPOOL_THRESHOLD;
+
+    private int jsonMaxDepth = DEFAULT_JSON_MAX_DEPTH;
+
+    private int jsonMaxStringLength = DEFAULT_JSON_MAX_STRING_LENGTH;
+
+    private File uploadSpoolDir;
+
+    private int uploadMemoryThreshold = 0;
+
+    // True if a subclass changes how requests are routed or handled, in which case
+    // every request must go through route() and serviceInternal().
+    private boolean requestHandlingOverridden = false;
+
+    private int pageLockTimeout = DEFAULT_PAGE_LOCK_TIMEOUT;
+
+    private int routerCacheSize = DEFAULT_ROUTER_CACHE_SIZE;
+
+    private ResponseCache responseCache;
+
+    private File propertiesFile;
+
+    private RoutesReloader routesReloader;
+
+    private final PageLockMetrics pageLockMetrics = new PageLockMetrics();
+
+    private volatile Validator beanValidator;
+
+    private volatile boolean beanValidatorResolved;
+
+    private final ReentrantLock beanValidatorLock = new ReentrantLock();
+
+    private final Map<Class<?>, Boolean> beanConstrained = new ConcurrentHashMap<>();
+
     /**
      * This is the default constructor. The idea is that a subclass will
      * override it and supplement with its own configuration.
@@ -165,6 +263,7 @@ public class QlueApplication {
     protected QlueApplication() {
         initPropertyEditors();
         prepareBindingGson();
+        prepareJsonBodyParser();
         velocityViewFactory = new ClasspathVelocityViewFactory();
         viewFactories.add(velocityViewFactory);
     }
@@ -227,6 +326,22 @@ public class QlueApplication {
 
         initRouteManagers();
 
+        if (getBooleanProperty(PROPERTY_ROUTER_SCAN_PACKAGES, "true")) {
+            scanPackages();
+        }
+
+        if (getBooleanProperty(PROPERTY_ROUTES_RELOAD, "false")) {
+            startRoutesReloader();
+        }
+
+        routeManager.setConstantResponses(getBooleanProperty(PROPERTY_ROUTES_CONSTANT_RESPONSES, "true"));
+        routeManager.setLightweightRoutes(getBooleanProperty(PROPERTY_ROUTES_LIGHTWEIGHT, "true"));
+
+        requestHandlingOverridden = isRequestHandlingOverridden();
+        if (requestHandlingOverridden) {
+            log.info("Qlue: Request handling is overridden; all requests will be handled with a transaction context");
+        }
+
         if (viewResolver == null) {
             throw new Exception("View resolver not configured");
         }
@@ -245,6 +360,11 @@ public class QlueApplication {
     }
 
     protected void qluePostInit() {
+        // Warm up first, so that a failure doesn't leave timers and jobs behind.
+        if (getBooleanProperty(PROPERTY_WARMUP_ENABLED, "false")) {
+            warmUp();
+        }
+
         configureEmailSenders();
 
         Calendar nextHour = Calendar.getInstance();
@@ -256,6 +376,14 @@ public class QlueApplication {
         scheduleApplicationJobs();
     }
 
+    /**
+     * Prepares pages and their templates ahead of the first request to them, reporting
+     * any problems found along the way. Invoked on startup when warm-up is enabled.
+     */
+    protected void warmUp() {
+        new StartupWarmUp(this).run();
+    }
+
     protected void initRouteManagers() throws Exception {
         File routesFile = new File(confPath, ROUTES_FILENAME);
         if (routesFile.exists()) {
@@ -263,6 +391,36 @@ public class QlueApplication {
         }
     }
 
+    /**
+     * Starts watching routes.conf and the properties file, reloading the
+     * routes when either changes. Invoked on startup when enabled.
+     */
+    protected void startRoutesReloader() throws IOException {
+        File routesFile = new File(confPath, ROUTES_FILENAME);
+        if (!routesFile.exists()) {
+            log.warn("Routes reloading enabled, but there is no routes file: " + routesFile);
+            return;
+        }
+
+        routesReloader = new RoutesReloader(routeManager, routesFile, propertiesFile);
+        routesReloader.start();
+    }
+
+    public RouteReloadMetrics getRouteReloadMetrics() {
+        return routeManager.getReloadMetrics();
+    }
+
+    public RoutingMetrics getRoutingMetrics() {
+        return routeManager.getRoutingMetrics();
+    }
+
+    /**
+     * Returns the routes currently in use, in the order in which they are tried.
+     */
+    public List<Route> getRoutes() {
+        return routeManager.getRoutes();
+    }
+
     void loadProperties() throws Exception {
         File propsFile;
 
@@ -283,6 +441,8 @@ public class QlueApplication {
             return;
         }
 
+        propertiesFile = propsFile;
+
         try (FileReader reader = new FileReader(propsFile)) {
             properties.load(reader);
 
@@ -315,6 +475,35 @@ public class QlueApplication {
 
             urgentEmail = getProperty(PROPERTY_URGENT_EMAIL);
 
+            bodyMaxSize = getIntProperty(PROPERTY_BODY_MAX_SIZE, DEFAULT_BODY_MAX_SIZE);
+
+            bodySpoolThreshold = getIntProperty(PROPERTY_BODY_SPOOL_THRESHOLD, DEFAULT_BODY_SPOOL_THRESHOLD);
+
+            jsonMaxDepth = getIntProperty(PROPERTY_JSON_MAX_DEPTH, DEFAULT_JSON_MAX_DEPTH);
+
+            jsonMaxStringLength = getIntProperty(PROPERTY_JSON_MAX_STRING_LENGTH, DEFAULT_JSON_MAX_STRING_LENGTH);
+
+            prepareJsonBodyParser();
+
+            if (getProperty(PROPERTY_UPLOAD_SPOOL_DIR) != null) {
+                uploadSpoolDir = new File(getProperty(PROPERTY_UPLOAD_SPOOL_DIR));
+                if (!uploadSpoolDir.isDirectory()) {
+                    throw new QlueException("Upload spool directory doesn't exist: " + uploadSpoolDir);
+                }
+            }
+
+            uploadMemoryThreshold = getIntProperty(PROPERTY_UPLOAD_MEMORY_THRESHOLD, 0);
+
+            pageLockTimeout = getIntProperty(PROPERTY_PAGE_LOCK_TIMEOUT, DEFAULT_PAGE_LOCK_TIMEOUT);
+
+            routerCacheSize = getIntProperty(PROPERTY_ROUTER_CACHE_SIZE, DEFAULT_ROUTER_CACHE_SIZE);
+
+            int responseCacheMaxSize = getIntProperty(PROPERTY_RESPONSE_CACHE_MAX_SIZE, DEFAULT_RESPONSE_CACHE_MAX_SIZE);
+            if (responseCacheMaxSize > 0) {
+                responseCache = new ResponseCache(responseCacheMaxSize,
+                        getIntProperty(PROPERTY_RESPONSE_CACHE_WAIT_TIMEOUT, DEFAULT_RESPONSE_CACHE_WAIT_TIMEOUT));
+            }
+
             priorityTemplatePath = getProperty("qlue.velocity.priorityTemplatePath");
             if (priorityTemplatePath != null) {
                 Path p = FileSystems.getDefault().getPath(priorityTemplatePath);
@@ -396,6 +585,22 @@ public class QlueApplication {
         if (timer != null) {
             timer.cancel();
         }
+
+        if (routesReloader != null) {
+            try {
+                routesReloader.close();
+            } catch (IOException e) {
+                log.warn("Failed to stop routes reloader", e);
+            }
+        }
+
+        for (ViewFactory vf : viewFactories) {
+            try {
+                vf.destroy();
+            } catch (RuntimeException e) {
+                log.warn("Failed to destroy view factory", e);
+            }
+        }
     }
 
     /**
@@ -410,6 +615,12 @@ public class QlueApplication {
         request.setCharacterEncoding(characterEncoding);
         response.setCharacterEncoding(characterEncoding);
 
+        // Requests for redirect: and status: routes, for static
+        // files, and for cached responses don't need a context.
+        if (serveWithoutContext(request, response)) {
+            return;
+        }
+
         // Create a new context.
         TransactionContext context = new TransactionContext(
                 this,
@@ -438,6 +649,144 @@ public class QlueApplication {
         return routeManager.route(context);
     }
 
+    /**
+     * Checks if a subclass overrides any of the methods through which requests are
+     * routed and handled. Requests served without a transaction context never reach
+     * them, so they must not be served that way if it does.
+     */
+    boolean isRequestHandlingOverridden() {
+        return overrides("route", TransactionContext.class)
+                || overrides("serviceInternal", TransactionContext.class)
+                || overrides("processPage", Page.class)
+                || overrides("newDirectViewPage", View.class);
+    }
+
+    private boolean overrides(String name, Class<?>... parameterTypes) {
+        for (Class<?> c = getClass(); c != QlueApplication.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod(name, parameterTypes);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // Keep looking in the superclass.
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Handles the request without a transaction context, if the route that handles
+     * it doesn't need one: redirect: and status: routes, whose responses are prepared
+     * in advance, routes with lightweight routers, such as static: routes, and pages
+     * whose responses are in the response cache. Requests
+     * that could be affected by something other than the route are left alone: error
+     * handling, requests for persistent pages, and requests that may be in development
+     * mode, where, for example, redirections are shown rather than followed. Applications
+     * that override route(), serviceInternal(), processPage() or newDirectViewPage() get
+     * neither the prepared responses nor the lightweight routes, which those methods would
+     * never see, and their cached responses are served only after routing.
+     *
+     * @return true if the response has been sent
+     */
+    private boolean serveWithoutContext(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (request.getAttribute(RequestDispatcher.ERROR_STATUS_CODE) != null) {
+            return false;
+        }
+
+        if ((developmentSubnets != null) && (developmentMode != QlueConstants.DEVMODE_DISABLED)) {
+            return false;
+        }
+
+        if (request.getParameterValues("_pid") != null) {
+            return false;
+        }
+
+        // Invalid URIs are rejected when the context is created.
+        String uri;
+        try {
+            uri = WebUtil.normaliseUri(request.getRequestURI());
+        } catch (BadRequestException e) {
+            return false;
+        }
+
+        String queryString = request.getQueryString();
+        if ((uri.indexOf("/../") != -1) || ((queryString != null) && (queryString.indexOf("/../") != -1))) {
+            return false;
+        }
+
+        if (!requestHandlingOverridden && routeManager.serveWithoutContext(uri, request, response)) {
+            return true;
+        }
+
+        if ((responseCache != null) && responseCache.isEligible(request)) {
+            // When request handling is overridden, stored responses are served only once it has chosen the page.
+            ResponseCache.Entry entry = requestHandlingOverridden ? null : responseCache.find(request);
+            if (entry != null) {
+                entry.send(response);
+                return true;
+            }
+
+            // The URI leads to a cacheable page, so the response is rendered without a
+            // session: it may be given to everyone who asks for it.
+            if (responseCache.isRenderedWithoutSession(request)) {
+                request.setAttribute(QlueConstants.QLUE_SESSIONLESS_REQUEST, Boolean.TRUE);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Joins the response cache if the page allows it and the request is eligible.
+     *
+     * @return the flight, or null if the cache is not to be used
+     */
+    private ResponseCache.Flight joinResponseCache(TransactionContext context, Page page) {
+        if (responseCache == null) {
+            return null;
+        }
+
+        QlueCacheable cacheable = PageFactory.forClass(page.getClass()).getCacheable();
+        if ((cacheable == null) || !responseCache.isEligible(context.getRequest()) || isQlueDevMode(context)) {
+            if ((cacheable == null) && context.isSessionless()) {
+                responseCache.forget(context.getRequest());
+            }
+
+            return null;
+        }
+
+        // Only responses rendered without a session are stored. This one wasn't, but
+        // the next request for the same URI will be.
+        if (!context.isSessionless()) {
+            responseCache.learn(context.getRequest());
+            return null;
+        }
+
+        return responseCache.join(context.getRequest(), cacheable);
+    }
+
+    /**
+     * Sends the response captured for the response cache, and hands it over to the cache,
+     * which will store it if the page rendered it successfully without using any of the
+     * values that belong to the transaction.
+     */
+    private void completeResponseCapture(TransactionContext context, ResponseCache.Flight flight,
+                                         ResponseCapture capture, boolean rendered) throws IOException {
+        context.response = (HttpServletResponse) capture.getResponse();
+
+        boolean finished = false;
+        try {
+            capture.finish();
+            finished = true;
+        } finally {
+            responseCache.complete(flight, (rendered && finished) ? capture : null, context.isPersonalised());
+        }
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
     protected View processPage(Page page) throws Exception {
         View view = null;
 
@@ -509,6 +858,9 @@ public class QlueApplication {
      */
     protected void serviceInternal(TransactionContext context) throws ServletException, IOException {
         Page page = null;
+        ResponseCache.Flight flight = null;
+        ResponseCapture capture = null;
+        boolean rendered = false;
 
         try {
             // First check if this is a request for a persistent page. We can
@@ -576,16 +928,34 @@ public class QlueApplication {
                 throw new RuntimeException("Qlue: Unexpected router response: " + routeObject);
             }
 
-            if (persistentPage != null) {
-                page = persistentPage;
-            } else {
-                page = routedPage;
+            // Run the page. Non-persistent pages are created for the current request and
+            // can't be seen by any other, but a persistent page can be accessed by several
+            // requests at once (e.g., when the user has more than one browser tab open). Such
+            // requests are handled one at a time, but waiting is not indefinite.
+
+            // Pages that allow it are answered from the response cache, if possible. Otherwise,
+            // one of the requests that want the same response renders it for the others.
+
+            if (persistentPage == null) {
+                flight = joinResponseCache(context, routedPage);
+                if (flight != null) {
+                    if (flight.getEntry() != null) {
+                        flight.getEntry().send(context.getResponse());
+                        return;
+                    }
+
+                    if (flight.isLeader()) {
+                        capture = new ResponseCapture(context.response, responseCache.getMaxEntrySize());
+                        context.response = capture;
+                    }
+                }
             }
 
-            // Run the page. Access to the page is synchronised, which means that only one
-            // HTTP request can handle it at any given time.
+            Page candidate = (persistentPage != null) ? persistentPage : routedPage;
+            ReentrantLock lock = candidate.isPersistent() ? acquirePageLock(candidate) : null;
+            page = candidate;
 
-            synchronized (page) {
+            try {
                 page.setApp(this);
                 page.determineDefaultViewName(viewResolver);
                 page.setContext(context);
@@ -614,6 +984,26 @@ public class QlueApplication {
                     if (page.getState().equals(Page.STATE_INIT)) {
                         page.setState(page.getDefaultStateAfterInit());
                     }
+
+                    // Persistent pages keep their shadow input, which must not depend on
+                    // anything that belongs to this request, and which the next request
+                    // may replace as soon as the lock is released.
+                    page.getShadowInput().resolveAll();
+                }
+
+                rendered = true;
+            } finally {
+                if (lock != null) {
+                    if (!rendered) {
+                        // The same after a failure, which mustn't be hidden by another one.
+                        try {
+                            page.getShadowInput().resolveAll();
+                        } catch (RuntimeException e) {
+                            log.warn("Qlue: Unable to resolve shadow input", e);
+                        }
+                    }
+
+                    lock.unlock();
                 }
             }
         } catch (PersistentPageNotFoundException ppnfe) {
@@ -679,16 +1069,104 @@ public class QlueApplication {
                 throw new ServletException(e);
             }
         } finally {
+            if (capture != null) {
+                completeResponseCapture(context, flight, capture, rendered);
+            }
+
             // In development mode, append debugging information to the end of the page.
             masterWriteRequestDevelopmentInformation(context, page);
 
-            // Invoke cleanup on finished pages.
-            if ((page != null) && (page.isFinished()) && (!page.isCleanupInvoked())) {
-                page.cleanup();
+            try {
+                // Uploaded files of non-persistent pages are of no use once the request is
+                // over, even when it failed before the page could finish.
+                if ((page != null) && !page.isPersistent() && !page.isFinished()) {
+                    page.deleteFiles();
+                }
+
+                // Invoke cleanup on finished pages.
+                if ((page != null) && (page.isFinished()) && (!page.isCleanupInvoked())) {
+                    page.cleanup();
+                }
+            } finally {
+                context.closeRequestResources();
             }
         }
     }
 
+    /**
+     * Obtains exclusive access to a persistent page, waiting for the request currently
+     * using it to finish, but for no longer than the configured timeout.
+     *
+     * @throws TooManyRequestsException if the page couldn't be locked in time
+     */
+    ReentrantLock acquirePageLock(Page page) {
+        ReentrantLock lock = page.getServiceLock();
+        if (lock.tryLock()) {
+            pageLockMetrics.recordUncontended();
+            return lock;
+        }
+
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = lock.tryLock(getPageLockTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+
+        long waited = System.nanoTime() - start;
+        if (!acquired) {
+            pageLockMetrics.recordTimeout(waited);
+            throw new TooManyRequestsException("Persistent page busy: " + page.getId());
+        }
+
+        pageLockMetrics.recordContended(waited);
+        return lock;
+    }
+
+    /**
+     * How long a request waits for a persistent page that's in use by another
+     * request, in milliseconds, before it's rejected with status 429.
+     */
+    protected int getPageLockTimeout() {
+        return pageLockTimeout;
+    }
+
+    public PageLockMetrics getPageLockMetrics() {
+        return pageLockMetrics;
+    }
+
+    /**
+     * How many URI resolutions each package router may remember. Nothing is
+     * remembered in development mode, where pages and templates come and go.
+     */
+    public int getRouterCacheSize() {
+        if (isQlueDevMode()) {
+            return 0;
+        }
+
+        return routerCacheSize;
+    }
+
+    /**
+     * Scans the packages behind the package routes, so that requests can be routed without
+     * consulting the class loader. Invoked on startup, unless disabled, and can be invoked
+     * again in development mode to pick up pages and direct views that have been removed.
+     * If a package can't be scanned, its router looks for pages on each request, as before.
+     */
+    public void scanPackages() {
+        routeManager.scanPackages();
+    }
+
+    /**
+     * Makes the routers forget what they know about pages and templates. Call
+     * this after templates have been reloaded or pages otherwise changed.
+     */
+    public void clearRouterCaches() {
+        routeManager.clearResolutionCaches();
+    }
+
     /**
      * Handle application exception. We dump debugging information into the
      * application activity log and, if the admin email address is configured,
@@ -758,11 +1236,11 @@ public class QlueApplication {
         }
     }
 
-    public synchronized void sendAdminEmail(Email email) {
+    public void sendAdminEmail(Email email) {
         sendAdminEmail(email, false);
     }
 
-    public synchronized void sendAdminEmail(Email email, boolean fatalError) {
+    public void sendAdminEmail(Email email, boolean fatalError) {
         if (adminEmail == null) {
             return;
         }
@@ -790,18 +1268,26 @@ public class QlueApplication {
         // if we want to urgently notify the administrators; we
         // want to send only one urgent email per time period.
         if ((fatalError) && (urgentEmail != null)) {
-            // When the counter is at -1 that means we didn't
-            // send any emails in the previous time period. In
-            // other words, we can send one now.
-            if (urgentCounter == -1) {
-                urgentCounter = 0;
-            } else {
-                // Alternatively, just increment the counter
-                // and send nothing.
-                urgentCounter++;
+            int suppressed = 0;
 
-                log.info("Suppressing fatal error email (" + urgentCounter + "): " + email.getSubject());
+            urgentLock.lock();
+            try {
+                // When the counter is at -1 that means we didn't
+                // send any emails in the previous time period. In
+                // other words, we can send one now.
+                if (urgentCounter == -1) {
+                    urgentCounter = 0;
+                } else {
+                    // Alternatively, just increment the counter
+                    // and send nothing.
+                    suppressed = ++urgentCounter;
+                }
+            } finally {
+                urgentLock.unlock();
+            }
 
+            if (suppressed != 0) {
+                log.info("Suppressing fatal error email (" + suppressed + "): " + email.getSubject());
                 return;
             }
         }
@@ -818,11 +1304,15 @@ public class QlueApplication {
         // For persistent pages, we clear errors only on POSTs; that
         // means that a subsequent GET can access the errors to show
         // them to the user.
-        if (!page.isPersistent() || page.context.isPost()) {
-            createShadowInput(page, /* fromRequest */ true);
-        } else {
-            if (page.getState() == Page.STATE_INIT) {
-                createShadowInput(page, /* fromRequest */ false);
+        // Non-persistent pages don't outlive the request, so their shadow
+        // input is needed only if the view is going to use a template.
+        if (page.isPersistent() || isTemplateView(view)) {
+            if (!page.isPersistent() || page.context.isPost()) {
+                createShadowInput(page, /* fromRequest */ true);
+            } else {
+                if (page.getState() == Page.STATE_INIT) {
+                    createShadowInput(page, /* fromRequest */ false);
+                }
             }
         }
 
@@ -855,7 +1345,7 @@ public class QlueApplication {
         view.render(tx, page);
     }
 
-    private View constructView(String viewName) throws Exception {
+    View constructView(String viewName) throws Exception {
         for (ViewFactory vf : viewFactories) {
             View v = vf.constructView(viewName);
             if (v != null) {
@@ -866,13 +1356,25 @@ public class QlueApplication {
         return null;
     }
 
+    /**
+     * Determines if the view might render a template, and thus need shadow input. The
+     * views that can't are the ones that produce no output or fixed output.
+     */
+    private static boolean isTemplateView(View view) {
+        return !((view instanceof NullView)
+                || (view instanceof RedirectView)
+                || (view instanceof StringView)
+                || (view instanceof DownloadView)
+                || (view instanceof StatusCodeView)
+                || (view instanceof StatusCodeOnlyView));
+    }
+
     /**
      * Invoked to store the original text values for parameters. The text is
      * needed in the cases where it cannot be converted to the intended type.
+     * The values themselves are worked out only when they are first used.
      */
     private void createShadowInput(Page page, boolean fromRequest) throws Exception {
-        page.clearShadowInput();
-
         // Ask the page to provide a command object, which can be
         // a custom object or the page itself.
         Object commandObject = page.getCommandObject();
@@ -880,79 +1382,8 @@ public class QlueApplication {
             throw new RuntimeException("Qlue: Command object cannot be null");
         }
 
-        // Loop through the command object fields in order to determine
-        // if any are annotated as parameters. Remember the original
-        // text values of parameters.
-        Set<Field> fields = getClassPublicFields(commandObject.getClass());
-        for (Field f : fields) {
-            if (f.isAnnotationPresent(QlueParameter.class)) {
-                if (QlueFile.class.isAssignableFrom(f.getType())) {
-                    continue;
-                }
-
-                if (!Modifier.isPublic(f.getModifiers())) {
-                    throw new QlueException("QlueParameter used on a non-public field");
-                }
-
-                // Update missing shadow input fields
-                if (page.getShadowInput().get(f.getName()) == null) {
-                    if (f.getType().isArray()) {
-                        createShadowInputArrayParam(page, f, fromRequest);
-                    } else {
-                        createShadowInputNonArrayParam(page, f, fromRequest);
-                    }
-                }
-            }
-        }
-    }
-
-    private void createShadowInputArrayParam(Page page, Field f, boolean fromRequest) throws Exception {
-        // Find the property editor
-        PropertyEditor pe = findPropertyEditor(f.getType().getComponentType());
-        if (pe == null) {
-            throw new RuntimeException("Qlue: Binding does not know how to handle type: " + f.getType().getComponentType());
-        }
-
-        // If there is any data in the command object use it to populate shadow input
-        if (f.get(page.getCommandObject()) != null) {
-            Object[] originalValues = (Object[]) f.get(page.getCommandObject());
-            String[] textValues = new String[originalValues.length];
-
-            for (int i = 0; i < originalValues.length; i++) {
-                textValues[i] = pe.toText(originalValues[i]);
-            }
-
-            page.getShadowInput().set(f.getName(), textValues);
-        }
-
-        if (fromRequest) {
-            // Overwrite with the value in the request, if present
-            String[] requestParamValues = page.context.getParameterValues(f.getName());
-            if (requestParamValues != null) {
-                page.getShadowInput().set(f.getName(), requestParamValues);
-            }
-        }
-    }
-
-    private void createShadowInputNonArrayParam(Page page, Field f, boolean fromRequest) throws Exception {
-        PropertyEditor pe = findPropertyEditor(f.getType());
-        if (pe == null) {
-            throw new RuntimeException("Qlue: Binding does not know how to handle type: " + f.getType());
-        }
-
-        // If the object exists in the command object, convert it to text using the property editor
-        Object o = f.get(page.getCommandObject());
-        if (o != null) {
-            page.getShadowInput().set(f.getName(), pe.toText(o));
-        }
-
-        // Overwrite with the value in the request, if present
-        if (fromRequest) {
-            String requestParamValue = page.context.getParameter(f.getName());
-            if (requestParamValue != null) {
-                page.getShadowInput().set(f.getName(), requestParamValue);
-            }
-        }
+        page.setShadowInput(new ShadowInput(getBindingPlan(commandObject.getClass()), commandObject,
+                fromRequest ? page.context : null));
     }
 
     /**
@@ -1000,7 +1431,17 @@ public class QlueApplication {
         }
 
         if (getBooleanProperty("qlue.devmode.debug", "false")) {
-            _masterWriteRequestDevelopmentInformation(context, page, context.response.getWriter());
+            PrintWriter out;
+            try {
+                out = context.response.getWriter();
+            } catch (IllegalStateException e) {
+                // The page went to the output stream (qlue.canoe.byteOutput).
+                out = new PrintWriter(new OutputStreamWriter(context.response.getOutputStream(),
+                        context.response.getCharacterEncoding()));
+            }
+
+            _masterWriteRequestDevelopmentInformation(context, page, out);
+            out.flush();
         }
     }
 
@@ -1040,7 +1481,7 @@ public class QlueApplication {
     }
 
     protected Set<Field> getClassPublicFields(Class klass) {
-        Set<Field> fields = new HashSet<>();
+        Set<Field> fields = new LinkedHashSet<>();
 
         for (; ; ) {
             Field[] fs = klass.getDeclaredFields();
@@ -1061,6 +1502,28 @@ public class QlueApplication {
         return fields;
     }
 
+    /**
+     * Returns the binding plan for the given command object class, building
+     * it on first use. Plans are cached for the lifetime of the application.
+     */
+    protected BindingPlan getBindingPlan(Class<?> commandObjectClass) {
+        BindingPlan plan = bindingPlans.get(commandObjectClass);
+        if (plan == null) {
+            plan = bindingPlans.computeIfAbsent(commandObjectClass,
+                    klass -> new BindingPlan(klass, getClassPublicFields(klass), this::findPropertyEditor));
+        }
+
+        return plan;
+    }
+
+    /**
+     * Returns the binding plan for the given command object class if one has
+     * been built, or null otherwise. Never builds one, and so never fails.
+     */
+    BindingPlan findBindingPlan(Class<?> commandObjectClass) {
+        return bindingPlans.get(commandObjectClass);
+    }
+
     public boolean shouldBindParameter(QlueParameter qp, Page page) {
         String state = qp.state();
 
@@ -1120,73 +1583,67 @@ public class QlueApplication {
             throw new RuntimeException("Qlue: Command object cannot be null");
         }
 
-        // Loop through the command object fields in order to determine if any are annotated as
-        // parameters. Validate those that are, then bind them.
-        Set<Field> fields = getClassPublicFields(commandObject.getClass());
-        for (Field f : fields) {
-            if (f.isAnnotationPresent(QlueBodyParameter.class)
-                    && (page.context.isDelete()
-                    || page.context.isPatch()
-                    || page.context.isPost()
-                    || page.context.isPut())) {
-                bindBodyParameter(commandObject, f, page);
-                continue;
-            }
+        BindingPlan plan = getBindingPlan(commandObject.getClass());
 
-            // We bind command object fields that have the QlueParameter annotation.
-            if (f.isAnnotationPresent(QlueParameter.class) == false) {
-                continue;
+        boolean bodyRequest = page.context.isDelete()
+                || page.context.isPatch()
+                || page.context.isPost()
+                || page.context.isPut();
+
+        if (bodyRequest) {
+            for (BindingPlan.FieldBinding binding : plan.getBodyParameters()) {
+                bindBodyParameter(commandObject, binding, page);
             }
+        }
 
-            // We bind only to public fields, but it commonly happens that the QlueParameter
-            // annotation is used on other field types, leading to frustration because it's
-            // not obvious why binding is not working. For this reason, we detect that problem
-            // here and force an error to inform the developer.
-            if (!Modifier.isPublic(f.getModifiers())) {
-                throw new QlueException("QlueParameter used on a non-public field");
+        // Bind the command object fields that have the QlueParameter annotation.
+        for (BindingPlan.FieldBinding binding : plan.getParameters()) {
+            if (bodyRequest && (binding.getBodyParameter() != null)) {
+                // Already bound from the request body.
+                continue;
             }
 
             try {
-                QlueParameter qp = f.getAnnotation(QlueParameter.class);
+                QlueParameter qp = binding.getParameter();
 
                 // Bind parameter when appropriate.
                 if (shouldBindParameter(qp, page)) {
                     if (qp.source().equals(ParamSource.URL)) {
                         // Bind parameters transported in URL. For this to work there needs
                         // to exist a route that parses out the parameter out of the URL.
-                        bindParameterFromString(commandObject, f, page, page.context.getUrlParameter(f.getName()));
+                        bindParameterFromString(commandObject, binding, page, page.context.getUrlParameter(binding.getName()));
                     } else {
                         if (qp.source().equals(ParamSource.GET_POST)
                                 || (qp.source().equals(ParamSource.GET) && page.context.isGetOrHead())
                                 || (qp.source().equals(ParamSource.POST) && page.context.isPost())) {
-                            if (f.getType().isArray()) {
-                                bindArrayParameter(commandObject, f, page);
+                            if (binding.isArray()) {
+                                bindArrayParameter(commandObject, binding, page);
                             } else {
-                                bindNonArrayParameter(commandObject, f, page);
+                                bindNonArrayParameter(commandObject, binding, page);
                             }
                         }
                     }
                 }
             } catch (IllegalArgumentException e) {
                 // Transform editor exception into a validation error.
-                page.addError(f.getName(), e.getMessage());
+                page.addError(binding.getName(), e.getMessage());
             }
         }
     }
 
-    private void bindBodyParameter(Object commandObject, Field f, Page page) throws Exception {
-        QlueBodyParameter qbp = f.getAnnotation(QlueBodyParameter.class);
+    private void bindBodyParameter(Object commandObject, BindingPlan.FieldBinding binding, Page page) throws Exception {
+        QlueBodyParameter qbp = binding.getBodyParameter();
 
         boolean valid;
 
         switch (qbp.format()) {
 
             case QlueBodyParameter.IDENTITY:
-                valid = bindIdentityBodyParameter(qbp, commandObject, f, page);
+                valid = bindIdentityBodyParameter(qbp, commandObject, binding, page);
                 break;
 
             case QlueBodyParameter.JSON:
-                valid = bindJsonBodyParameter(qbp, commandObject, f, page);
+                valid = bindJsonBodyParameter(qbp, commandObject, binding, page);
                 break;
 
             default:
@@ -1194,7 +1651,7 @@ public class QlueApplication {
         }
 
         if (valid) {
-            Object value = f.get(commandObject);
+            Object value = binding.get(commandObject);
 
             if (qbp.mandatory() && (value == null)) {
                 page.addError("Missing required request body");
@@ -1206,7 +1663,7 @@ public class QlueApplication {
         }
     }
 
-    private boolean bindIdentityBodyParameter(QlueBodyParameter qbp, Object commandObject, Field f, Page page) throws Exception {
+    private boolean bindIdentityBodyParameter(QlueBodyParameter qbp, Object commandObject, BindingPlan.FieldBinding binding, Page page) throws Exception {
         // Check the MIME type, if requested.
 
         if (!qbp.mimeType().equals(QlueBodyParameter.NOT_SET)) {
@@ -1216,22 +1673,33 @@ public class QlueApplication {
             }
         }
 
-        // Get the body as a string.
+        // Read the body, in bulk and up to the maximum size, then convert
+        // it to whatever the field wants; it's a string most of the time.
 
-        StringBuilder sb = new StringBuilder();
-        try (Reader reader = page.context.getRequest().getReader()) {
-            int c = 0;
-            while ((c = reader.read()) != -1) {
-                sb.append((char) c);
-            }
+        Class<?> type = binding.getField().getType();
+        int maxSize = (qbp.maxSize() >= 0) ? qbp.maxSize() : bodyMaxSize;
+
+        HttpServletRequest request = page.context.getRequest();
+        RequestBody body;
+        try (InputStream in = request.getInputStream()) {
+            body = RequestBody.read(in, request.getContentLengthLong(), maxSize,
+                    RequestBody.spoolThreshold(type, bodySpoolThreshold));
         }
 
-        f.set(commandObject, sb.toString());
+        String encoding = request.getCharacterEncoding();
+        Object value = body.convert(type, Charset.forName((encoding != null) ? encoding : characterEncoding), page.context);
+
+        binding.set(commandObject, value);
+
+        // Emptiness of strings is checked by the caller, after trimming.
+        if (qbp.nonempty() && (body.getSize() == 0) && !(value instanceof String)) {
+            page.addError("The request body must not be empty");
+        }
 
         return true;
     }
 
-    private boolean bindJsonBodyParameter(QlueBodyParameter qbp, Object commandObject, Field f, Page page) throws Exception {
+    private boolean bindJsonBodyParameter(QlueBodyParameter qbp, Object commandObject, BindingPlan.FieldBinding binding, Page page) throws Exception {
         // Validate the content type.
 
         String expectedMimeType = QlueConstants.JSON_MIME_TYPE;
@@ -1244,10 +1712,19 @@ public class QlueApplication {
             return false;
         }
 
-        // Parse JSON.
+        // Parse JSON, straight from the input stream and within the limits.
 
-        try {
-            f.set(commandObject, page.convertJsonToObject(page.context.request.getReader(), f.getType()));
+        int maxSize = (qbp.maxSize() >= 0) ? qbp.maxSize() : bodyMaxSize;
+
+        HttpServletRequest request = page.context.getRequest();
+        String encoding = request.getCharacterEncoding();
+        Charset charset = Charset.forName((encoding != null) ? encoding : characterEncoding);
+
+        try (Reader reader = jsonBodyParser.newReader(request.getInputStream(), request.getContentLengthLong(), charset, maxSize)) {
+            binding.set(commandObject, page.convertJsonToObject(reader, binding.getField().getType()));
+        } catch (JsonBodyParser.LimitExceededException e) {
+            page.addError(binding.getName(), e.getMessage());
+            return false;
         } catch (JsonSyntaxException e) {
             String message = null;
 
@@ -1259,7 +1736,7 @@ public class QlueApplication {
                 message = e.getMessage();
             }
 
-            page.addError(f.getName(), "JSON syntax error: " + message);
+            page.addError(binding.getName(), "JSON syntax error: " + message);
             return false;
         }
 
@@ -1289,50 +1766,52 @@ public class QlueApplication {
     }
 
     protected void prepareBindingGson() {
-        bindingGson = new GsonBuilder().setPrettyPrinting().create();
+        // Binding only parses, so there's no need for the output options.
+        bindingGson = new GsonBuilder().create();
+    }
+
+    /**
+     * Creates the parser used for JSON body parameters, from the binding Gson
+     * instance and the configured limits.
+     */
+    protected void prepareJsonBodyParser() {
+        jsonBodyParser = new JsonBodyParser(bindingGson, jsonMaxDepth, jsonMaxStringLength);
     }
 
     protected Object convertJsonToObject(Reader reader, Class<?> type) {
-        return bindingGson.fromJson(reader, type);
+        return jsonBodyParser.parse(reader, type);
     }
 
     /**
      * Bind an array parameter.
      */
-    private void bindArrayParameter(Object commandObject, Field f, Page page) throws Exception {
-        // Get the annotation
-        QlueParameter qp = f.getAnnotation(QlueParameter.class);
-
-        // Look for a property editor, which will know how
-        // to convert text into a proper native type
-        PropertyEditor pe = findPropertyEditor(f.getType().getComponentType());
-        if (pe == null) {
-            throw new RuntimeException("Qlue: Binding does not know how to handle type: " + f.getType().getComponentType());
-        }
+    private void bindArrayParameter(Object commandObject, BindingPlan.FieldBinding binding, Page page) throws Exception {
+        // The property editor knows how to convert text into a proper native type
+        PropertyEditor pe = binding.getEditor();
 
-        String[] values = page.context.getParameterValues(f.getName());
+        String[] values = page.context.getParameterValues(binding.getName());
         if ((values == null) || (values.length == 0)) {
             // Parameter not in input; create an empty array and set it on the command object.
-            f.set(commandObject, Array.newInstance(f.getType().getComponentType(), 0));
+            binding.set(commandObject, Array.newInstance(binding.getValueType(), 0));
             return;
         }
 
         // Parameter in input
 
         boolean hasErrors = false;
-        Object[] convertedValues = (Object[]) Array.newInstance(f.getType().getComponentType(), values.length);
+        Object[] convertedValues = (Object[]) Array.newInstance(binding.getValueType(), values.length);
         for (int i = 0; i < values.length; i++) {
-            String newValue = validateParameter(page, f, qp, values[i]);
+            String newValue = validateParameter(page, binding.getField(), binding.getParameter(), values[i]);
             if (newValue != null) {
                 values[i] = newValue;
-                convertedValues[i] = pe.fromText(f, values[i], f.get(commandObject));
+                convertedValues[i] = pe.fromText(binding.getField(), values[i], binding.get(commandObject));
             } else {
                 hasErrors = true;
             }
         }
 
         if (hasErrors == false) {
-            f.set(commandObject, convertedValues);
+            binding.set(commandObject, convertedValues);
         }
     }
 
@@ -1340,30 +1819,25 @@ public class QlueApplication {
      * Validate one parameter.
      */
     protected String validateParameter(Page page, Field f, QlueParameter qp, String value) {
+        return validateParameter(page, getBindingPlan(f.getDeclaringClass()).getParameter(f.getName()), value);
+    }
+
+    /**
+     * Validate one parameter, using what the binding plan has prepared for it.
+     */
+    private String validateParameter(Page page, BindingPlan.FieldBinding binding, String value) {
+        QlueParameter qp = binding.getParameter();
+
         // Transform value according to the list
         // of transformation functions supplied
-        String tfn = qp.tfn();
-
-        if (tfn.length() != 0) {
-            StringTokenizer st = new StringTokenizer(tfn, " ,");
-            while (st.hasMoreTokens()) {
-                String t = st.nextToken();
-                if (t.compareTo("trim") == 0) {
-                    value = value.trim();
-                } else if (t.compareTo("lowercase") == 0) {
-                    value = value.toLowerCase();
-                } else {
-                    throw new RuntimeException("Qlue: Invalid parameter transformation function: " + t);
-                }
-            }
-        }
+        value = binding.transform(value);
 
         // If the parameter is mandatory, check that is
         // not empty or that it does not consist only
         // of whitespace characters.
         if (qp.mandatory()) {
             if (TextUtil.isEmptyOrWhitespace(value)) {
-                page.addError(f.getName(), getFieldMissingMessage(qp));
+                page.addError(binding.getName(), binding.getFieldMissingMessage());
                 return null;
             }
         }
@@ -1372,7 +1846,7 @@ public class QlueApplication {
         if (qp.maxSize() != -1) {
             if ((value.length() > qp.maxSize())) {
                 if (qp.ignoreInvalid() == false) {
-                    page.addError(f.getName(), "qlue.validation.maxSize");
+                    page.addError(binding.getName(), "qlue.validation.maxSize");
                     return null;
                 } else {
                     return null;
@@ -1381,25 +1855,12 @@ public class QlueApplication {
         }
 
         // Check that it conforms to the supplied regular expression
-        if (qp.pattern().length() != 0) {
-            Pattern p = null;
-
-            // Compile the pattern first
-            try {
-                p = Pattern.compile(qp.pattern(), Pattern.DOTALL);
-            } catch (PatternSyntaxException e) {
-                throw new RuntimeException("Qlue: Invalid parameter validation pattern: " + qp.pattern());
-            }
-
-            // Try to match
-            Matcher m = p.matcher(value);
-            if ((m.matches() == false)) {
-                if (qp.ignoreInvalid() == false) {
-                    page.addError(f.getName(), "qlue.validation.pattern");
-                    return null;
-                } else {
-                    return null;
-                }
+        if (!binding.matchesPattern(value)) {
+            if (qp.ignoreInvalid() == false) {
+                page.addError(binding.getName(), "qlue.validation.pattern");
+                return null;
+            } else {
+                return null;
             }
         }
 
@@ -1409,44 +1870,39 @@ public class QlueApplication {
     /**
      * Bind a parameter that is not an array.
      */
-    private void bindNonArrayParameter(Object commandObject, Field f, Page page) throws Exception {
-        QlueParameter qp = f.getAnnotation(QlueParameter.class);
-
+    private void bindNonArrayParameter(Object commandObject, BindingPlan.FieldBinding binding, Page page) throws Exception {
         // First check if the parameter is a file.
-        if (QlueFile.class.isAssignableFrom(f.getType())) {
-            bindFileParameter(commandObject, f, page);
+        if (binding.isFile()) {
+            bindFileParameter(commandObject, binding, page);
             return;
         }
 
-        // Look for a property editor, which will know how to convert text into a native type.
-        PropertyEditor pe = findPropertyEditor(f.getType());
-        if (pe == null) {
-            throw new RuntimeException("Qlue: Binding does not know how to handle type: " + f.getType());
-        }
+        // The property editor knows how to convert text into a native type.
+        PropertyEditor pe = binding.getEditor();
 
         // Validate parameter and set it on the command object
 
-        String value = page.context.getParameter(f.getName());
+        String value = page.context.getParameter(binding.getName());
 
         // If the parameter is not present but we have a default value,
         // behave as if the default value has been supplied.
-        if ((value == null) && (!qp.valueWhenAbsent().equals(QlueApplication.NULL_SUBSTITUTE))) {
-            value = qp.valueWhenAbsent();
+        if (value == null) {
+            value = binding.getValueWhenAbsent();
         }
 
         if (value != null) {
-            String newValue = validateParameter(page, f, qp, value);
+            String newValue = validateParameter(page, binding.getField(), binding.getParameter(), value);
             if (newValue != null) {
                 value = newValue;
-                f.set(commandObject, pe.fromText(f, value, f.get(commandObject)));
+                binding.set(commandObject, pe.fromText(binding.getField(), value, binding.get(commandObject)));
             }
         } else {
-            f.set(commandObject, pe.fromText(f, value, f.get(commandObject)));
+            binding.set(commandObject, pe.fromText(binding.getField(), value, binding.get(commandObject)));
 
             // We are here if the parameter is not in the request, in which
             // case we need to check of the parameter is mandatory
-            if (qp.mandatory()) {
-                page.addError(f.getName(), getFieldMissingMessage(qp));
+            if (binding.getParameter().mandatory()) {
+                page.addError(binding.getName(), binding.getFieldMissingMessage());
             }
         }
     }
@@ -1459,67 +1915,81 @@ public class QlueApplication {
         }
     }
 
-    private void bindParameterFromString(Object commandObject, Field f, Page page, String value) throws Exception {
-        QlueParameter qp = f.getAnnotation(QlueParameter.class);
-
+    private void bindParameterFromString(Object commandObject, BindingPlan.FieldBinding binding, Page page, String value) throws Exception {
         // First check if the parameter is a file.
-        if (QlueFile.class.isAssignableFrom(f.getType())) {
+        if (binding.isFile()) {
             throw new RuntimeException("Qlue: Unable to bind a string to file parameter");
         }
 
-        // Look for a property editor, which will know how to convert text into a native type.
-        PropertyEditor pe = findPropertyEditor(f.getType());
-        if (pe == null) {
-            throw new RuntimeException("Qlue: Binding does not know how to handle type: " + f.getType());
-        }
+        // The property editor knows how to convert text into a native type.
+        PropertyEditor pe = binding.getEditor();
 
         // If the parameter is present in request, validate it and set on the command object.
         if (value != null) {
-            String newValue = validateParameter(page, f, qp, value);
+            String newValue = validateParameter(page, binding.getField(), binding.getParameter(), value);
             if (newValue != null) {
                 value = newValue;
-                f.set(commandObject, pe.fromText(f, value, f.get(commandObject)));
+                binding.set(commandObject, pe.fromText(binding.getField(), value, binding.get(commandObject)));
             }
         } else {
-            f.set(commandObject, pe.fromText(f, value, f.get(commandObject)));
+            binding.set(commandObject, pe.fromText(binding.getField(), value, binding.get(commandObject)));
             // We are here if the parameter is not in request, in which
             // case we need to check of the parameter is mandatory
-            if (qp.mandatory()) {
-                page.addError(f.getName(), getFieldMissingMessage(qp));
+            if (binding.getParameter().mandatory()) {
+                page.addError(binding.getName(), binding.getFieldMissingMessage());
             }
         }
     }
 
-    /**
-     * Retrieve field message that we need to emit when a mandatory parameter is
-     * missing.
-     */
-    private String getFieldMissingMessage(QlueParameter qp) {
-        return (qp.fieldMissingMessage().length() > 0) ? qp.fieldMissingMessage() : "qlue.validation.mandatory";
-    }
-
     /**
      * Bind file parameter.
      */
-    private void bindFileParameter(Object commandObject, Field f, Page page) throws Exception {
-        QlueParameter qp = f.getAnnotation(QlueParameter.class);
-
+    private void bindFileParameter(Object commandObject, BindingPlan.FieldBinding binding, Page page) throws Exception {
         Part p = null;
 
         try {
-            p = page.context.getPart(f.getName());
+            p = page.context.getPart(binding.getName());
         } catch (ServletException e) {
         }
 
         if ((p == null) || (p.getSize() == 0)) {
-            if (qp.mandatory()) {
-                page.addError(f.getName(), getFieldMissingMessage(qp));
+            if (binding.getParameter().mandatory()) {
+                page.addError(binding.getName(), binding.getFieldMissingMessage());
+            }
+
+            return;
+        }
+
+        QlueParameter qp = binding.getParameter();
+        if ((qp.maxSize() != -1) && (p.getSize() > qp.maxSize())) {
+            p.delete();
+
+            if (!qp.ignoreInvalid()) {
+                page.addError(binding.getName(), "qlue.validation.maxSize");
+            }
+
+            return;
+        }
+
+        boolean upload = QlueUpload.class.isAssignableFrom(binding.getField().getType());
+
+        if (upload && (p.getSize() <= uploadMemoryThreshold)) {
+            // Small enough to keep in memory. Only QlueUpload fields get such uploads,
+            // because a QlueFile is a File, and there would be no file behind it.
+            byte[] data;
+            try (InputStream in = p.getInputStream()) {
+                data = in.readAllBytes();
             }
 
+            p.delete();
+
+            binding.set(commandObject, new QlueUpload(data, p.getContentType(), p.getSubmittedFileName(), getUploadSpoolDir()));
             return;
         }
 
-        File file = File.createTempFile("qlue-", ".tmp");
+        // Containers implement Part.write() by moving the part's own temporary
+        // file when they can, in which case the content isn't copied again.
+        File file = File.createTempFile("qlue-", ".tmp", getUploadSpoolDir());
         p.write(file.getAbsolutePath());
         p.delete();
 
@@ -1527,7 +1997,15 @@ public class QlueApplication {
         qf.setContentType(p.getContentType());
         qf.setSubmittedFilename(p.getSubmittedFileName());
 
-        f.set(commandObject, qf);
+        binding.set(commandObject, upload ? new QlueUpload(qf) : qf);
+    }
+
+    /**
+     * Returns the directory in which uploaded files are stored, or null
+     * for the default temporary directory.
+     */
+    protected File getUploadSpoolDir() {
+        return uploadSpoolDir;
     }
 
     /**
@@ -1993,7 +2471,7 @@ public class QlueApplication {
     /**
      * Allocates a new page ID.
      */
-    synchronized String generateTransactionId() {
+    String generateTransactionId() {
         return UUID.randomUUID().toString();
     }
 
@@ -2034,32 +2512,53 @@ public class QlueApplication {
         @Override
         public void run() {
             try {
-                if ((adminEmail == null) || (urgentEmail == null) || (urgentCounter < 0)) {
+                if ((adminEmail == null) || (urgentEmail == null)) {
                     return;
                 }
 
-                log.info("Sending urgent reminder: urgentCounter=" + urgentCounter);
+                int suppressed;
 
-                if (urgentCounter == 0) {
-                    // Nothing has happened in the last period; setting
-                    // the counter to -1 means that the next exception
-                    // will send an urgent email immediately.
-                    urgentCounter = -1;
-                } else {
-                    // There were a number of exceptions in the last period,
-                    // which means that we should send a reminder email.
-                    Email email = new SimpleEmail();
-                    email.setCharset("UTF-8");
-                    email.setFrom(adminEmail);
-                    email.addTo(urgentEmail);
-                    email.setSubject("[" + getAppPrefix() + "] " + "Suppressed " + urgentCounter + " exception(s) in the last period");
+                urgentLock.lock();
+                try {
+                    if (urgentCounter < 0) {
+                        return;
+                    }
+
+                    log.info("Sending urgent reminder: urgentCounter=" + urgentCounter);
+
+                    suppressed = urgentCounter;
+                    if (suppressed == 0) {
+                        // Nothing has happened in the last period; setting
+                        // the counter to -1 means that the next exception
+                        // will send an urgent email immediately.
+                        urgentCounter = -1;
+                        return;
+                    }
+                } finally {
+                    urgentLock.unlock();
+                }
+
+                // There were a number of exceptions in the last period,
+                // which means that we should send a reminder email.
+                Email email = new SimpleEmail();
+                email.setCharset("UTF-8");
+                email.setFrom(adminEmail);
+                email.addTo(urgentEmail);
+                email.setSubject("[" + getAppPrefix() + "] " + "Suppressed " + suppressed + " exception(s) in the last period");
+
+                try {
+                    getEmailSender().send(email);
 
+                    urgentLock.lock();
                     try {
-                        getEmailSender().send(email);
-                        urgentCounter = 0;
-                    } catch (Exception e) {
-                        log.error("Failed to send email", e);
+                        // Exceptions suppressed while we were sending
+                        // will be reported at the end of the next period.
+                        urgentCounter -= suppressed;
+                    } finally {
+                        urgentLock.unlock();
                     }
+                } catch (Exception e) {
+                    log.error("Failed to send email", e);
                 }
             } catch (Exception e) {
                 log.error("SendUrgentRemindersTask exception", e);
@@ -2137,26 +2636,59 @@ public class QlueApplication {
         return null;
     }
 
+    /**
+     * Returns the validator used for bean validation, or null if bean validation isn't
+     * enabled. The validator is obtained from getBeanValidationFactory() the first time
+     * it's needed and then used for the lifetime of the application.
+     */
+    protected Validator getBeanValidator() {
+        if (!beanValidatorResolved) {
+            beanValidatorLock.lock();
+            try {
+                if (!beanValidatorResolved) {
+                    ValidatorFactory factory = getBeanValidationFactory();
+                    beanValidator = (factory != null) ? factory.getValidator() : null;
+                    beanValidatorResolved = true;
+                }
+            } finally {
+                beanValidatorLock.unlock();
+            }
+        }
+
+        return beanValidator;
+    }
+
+    /**
+     * Determines, once per class, if instances of the given class have anything to
+     * validate: constraints of their own, or references marked for cascaded validation.
+     */
+    private boolean isBeanConstrained(Validator validator, Class<?> type) {
+        Boolean constrained = beanConstrained.get(type);
+        if (constrained == null) {
+            constrained = validator.getConstraintsForClass(type).isBeanConstrained();
+            beanConstrained.put(type, constrained);
+        }
+
+        return constrained;
+    }
+
     private void doBeanValidation(Page page) throws IllegalAccessException {
-        ValidatorFactory beanValidationFactory = getBeanValidationFactory();
-        if (beanValidationFactory == null) {
+        if (getBeanValidator() == null) {
             return;
         }
 
+        Object commandObject = page.getCommandObject();
+
         // Validate the command object.
-        if (page.getCommandObject() != null) {
-            doBeanValidation(page.getCommandObject(), null, page);
-        }
-
-        // Loop through the command object fields in order to determine if any are annotated as
-        // parameters. Validate those that are, then bind them.
-        Set<Field> fields = getClassPublicFields(page.getCommandObject().getClass());
-        for (Field f : fields) {
-            if (f.isAnnotationPresent(QlueBodyParameter.class)) {
-                Object objectToValidate = f.get(page.getCommandObject());
-                if (objectToValidate != null) {
-                    doBeanValidation(objectToValidate, "body", page);
-                }
+        if (commandObject != null) {
+            doBeanValidation(commandObject, null, page);
+        }
+
+        // Validate the objects bound from the request body.
+        for (BindingPlan.FieldBinding binding : getBindingPlan(commandObject.getClass()).getBodyParameters()) {
+            Object objectToValidate = binding.get(commandObject);
+            if (objectToValidate != null) {
+                doBeanValidation(objectToValidate, "body", page);
             }
         }
     }
@@ -2164,7 +2696,13 @@ public class QlueApplication {
     boolean doBeanValidation(Object object, String parentPath, Page page) {
         boolean addedErrors = false;
 
-        Validator validator = getBeanValidationFactory().getValidator();
+        // Most command objects declare no constraints, in which case there's no
+        // need to involve the validator at all.
+        Validator validator = getBeanValidator();
+        if ((validator == null) || !isBeanConstrained(validator, object.getClass())) {
+            return false;
+        }
+
         Set<ConstraintViolation<Object>> violations = validator.validate(object);
         for (ConstraintViolation<Object> v : violations) {
             if ((parentPath != null) || (v.getPropertyPath() != null)) {
@@ -2201,6 +2739,8 @@ public class QlueApplication {
             return View.STATUS_404_NOT_FOUND;
         } else if (e instanceof BadRequestException) {
             return View.STATUS_400_BAD_REQUEST;
+        } else if (e instanceof PayloadTooLargeException) {
+            return View.STATUS_413_PAYLOAD_TOO_LARGE;
         } else if (e instanceof TooManyRequestsException) {
             return View.STATUS_429_TOO_MANY_REQUESTS;
         } else if (e.getClass().getName().contains("ClientAbortException")) {
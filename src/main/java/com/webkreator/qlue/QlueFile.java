@@ -17,9 +17,15 @@
 package com.webkreator.qlue;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
- * Represents one file uploaded via multipart/form-data encoding.
+ * Represents one file uploaded via multipart/form-data encoding, stored on
+ * disk. Uploads that may be small enough to keep in memory are received by
+ * fields of type QlueUpload instead.
  */
 public class QlueFile extends File {
 	
@@ -56,4 +62,30 @@ public class QlueFile extends File {
 	public long getLength() {
 		return length();
 	}
+
+	/**
+	 * Opens a stream from which the content can be read.
+	 */
+	public InputStream openStream() throws IOException {
+		return Files.newInputStream(toPath());
+	}
+
+	/**
+	 * Returns the entire content.
+	 */
+	public byte[] getBytes() throws IOException {
+		return Files.readAllBytes(toPath());
+	}
+
+	/**
+	 * Moves the upload to the given destination, which must not exist. The file
+	 * is moved without copying when the destination is on the same file system.
+	 * Afterwards, there is nothing left for Qlue to delete.
+	 *
+	 * @return the destination
+	 */
+	public Path moveTo(Path destination) throws IOException {
+		Files.move(toPath(), destination);
+		return destination;
+	}
 }
@@ -20,11 +20,14 @@ import com.webkreator.qlue.view.FinalRedirectView;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Keeps track of all persistent pages.
@@ -39,6 +42,8 @@ public class QluePageManager implements Serializable {
 
     private Map<Integer, PersistentPageRecord> pages = new HashMap<Integer, PersistentPageRecord>();
 
+    private transient ReentrantLock lock = new ReentrantLock();
+
     /**
      * Initialize a new page manager.
      */
@@ -58,7 +63,7 @@ public class QluePageManager implements Serializable {
      * Find persistent page with given ID.
      */
     public Page findPage(Integer id) {
-        PersistentPageRecord record = pages.get(id);
+        PersistentPageRecord record = (id != null) ? findPageRecord(id) : null;
         if (record == null) {
             return null;
         }
@@ -69,64 +74,78 @@ public class QluePageManager implements Serializable {
     /**
      * Store persistent page.
      */
-    public synchronized void storePage(Page page) {
+    public void storePage(Page page) {
         if (page == null) {
             throw new IllegalArgumentException("page");
         }
 
-        // Generate persistence ID when we're storing the page for the first time.
-        if (page.getId() == null) {
-            page.setId(generatePageId());
-            pages.put(page.getId(), new PersistentPageRecord(System.currentTimeMillis(), page));
-        } else {
-            // A page that already has an ID probably also has a record. Look it up.
-            PersistentPageRecord record = pages.get(page.getId());
-            if (record != null) {
-                record.setLastActivityTime(System.currentTimeMillis());
+        PersistentPageRecord removedRecord = null;
+
+        lock.lock();
+        try {
+            // Generate persistence ID when we're storing the page for the first time.
+            if (page.getId() == null) {
+                page.setId(generatePageId());
+                pages.put(page.getId(), new PersistentPageRecord(System.currentTimeMillis(), page));
+            } else {
+                // A page that already has an ID probably also has a record. Look it up.
+                PersistentPageRecord record = pages.get(page.getId());
+                if (record != null) {
+                    record.setLastActivityTime(System.currentTimeMillis());
+                }
             }
-        }
 
-        // Remove one page if we went over the limit.
-        if (pages.size() > MAX_PERSISTENT_PAGES_PER_SESSION) {
-            // Find the old page.
+            // Remove one page if we went over the limit.
+            if (pages.size() > MAX_PERSISTENT_PAGES_PER_SESSION) {
+                // Find the old page.
 
-            int oldestId = -1;
-            long oldestTime = System.currentTimeMillis();
+                int oldestId = -1;
+                long oldestTime = System.currentTimeMillis();
 
-            for (PersistentPageRecord record : pages.values()) {
-                if (record.getLastActivityTime() <= oldestTime) {
-                    oldestTime = record.getLastActivityTime();
-                    oldestId = record.getPageId();
+                for (PersistentPageRecord record : pages.values()) {
+                    if (record.getLastActivityTime() <= oldestTime) {
+                        oldestTime = record.getLastActivityTime();
+                        oldestId = record.getPageId();
+                    }
                 }
-            }
 
-            // Remove the oldest page.
+                // Remove the oldest page.
 
-            if (oldestId != -1) {
-                PersistentPageRecord removedRecord = pages.remove(oldestId);
-                if ((removedRecord != null) && (removedRecord.getPage() != null)) {
-                    try {
-                        removedRecord.getPage().cleanup();
-                    } catch (Exception e) {
-                        log.error("Exception during page cleanup", e);
-                    }
+                if (oldestId != -1) {
+                    removedRecord = pages.remove(oldestId);
                 }
             }
+        } finally {
+            lock.unlock();
+        }
+
+        // Clean up outside the lock; it may take a while.
+        if ((removedRecord != null) && (removedRecord.getPage() != null)) {
+            try {
+                removedRecord.getPage().cleanup();
+            } catch (Exception e) {
+                log.error("Exception during page cleanup", e);
+            }
         }
     }
 
     /**
      * Generate unique persistent page ID.
      */
-    public synchronized int generatePageId() {
-        return nextPersistentPageId + new Random().nextInt(1000);
+    public int generatePageId() {
+        return nextPersistentPageId + ThreadLocalRandom.current().nextInt(1000);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        lock = new ReentrantLock();
     }
 
     /**
      * Replace a persistent page with the ReplacementView instance provide.
      */
     public void replacePage(Page page, FinalRedirectView view) {
-        PersistentPageRecord record = pages.get(page.getId());
+        PersistentPageRecord record = findPageRecord(page.getId());
         record.replacePage(view.getUri());
     }
 
@@ -134,6 +153,11 @@ public class QluePageManager implements Serializable {
      * Look for the record of the page with the given ID.
      */
     public PersistentPageRecord findPageRecord(int id) {
-        return pages.get(id);
+        lock.lock();
+        try {
+            return pages.get(id);
+        } finally {
+            lock.unlock();
+        }
     }
 }
@@ -0,0 +1,171 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Represents one file uploaded via multipart/form-data encoding, which, unlike
+ * QlueFile, may be held in memory. Uploads no larger than the configured memory
+ * threshold (qlue.upload.memoryThreshold) are kept in memory; others are stored
+ * on disk. The content of either kind is accessed in the same way, and toFile()
+ * stores an upload held in memory on disk for code that needs a file.
+ */
+public class QlueUpload {
+
+    private final String contentType;
+
+    private final String submittedFilename;
+
+    private final File spoolDir;
+
+    private byte[] data;
+
+    private QlueFile file;
+
+    QlueUpload(byte[] data, String contentType, String submittedFilename, File spoolDir) {
+        this.data = data;
+        this.contentType = contentType;
+        this.submittedFilename = submittedFilename;
+        this.spoolDir = spoolDir;
+    }
+
+    QlueUpload(QlueFile file) {
+        this.file = file;
+        this.contentType = file.getContentType();
+        this.submittedFilename = file.getSubmittedFilename();
+        this.spoolDir = file.getParentFile();
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getSubmittedFilename() {
+        return submittedFilename;
+    }
+
+    /**
+     * Is the content held in memory rather than on disk?
+     */
+    public boolean isInMemory() {
+        return data != null;
+    }
+
+    public long getSize() {
+        if (data != null) {
+            return data.length;
+        }
+
+        return (file != null) ? file.length() : 0;
+    }
+
+    /**
+     * Opens a stream from which the content can be read.
+     */
+    public InputStream openStream() throws IOException {
+        if (data != null) {
+            return new ByteArrayInputStream(data);
+        }
+
+        return requireFile().openStream();
+    }
+
+    /**
+     * Returns the entire content. For uploads held in memory, this
+     * is the backing array, which should not be modified.
+     */
+    public byte[] getBytes() throws IOException {
+        if (data != null) {
+            return data;
+        }
+
+        return requireFile().getBytes();
+    }
+
+    /**
+     * Returns the upload as a file, storing it in the upload spool directory
+     * first if it's held in memory. The file is deleted together with the
+     * upload, unless it's moved elsewhere.
+     */
+    public QlueFile toFile() throws IOException {
+        if (data != null) {
+            File spooled = File.createTempFile("qlue-", ".tmp", spoolDir);
+            Files.write(spooled.toPath(), data);
+
+            file = new QlueFile(spooled.getAbsolutePath());
+            file.setContentType(contentType);
+            file.setSubmittedFilename(submittedFilename);
+            data = null;
+        }
+
+        return requireFile();
+    }
+
+    /**
+     * Moves the upload to the given destination, which must not exist. Uploads on disk
+     * are moved without copying when the destination is on the same file system.
+     * Afterwards, the content is no longer available from this object, and there is
+     * nothing left for Qlue to delete.
+     *
+     * @return the destination
+     */
+    public Path moveTo(Path destination) throws IOException {
+        if (data != null) {
+            Files.write(destination, data, StandardOpenOption.CREATE_NEW);
+        } else {
+            requireFile().moveTo(destination);
+        }
+
+        data = null;
+        file = null;
+
+        return destination;
+    }
+
+    /**
+     * Deletes the upload, releasing its memory if it's not on disk.
+     */
+    public boolean delete() {
+        if (data != null) {
+            data = null;
+            return true;
+        }
+
+        if (file != null) {
+            boolean deleted = file.delete();
+            file = null;
+            return deleted;
+        }
+
+        return false;
+    }
+
+    private QlueFile requireFile() throws IOException {
+        if (file == null) {
+            throw new IOException("Qlue: Upload has been moved or deleted");
+        }
+
+        return file;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.exceptions.PayloadTooLargeException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A request body, read for binding to a @QlueBodyParameter field. Bodies are read in bulk and
+ * never beyond the maximum size. Up to the in-memory threshold they stay on the heap, in a single
+ * array that's sized from Content-Length when possible; beyond the threshold they are spooled to
+ * a temporary file, which is deleted when the request completes.
+ */
+final class RequestBody {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private byte[] data;
+
+    private int length;
+
+    private Path file;
+
+    private long size;
+
+    private RequestBody() {
+    }
+
+    /**
+     * Can a body parameter of the given type be bound from an "identity" body?
+     */
+    static boolean isSupportedType(Class<?> type) {
+        return (type == byte[].class)
+                || (type == ByteBuffer.class)
+                || (type == InputStream.class)
+                || (type == Reader.class)
+                || (type == Path.class)
+                || type.isAssignableFrom(String.class);
+    }
+
+    /**
+     * Returns the size above which bodies for the given type are spooled to disk. Types that
+     * hold the body in memory can't be spooled; paths always point to a spooled body.
+     */
+    static long spoolThreshold(Class<?> type, long configuredThreshold) {
+        if ((type == InputStream.class) || (type == Reader.class)) {
+            return configuredThreshold;
+        } else if (type == Path.class) {
+            return 0;
+        } else {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Reads the entire body.
+     *
+     * @param in            the request input stream
+     * @param contentLength the declared body length, or -1 if not known
+     * @param maxSize       the maximum body size
+     * @param threshold     the size above which the body is spooled to disk
+     * @throws PayloadTooLargeException if the body is larger than allowed
+     */
+    static RequestBody read(InputStream in, long contentLength, long maxSize, long threshold) throws IOException {
+        // Reject early if we're told up front that the body is too large.
+        if (contentLength > maxSize) {
+            throw tooLarge(maxSize);
+        }
+
+        RequestBody body = new RequestBody();
+
+        // Content-Length is used only to size the buffer; the limit is enforced on what we actually read.
+        int capacity = BUFFER_SIZE;
+        if ((contentLength >= 0) && (contentLength <= threshold)) {
+            capacity = (int) Math.max(contentLength, 1);
+        }
+
+        body.data = new byte[capacity];
+
+        OutputStream out = null;
+        try {
+            for (;;) {
+                int n;
+
+                if ((out == null) && (body.length == body.data.length)) {
+                    // The buffer is full. Check that there's more to read before growing
+                    // it, so that bodies whose length we knew in advance aren't copied.
+                    int b = in.read();
+                    if (b == -1) {
+                        break;
+                    }
+
+                    body.data = Arrays.copyOf(body.data, grow(body.data.length, maxSize));
+                    body.data[body.length] = (byte) b;
+                    n = 1;
+                } else {
+                    // When spooling, length stays at zero and the array is just a buffer.
+                    n = in.read(body.data, body.length, body.data.length - body.length);
+                    if (n == -1) {
+                        break;
+                    }
+                }
+
+                body.size += n;
+                if (body.size > maxSize) {
+                    throw tooLarge(maxSize);
+                }
+
+                if (out != null) {
+                    out.write(body.data, 0, n);
+                    continue;
+                }
+
+                body.length += n;
+
+                if (body.size > threshold) {
+                    out = body.spool();
+                    if (body.data.length < BUFFER_SIZE) {
+                        body.data = new byte[BUFFER_SIZE];
+                    }
+                }
+            }
+
+            if (out != null) {
+                out.close();
+                out = null;
+                body.data = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    // We're already handling a failure.
+                }
+            }
+
+            body.delete();
+            throw e;
+        }
+
+        return body;
+    }
+
+    private static int grow(int capacity, long maxSize) {
+        // There's no point in growing beyond one byte over the limit.
+        long limit = Math.min(maxSize + 1, Integer.MAX_VALUE - 8);
+        return (int) Math.max(capacity + 1, Math.min((long) capacity * 2, limit));
+    }
+
+    /**
+     * Moves the in-memory part of the body to a new temporary file, returning
+     * the stream to which the rest of the body should be written.
+     */
+    private OutputStream spool() throws IOException {
+        file = Files.createTempFile("qlue-body-", ".tmp");
+        OutputStream out = Files.newOutputStream(file);
+        out.write(data, 0, length);
+        length = 0;
+        return out;
+    }
+
+    private static PayloadTooLargeException tooLarge(long maxSize) {
+        return new PayloadTooLargeException("Request body exceeds maximum size of " + maxSize + " bytes");
+    }
+
+    /**
+     * The number of bytes in the body.
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Converts the body into a value of the given type, registering with the transaction
+     * any resources that need to be released once the request completes.
+     */
+    Object convert(Class<?> type, Charset charset, TransactionContext context) throws IOException {
+        if ((type == Path.class) && (file == null)) {
+            // Only empty bodies aren't spooled by the time we get here.
+            spool().close();
+        }
+
+        if (file != null) {
+            context.addRequestResource(this::delete);
+        }
+
+        if (type == byte[].class) {
+            return (length == data.length) ? data : Arrays.copyOf(data, length);
+        } else if (type == ByteBuffer.class) {
+            return ByteBuffer.wrap(data, 0, length);
+        } else if (type == InputStream.class) {
+            return openStream(context);
+        } else if (type == Reader.class) {
+            return new InputStreamReader(openStream(context), charset);
+        } else if (type == Path.class) {
+            return file;
+        } else {
+            return new String(data, 0, length, charset);
+        }
+    }
+
+    private InputStream openStream(TransactionContext context) throws IOException {
+        if (file == null) {
+            return new ByteArrayInputStream(data, 0, length);
+        }
+
+        InputStream in = Files.newInputStream(file);
+        context.addRequestResource(in);
+        return in;
+    }
+
+    private void delete() throws IOException {
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
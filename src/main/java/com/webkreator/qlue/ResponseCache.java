@@ -0,0 +1,580 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.annotations.QlueCacheable;
+import jakarta.servlet.RequestDispatcher;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps rendered responses of pages annotated with @QlueCacheable, keyed by the request
+ * URI, the query string and the values of the request headers the page varies by. The
+ * cache has a byte budget; when it's exceeded, the least recently used responses are
+ * evicted first. Responses also expire when their time to live runs out.
+ *
+ * When several requests want the same response at a time when it isn't in the cache, only
+ * the first renders the page; the others wait for it to finish and then use its response
+ * (single-flight). That way, an expiry doesn't send a crowd of requests to the same page.
+ *
+ * Only anonymous GET requests are eligible: those that don't present a session or
+ * credentials, because what they get back may depend on who's asking.
+ *
+ * Responses are rendered for the cache without a session, so that nothing of one can end
+ * up in them. The page behind a URI is known only after routing, which comes after the
+ * session, so the first request for a URI is rendered as usual and isn't stored; it only
+ * teaches the cache that the URI leads to a cacheable page. A response that uses a value
+ * that belongs to its transaction (the nonce, or the session's ID or secret) isn't stored
+ * either, and the URI is then rendered with sessions again until the page's time to live
+ * runs out.
+ */
+public final class ResponseCache {
+
+    // Our estimate of the memory used by an entry, in addition to its body and headers.
+    private static final int ENTRY_OVERHEAD = 256;
+
+    // How many URIs we remember the verdicts of.
+    private static final int MAX_VERDICTS = 4096;
+
+    private final long maxSize;
+
+    private final int maxEntrySize;
+
+    private final long waitTimeout;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Responses grouped by URI and query string, in access order.
+    private final LinkedHashMap<String, Resource> resources = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<String, Render> renders = new HashMap<>();
+
+    // What's been learned about URIs that lead to cacheable pages, in access order.
+    private final LinkedHashMap<String, Verdict> verdicts = new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+            return size() > MAX_VERDICTS;
+        }
+    };
+
+    private long size;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize     the byte budget
+     * @param waitTimeout how long a request waits for another to render the response it wants,
+     *                    in milliseconds, before it renders the page itself
+     */
+    public ResponseCache(long maxSize, long waitTimeout) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = (int) Math.min(maxSize / 16, Integer.MAX_VALUE);
+        this.waitTimeout = waitTimeout;
+    }
+
+    /**
+     * Checks if a cached response could be used for the given request.
+     */
+    public boolean isEligible(HttpServletRequest request) {
+        if (!"GET".equals(request.getMethod())) {
+            return false;
+        }
+
+        if (request.getAttribute(RequestDispatcher.ERROR_STATUS_CODE) != null) {
+            return false;
+        }
+
+        if ((request.getParameterValues("_pid") != null) || (request.getHeader("Authorization") != null)) {
+            return false;
+        }
+
+        // Sessionless requests never see a session, even if they present one.
+        return (request.getAttribute(QlueConstants.QLUE_SESSIONLESS_REQUEST) != null)
+                || (request.getRequestedSessionId() == null);
+    }
+
+    /**
+     * Checks if the given request is for a URI known to lead to a cacheable page whose
+     * responses can be shared, in which case it's to be processed without a session.
+     */
+    public boolean isRenderedWithoutSession(HttpServletRequest request) {
+        String uriKey = uriKey(request);
+
+        lock.lock();
+        try {
+            Verdict verdict = verdicts.get(uriKey);
+            return (verdict != null) && verdict.shared;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the given request, which was processed with a session, was routed to a
+     * cacheable page, so that the next request for the same URI is processed without one.
+     * Nothing changes while the page is known to be personal.
+     */
+    public void learn(HttpServletRequest request) {
+        String uriKey = uriKey(request);
+
+        lock.lock();
+        try {
+            Verdict verdict = verdicts.get(uriKey);
+            if ((verdict == null) || (!verdict.shared && (System.nanoTime() - verdict.expires >= 0))) {
+                verdicts.put(uriKey, new Verdict(true, 0));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets what was learned about the URI of the given request, which
+     * was routed to a page that isn't cacheable.
+     */
+    public void forget(HttpServletRequest request) {
+        String uriKey = uriKey(request);
+
+        lock.lock();
+        try {
+            verdicts.remove(uriKey);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Looks for a response to the given request before it's been routed, for which we need
+     * to have seen the page at least once, to know what request headers it varies by. If
+     * another request is rendering the response, waits for it.
+     *
+     * @return the response, or null if the request needs to be processed as usual
+     */
+    public Entry find(HttpServletRequest request) {
+        String uriKey = uriKey(request);
+
+        Render render;
+        lock.lock();
+        try {
+            Resource resource = resources.get(uriKey);
+            if (resource == null) {
+                return null;
+            }
+
+            String variantKey = variantKey(request, resource.varyBy);
+            Entry entry = lookup(uriKey, resource, variantKey);
+            if (entry != null) {
+                hits.increment();
+                return entry;
+            }
+
+            render = renders.get(uriKey + '\n' + variantKey);
+            if (render == null) {
+                return null;
+            }
+
+            coalesced.increment();
+        } finally {
+            lock.unlock();
+        }
+
+        return await(render);
+    }
+
+    /**
+     * Joins the cache on behalf of a routed request for a cacheable page. What happens next
+     * depends on the returned flight: if it has an entry, that's the response to send; if
+     * not, the request renders the page. The leader must report the outcome via complete().
+     */
+    public Flight join(HttpServletRequest request, QlueCacheable cacheable) {
+        String uriKey = uriKey(request);
+        String variantKey = variantKey(request, cacheable.varyBy());
+        String key = uriKey + '\n' + variantKey;
+
+        Render render;
+        lock.lock();
+        try {
+            Resource resource = resources.get(uriKey);
+            if (resource != null) {
+                Entry entry = lookup(uriKey, resource, variantKey);
+                if (entry != null) {
+                    hits.increment();
+                    return new Flight(null, entry);
+                }
+            }
+
+            render = renders.get(key);
+            if (render == null) {
+                misses.increment();
+                render = new Render(uriKey, variantKey, cacheable);
+                renders.put(key, render);
+                return new Flight(render, null);
+            }
+
+            coalesced.increment();
+        } finally {
+            lock.unlock();
+        }
+
+        // If the leader didn't produce a response, we render our own.
+        return new Flight(null, await(render));
+    }
+
+    /**
+     * Stores the response rendered by the leader, if there is one, and
+     * releases the requests that have been waiting for it.
+     *
+     * @param capture the rendered response, or null if rendering failed
+     */
+    void complete(Flight flight, ResponseCapture capture) {
+        complete(flight, capture, false);
+    }
+
+    /**
+     * As complete(Flight, ResponseCapture), for a response that may be personal: one that
+     * uses values that belong to the transaction it was rendered in. Such a response isn't
+     * stored, and until the page's time to live runs out, its URI is processed with sessions.
+     */
+    void complete(Flight flight, ResponseCapture capture, boolean personal) {
+        Render render = flight.render;
+        Entry entry = null;
+
+        lock.lock();
+        try {
+            renders.remove(render.uriKey + '\n' + render.variantKey);
+
+            if (personal) {
+                verdicts.put(render.uriKey, new Verdict(false,
+                        System.nanoTime() + TimeUnit.SECONDS.toNanos(render.cacheable.ttl())));
+            } else if (capture != null) {
+                long expires = System.nanoTime() + TimeUnit.SECONDS.toNanos(render.cacheable.ttl());
+                entry = capture.toEntry(expires);
+                if (entry != null) {
+                    store(render, entry);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        render.entry = entry;
+        render.done.countDown();
+    }
+
+    private Entry await(Render render) {
+        try {
+            if (render.done.await(waitTimeout, TimeUnit.MILLISECONDS)) {
+                return render.entry;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the entry for the given variant, provided it hasn't expired. Must be
+     * invoked with the lock held.
+     */
+    private Entry lookup(String uriKey, Resource resource, String variantKey) {
+        Entry entry = resource.variants.get(variantKey);
+        if (entry == null) {
+            return null;
+        }
+
+        if (System.nanoTime() - entry.expires < 0) {
+            return entry;
+        }
+
+        resource.variants.remove(variantKey);
+        size -= entry.size;
+        if (resource.variants.isEmpty()) {
+            resources.remove(uriKey);
+        }
+
+        return null;
+    }
+
+    private void store(Render render, Entry entry) {
+        if (entry.size > maxEntrySize) {
+            return;
+        }
+
+        Resource resource = resources.get(render.uriKey);
+        if ((resource == null) || !Arrays.equals(resource.varyBy, render.cacheable.varyBy())) {
+            // The page behind the URI may have changed along with the headers it varies by.
+            if (resource != null) {
+                remove(resource);
+            }
+
+            resource = new Resource(render.cacheable.varyBy());
+            resources.put(render.uriKey, resource);
+        }
+
+        Entry previous = resource.variants.put(render.variantKey, entry);
+        if (previous != null) {
+            size -= previous.size;
+        }
+
+        size += entry.size;
+
+        Iterator<Resource> it = resources.values().iterator();
+        while ((size > maxSize) && it.hasNext()) {
+            Resource eldest = it.next();
+            if (eldest != resource) {
+                remove(eldest);
+                it.remove();
+            }
+        }
+    }
+
+    private void remove(Resource resource) {
+        for (Entry entry : resource.variants.values()) {
+            size -= entry.size;
+            evictions.increment();
+        }
+    }
+
+    static String uriKey(HttpServletRequest request) {
+        String queryString = request.getQueryString();
+        if (queryString == null) {
+            return request.getRequestURI();
+        }
+
+        return request.getRequestURI() + '?' + queryString;
+    }
+
+    static String variantKey(HttpServletRequest request, String[] varyBy) {
+        if (varyBy.length == 0) {
+            return "";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String name : varyBy) {
+            Enumeration<String> values = request.getHeaders(name);
+            if (values != null) {
+                while (values.hasMoreElements()) {
+                    sb.append(values.nextElement());
+                    sb.append(',');
+                }
+            }
+
+            sb.append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * The largest response body that will be cached, in bytes.
+     */
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * The (estimated) memory used by cached responses, in bytes.
+     */
+    public long getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of requests answered with a cached response straight away.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of times a page had to be rendered for the cache.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of requests that waited for another to render the response.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Number of responses evicted to keep within the byte budget.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits()
+                + ", misses=" + getMisses()
+                + ", coalesced=" + getCoalesced()
+                + ", evictions=" + getEvictions()
+                + ", size=" + getSize();
+    }
+
+    /**
+     * A cached response.
+     */
+    public static final class Entry {
+
+        private final String contentType;
+
+        private final String[] headerNames;
+
+        private final String[] headerValues;
+
+        private final byte[] body;
+
+        private final long expires;
+
+        private final long size;
+
+        Entry(String contentType, String[] headerNames, String[] headerValues, byte[] body, long expires) {
+            this.contentType = contentType;
+            this.headerNames = headerNames;
+            this.headerValues = headerValues;
+            this.body = body;
+            this.expires = expires;
+
+            long size = ENTRY_OVERHEAD + body.length;
+            for (int i = 0; i < headerNames.length; i++) {
+                size += 2L * (headerNames[i].length() + headerValues[i].length());
+            }
+
+            this.size = size;
+        }
+
+        /**
+         * Sends this response, which must be the first thing written to the given response.
+         */
+        public void send(HttpServletResponse response) throws IOException {
+            response.setStatus(HttpServletResponse.SC_OK);
+
+            for (int i = 0; i < headerNames.length; i++) {
+                response.addHeader(headerNames[i], headerValues[i]);
+            }
+
+            if (contentType != null) {
+                response.setContentType(contentType);
+            }
+
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
+        }
+    }
+
+    /**
+     * The outcome of joining the cache: either the response to send,
+     * or the render that the request is to lead, or neither.
+     */
+    public static final class Flight {
+
+        private final Render render;
+
+        private final Entry entry;
+
+        private Flight(Render render, Entry entry) {
+            this.render = render;
+            this.entry = entry;
+        }
+
+        /**
+         * The response to send, if there is one.
+         */
+        public Entry getEntry() {
+            return entry;
+        }
+
+        /**
+         * Is the request to render the page for the cache?
+         */
+        public boolean isLeader() {
+            return render != null;
+        }
+    }
+
+    private static final class Resource {
+
+        private final String[] varyBy;
+
+        private final Map<String, Entry> variants = new HashMap<>();
+
+        Resource(String[] varyBy) {
+            this.varyBy = varyBy;
+        }
+    }
+
+    private static final class Verdict {
+
+        // Can the responses be shared? If not, until when is that assumed?
+        private final boolean shared;
+
+        private final long expires;
+
+        Verdict(boolean shared, long expires) {
+            this.shared = shared;
+            this.expires = expires;
+        }
+    }
+
+    private static final class Render {
+
+        private final String uriKey;
+
+        private final String variantKey;
+
+        private final QlueCacheable cacheable;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile Entry entry;
+
+        Render(String uriKey, String variantKey, QlueCacheable cacheable) {
+            this.uriKey = uriKey;
+            this.variantKey = variantKey;
+            this.cacheable = cacheable;
+        }
+    }
+}
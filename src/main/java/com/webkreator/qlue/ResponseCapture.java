@@ -0,0 +1,289 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds back the body of a response while a page renders it, so that it can be
+ * stored in the response cache once the page is done. Everything else (the status
+ * and the headers) goes to the wrapped response straight away, from where it's
+ * read back at the end. If the body grows too large, or if the page sends an error,
+ * capturing stops and the response is no longer eligible for caching.
+ */
+class ResponseCapture extends HttpServletResponseWrapper {
+
+    private final int maxSize;
+
+    private final CaptureStream stream = new CaptureStream();
+
+    private PrintWriter writer;
+
+    private boolean storable = true;
+
+    private boolean discarded;
+
+    ResponseCapture(HttpServletResponse response, int maxSize) {
+        super(response);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+        }
+
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        // Nothing leaves until the page is done, unless we're no longer capturing.
+        if (writer != null) {
+            writer.flush();
+        }
+
+        if (stream.passThrough) {
+            super.flushBuffer();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        stream.buffer.reset();
+        super.resetBuffer();
+    }
+
+    @Override
+    public void reset() {
+        stream.buffer.reset();
+        super.reset();
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        discard();
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        discard();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        discard();
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        storable = false;
+        super.addCookie(cookie);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        checkHeader(name);
+        super.setHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        checkHeader(name);
+        super.addHeader(name, value);
+    }
+
+    private void checkHeader(String name) {
+        if ("Set-Cookie".equalsIgnoreCase(name)) {
+            storable = false;
+        }
+    }
+
+    /**
+     * The response is complete, and it's been decided elsewhere, so what we
+     * have of the body is of no use.
+     */
+    private void discard() {
+        storable = false;
+        discarded = true;
+        stream.buffer.reset();
+    }
+
+    /**
+     * Sends the captured body, if any, to the wrapped response. Invoked once
+     * the page is done, whether it succeeded or not.
+     */
+    void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+
+        if (!discarded && !stream.passThrough && (stream.buffer.size() != 0)) {
+            stream.buffer.writeTo(getResponse().getOutputStream());
+        }
+    }
+
+    /**
+     * Creates a cache entry out of the response, provided it's one that can be
+     * reused: a complete 200 response, without cookies, and not marked as private
+     * by the page.
+     *
+     * @return the new entry, or null if the response can't be cached
+     */
+    ResponseCache.Entry toEntry(long expires) {
+        HttpServletResponse response = (HttpServletResponse) getResponse();
+        if (!storable || stream.passThrough || (response.getStatus() != HttpServletResponse.SC_OK)) {
+            return null;
+        }
+
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+
+        for (String name : response.getHeaderNames()) {
+            // Cookies, if any, can only be those of the container (e.g., for a
+            // new session). The content type and length are handled separately.
+            if ("Set-Cookie".equalsIgnoreCase(name)
+                    || "Content-Type".equalsIgnoreCase(name)
+                    || "Content-Length".equalsIgnoreCase(name)) {
+                continue;
+            }
+
+            for (String value : response.getHeaders(name)) {
+                if ("Cache-Control".equalsIgnoreCase(name)
+                        && (value.contains("no-store") || value.contains("private"))) {
+                    return null;
+                }
+
+                names.add(name);
+                values.add(value);
+            }
+        }
+
+        return new ResponseCache.Entry(response.getContentType(),
+                names.toArray(new String[0]), values.toArray(new String[0]),
+                stream.buffer.toByteArray(), expires);
+    }
+
+    private class CaptureStream extends ServletOutputStream {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private boolean passThrough;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (passThrough || !reserve(1)) {
+                getResponse().getOutputStream().write(b);
+            } else {
+                buffer.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (passThrough || !reserve(len)) {
+                getResponse().getOutputStream().write(b, off, len);
+            } else {
+                buffer.write(b, off, len);
+            }
+        }
+
+        /**
+         * Checks if there's room for more data in the buffer. If there isn't, the
+         * response is too large to be cached, so we send what we have and stop capturing.
+         */
+        private boolean reserve(int len) throws IOException {
+            if (buffer.size() + len <= maxSize) {
+                return true;
+            }
+
+            stopCapturing();
+            return false;
+        }
+
+        /**
+         * Sends what has been captured so far and writes everything else straight through.
+         */
+        private void stopCapturing() throws IOException {
+            passThrough = true;
+            buffer.writeTo(getResponse().getOutputStream());
+            buffer.reset();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (passThrough) {
+                getResponse().getOutputStream().flush();
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            if (passThrough) {
+                try {
+                    return getResponse().getOutputStream().isReady();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Non-blocking output can't be captured, because it's written when the container is
+         * ready for it rather than when the page is rendered, so the response isn't stored.
+         */
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                if (!passThrough) {
+                    stopCapturing();
+                }
+
+                getResponse().getOutputStream().setWriteListener(writeListener);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -16,18 +16,54 @@
  */
 package com.webkreator.qlue;
 
+import com.webkreator.qlue.editors.PropertyEditor;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 
+/**
+ * Holds the original text values of the parameters, for use in templates (as $_i), which
+ * need them when a value can't be converted to its intended type. Values are worked out
+ * from the command object (and, optionally, the request) only when a template first asks
+ * for them, because most views never do.
+ */
 public class ShadowInput implements Serializable {
 	
 	private HashMap<String, Object> params = new HashMap<String, Object>();
 
+	// The sources of the values that haven't been asked for yet; null
+	// once there is nothing left to work out.
+
+	private transient BindingPlan plan;
+
+	private transient Object commandObject;
+
+	private transient TransactionContext context;
+
+	public ShadowInput() {
+	}
+
+	/**
+	 * Creates shadow input for the given command object.
+	 *
+	 * @param context the request whose parameter values take precedence
+	 *                over those in the command object, or null
+	 */
+	ShadowInput(BindingPlan plan, Object commandObject, TransactionContext context) {
+		this.plan = plan;
+		this.commandObject = commandObject;
+		this.context = context;
+	}
+
 	public String get(String name) {
+		resolve(name);
 		return (String)params.get(name);
 	}
 	
 	public String[] getArray(String name) {
+		resolve(name);
 		return (String[])params.get(name);
 	}
 
@@ -38,4 +74,90 @@ public class ShadowInput implements Serializable {
 	public void set(String name, String[] values) {
 		params.put(name, values);
 	}
+
+	/**
+	 * Works out all values that haven't been asked for yet, after which the command object
+	 * and the request are no longer needed. Persistent pages keep their shadow input between
+	 * requests, and it must reflect the request in which it was created. Values are worked
+	 * out into a map that isn't safe to share, so this must also be invoked before the
+	 * shadow input is read by more than one thread at a time.
+	 */
+	public void resolveAll() {
+		if (plan == null) {
+			return;
+		}
+
+		for (BindingPlan.FieldBinding binding : plan.getParameters()) {
+			resolve(binding.getName());
+		}
+
+		plan = null;
+		commandObject = null;
+		context = null;
+	}
+
+	private void resolve(String name) {
+		if ((plan == null) || params.containsKey(name)) {
+			return;
+		}
+
+		BindingPlan.FieldBinding binding = plan.getParameter(name);
+		if ((binding == null) || binding.isFile()) {
+			return;
+		}
+
+		try {
+			params.put(name, binding.isArray() ? arrayValue(binding) : value(binding));
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException("Qlue: Unable to read parameter " + name, e);
+		}
+	}
+
+	private String[] arrayValue(BindingPlan.FieldBinding binding) throws Exception {
+		// The value in the request, if present, overrides the one in the command object.
+		if (context != null) {
+			String[] requestParamValues = context.getParameterValues(binding.getName());
+			if (requestParamValues != null) {
+				return requestParamValues;
+			}
+		}
+
+		// If there is any data in the command object, convert it to text using the property editor.
+		Object[] originalValues = (Object[]) binding.get(commandObject);
+		if (originalValues == null) {
+			return null;
+		}
+
+		PropertyEditor pe = binding.getEditor();
+		String[] textValues = new String[originalValues.length];
+		for (int i = 0; i < originalValues.length; i++) {
+			textValues[i] = pe.toText(originalValues[i]);
+		}
+
+		return textValues;
+	}
+
+	private String value(BindingPlan.FieldBinding binding) throws Exception {
+		// The value in the request, if present, overrides the one in the command object.
+		if (context != null) {
+			String requestParamValue = context.getParameter(binding.getName());
+			if (requestParamValue != null) {
+				return requestParamValue;
+			}
+		}
+
+		Object o = binding.get(commandObject);
+		if (o == null) {
+			return null;
+		}
+
+		return binding.getEditor().toText(o);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		resolveAll();
+		out.defaultWriteObject();
+	}
 }
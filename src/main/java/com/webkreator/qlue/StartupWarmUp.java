@@ -0,0 +1,217 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.annotations.QlueBodyParameter;
+import com.webkreator.qlue.exceptions.QlueException;
+import com.webkreator.qlue.router.PackageRouter;
+import com.webkreator.qlue.router.Route;
+import com.webkreator.qlue.util.PackageScanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Does ahead of time the work that the first request to each page would otherwise do, and pay
+ * for: loading and initialising page classes, resolving their page factories, building their
+ * binding plans (which also compiles parameter patterns), creating the Gson adapters for JSON body
+ * parameters, and parsing their templates. Only pages that are reachable through package routes
+ * are considered, because those are the only ones that can be enumerated.
+ *
+ * Problems that would otherwise surface as errors on first use, such as a @QlueParameter on a
+ * non-public field or a template that doesn't parse, are collected as the work progresses and
+ * then reported together, failing application initialisation.
+ */
+class StartupWarmUp {
+
+    private static Logger log = LoggerFactory.getLogger(StartupWarmUp.class);
+
+    private final QlueApplication app;
+
+    private final ClassLoader classLoader;
+
+    private final Set<String> packagePaths = new LinkedHashSet<>();
+
+    private final Set<String> pageClassNames = new LinkedHashSet<>();
+
+    private final Set<String> templateNames = new LinkedHashSet<>();
+
+    private final List<String> problems = new ArrayList<>();
+
+    private int pageCount;
+
+    private long routesTime;
+
+    private long pagesTime;
+
+    private long templatesTime;
+
+    StartupWarmUp(QlueApplication app) {
+        this.app = app;
+        this.classLoader = Thread.currentThread().getContextClassLoader();
+    }
+
+    /**
+     * Performs the warm-up and logs the startup report.
+     *
+     * @throws QlueException if any problems were found
+     */
+    void run() {
+        long start = System.nanoTime();
+        scanRoutes();
+        long afterRoutes = System.nanoTime();
+        preparePages();
+        long afterPages = System.nanoTime();
+        compileTemplates();
+        long afterTemplates = System.nanoTime();
+
+        routesTime = afterRoutes - start;
+        pagesTime = afterPages - afterRoutes;
+        templatesTime = afterTemplates - afterPages;
+
+        log.info(getReport());
+
+        if (!problems.isEmpty()) {
+            for (String problem : problems) {
+                log.error("Warm-up: " + problem);
+            }
+
+            throw new QlueException("Warm-up found " + problems.size() + " problem(s); see the log for details");
+        }
+    }
+
+    /**
+     * Enumerates the packages behind the package routes, and the page
+     * class and direct view candidates within them.
+     */
+    private void scanRoutes() {
+        for (Route route : app.routeManager.getRoutes()) {
+            if (route.getRouter() instanceof PackageRouter) {
+                packagePaths.add(((PackageRouter) route.getRouter()).getRootPackageAsPath());
+            }
+        }
+
+        for (String packagePath : packagePaths) {
+            List<String> resources;
+            try {
+                resources = PackageScanner.listResources(classLoader, packagePath);
+            } catch (IOException e) {
+                problems.add("Unable to list package " + packagePath + ": " + e.getMessage());
+                continue;
+            }
+
+            for (String resource : resources) {
+                if (resource.endsWith(".class")) {
+                    // Nested and anonymous classes are not pages.
+                    if (resource.indexOf('$') == -1) {
+                        String className = resource.substring(0, resource.length() - ".class".length());
+                        pageClassNames.add(className.replace('/', '.'));
+                    }
+                } else if (resource.endsWith(".vmx")) {
+                    // Direct views are referred to exactly as PackageRouter names them.
+                    templateNames.add(resource);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads and initialises page classes, building the binding
+     * plans and JSON adapters for their command objects.
+     */
+    private void preparePages() {
+        for (String className : pageClassNames) {
+            Class<?> pageClass;
+            try {
+                pageClass = QlueApplication.classForName(className);
+            } catch (LinkageError e) {
+                problems.add("Unable to initialise " + className + ": " + e);
+                continue;
+            }
+
+            if ((pageClass == null)
+                    || !Page.class.isAssignableFrom(pageClass)
+                    || Modifier.isAbstract(pageClass.getModifiers())) {
+                continue;
+            }
+
+            pageCount++;
+
+            try {
+                PageFactory factory = PageFactory.forClass(pageClass.asSubclass(Page.class));
+                BindingPlan plan = app.getBindingPlan(factory.getCommandObjectClass());
+                for (BindingPlan.FieldBinding binding : plan.getBodyParameters()) {
+                    if (QlueBodyParameter.JSON.equals(binding.getBodyParameter().format())) {
+                        app.jsonBodyParser.getAdapter(binding.getField().getType());
+                    }
+                }
+            } catch (RuntimeException e) {
+                problems.add(className + ": " + e.getMessage());
+            }
+
+            // Pages use templates named after them by default.
+            String templateName = className.replace('.', '/') + ".vm";
+            if (classLoader.getResource(templateName) != null) {
+                templateNames.add("/" + templateName);
+            }
+        }
+    }
+
+    private void compileTemplates() {
+        for (String templateName : templateNames) {
+            try {
+                if (app.constructView(templateName) == null) {
+                    problems.add("No view factory accepted template " + templateName);
+                }
+            } catch (Exception e) {
+                problems.add("Template " + templateName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    List<String> getProblems() {
+        return Collections.unmodifiableList(problems);
+    }
+
+    int getPageCount() {
+        return pageCount;
+    }
+
+    int getTemplateCount() {
+        return templateNames.size();
+    }
+
+    String getReport() {
+        return "Warm-up completed in " + millis(routesTime + pagesTime + templatesTime) + " ms"
+                + ": routes " + millis(routesTime) + " ms (" + packagePaths.size() + " packages)"
+                + ", pages " + millis(pagesTime) + " ms (" + pageCount + " pages)"
+                + ", templates " + millis(templatesTime) + " ms (" + templateNames.size() + " templates)"
+                + ", problems: " + problems.size();
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -16,10 +16,13 @@
  */
 package com.webkreator.qlue;
 
+import com.webkreator.qlue.router.ResponseHeader;
 import com.webkreator.qlue.util.HtmlEncoder;
 import com.webkreator.qlue.util.TextUtil;
 import com.webkreator.qlue.util.WebUtil;
 import com.webkreator.qlue.view.FinalRedirectView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
 import jakarta.servlet.RequestDispatcher;
@@ -30,6 +33,7 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
 import jakarta.servlet.http.Part;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
@@ -44,6 +48,10 @@ import java.util.*;
  */
 public class TransactionContext implements Serializable {
 
+    private static final Logger log = LoggerFactory.getLogger(TransactionContext.class);
+
+    private static final ResponseHeader[] NO_HEADERS = new ResponseHeader[0];
+
     public String txId;
 
     public String userId;
@@ -86,6 +94,12 @@ public class TransactionContext implements Serializable {
 
     private Map<String, String> responseHeaders = new HashMap<>();
 
+    // Headers configured in routes.conf, kept apart from responseHeaders
+    // until someone needs to see or change the headers individually.
+    private ResponseHeader[] routedResponseHeaders = NO_HEADERS;
+
+    private String publicSessionId;
+
     private Properties properties = new Properties();
 
     // Sessionless machine requests: when the request carries the QLUE_SESSIONLESS_REQUEST
@@ -97,6 +111,15 @@ public class TransactionContext implements Serializable {
 
     private transient QluePageManager requestScopedPageManager;
 
+    // Set once a value that belongs to this transaction alone (the nonce, the public
+    // session ID, the user ID or the session secret) has been read for the response,
+    // which then can't be given to anyone else; see markPersonalised().
+    private transient volatile boolean personalised;
+
+    // Resources that belong to this request, such as spooled request bodies. They live
+    // here rather than on the page, which a persistent page shares with other requests.
+    private transient List<Closeable> requestResources;
+
     /**
      * Initialise context instance.
      */
@@ -156,9 +179,69 @@ public class TransactionContext implements Serializable {
     }
 
     public String getNonce() {
+        personalised = true;
         return nonce;
     }
 
+    /**
+     * Returns the public session ID, if the session has one.
+     */
+    public String getPublicSessionId() {
+        personalised = true;
+        return publicSessionId;
+    }
+
+    /**
+     * Records that the response uses a value that belongs to this transaction alone,
+     * and so can't be stored in the response cache. The nonce and public session ID
+     * getters do this themselves; call it for such values obtained in some other way.
+     */
+    public void markPersonalised() {
+        personalised = true;
+    }
+
+    public boolean isPersonalised() {
+        return personalised;
+    }
+
+    /**
+     * Is this a sessionless request, which doesn't see the HTTP session, if there is one?
+     */
+    public boolean isSessionless() {
+        return sessionless;
+    }
+
+    /**
+     * Registers a resource that belongs to this request, for example a spooled
+     * request body, to be closed when the request completes.
+     */
+    public void addRequestResource(Closeable resource) {
+        if (requestResources == null) {
+            requestResources = new ArrayList<>();
+        }
+
+        requestResources.add(resource);
+    }
+
+    /**
+     * Closes the resources registered for this request, in reverse order.
+     */
+    void closeRequestResources() {
+        if (requestResources == null) {
+            return;
+        }
+
+        for (int i = requestResources.size() - 1; i >= 0; i--) {
+            try {
+                requestResources.get(i).close();
+            } catch (IOException e) {
+                log.error("Qlue: Failed closing request resource", e);
+            }
+        }
+
+        requestResources = null;
+    }
+
     private void handleFrontendEncryption() {
         setFrontendEncrypted(false);
 
@@ -558,6 +641,8 @@ public class TransactionContext implements Serializable {
     }
 
     public void setResponseHeader(String name, String value) {
+        mergeRoutedResponseHeaders();
+
         if (value != null) {
             responseHeaders.put(name, value);
         } else {
@@ -566,9 +651,51 @@ public class TransactionContext implements Serializable {
     }
 
     public Map<String, String> getResponseHeaders() {
+        mergeRoutedResponseHeaders();
         return responseHeaders;
     }
 
+    /**
+     * Sets the headers configured in routes.conf for the route that handles this
+     * transaction, in the order in which they should be applied. The values are
+     * resolved only when they're needed.
+     */
+    public void setRoutedResponseHeaders(ResponseHeader[] headers) {
+        mergeRoutedResponseHeaders();
+        routedResponseHeaders = headers;
+    }
+
+    private void mergeRoutedResponseHeaders() {
+        if (routedResponseHeaders.length == 0) {
+            return;
+        }
+
+        ResponseHeader[] headers = routedResponseHeaders;
+        routedResponseHeaders = NO_HEADERS;
+
+        // Headers set directly take precedence.
+        for (ResponseHeader header : headers) {
+            if (!header.isRemoval()) {
+                responseHeaders.putIfAbsent(header.getName(), header.resolve(this));
+            }
+        }
+    }
+
+    /**
+     * Copies the response headers configured for this transaction into the response.
+     */
+    void applyResponseHeaders() {
+        for (ResponseHeader header : routedResponseHeaders) {
+            if (!header.isRemoval() && !responseHeaders.containsKey(header.getName())) {
+                response.setHeader(header.getName(), header.resolve(this));
+            }
+        }
+
+        for (Map.Entry<String, String> me : responseHeaders.entrySet()) {
+            response.setHeader(me.getKey(), me.getValue());
+        }
+    }
+
     private void parseContentType() {
         String ct = request.getContentType();
         if (ct == null) {
@@ -639,7 +766,8 @@ public class TransactionContext implements Serializable {
 
         if (qlueSession.getPublicSessionId() != null) {
             MDC.put("publicSessionId", qlueSession.getPublicSessionId());
-            properties.setProperty("_qlue_publicSessionId", qlueSession.getPublicSessionId());
+            publicSessionId = qlueSession.getPublicSessionId();
+            properties.setProperty("_qlue_publicSessionId", publicSessionId);
         }
 
         return qlueSession;
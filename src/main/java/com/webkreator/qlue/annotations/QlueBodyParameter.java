@@ -30,4 +30,11 @@ public @interface QlueBodyParameter {
        it doesn't enforce any MIME types by default.
      */
     String mimeType() default NOT_SET;
+
+    /* The maximum body size, in bytes. Larger "identity" bodies are rejected
+       with status 413; larger "json" bodies result in a page error. The
+       default (-1) defers to the application-wide limit, configured via
+       qlue.body.maxSize.
+     */
+    int maxSize() default -1;
 }
@@ -0,0 +1,38 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Pages whose output is the same for every anonymous visitor, at least
+ * for a while, can use this annotation to have their responses cached
+ * and reused. Persistent pages are never cached.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface QlueCacheable {
+
+    /* How long a response can be reused, in seconds. */
+    int ttl();
+
+    /* The request headers (e.g., Accept-Language) whose values must
+       match for a cached response to be reused. Responses are always
+       keyed by the request URI and the query string.
+     */
+    String[] varyBy() default {};
+}
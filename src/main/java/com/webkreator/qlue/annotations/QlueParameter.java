@@ -49,7 +49,8 @@ public @interface QlueParameter {
     String pattern() default "";
 
     /**
-     * Maximum value for integer parameters.
+     * Maximum length of parameter values; for file
+     * parameters, the maximum file size in bytes.
      */
     int maxSize() default -1;
 
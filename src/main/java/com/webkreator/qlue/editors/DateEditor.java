@@ -1,9 +1,9 @@
 package com.webkreator.qlue.editors;
 
 import java.lang.reflect.Field;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 
 /**
@@ -11,6 +11,9 @@ import java.util.Date;
  */
 public class DateEditor implements PropertyEditor {
 
+    // Unlike SimpleDateFormat, this is immutable and thread-safe.
+    private static final DateTimeFormatter TEXT_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mmZ");
+
     @Override
     public Class getEditorClass() {
         return Date.class;
@@ -35,7 +38,6 @@ public class DateEditor implements PropertyEditor {
 
     @Override
     public String toText(Object o) {
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mmZ");
-        return df.format((Date) o);
+        return TEXT_FORMAT.format(((Date) o).toInstant().atZone(ZoneId.systemDefault()));
     }
 }
@@ -1,4 +1,11 @@
 package com.webkreator.qlue.exceptions;
 
 public class TooManyRequestsException extends QlueException {
+
+    public TooManyRequestsException() {
+    }
+
+    public TooManyRequestsException(String message) {
+        super(message);
+    }
 }
@@ -0,0 +1,187 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.pages;
+
+import com.google.gson.GsonBuilder;
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.annotations.QlueParameter;
+import com.webkreator.qlue.exceptions.ForbiddenException;
+import com.webkreator.qlue.router.Route;
+import com.webkreator.qlue.router.RouteReloadMetrics;
+import com.webkreator.qlue.router.RoutingMetrics;
+import com.webkreator.qlue.view.StringView;
+import com.webkreator.qlue.view.View;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports how often each route is used, and how much work route matching
+ * does, in JSON (the default) or in the Prometheus text format (format=prometheus).
+ * Available only to requests from the development subnets.
+ */
+public class routeStats extends Page {
+
+    public static final String FORMAT_JSON = "json";
+
+    public static final String FORMAT_PROMETHEUS = "prometheus";
+
+    @QlueParameter(mandatory = false, pattern = "json|prometheus", valueWhenAbsent = FORMAT_JSON)
+    public String format;
+
+    @Override
+    public View onGet() throws Exception {
+        if (getApp().isDeveloperRequestIpAddress(context) == false) {
+            throw new ForbiddenException();
+        }
+
+        if (FORMAT_PROMETHEUS.equals(format)) {
+            return new StringView(toPrometheus(), "text/plain; version=0.0.4; charset=utf-8");
+        } else {
+            return new StringView(toJson(), "application/json");
+        }
+    }
+
+    String toJson() {
+        RoutingMetrics metrics = getApp().getRoutingMetrics();
+        RouteReloadMetrics reloadMetrics = getApp().getRouteReloadMetrics();
+
+        Map<String, Object> routing = new LinkedHashMap<>();
+        routing.put("matched", metrics.getMatched());
+        routing.put("unmatched", metrics.getUnmatched());
+        routing.put("routesTried", metrics.getRoutesTried());
+        routing.put("unmatchedRoutesTried", metrics.getUnmatchedRoutesTried());
+        routing.put("routingNanos", metrics.getRoutingNanos());
+
+        List<Map<String, Object>> histogram = new ArrayList<>();
+        int[] bounds = metrics.getBucketBounds();
+        long[] counts = metrics.getBucketCounts();
+        for (int i = 0; i < counts.length; i++) {
+            Map<String, Object> bucket = new LinkedHashMap<>();
+            bucket.put("le", i < bounds.length ? Integer.toString(bounds[i]) : "+Inf");
+            bucket.put("count", counts[i]);
+            histogram.add(bucket);
+        }
+
+        routing.put("routesTriedHistogram", histogram);
+
+        Map<String, Object> reloads = new LinkedHashMap<>();
+        reloads.put("reloads", reloadMetrics.getReloads());
+        reloads.put("failures", reloadMetrics.getFailures());
+
+        List<Map<String, Object>> routes = new ArrayList<>();
+        List<Route> routeList = getApp().getRoutes();
+        for (int i = 0; i < routeList.size(); i++) {
+            Route route = routeList.get(i);
+            if (route.getPath() == null) {
+                continue;
+            }
+
+            Map<String, Object> r = new LinkedHashMap<>();
+            r.put("position", i);
+            r.put("path", route.getPath());
+            r.put("router", route.getRouter().getClass().getSimpleName());
+            r.put("hits", route.getHits());
+            r.put("methodNotAllowed", route.getMethodNotAllowed());
+            r.put("redirections", route.getRedirections());
+            routes.add(r);
+        }
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("routing", routing);
+        stats.put("reloads", reloads);
+        stats.put("routes", routes);
+
+        return new GsonBuilder().setPrettyPrinting().create().toJson(stats);
+    }
+
+    String toPrometheus() {
+        RoutingMetrics metrics = getApp().getRoutingMetrics();
+        RouteReloadMetrics reloadMetrics = getApp().getRouteReloadMetrics();
+        StringBuilder sb = new StringBuilder();
+
+        header(sb, "qlue_route_hits_total", "counter", "Requests handled by the route.");
+        List<Route> routes = getApp().getRoutes();
+        for (int i = 0; i < routes.size(); i++) {
+            sample(sb, "qlue_route_hits_total", routes.get(i), i, routes.get(i).getHits());
+        }
+
+        header(sb, "qlue_route_method_not_allowed_total", "counter", "Requests that matched the route path, but not its methods.");
+        for (int i = 0; i < routes.size(); i++) {
+            sample(sb, "qlue_route_method_not_allowed_total", routes.get(i), i, routes.get(i).getMethodNotAllowed());
+        }
+
+        header(sb, "qlue_route_redirections_total", "counter", "Requests the route responded to with a redirection.");
+        for (int i = 0; i < routes.size(); i++) {
+            sample(sb, "qlue_route_redirections_total", routes.get(i), i, routes.get(i).getRedirections());
+        }
+
+        // Prometheus histogram buckets are cumulative.
+        header(sb, "qlue_routing_routes_tried", "histogram", "Routes tried before one matched.");
+        int[] bounds = metrics.getBucketBounds();
+        long[] counts = metrics.getBucketCounts();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String le = i < bounds.length ? Integer.toString(bounds[i]) : "+Inf";
+            sb.append("qlue_routing_routes_tried_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+        }
+
+        sb.append("qlue_routing_routes_tried_sum ").append(metrics.getRoutesTried()).append('\n');
+        sb.append("qlue_routing_routes_tried_count ").append(metrics.getMatched()).append('\n');
+
+        header(sb, "qlue_routing_unmatched_total", "counter", "Requests that didn't match any route.");
+        sb.append("qlue_routing_unmatched_total ").append(metrics.getUnmatched()).append('\n');
+
+        header(sb, "qlue_routing_unmatched_routes_tried_total", "counter", "Routes tried by requests that didn't match any route.");
+        sb.append("qlue_routing_unmatched_routes_tried_total ").append(metrics.getUnmatchedRoutesTried()).append('\n');
+
+        header(sb, "qlue_routing_seconds_total", "counter", "Time spent matching routes.");
+        sb.append("qlue_routing_seconds_total ").append(metrics.getRoutingNanos() / 1e9).append('\n');
+
+        header(sb, "qlue_routes_reloads_total", "counter", "Successful route reloads.");
+        sb.append("qlue_routes_reloads_total ").append(reloadMetrics.getReloads()).append('\n');
+
+        header(sb, "qlue_routes_reload_failures_total", "counter", "Route reloads that failed.");
+        sb.append("qlue_routes_reload_failures_total ").append(reloadMetrics.getFailures()).append('\n');
+
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, Route route, int position, long value) {
+        // Meta routes have no path, and don't handle requests.
+        if (route.getPath() == null) {
+            return;
+        }
+
+        sb.append(name)
+                .append("{position=\"").append(position)
+                .append("\",path=\"").append(escapeLabel(route.getPath()))
+                .append("\"} ").append(value).append('\n');
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -17,9 +17,9 @@
 package com.webkreator.qlue.router;
 
 import com.webkreator.qlue.Page;
+import com.webkreator.qlue.PageFactory;
 import com.webkreator.qlue.QlueApplication;
 import com.webkreator.qlue.TransactionContext;
-import com.webkreator.qlue.exceptions.QlueException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,7 +30,7 @@ public class ClassRouter implements Router {
 
     private Logger log = LoggerFactory.getLogger(ClassRouter.class);
 
-    private Class<Page> pageClass;
+    private PageFactory pageFactory;
 
     public ClassRouter(final RouteManager manager, final String className) {
         Class candidate = null;
@@ -78,15 +78,11 @@ public class ClassRouter implements Router {
             throw new RuntimeException("ClassRouter: Class " + className + " is not a subclass of Page");
         }
 
-        pageClass = candidate;
+        pageFactory = PageFactory.forClass(candidate);
     }
 
     @Override
     public Object route(TransactionContext context, Route route, String pathSuffix) {
-        try {
-            return pageClass.newInstance();
-        } catch (Exception e) {
-            throw new QlueException("Error creating page instance: " + e.getMessage(), e);
-        }
+        return pageFactory.newPage();
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.util.UriBuilder;
+import com.webkreator.qlue.util.WebUtil;
+import com.webkreator.qlue.view.RedirectView;
+import com.webkreator.qlue.view.View;
+
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A response that is the same for every request that gets it, prepared when
+ * routes are loaded: the status code, the headers and the body. Routes with the
+ * redirect: and status: actions, whose responses don't depend on the request,
+ * are turned into constant responses, which can then be sent without building a
+ * transaction context or running a page. Instances are immutable.
+ */
+public final class ConstantResponse {
+
+    private final int status;
+
+    private final String[] headerNames;
+
+    private final String[] headerValues;
+
+    private final String contentType;
+
+    private final byte[] body;
+
+    private final boolean redirection;
+
+    private ConstantResponse(int status, ResponseHeader[] headers, String location, String contentType, byte[] body) {
+        this.status = status;
+        this.contentType = contentType;
+        this.body = body;
+        this.redirection = (location != null);
+
+        int count = headers.length + (redirection ? 1 : 0);
+        headerNames = new String[count];
+        headerValues = new String[count];
+
+        for (int i = 0; i < headers.length; i++) {
+            headerNames[i] = headers[i].getName();
+            headerValues[i] = headers[i].getValue();
+        }
+
+        if (redirection) {
+            headerNames[count - 1] = "Location";
+            headerValues[count - 1] = location;
+        }
+    }
+
+    /**
+     * Prepares the response the given route would produce, along with the given
+     * headers, or returns null if the response isn't the same for every request.
+     * The response is what RedirectView or StatusCodeView would have produced.
+     */
+    static ConstantResponse forRoute(Route route, ResponseHeader[] headers) {
+        if ((route.getPath() == null) || route.hasParameters()) {
+            return null;
+        }
+
+        if (!ResponseHeader.allStatic(headers)) {
+            return null;
+        }
+
+        // Subclasses may respond differently, so only the routers themselves qualify.
+        Router router = route.getRouter();
+        if (router.getClass() == RedirectionRouter.class) {
+            RedirectionRouter rr = (RedirectionRouter) router;
+
+            // RedirectView refuses other status codes, and the error is best left to it.
+            int status = rr.getStatus();
+            if ((status != RedirectView.REDIRECT) && (status != RedirectView.REDIRECT_PERMANENT)
+                    && (status != RedirectView.REDIRECT_TEMPORARY)) {
+                return null;
+            }
+
+            return new ConstantResponse(status, headers, new UriBuilder(rr.getUri()).getUri(), null, null);
+        }
+
+        if (router.getClass() == StatusCodeRouter.class) {
+            StatusCodeRouter sr = (StatusCodeRouter) router;
+            int status = sr.getStatus();
+            if (status == View.STATUS_204_NO_CONTENT) {
+                return new ConstantResponse(status, headers, null, null, null);
+            }
+
+            String title = WebUtil.getStatusMessage(status);
+            if (title == null) {
+                title = "Unknown Status Code";
+            }
+
+            StringWriter sw = new StringWriter();
+            PrintWriter out = new PrintWriter(sw);
+            WebUtil.writeMessage(out, title, sr.getMessage());
+            out.flush();
+
+            return new ConstantResponse(status, headers, null, View.CONTENT_TYPE_TEXT_HTML_UTF8,
+                    sw.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        return null;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Is this a redirection?
+     */
+    public boolean isRedirection() {
+        return redirection;
+    }
+
+    /**
+     * Sends this response.
+     */
+    public void send(HttpServletResponse response) throws IOException {
+        response.setStatus(status);
+
+        for (int i = 0; i < headerNames.length; i++) {
+            response.setHeader(headerNames[i], headerValues[i]);
+        }
+
+        if (body != null) {
+            response.setContentType(contentType);
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
+        }
+    }
+}
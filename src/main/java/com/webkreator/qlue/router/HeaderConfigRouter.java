@@ -1,7 +1,6 @@
 package com.webkreator.qlue.router;
 
 import com.webkreator.qlue.TransactionContext;
-import com.webkreator.qlue.util.VariableExpander;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,18 +13,10 @@ public class HeaderConfigRouter implements Router {
 
     private static final Pattern configPattern = Pattern.compile("^([a-zA-Z0-9_-]+)(\\s+(.+))?$");
 
-    private String name;
-
-    private String value;
-
-    private boolean containsPageProperties = false;
+    private final ResponseHeader header;
 
     public HeaderConfigRouter(String name, String value) {
-        this.name = name;
-        this.value = value;
-        if ((value != null)&&(value.contains("${"))) {
-            containsPageProperties = true;
-        }
+        this.header = ResponseHeader.compile(name, value);
     }
 
     public static HeaderConfigRouter fromString(RouteManager manager, String text) {
@@ -47,17 +38,25 @@ public class HeaderConfigRouter implements Router {
         return new HeaderConfigRouter(name, value);
     }
 
+    /**
+     * Returns the header this directive configures.
+     */
+    public ResponseHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Sets the header in the transaction. QlueRouteManager doesn't invoke header
+     * routes one by one, but applies all the headers in effect for the matching
+     * route together; this is for other route managers.
+     */
     @Override
     public Object route(TransactionContext context, Route route, String pathSuffix) {
         if (log.isDebugEnabled()) {
-            log.debug("Setting header: name: " + name + "; value:" + value);
+            log.debug("Setting header: name: " + header.getName() + "; value:" + header.getValue());
         }
 
-        if (containsPageProperties == false) {
-            context.setResponseHeader(name, value);
-        } else {
-            context.setResponseHeader(name, VariableExpander.expand(value, context.getProperties(), true));
-        }
+        context.setResponseHeader(header.getName(), header.isRemoval() ? null : header.resolve(context));
 
         // Configuration routes can change the context but typically
         // return null, leaving some other route to handle the request.
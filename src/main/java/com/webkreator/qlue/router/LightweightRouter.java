@@ -0,0 +1,43 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.router;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Implemented by routers that can handle some requests before a transaction
+ * context exists, which is cheaper because there is then no session, no nonce,
+ * and no page. Only routes whose sole URL parameter is the path suffix, and that
+ * don't follow @header headers with per-transaction values, are served this way.
+ */
+public interface LightweightRouter extends Router {
+
+	/**
+	 * Handles the request without a transaction context. A router that can't, or
+	 * would rather not, handle a particular request returns false, after which
+	 * the request is routed as usual, with a context, starting from the first route.
+	 * In that case, nothing must have been done to the response.
+	 *
+	 * @param headers the @header headers in effect for the route, which must be
+	 *                set on the response if the request is handled; all static
+	 * @return true if the response has been sent
+	 */
+	boolean serve(HttpServletRequest request, HttpServletResponse response, String requestUri,
+			String pathSuffix, ResponseHeader[] headers) throws IOException;
+}
@@ -17,15 +17,25 @@
 package com.webkreator.qlue.router;
 
 import com.webkreator.qlue.Page;
+import com.webkreator.qlue.PageFactory;
 import com.webkreator.qlue.QlueApplication;
 import com.webkreator.qlue.TransactionContext;
 import com.webkreator.qlue.exceptions.BadRequestException;
+import com.webkreator.qlue.util.PackageScanner;
 import com.webkreator.qlue.view.ClasspathView;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Routes transaction to an entire package, with
@@ -41,6 +51,10 @@ public class PackageRouter implements Router {
 
     protected RouteManager manager;
 
+    private final Map<String, Resolution> resolutions = new ConcurrentHashMap<>();
+
+    private volatile PackageIndex packageIndex;
+
     public PackageRouter(final RouteManager manager, final String packageName) {
         this.manager = manager;
 
@@ -92,9 +106,82 @@ public class PackageRouter implements Router {
                     .setSecurityFlag();
         }
 
+        Resolution resolution = null;
+
+        // Paths resolved in advance would hide pages added since the scan,
+        // which development mode promises to find.
+        PackageIndex index = packageIndex;
+        if ((index != null) && !manager.isDevelopmentMode()) {
+            resolution = index.paths.get(convertDashes(path));
+        }
+
+        if (resolution == null) {
+            resolution = findResolution(path);
+        }
+
+        switch (resolution.kind) {
+            case PAGE:
+                return makePage(resolution.pageClass);
+            case VIEW:
+                return new ClasspathView(resolution.viewPath);
+            case REDIRECT_WITHOUT_INDEX:
+                // Redirect to canonical.
+                return RedirectionRouter.newWithoutSuffix(tx, manager.getIndex(), 307)
+                        .route(tx, route, path);
+            case REDIRECT_ADD_TRAILING_SLASH:
+                // Redirect to canonical.
+                return RedirectionRouter.newAddTrailingSlash(tx, 307)
+                        .route(tx, route, path);
+            default:
+                // Not found.
+                return null;
+        }
+    }
+
+    /**
+     * Looks up the outcome of resolving the given path, working it out only
+     * if it hasn't been seen before. Failed resolutions are remembered too,
+     * as they are the most expensive ones: each costs two failed class
+     * loads and two resource lookups. When the cache is full, it's emptied
+     * and starts again, which keeps the memory use bounded no matter how
+     * many distinct paths are requested.
+     */
+    private Resolution findResolution(String path) {
+        int cacheSize = manager.getResolutionCacheSize();
+        if (cacheSize <= 0) {
+            if (!resolutions.isEmpty()) {
+                resolutions.clear();
+            }
+
+            return resolve(path);
+        }
+
+        // Dashes are part of the key only when they're not converted, because
+        // a path resolves in the same way with or without them otherwise.
+        String key = convertDashes(path);
+
+        Resolution resolution = resolutions.get(key);
+        if (resolution == null) {
+            resolution = resolve(path);
+
+            if (resolutions.size() >= cacheSize) {
+                resolutions.clear();
+            }
+
+            resolutions.put(key, resolution);
+        }
+
+        return resolution;
+    }
+
+    /**
+     * Works out what, if anything, is behind the given path: a page class, a direct
+     * view, or a redirection to the canonical location of one or the other.
+     */
+    private Resolution resolve(String path) {
         String classpath = convertUrlPathToClasspath(path); // converts dashes as well
         if (classpath == null) {
-            return null;
+            return Resolution.NOT_FOUND;
         }
 
         String normalizedPath = convertDashes(path);
@@ -106,14 +193,12 @@ public class PackageRouter implements Router {
             log.debug("Trying class: " + classpath);
         }
 
-        Class clazz = QlueApplication.classForName(classpath);
+        Class clazz = findClass(classpath);
         if (isPage(clazz)) {
             if (path.endsWith("/" + manager.getIndex()) || path.equals(manager.getIndex())) {
-                // Redirect to canonical.
-                return RedirectionRouter.newWithoutSuffix(tx, manager.getIndex(), 307).
-                        route(tx, route, path);
+                return Resolution.REDIRECT_WITHOUT_INDEX;
             } else {
-                return makePage(clazz);
+                return new Resolution(Resolution.Kind.PAGE, clazz, null);
             }
         }
 
@@ -128,13 +213,11 @@ public class PackageRouter implements Router {
         // IMPORTANT For the below to work when working with a shadow JAR,
         //           the path must not contain consecutive slashes.
 
-        if (getClass().getClassLoader().getResource(viewPath) != null) {
+        if (viewExists(viewPath)) {
             if (path.endsWith("/" + manager.getIndex()) || path.equals(manager.getIndex())) {
-                // Redirect to canonical.
-                return RedirectionRouter.newWithoutSuffix(tx, manager.getIndex(), 307)
-                        .route(tx, route, path);
+                return Resolution.REDIRECT_WITHOUT_INDEX;
             } else {
-                return new ClasspathView(viewPath);
+                return new Resolution(Resolution.Kind.VIEW, null, viewPath);
             }
         }
 
@@ -147,14 +230,12 @@ public class PackageRouter implements Router {
             log.debug("Trying class: " + classpath);
         }
 
-        clazz = QlueApplication.classForName(classpath);
+        clazz = findClass(classpath);
         if (isPage(clazz)) {
             if ((path.length() == 0) || (path.endsWith("/"))) {
-                return makePage(clazz);
+                return new Resolution(Resolution.Kind.PAGE, clazz, null);
             } else {
-                // Redirect to canonical.
-                return RedirectionRouter.newAddTrailingSlash(tx, 307)
-                        .route(tx, route, path);
+                return Resolution.REDIRECT_ADD_TRAILING_SLASH;
             }
         }
 
@@ -166,18 +247,158 @@ public class PackageRouter implements Router {
             log.debug("Trying direct view: " + viewPath);
         }
 
-        if (getClass().getClassLoader().getResource(viewPath) != null) {
+        if (viewExists(viewPath)) {
             if ((path.length() == 0) || (path.endsWith("/"))) {
-                return new ClasspathView(viewPath);
+                return new Resolution(Resolution.Kind.VIEW, null, viewPath);
             } else {
-                // Redirect to canonical.
-                return RedirectionRouter.newAddTrailingSlash(tx, 307)
-                        .route(tx, route, path);
+                return Resolution.REDIRECT_ADD_TRAILING_SLASH;
             }
         }
 
-        // Not found.
-        return null;
+        return Resolution.NOT_FOUND;
+    }
+
+    /**
+     * Finds a class by name, consulting the package index, if there is one,
+     * instead of the class loader. In development mode, classes the index
+     * doesn't know about are still looked for, as they may have been added
+     * after the scan.
+     */
+    private Class findClass(String className) {
+        PackageIndex index = packageIndex;
+        if (index == null) {
+            return QlueApplication.classForName(className);
+        }
+
+        Class clazz = index.classes.get(className);
+        if ((clazz == null) && manager.isDevelopmentMode()) {
+            return QlueApplication.classForName(className);
+        }
+
+        return clazz;
+    }
+
+    /**
+     * Checks if a direct view exists, in the same way as findClass() finds classes.
+     */
+    private boolean viewExists(String viewPath) {
+        PackageIndex index = packageIndex;
+        if ((index == null) || (!index.views.contains(viewPath) && manager.isDevelopmentMode())) {
+            return getClass().getClassLoader().getResource(viewPath) != null;
+        }
+
+        return index.views.contains(viewPath);
+    }
+
+    /**
+     * Scans the root package for page classes and direct views, after which
+     * requests are resolved without touching the class loader. Paths that lead
+     * to pages or views, or to redirections to them, are resolved in advance.
+     * Can be invoked again, for example in development mode, to pick up changes.
+     *
+     * @throws IOException if the package can't be listed in full, in which
+     *                     case the router continues to work as before
+     */
+    public void scan() throws IOException {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        ClassLoader viewClassLoader = getClass().getClassLoader();
+
+        Map<String, Class> classes = new HashMap<>();
+        Set<String> views = new HashSet<>();
+        Set<String> paths = new LinkedHashSet<>();
+
+        for (String resource : PackageScanner.listResources(classLoader, rootPackageAsPath, true)) {
+            if (!resource.endsWith(".class")) {
+                continue;
+            }
+
+            String className = resource.substring(0, resource.length() - ".class".length()).replace('/', '.');
+            try {
+                Class clazz = Class.forName(className, false, classLoader);
+                if (isPage(clazz)) {
+                    classes.put(className, clazz);
+                    addCandidatePaths(resource.substring(rootPackageAsPath.length(),
+                            resource.length() - ".class".length()), paths);
+                }
+            } catch (ClassNotFoundException | LinkageError e) {
+                // Not something we could have loaded on request either.
+            }
+        }
+
+        for (String resource : PackageScanner.listResources(viewClassLoader, rootPackageAsPath, true)) {
+            if (resource.endsWith(".vmx")) {
+                views.add(resource);
+                addCandidatePaths(resource.substring(rootPackageAsPath.length(),
+                        resource.length() - ".vmx".length()), paths);
+            }
+        }
+
+        // Resolve the paths using the newly found classes and views, then
+        // keep only those that actually lead somewhere.
+        PackageIndex index = new PackageIndex(classes, views, Collections.emptyMap());
+        packageIndex = index;
+
+        Map<String, Resolution> resolved = new HashMap<>();
+        for (String path : paths) {
+            Resolution resolution = resolve(path);
+            if (resolution.kind != Resolution.Kind.NOT_FOUND) {
+                resolved.put(path, resolution);
+            }
+        }
+
+        packageIndex = new PackageIndex(classes, views, resolved);
+        resolutions.clear();
+
+        log.info("Scanned package " + rootPackage + ": " + classes.size() + " pages, "
+                + views.size() + " views, " + resolved.size() + " paths");
+    }
+
+    /**
+     * Adds the paths under which the page or view with the given relative
+     * name (e.g., "subdir/index") can be requested.
+     */
+    private void addCandidatePaths(String name, Set<String> paths) {
+        paths.add(name);
+
+        String index = manager.getIndex();
+        if (name.equals(index)) {
+            paths.add("");
+        } else if (name.endsWith("/" + index)) {
+            String folder = name.substring(0, name.length() - index.length());
+            paths.add(folder);
+            paths.add(folder.substring(0, folder.length() - 1));
+        }
+    }
+
+    int getScannedPathCount() {
+        PackageIndex index = packageIndex;
+        return (index != null) ? index.paths.size() : 0;
+    }
+
+    /**
+     * Forgets all previously resolved paths. To be used when pages
+     * or templates may have been added or removed.
+     */
+    public void clearResolutionCache() {
+        resolutions.clear();
+    }
+
+    int getResolutionCacheCount() {
+        return resolutions.size();
+    }
+
+    /**
+     * Returns the package this router serves pages from.
+     */
+    public String getRootPackage() {
+        return rootPackage;
+    }
+
+    /**
+     * Returns the root package as a resource path, with a trailing slash.
+     */
+    public String getRootPackageAsPath() {
+        return rootPackageAsPath;
     }
 
     private String convertDashes(String path) {
@@ -198,7 +419,7 @@ public class PackageRouter implements Router {
 
     private Page makePage(Class pageClass) {
         try {
-            return (Page) pageClass.newInstance();
+            return PageFactory.forClass(pageClass).newPage();
         } catch (Exception e) {
             log.error("Failed to instantiate class: ", e);
             return null;
@@ -277,4 +498,49 @@ public class PackageRouter implements Router {
         }
     }
 
+    /**
+     * The outcome of resolving one path, which depends only on
+     * the path and on what is on the classpath.
+     */
+    private static final class Resolution {
+
+        enum Kind { PAGE, VIEW, REDIRECT_WITHOUT_INDEX, REDIRECT_ADD_TRAILING_SLASH, NOT_FOUND }
+
+        static final Resolution REDIRECT_WITHOUT_INDEX = new Resolution(Kind.REDIRECT_WITHOUT_INDEX, null, null);
+
+        static final Resolution REDIRECT_ADD_TRAILING_SLASH = new Resolution(Kind.REDIRECT_ADD_TRAILING_SLASH, null, null);
+
+        static final Resolution NOT_FOUND = new Resolution(Kind.NOT_FOUND, null, null);
+
+        final Kind kind;
+
+        final Class pageClass;
+
+        final String viewPath;
+
+        Resolution(Kind kind, Class pageClass, String viewPath) {
+            this.kind = kind;
+            this.pageClass = pageClass;
+            this.viewPath = viewPath;
+        }
+    }
+
+    /**
+     * What a scan of the root package found: page classes by name, direct views
+     * by resource path, and the outcomes of the paths that lead to them.
+     */
+    private static final class PackageIndex {
+
+        final Map<String, Class> classes;
+
+        final Set<String> views;
+
+        final Map<String, Resolution> paths;
+
+        PackageIndex(Map<String, Class> classes, Set<String> views, Map<String, Resolution> paths) {
+            this.classes = Collections.unmodifiableMap(classes);
+            this.views = Collections.unmodifiableSet(views);
+            this.paths = Collections.unmodifiableMap(paths);
+        }
+    }
 }
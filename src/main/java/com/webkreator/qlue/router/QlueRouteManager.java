@@ -22,17 +22,28 @@ import com.webkreator.qlue.util.VariableExpander;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implements the default routing functionality, which accepts
  * a single routing file (routes.conf) that contains one route
  * per line.
+ *
+ * The routes are kept in an immutable table, together with the index
+ * built from them. Changes build a new table, which then replaces the
+ * old one in one step, so routes can be reloaded while requests are
+ * being routed; a request uses the same table from start to finish.
  */
 public class QlueRouteManager implements RouteManager {
 
@@ -40,7 +51,21 @@ public class QlueRouteManager implements RouteManager {
 
     private QlueApplication app;
 
-    private List<Route> routes = new ArrayList<>();
+    private volatile RouteTable table = new RouteTable(Collections.emptyList());
+
+    // Serialises changes to the route table; routing doesn't need it.
+    private final ReentrantLock updateLock = new ReentrantLock();
+
+    // The properties routes are being loaded with, seen only by the thread loading them.
+    private final ThreadLocal<Properties> loadingProperties = new ThreadLocal<>();
+
+    private volatile boolean scanPackages = false;
+
+    private volatile boolean tuneForMethodNotFound = false;
+
+    private final RouteReloadMetrics reloadMetrics = new RouteReloadMetrics();
+
+    private final RoutingMetrics routingMetrics = new RoutingMetrics();
 
     private String suffix;
 
@@ -50,37 +75,125 @@ public class QlueRouteManager implements RouteManager {
 
     private boolean redirectFolderWithoutTrailingSlash = true;
 
+    private volatile boolean constantResponses = true;
+
+    private volatile boolean lightweightRoutes = true;
+
     public QlueRouteManager(QlueApplication app) {
         this.app = app;
     }
 
     /**
-     * Loads routes from a file.
+     * Loads routes from a file, replacing the current routes. If the file
+     * can't be parsed, the current routes are left as they are.
      */
     public void load(File routesFile) throws Exception {
-        routes.clear();
+        load(routesFile, null);
+    }
 
-        // Loop through the lines in the configuration file, processing
-        // each line as a single routing instruction.
+    /**
+     * Loads routes from a file, expanding variables using the application properties,
+     * with those in the supplied properties, if any, taking precedence. Properties
+     * defined with @define are added to the application properties, together with the
+     * supplied properties, but only once the new routes are in place.
+     */
+    void load(File routesFile, Properties overrides) throws Exception {
+        updateLock.lock();
+        try {
+            Properties variables = new Properties();
+            variables.putAll(app.getProperties());
+            if (overrides != null) {
+                variables.putAll(overrides);
+            }
+
+            loadingProperties.set(variables);
+
+            List<Route> routes = new ArrayList<>();
+
+            // Loop through the lines in the configuration file, processing
+            // each line as a single routing instruction.
 
-        try (BufferedReader in = new BufferedReader(new FileReader(routesFile))) {
-            String line;
+            try (BufferedReader in = new BufferedReader(new FileReader(routesFile))) {
+                String line;
 
-            while ((line = in.readLine()) != null) {
-                // Ignore comment lines; those that are empty or on
-                // which the first non-whitespace character is #.
-                line = line.trim();
-                if ((line.length() == 0) || (line.charAt(0) == '#')) {
-                    continue;
+                while ((line = in.readLine()) != null) {
+                    // Ignore comment lines; those that are empty or on
+                    // which the first non-whitespace character is #.
+                    line = line.trim();
+                    if ((line.length() == 0) || (line.charAt(0) == '#')) {
+                        continue;
+                    }
+
+                    line = VariableExpander.expand(line, variables, false);
+
+                    Route route = RouteFactory.create(this, line);
+                    if (route != null) {
+                        routes.add(route);
+                    }
                 }
+            }
+
+            RouteTable newTable = new RouteTable(routes);
+            if (scanPackages) {
+                scanPackages(newTable.routes);
+            }
 
-                line = VariableExpander.expand(line, app.getProperties(), false);
+            if (tuneForMethodNotFound) {
+                tuneRoutesForMethodNotFound(newTable.routes);
+            }
+
+            table = newTable;
+
+            app.getProperties().putAll(variables);
+        } finally {
+            loadingProperties.remove();
+            updateLock.unlock();
+        }
+    }
 
-                add(RouteFactory.create(this, line));
+    /**
+     * Loads routes from a file, as load() does, but reports problems in the
+     * log and in the reload metrics instead of throwing an exception.
+     *
+     * @param propertiesFile a properties file to read variables from, or null
+     * @return true if the routes were replaced
+     */
+    public boolean reload(File routesFile, File propertiesFile) {
+        long start = System.nanoTime();
+
+        try {
+            Properties overrides = null;
+            if ((propertiesFile != null) && propertiesFile.exists()) {
+                overrides = new Properties();
+                try (FileReader reader = new FileReader(propertiesFile)) {
+                    overrides.load(reader);
+                }
             }
+
+            load(routesFile, overrides);
+
+            long duration = System.nanoTime() - start;
+            reloadMetrics.recordSuccess(duration, table.routes.size());
+            log.info("Reloaded " + table.routes.size() + " routes from " + routesFile
+                    + " in " + TimeUnit.NANOSECONDS.toMillis(duration) + " ms");
+
+            return true;
+        } catch (Exception e) {
+            reloadMetrics.recordFailure(System.nanoTime() - start, e);
+            log.error("Failed to reload routes from " + routesFile + "; keeping the current routes", e);
+
+            return false;
         }
     }
 
+    public RouteReloadMetrics getReloadMetrics() {
+        return reloadMetrics;
+    }
+
+    public RoutingMetrics getRoutingMetrics() {
+        return routingMetrics;
+    }
+
     /**
      * Adds a new route.
      */
@@ -89,26 +202,211 @@ public class QlueRouteManager implements RouteManager {
             return;
         }
 
-        routes.add(route);
+        updateLock.lock();
+        try {
+            List<Route> routes = new ArrayList<>(table.routes);
+            routes.add(route);
+            table = new RouteTable(routes);
+        } finally {
+            updateLock.unlock();
+        }
     }
 
     /**
-     * Routes transaction using previously configured routes.
+     * Routes transaction using previously configured routes. Only the routes
+     * whose literal prefixes are consistent with the request URI are tried;
+     * the others could not have matched anyway. Headers configured with
+     * @header above the matching route are handed to the transaction together.
      */
     public Object route(TransactionContext context) {
-        Object r;
-
         if (log.isDebugEnabled()) {
             log.debug("QlueRouter: Asked to route: " + context.getRequestUri());
         }
 
-        // Loop through the configured routes
-        for (Route route : routes) {
-            if (log.isDebugEnabled()) {
-                log.debug("QlueRouter: Trying " + route.getPath());
+        long start = System.nanoTime();
+        int tried = 0;
+
+        RouteTable t = table;
+
+        for (int i : t.index.candidates(context.getRequestUri())) {
+            tried++;
+            Object r = tryRoute(t.routes.get(i), context);
+            if (r != null) {
+                context.setRoutedResponseHeaders(t.index.headersBefore(i));
+                routingMetrics.recordMatch(tried, System.nanoTime() - start);
+                return r;
+            }
+        }
+
+        context.setRoutedResponseHeaders(t.index.headersBefore(t.routes.size()));
+        routingMetrics.recordMiss(tried, System.nanoTime() - start);
+
+        return null;
+    }
+
+    /**
+     * Looks for the constant response of a redirect: or status: route, for a
+     * request that hasn't been turned into a transaction yet. The answer is
+     * given only when the route is certain to be the one that would handle
+     * the request; in all other cases, including when another route would
+     * have to be tried first to find out, this method returns null and the
+     * request should be routed as usual.
+     *
+     * @param uri    the normalised request URI
+     * @param method the request method
+     */
+    public ConstantResponse findConstantResponse(String uri, String method) {
+        RouteTable t = table;
+        if (!t.hasConstantResponses) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        int[] tried = new int[1];
+
+        int position = findCertainRoute(t, uri, RouteMethod.fromString(method), tried);
+        if ((position == -1) || (t.constantResponses[position] == null)) {
+            return null;
+        }
+
+        ConstantResponse response = t.constantResponses[position];
+        t.routes.get(position).recordHit(response.isRedirection());
+        routingMetrics.recordMatch(tried[0], System.nanoTime() - start);
+
+        return response;
+    }
+
+    /**
+     * Handles a request that hasn't been turned into a transaction yet, provided
+     * that the route certain to handle it has a constant response, or a router
+     * that can work without a transaction (see LightweightRouter).
+     *
+     * @param uri the normalised request URI
+     * @return true if the response has been sent
+     */
+    public boolean serveWithoutContext(String uri, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        RouteTable t = table;
+        if (!(constantResponses && t.hasConstantResponses) && !(lightweightRoutes && t.hasLightweightRoutes)) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        int[] tried = new int[1];
+
+        int position = findCertainRoute(t, uri, RouteMethod.fromString(request.getMethod()), tried);
+        if (position == -1) {
+            return false;
+        }
+
+        Route route = t.routes.get(position);
+
+        ConstantResponse constantResponse = t.constantResponses[position];
+        if (constantResponses && (constantResponse != null)) {
+            constantResponse.send(response);
+            route.recordHit(constantResponse.isRedirection());
+            routingMetrics.recordMatch(tried[0], System.nanoTime() - start);
+            return true;
+        }
+
+        if (lightweightRoutes && t.lightweightRoutes[position]) {
+            String pathSuffix = route.getPathSuffix(uri);
+
+            // Folders without a trailing slash get a redirection instead.
+            if (redirectFolderWithoutTrailingSlash && route.isRedirectsWithoutTrailingSlash()
+                    && !uri.endsWith("/") && ((pathSuffix == null) || (pathSuffix.length() == 0))) {
+                return false;
             }
 
-            r = route.route(context);
+            LightweightRouter router = (LightweightRouter) route.getRouter();
+            if (router.serve(request, response, uri, pathSuffix, t.index.headersBefore(position))) {
+                route.recordHit(false);
+                routingMetrics.recordMatch(tried[0], System.nanoTime() - start);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Finds the route that would handle a request with the given URI and method,
+     * without trying the routes. Returns -1 when that can't be known for certain:
+     * when a meta route is in the way, or when the first route to match the path
+     * would respond with a 405 or a redirection to add a trailing slash, or when
+     * there isn't a route whose response is known in advance, or whose router
+     * can work without a transaction.
+     */
+    private int findCertainRoute(RouteTable t, String uri, RouteMethod method, int[] tried) {
+        for (int i : t.index.candidates(uri)) {
+            Route route = t.routes.get(i);
+
+            // Meta routes need a transaction.
+            if (route.getPath() == null) {
+                return -1;
+            }
+
+            tried[0]++;
+
+            if (!route.matchesPath(uri)) {
+                continue;
+            }
+
+            if (!route.acceptsMethod(method)) {
+                if (route.isForceMethodNotFound()) {
+                    return -1;
+                }
+
+                continue;
+            }
+
+            if (t.constantResponses[i] != null) {
+                // Folders without a trailing slash get a redirection instead.
+                if (redirectFolderWithoutTrailingSlash && route.isRedirectsWithoutTrailingSlash() && !uri.endsWith("/")) {
+                    return -1;
+                }
+
+                return i;
+            }
+
+            // Lightweight routers check for the trailing slash themselves, because
+            // the redirection depends on the path suffix.
+            return t.lightweightRoutes[i] ? i : -1;
+        }
+
+        return -1;
+    }
+
+    public boolean isConstantResponses() {
+        return constantResponses;
+    }
+
+    /**
+     * Should redirect: and status: routes be answered with prepared responses
+     * by serveWithoutContext()?
+     */
+    public void setConstantResponses(boolean b) {
+        constantResponses = b;
+    }
+
+    public boolean isLightweightRoutes() {
+        return lightweightRoutes;
+    }
+
+    /**
+     * Should the routes with lightweight routers be served by serveWithoutContext()?
+     */
+    public void setLightweightRoutes(boolean b) {
+        lightweightRoutes = b;
+    }
+
+    /**
+     * Routes transaction by trying every configured route in turn. This is
+     * what route() did before the index, kept to check that the two agree.
+     */
+    Object routeLinearly(TransactionContext context) {
+        for (Route route : table.routes) {
+            Object r = tryRoute(route, context);
             if (r != null) {
                 return r;
             }
@@ -117,10 +415,80 @@ public class QlueRouteManager implements RouteManager {
         return null;
     }
 
+    private Object tryRoute(Route route, TransactionContext context) {
+        if (log.isDebugEnabled()) {
+            log.debug("QlueRouter: Trying " + route.getPath());
+        }
+
+        return route.route(context);
+    }
+
+    /**
+     * Returns the configured routes, in the order in which they are tried. The
+     * list doesn't change; after a reload, call this method again to see the new routes.
+     */
+    public List<Route> getRoutes() {
+        return table.routes;
+    }
+
+    /**
+     * Returns the application properties or, on the thread that is loading
+     * routes, the properties the routes are being loaded with.
+     */
     public Properties getProperties() {
+        Properties properties = loadingProperties.get();
+        if (properties != null) {
+            return properties;
+        }
+
         return app.getProperties();
     }
 
+    @Override
+    public int getResolutionCacheSize() {
+        return app.getRouterCacheSize();
+    }
+
+    @Override
+    public boolean isDevelopmentMode() {
+        return app.isQlueDevMode();
+    }
+
+    /**
+     * Asks all package routers to scan their packages, so that they can resolve
+     * requests without consulting the class loader. Routers whose packages can't
+     * be scanned continue to work as before. Once this method has been invoked,
+     * package routers are also scanned whenever routes are reloaded.
+     */
+    public void scanPackages() {
+        scanPackages = true;
+        scanPackages(table.routes);
+    }
+
+    private void scanPackages(List<Route> routes) {
+        for (Route route : routes) {
+            if (route.getRouter() instanceof PackageRouter) {
+                PackageRouter router = (PackageRouter) route.getRouter();
+                try {
+                    router.scan();
+                } catch (IOException e) {
+                    log.warn("Unable to scan package " + router.getRootPackage() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Clears the resolution caches of all package routers.
+     */
+    public void clearResolutionCaches() {
+        for (Route route : table.routes) {
+            if (route.getRouter() instanceof PackageRouter) {
+                ((PackageRouter) route.getRouter()).clearResolutionCache();
+            }
+        }
+    }
+
     @Override
     public String getIndex() {
         return index;
@@ -171,7 +539,22 @@ public class QlueRouteManager implements RouteManager {
         return app.getPriorityTemplatePath();
     }
 
+    /**
+     * Makes the last route for each path respond with 405 when the path
+     * matches but the request method doesn't. Once this method has been
+     * invoked, routes are also tuned whenever they are reloaded.
+     */
     public void tuneRoutesForMethodNotFound() {
+        updateLock.lock();
+        try {
+            tuneForMethodNotFound = true;
+            tuneRoutesForMethodNotFound(table.routes);
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    private static void tuneRoutesForMethodNotFound(List<Route> routes) {
         Route previousRoute = null;
         for (Route route : routes) {
             if (previousRoute != null) {
@@ -190,4 +573,48 @@ public class QlueRouteManager implements RouteManager {
             previousRoute.setForceMethodNotFound(true);
         }
     }
+
+    /**
+     * A list of routes and the index built from it; never changes.
+     */
+    private static final class RouteTable {
+
+        final List<Route> routes;
+
+        final RouteIndex index;
+
+        // Indexed by route position; null for routes whose responses vary.
+        final ConstantResponse[] constantResponses;
+
+        final boolean hasConstantResponses;
+
+        // Indexed by route position; true for routes that can be served without a transaction.
+        final boolean[] lightweightRoutes;
+
+        final boolean hasLightweightRoutes;
+
+        RouteTable(List<Route> routes) {
+            this.routes = Collections.unmodifiableList(new ArrayList<>(routes));
+            this.index = new RouteIndex(this.routes);
+
+            boolean foundConstant = false;
+            boolean foundLightweight = false;
+            constantResponses = new ConstantResponse[this.routes.size()];
+            lightweightRoutes = new boolean[this.routes.size()];
+            for (int i = 0; i < constantResponses.length; i++) {
+                Route route = this.routes.get(i);
+                constantResponses[i] = ConstantResponse.forRoute(route, index.headersBefore(i));
+                foundConstant |= (constantResponses[i] != null);
+
+                lightweightRoutes[i] = (route.getPath() != null)
+                        && (route.getRouter() instanceof LightweightRouter)
+                        && (!route.hasParameters() || route.hasOnlyPathSuffix())
+                        && ResponseHeader.allStatic(index.headersBefore(i));
+                foundLightweight |= lightweightRoutes[i];
+            }
+
+            this.hasConstantResponses = foundConstant;
+            this.hasLightweightRoutes = foundLightweight;
+        }
+    }
 }
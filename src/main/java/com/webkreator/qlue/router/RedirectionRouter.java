@@ -67,6 +67,14 @@ public class RedirectionRouter implements Router {
 		return new RedirectionRouter(urisb.toString(), status);
 	}
 
+	String getUri() {
+		return uri;
+	}
+
+	int getStatus() {
+		return status;
+	}
+
 	@Override
 	public Object route(TransactionContext context, Route route, String pathSuffix) {
         return new RedirectView(uri, status);
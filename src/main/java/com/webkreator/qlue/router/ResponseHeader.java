@@ -0,0 +1,210 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.util.VariableExpander;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A response header configured with @header, with its value compiled into literal text
+ * and placeholders. Placeholders that refer to transaction properties Qlue provides
+ * (_qlue_nonce, _qlue_publicSessionId and _qlue_userId) are resolved from the
+ * transaction directly; others are looked up in the transaction properties, as before.
+ * Placeholders that can't be resolved are removed. A header that uses a value of the
+ * transaction marks the transaction as personalised, so that the response isn't cached.
+ * Instances are immutable.
+ */
+public final class ResponseHeader implements Serializable {
+
+    private static final String[] NO_STRINGS = new String[0];
+
+    private final String name;
+
+    private final String value;
+
+    // The literal text around the placeholders; always
+    // one element longer than the placeholder arrays.
+    private final String[] literals;
+
+    private final Placeholder[] placeholders;
+
+    private final String[] placeholderNames;
+
+    private enum Placeholder {
+
+        NONCE {
+            @Override
+            String resolve(TransactionContext context, String name) {
+                return context.getNonce();
+            }
+        },
+
+        PUBLIC_SESSION_ID {
+            @Override
+            String resolve(TransactionContext context, String name) {
+                return context.getPublicSessionId();
+            }
+        },
+
+        USER_ID {
+            @Override
+            String resolve(TransactionContext context, String name) {
+                context.markPersonalised();
+                return context.getUserId();
+            }
+        },
+
+        PROPERTY {
+            @Override
+            String resolve(TransactionContext context, String name) {
+                String value = context.getProperties().getProperty(name);
+                if ((value != null) && value.contains("${")) {
+                    // The expansion may bring in the transaction's own values.
+                    context.markPersonalised();
+                    value = VariableExpander.expand(value, context.getProperties(), true);
+                } else if (name.startsWith("_qlue_")) {
+                    context.markPersonalised();
+                }
+
+                return value;
+            }
+        };
+
+        abstract String resolve(TransactionContext context, String name);
+
+        static Placeholder forName(String name) {
+            switch (name) {
+                case "_qlue_nonce":
+                    return NONCE;
+                case "_qlue_publicSessionId":
+                    return PUBLIC_SESSION_ID;
+                case "_qlue_userId":
+                    return USER_ID;
+                default:
+                    return PROPERTY;
+            }
+        }
+    }
+
+    private ResponseHeader(String name, String value, String[] literals, Placeholder[] placeholders, String[] placeholderNames) {
+        this.name = name;
+        this.value = value;
+        this.literals = literals;
+        this.placeholders = placeholders;
+        this.placeholderNames = placeholderNames;
+    }
+
+    /**
+     * Compiles a header value in which placeholders are written as ${name}.
+     *
+     * @param value the header value; null to indicate that the header should be removed
+     */
+    public static ResponseHeader compile(String name, String value) {
+        if ((value == null) || !value.contains("${")) {
+            return new ResponseHeader(name, value, NO_STRINGS, new Placeholder[0], NO_STRINGS);
+        }
+
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+
+        int pos = 0;
+        int start;
+        while ((start = value.indexOf("${", pos)) != -1) {
+            int end = value.indexOf('}', start + 2);
+            if (end == -1) {
+                break;
+            }
+
+            literals.add(value.substring(pos, start));
+            names.add(value.substring(start + 2, end));
+            pos = end + 1;
+        }
+
+        literals.add(value.substring(pos));
+
+        Placeholder[] placeholders = new Placeholder[names.size()];
+        for (int i = 0; i < placeholders.length; i++) {
+            placeholders[i] = Placeholder.forName(names.get(i));
+        }
+
+        return new ResponseHeader(name, value, literals.toArray(NO_STRINGS), placeholders, names.toArray(NO_STRINGS));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the value as configured, with placeholders unresolved.
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Does this header remove an earlier header of the same name, rather than set a value?
+     */
+    public boolean isRemoval() {
+        return value == null;
+    }
+
+    /**
+     * Is the value the same for all transactions?
+     */
+    public boolean isStatic() {
+        return placeholders.length == 0;
+    }
+
+    /**
+     * Are the values of all the given headers the same for all transactions?
+     */
+    static boolean allStatic(ResponseHeader[] headers) {
+        for (ResponseHeader header : headers) {
+            if (!header.isStatic()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the value to send in response to the given transaction.
+     */
+    public String resolve(TransactionContext context) {
+        if (placeholders.length == 0) {
+            return value;
+        }
+
+        StringBuilder sb = new StringBuilder(value.length() + 32);
+        sb.append(literals[0]);
+        for (int i = 0; i < placeholders.length; i++) {
+            String v = placeholders[i].resolve(context, placeholderNames[i]);
+            if (v != null) {
+                sb.append(v);
+            }
+
+            sb.append(literals[i + 1]);
+        }
+
+        return sb.toString();
+    }
+}
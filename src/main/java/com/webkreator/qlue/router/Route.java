@@ -17,6 +17,7 @@
 package com.webkreator.qlue.router;
 
 import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.view.RedirectView;
 import com.webkreator.qlue.view.View;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +25,7 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -41,6 +43,8 @@ public class Route {
 
 	private Pattern pattern;
 
+	private String literalPrefix;
+
 	private List<String> names = new ArrayList<>();
 
 	private Router router;
@@ -53,6 +57,12 @@ public class Route {
 
 	private boolean forceMethodNotFound = false;
 
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder methodNotAllowed = new LongAdder();
+
+	private final LongAdder redirections = new LongAdder();
+
 	/**
 	 * Creates new route, given path and router instance.
 	 */
@@ -72,6 +82,8 @@ public class Route {
 	 * named path parameters.
 	 */
 	public void processPath() {
+		literalPrefix = computeLiteralPrefix(path);
+
 		// Start building actual path with an anchor at the beginning
 		StringBuilder sb = new StringBuilder();
 		sb.append('^');
@@ -219,6 +231,28 @@ public class Route {
 		}
 	}
 
+	/**
+	 * Works out the part of the path that every matching request URI must
+	 * start with: everything up to the first parameter, less the trailing
+	 * slash (or "/?"), which the pattern treats as optional.
+	 */
+	private static String computeLiteralPrefix(String path) {
+		String prefix = path;
+
+		int i = prefix.indexOf('{');
+		if (i != -1) {
+			prefix = prefix.substring(0, i);
+		}
+
+		if (prefix.endsWith("/?")) {
+			prefix = prefix.substring(0, prefix.length() - 2);
+		} else if (prefix.endsWith("/")) {
+			prefix = prefix.substring(0, prefix.length() - 1);
+		}
+
+		return prefix;
+	}
+
 	private int findEndingBrace(String haystack, int startingPost) {
 		int depth = 0;
 		for (int i  = startingPost; i < haystack.length(); i++) {
@@ -244,7 +278,7 @@ public class Route {
         // If the path is null, that means this is a meta route,
 		// and we always accept the transaction.
         if (path == null) {
-            return router.route(tx, this, null);
+            return count(router.route(tx, this, null));
         }
 
 		// Check if the request path matches.
@@ -257,6 +291,7 @@ public class Route {
 		RouteMethod method = RouteMethod.fromTransaction(tx);
 		if (!acceptedMethods.contains(method)) {
 			if (forceMethodNotFound) {
+				methodNotAllowed.increment();
 				return new StatusCodeRouter(View.STATUS_405_METHOD_NOT_ALLOWED);
 			} else {
 				return null;
@@ -283,12 +318,27 @@ public class Route {
 		if (manager.isRedirectFolderWithoutTrailingSlash()) {
 			if (redirects && (tx.getRequestUri().endsWith("/") == false)
 					&& ((pathSuffix == null) || (pathSuffix.length() == 0))) {
-				return RedirectionRouter.newAddTrailingSlash(tx, 307).route(tx, this, pathSuffix);
+				return count(RedirectionRouter.newAddTrailingSlash(tx, 307).route(tx, this, pathSuffix));
 			}
 		}
 
 		// Return the route
-		return router.route(tx, this, pathSuffix);
+		return count(router.route(tx, this, pathSuffix));
+	}
+
+	private Object count(Object result) {
+		if (result != null) {
+			recordHit(result instanceof RedirectView);
+		}
+
+		return result;
+	}
+
+	void recordHit(boolean redirection) {
+		hits.increment();
+		if (redirection) {
+			redirections.increment();
+		}
 	}
 
 	/**
@@ -298,6 +348,28 @@ public class Route {
 		return path;
 	}
 
+	/**
+	 * Returns the literal text with which all request URIs matched by this
+	 * route begin, or null for meta routes, which match everything.
+	 */
+	public String getLiteralPrefix() {
+		return literalPrefix;
+	}
+
+	/**
+	 * Checks only the path, ignoring the request method.
+	 */
+	boolean matchesPath(String uri) {
+		return (path == null) || pattern.matcher(uri).matches();
+	}
+
+	/**
+	 * Returns the router that handles transactions matched by this route.
+	 */
+	public Router getRouter() {
+		return router;
+	}
+
 	public boolean acceptsMethod(RouteMethod method) {
 		return acceptedMethods.contains(method);
 	}
@@ -306,6 +378,43 @@ public class Route {
 		return redirects;
 	}
 
+	/**
+	 * Does the path of this route capture URL parameters?
+	 */
+	boolean hasParameters() {
+		return !names.isEmpty();
+	}
+
+	/**
+	 * Is the path suffix the only URL parameter this route captures?
+	 */
+	boolean hasOnlyPathSuffix() {
+		return (names.size() == 1) && (names.get(0).compareTo("pathSuffix") == 0);
+	}
+
+	/**
+	 * Returns the path suffix captured from the given URI, or null if
+	 * there isn't one. The URI is assumed to match the path of this route.
+	 */
+	String getPathSuffix(String uri) {
+		Matcher m = pattern.matcher(uri);
+		if (m.matches() == false) {
+			return null;
+		}
+
+		for (int i = 0; i < names.size(); i++) {
+			if (names.get(i).compareTo("pathSuffix") == 0) {
+				return m.group(i + 1);
+			}
+		}
+
+		return null;
+	}
+
+	boolean isForceMethodNotFound() {
+		return forceMethodNotFound;
+	}
+
 	public boolean isSelectiveAboutMethods() {
 		if (acceptedMethods.size() == RouteMethod.values().length) {
 			return false;
@@ -314,6 +423,30 @@ public class Route {
 		}
 	}
 
+	/**
+	 * Returns the number of transactions handled by this route,
+	 * including redirections, but not 405 responses.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of transactions that matched the path of this
+	 * route, but not its methods, and got a 405 response as a result.
+	 */
+	public long getMethodNotAllowed() {
+		return methodNotAllowed.sum();
+	}
+
+	/**
+	 * Returns the number of transactions that this route responded to with a
+	 * redirection, including the redirections that add a trailing slash.
+	 */
+	public long getRedirections() {
+		return redirections.sum();
+	}
+
 	void setForceMethodNotFound(boolean b) {
 		forceMethodNotFound = b;
 	}
@@ -0,0 +1,167 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A segment trie over the literal prefixes of a list of routes, used to narrow
+ * down the routes that can possibly match a request URI before any regular
+ * expressions are run. Each route is filed under the complete segments of its
+ * literal prefix, together with whatever partial segment follows. A lookup
+ * walks the request URI segment by segment and collects the routes whose
+ * partial segments also match; meta routes are always collected. Candidates
+ * are returned in their original order, so that the first route to match
+ * still wins. Instances are immutable once built.
+ *
+ * Header routes (@header) are not candidates. Instead, the headers in effect
+ * at each position in the list are worked out in advance, so that they can
+ * be applied together once the matching route is known.
+ */
+final class RouteIndex {
+
+    private static final int[] NONE = new int[0];
+
+    private final Node root = new Node();
+
+    private static final ResponseHeader[] NO_HEADERS = new ResponseHeader[0];
+
+    private final int[] metaRoutes;
+
+    private final ResponseHeader[][] headers;
+
+    RouteIndex(List<Route> routes) {
+        List<Integer> meta = new ArrayList<>();
+
+        headers = new ResponseHeader[routes.size() + 1][];
+        Map<String, ResponseHeader> currentHeaders = new LinkedHashMap<>();
+        ResponseHeader[] current = NO_HEADERS;
+
+        for (int i = 0; i < routes.size(); i++) {
+            headers[i] = current;
+
+            Route route = routes.get(i);
+            String prefix = route.getLiteralPrefix();
+            if (prefix == null) {
+                if (route.getRouter() instanceof HeaderConfigRouter) {
+                    // A header without a value removes the previous header of the same name.
+                    ResponseHeader header = ((HeaderConfigRouter) route.getRouter()).getHeader();
+                    currentHeaders.remove(header.getName());
+                    if (!header.isRemoval()) {
+                        currentHeaders.put(header.getName(), header);
+                    }
+
+                    current = currentHeaders.values().toArray(NO_HEADERS);
+                } else {
+                    meta.add(i);
+                }
+
+                continue;
+            }
+
+            Node node = root;
+            int start = 0;
+            int end;
+            while ((end = prefix.indexOf('/', start)) != -1) {
+                node = node.children.computeIfAbsent(prefix.substring(start, end), k -> new Node());
+                start = end + 1;
+            }
+
+            node.partials.add(prefix.substring(start));
+            node.routes.add(i);
+        }
+
+        headers[routes.size()] = current;
+        metaRoutes = toArray(meta);
+    }
+
+    /**
+     * Returns the headers configured above the route at the given position,
+     * or, when the position is past the last route, all of them.
+     */
+    ResponseHeader[] headersBefore(int position) {
+        return headers[position];
+    }
+
+    /**
+     * Returns the positions of the routes that may match the
+     * given URI, in ascending order.
+     */
+    int[] candidates(String uri) {
+        int[] found = new int[8];
+        int count = 0;
+
+        for (int i : metaRoutes) {
+            found = grow(found, count);
+            found[count++] = i;
+        }
+
+        Node node = root;
+        int start = 0;
+        while (node != null) {
+            for (int i = 0; i < node.partials.size(); i++) {
+                if (uri.startsWith(node.partials.get(i), start)) {
+                    found = grow(found, count);
+                    found[count++] = node.routes.get(i);
+                }
+            }
+
+            int end = uri.indexOf('/', start);
+            if (end == -1) {
+                break;
+            }
+
+            node = node.children.get(uri.substring(start, end));
+            start = end + 1;
+        }
+
+        if (count == 0) {
+            return NONE;
+        }
+
+        int[] result = Arrays.copyOf(found, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static int[] grow(int[] a, int count) {
+        return (count < a.length) ? a : Arrays.copyOf(a, a.length * 2);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] a = new int[list.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = list.get(i);
+        }
+
+        return a;
+    }
+
+    private static final class Node {
+
+        final Map<String, Node> children = new HashMap<>();
+
+        final List<String> partials = new ArrayList<>();
+
+        final List<Integer> routes = new ArrayList<>();
+    }
+}
@@ -47,4 +47,20 @@ public interface RouteManager {
 	String getPriorityTemplatePath();
 
 	Properties getProperties();
+
+	/**
+	 * Returns the maximum number of URI resolutions a package router may remember,
+	 * or 0 if they should not be remembered at all.
+	 */
+	default int getResolutionCacheSize() {
+		return 0;
+	}
+
+	/**
+	 * Is the application in development mode, in which pages and templates
+	 * may be added after the routers last looked for them?
+	 */
+	default boolean isDevelopmentMode() {
+		return false;
+	}
 }
@@ -11,8 +11,11 @@ public enum RouteMethod {
     $OTHER;
 
     public static RouteMethod fromTransaction(TransactionContext tx) {
+        return fromString(tx.getRequest().getMethod());
+    }
+
+    public static RouteMethod fromString(String httpMethod) {
         try {
-            String httpMethod = tx.getRequest().getMethod();
             if (httpMethod.equals("HEAD")) {
                 httpMethod = "GET";
             }
@@ -20,7 +23,7 @@ public enum RouteMethod {
             RouteMethod method = RouteMethod.valueOf(httpMethod);
             if (method == $OTHER) {
                 throw new IllegalArgumentException("Internal route method names now allowed: "
-                        + tx.getRequest().getMethod());
+                        + httpMethod);
             }
             return method;
         } catch(Exception e) {
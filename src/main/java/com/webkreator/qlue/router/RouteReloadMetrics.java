@@ -0,0 +1,116 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.router;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of route reloads: how many succeeded and failed, how long the
+ * last one took, and why the last failure happened. A failed reload leaves the
+ * previous routes in place, so the failure count is the only sign that the
+ * routes in use are not those in routes.conf.
+ */
+public final class RouteReloadMetrics {
+
+    private final AtomicLong reloads = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile long lastReloadNanos;
+
+    private volatile long lastReloadTime;
+
+    private volatile int routeCount;
+
+    private volatile long lastFailureTime;
+
+    private volatile String lastFailure;
+
+    void recordSuccess(long duration, int routes) {
+        lastReloadNanos = duration;
+        lastReloadTime = System.currentTimeMillis();
+        routeCount = routes;
+        reloads.incrementAndGet();
+    }
+
+    void recordFailure(long duration, Exception e) {
+        lastReloadNanos = duration;
+        lastFailureTime = System.currentTimeMillis();
+        lastFailure = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        failures.incrementAndGet();
+    }
+
+    /**
+     * Number of successful reloads.
+     */
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    /**
+     * Number of reloads that failed and left the previous routes in place.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * How long the last reload attempt took, successful or not, in milliseconds.
+     */
+    public long getLastReloadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastReloadNanos);
+    }
+
+    /**
+     * When the routes were last reloaded successfully, as
+     * returned by System.currentTimeMillis(), or 0 if never.
+     */
+    public long getLastReloadTime() {
+        return lastReloadTime;
+    }
+
+    /**
+     * Number of routes after the last successful reload.
+     */
+    public int getRouteCount() {
+        return routeCount;
+    }
+
+    /**
+     * When a reload last failed, or 0 if never.
+     */
+    public long getLastFailureTime() {
+        return lastFailureTime;
+    }
+
+    /**
+     * Why the last failed reload failed, or null if none has.
+     */
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    @Override
+    public String toString() {
+        return "reloads=" + getReloads()
+                + ", failures=" + getFailures()
+                + ", lastReloadMillis=" + getLastReloadMillis()
+                + ", routeCount=" + getRouteCount()
+                + ", lastFailure=" + getLastFailure();
+    }
+}
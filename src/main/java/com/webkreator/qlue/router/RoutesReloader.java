@@ -0,0 +1,143 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.router;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches routes.conf, and the properties file its variables come from, and
+ * reloads the routes when either changes. Reloading happens on a background
+ * thread; see QlueRouteManager.reload() for what happens when it fails.
+ */
+public class RoutesReloader implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(RoutesReloader.class);
+
+    // Editors and deployment tools often write files in several steps, so we
+    // wait for this long without further changes before reloading.
+    private static final long QUIET_PERIOD_MILLIS = 250;
+
+    private final QlueRouteManager manager;
+
+    private final Path routesFile;
+
+    private final Path propertiesFile;
+
+    private WatchService watchService;
+
+    private Thread thread;
+
+    /**
+     * @param propertiesFile the properties file to watch and read variables from, or null
+     */
+    public RoutesReloader(QlueRouteManager manager, File routesFile, File propertiesFile) {
+        this.manager = manager;
+        this.routesFile = routesFile.toPath().toAbsolutePath().normalize();
+        this.propertiesFile = (propertiesFile != null) ? propertiesFile.toPath().toAbsolutePath().normalize() : null;
+    }
+
+    /**
+     * Starts watching the files.
+     */
+    public void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+
+        Set<Path> directories = new HashSet<>();
+        directories.add(routesFile.getParent());
+        if (propertiesFile != null) {
+            directories.add(propertiesFile.getParent());
+        }
+
+        for (Path directory : directories) {
+            directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+
+        thread = new Thread(this::watch, "qlue-routes-reloader");
+        thread.setDaemon(true);
+        thread.start();
+
+        log.info("Watching " + routesFile + " for changes");
+    }
+
+    private void watch() {
+        try {
+            for (;;) {
+                boolean changed = isRelevant(watchService.take());
+
+                WatchKey key;
+                while ((key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= isRelevant(key);
+                }
+
+                if (changed) {
+                    manager.reload(routesFile.toFile(), (propertiesFile != null) ? propertiesFile.toFile() : null);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // We've been closed.
+        }
+    }
+
+    private boolean isRelevant(WatchKey key) {
+        boolean relevant = false;
+
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Some events were lost; they may have been ours.
+                relevant = true;
+                continue;
+            }
+
+            Path file = directory.resolve((Path) event.context());
+            if (file.equals(routesFile) || file.equals(propertiesFile)) {
+                relevant = true;
+            }
+        }
+
+        key.reset();
+
+        return relevant;
+    }
+
+    /**
+     * Stops watching the files.
+     */
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.router;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of how much work route matching does: how many requests were
+ * routed, how many routes were tried before one matched, and how long it
+ * took. The number of routes tried is kept as a histogram, with buckets that
+ * double in size, so that a few expensive requests stand out from the many
+ * cheap ones. Unlike the per-route counters, these survive route reloads.
+ */
+public final class RoutingMetrics {
+
+    private static final int[] BUCKET_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256};
+
+    // One bucket per bound, and one more for everything above the last bound.
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length + 1];
+
+    private final LongAdder matched = new LongAdder();
+
+    private final LongAdder unmatched = new LongAdder();
+
+    private final LongAdder routesTried = new LongAdder();
+
+    private final LongAdder unmatchedRoutesTried = new LongAdder();
+
+    private final LongAdder routingNanos = new LongAdder();
+
+    RoutingMetrics() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void recordMatch(int tried, long duration) {
+        buckets[bucketFor(tried)].increment();
+        matched.increment();
+        routesTried.add(tried);
+        routingNanos.add(duration);
+    }
+
+    void recordMiss(int tried, long duration) {
+        unmatched.increment();
+        unmatchedRoutesTried.add(tried);
+        routingNanos.add(duration);
+    }
+
+    private static int bucketFor(int tried) {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            if (tried <= BUCKET_BOUNDS[i]) {
+                return i;
+            }
+        }
+
+        return BUCKET_BOUNDS.length;
+    }
+
+    /**
+     * Number of requests that matched a route.
+     */
+    public long getMatched() {
+        return matched.sum();
+    }
+
+    /**
+     * Number of requests that didn't match any route.
+     */
+    public long getUnmatched() {
+        return unmatched.sum();
+    }
+
+    /**
+     * Total number of routes tried by the requests that matched a route.
+     */
+    public long getRoutesTried() {
+        return routesTried.sum();
+    }
+
+    /**
+     * Total number of routes tried by the requests that didn't match a route.
+     */
+    public long getUnmatchedRoutesTried() {
+        return unmatchedRoutesTried.sum();
+    }
+
+    /**
+     * Total time spent matching routes, in nanoseconds.
+     */
+    public long getRoutingNanos() {
+        return routingNanos.sum();
+    }
+
+    /**
+     * The upper bounds (inclusive) of the histogram buckets. There is
+     * one more bucket, for the requests above the last bound.
+     */
+    public int[] getBucketBounds() {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    /**
+     * Returns, for each histogram bucket, the number of matched requests that
+     * tried more routes than the previous bound, but not more than the bucket's own.
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "matched=" + getMatched()
+                + ", unmatched=" + getUnmatched()
+                + ", averageRoutesTried=" + (getMatched() == 0 ? 0 : (double) getRoutesTried() / getMatched())
+                + ", routingMillis=" + TimeUnit.NANOSECONDS.toMillis(getRoutingNanos());
+    }
+}
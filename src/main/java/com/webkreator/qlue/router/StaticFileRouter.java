@@ -18,17 +18,24 @@ package com.webkreator.qlue.router;
 
 import com.webkreator.qlue.TransactionContext;
 import com.webkreator.qlue.exceptions.BadRequestException;
+import com.webkreator.qlue.exceptions.NotFoundException;
+import com.webkreator.qlue.util.DownloadUtil;
 import com.webkreator.qlue.view.DownloadView;
 import com.webkreator.qlue.view.StatusCodeView;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import java.io.File;
+import java.io.IOException;
 
 /**
- * Routes transaction to a static file.
+ * Routes transaction to a static file. Files are usually served before a
+ * transaction context is created; the unusual cases (invalid paths, missing
+ * files and directories without a default file) are left to routing.
  */
-public class StaticFileRouter implements Router {
+public class StaticFileRouter implements LightweightRouter {
 
     private Logger log = LoggerFactory.getLogger(StaticFileRouter.class);
 
@@ -91,4 +98,42 @@ public class StaticFileRouter implements Router {
             return new StatusCodeView(403);
         }
     }
+
+    @Override
+    public boolean serve(HttpServletRequest request, HttpServletResponse response, String requestUri,
+                         String pathSuffix, ResponseHeader[] headers) throws IOException {
+        if ((pathSuffix == null) || pathSuffix.contains("/../") || pathSuffix.toLowerCase().contains("web-inf")) {
+            return false;
+        }
+
+        File file = new File(root, pathSuffix);
+        if (file.isDirectory()) {
+            // Directories without a terminating slash get a redirection.
+            if (!requestUri.endsWith("/")) {
+                return false;
+            }
+
+            file = new File(file, manager.getIndexWithSuffix());
+            if (!file.isFile()) {
+                file = new File(file.getParentFile(), "index.html");
+            }
+        }
+
+        if (!file.isFile()) {
+            return false;
+        }
+
+        for (ResponseHeader header : headers) {
+            response.setHeader(header.getName(), header.getValue());
+        }
+
+        try {
+            DownloadUtil.sendFile(request, response, file);
+        } catch (NotFoundException e) {
+            // The file went away after we looked.
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+
+        return true;
+    }
 }
@@ -38,6 +38,14 @@ public class StatusCodeRouter implements Router {
 		this.message = message;
 	}
 
+	int getStatus() {
+		return status;
+	}
+
+	String getMessage() {
+		return message;
+	}
+
 	@Override
 	public Object route(TransactionContext context, Route route, String pathSuffix) {
 		return new StatusCodeView(status, message);
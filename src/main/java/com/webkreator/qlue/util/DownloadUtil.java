@@ -22,6 +22,7 @@ import com.webkreator.qlue.exceptions.QlueException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.*;
 import java.security.MessageDigest;
@@ -49,6 +50,19 @@ public class DownloadUtil {
      */
     public static void sendFile(TransactionContext context, File f, String contentType,
                                 String name, boolean isAttachment) throws Exception {
+        sendFile(context.request, context.response, f, contentType, name, isAttachment);
+    }
+
+    /**
+     * Sends file in HTTP response, for when there is no transaction context.
+     */
+    public static void sendFile(HttpServletRequest request, HttpServletResponse response, File f)
+            throws IOException {
+        sendFile(request, response, f, null /* contentType */, null /* name */, false /* isAttachment */);
+    }
+
+    private static void sendFile(HttpServletRequest request, HttpServletResponse response, File f,
+                                 String contentType, String name, boolean isAttachment) throws IOException {
         OutputStream os = null;
         BufferedInputStream bis = null;
 
@@ -65,7 +79,7 @@ public class DownloadUtil {
 
             // Set C-T, if we have it
             if (contentType != null) {
-                context.response.setContentType(contentType);
+                response.setContentType(contentType);
             }
 
             // Send file name in C-D header
@@ -91,9 +105,9 @@ public class DownloadUtil {
 
                 // Set name
                 if (isAttachment) {
-                    context.response.setHeader("Content-Disposition", "attachment; filename=\"" + escapedName + "\"");
+                    response.setHeader("Content-Disposition", "attachment; filename=\"" + escapedName + "\"");
                 } else {
-                    context.response.setHeader("Content-Disposition", "inline; filename=\"" + escapedName + "\"");
+                    response.setHeader("Content-Disposition", "inline; filename=\"" + escapedName + "\"");
                 }
             }
 
@@ -104,19 +118,19 @@ public class DownloadUtil {
             String eTag = constructHash(filename + "_" + length + "_" + lastModified);
 
             // Check If-None-Match to determine if we can respond with 304
-            String ifNoneMatch = context.request.getHeader("If-None-Match");
+            String ifNoneMatch = request.getHeader("If-None-Match");
             if ((ifNoneMatch != null) && ((ifNoneMatch.compareTo("*") == 0) || (ifNoneMatch.compareTo(eTag) == 0))) {
-                context.response.setHeader("ETag", eTag);
-                context.response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+                response.setHeader("ETag", eTag);
+                response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
                 return;
             }
 
             // Check If-Modified-Since to determine if we can respond with 304
             try {
-                long ifModifiedSince = context.request.getDateHeader("If-Modified-Since");
+                long ifModifiedSince = request.getDateHeader("If-Modified-Since");
                 if ((ifNoneMatch == null) && ((ifModifiedSince != -1) && (ifModifiedSince + 1000 > lastModified))) {
-                    context.response.setHeader("ETag", eTag);
-                    context.response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+                    response.setHeader("ETag", eTag);
+                    response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
                     return;
                 }
             } catch (IllegalArgumentException e) {
@@ -129,13 +143,13 @@ public class DownloadUtil {
 
             }
 
-            context.response.setContentLength((int) length);
+            response.setContentLength((int) length);
 
-            context.response.setDateHeader("Last-Modified", lastModified);
-            context.response.setHeader("ETag", eTag);
+            response.setDateHeader("Last-Modified", lastModified);
+            response.setHeader("ETag", eTag);
 
             // Send data
-            os = context.response.getOutputStream();
+            os = response.getOutputStream();
             bis = new BufferedInputStream(new FileInputStream(f));
             byte b[] = new byte[8192];
 
@@ -13,23 +13,29 @@ public class MimeTypes {
 
 	private Map<String, String> mimeTypes = new HashMap<String, String>();
 
-	private static MimeTypes _instance;
-
 	private MimeTypes() {
 	}
 
+	/**
+	 * Holds the only instance, which is created the first time it's
+	 * needed; after that, access to it requires no locking.
+	 */
+	private static class Holder {
+
+		static final MimeTypes INSTANCE = new MimeTypes();
+
+		static {
+			INSTANCE.loadMimeTypes();
+		}
+	}
+
 	/**
 	 * Retrieve MimeTypes instance.
 	 * 
 	 * @return
 	 */
-	private synchronized static MimeTypes instance() {
-		if (_instance == null) {
-			_instance = new MimeTypes();
-			_instance.loadMimeTypes();
-		}
-
-		return _instance;
+	private static MimeTypes instance() {
+		return Holder.INSTANCE;
 	}
 
 	/**
@@ -38,7 +44,7 @@ public class MimeTypes {
 	private void loadMimeTypes() {
 		try {
 			BufferedReader reader = new BufferedReader(new InputStreamReader(
-					instance().getClass().getResourceAsStream("mime.types")));
+					MimeTypes.class.getResourceAsStream("mime.types")));
 
 			String line = null;
 			while ((line = reader.readLine()) != null) {
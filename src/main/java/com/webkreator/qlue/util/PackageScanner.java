@@ -0,0 +1,137 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * Lists the resources that live under a package on the classpath, for the
+ * occasions when we need to know about pages before requests for them arrive.
+ * Packages stored in directories and in JAR files are both supported; a
+ * package that is split across several classpath entries is listed in full.
+ */
+public class PackageScanner {
+
+    private static Logger log = LoggerFactory.getLogger(PackageScanner.class);
+
+    /**
+     * Returns the names of all resources under the given package path, with
+     * unlimited depth. Names are full resource names (e.g., "com/example/pages/index.class"),
+     * in sorted order and without duplicates.
+     *
+     * @param classLoader the class loader to consult
+     * @param packagePath the package as a resource path, e.g., "com/example/pages/"
+     */
+    public static List<String> listResources(ClassLoader classLoader, String packagePath) throws IOException {
+        return listResources(classLoader, packagePath, false);
+    }
+
+    /**
+     * As above, but optionally refusing to return a partial list when some of
+     * the locations that contain the package can't be listed.
+     *
+     * @param complete if true, throw an IOException when a location can't be listed
+     */
+    public static List<String> listResources(ClassLoader classLoader, String packagePath, boolean complete) throws IOException {
+        if (!packagePath.endsWith("/")) {
+            packagePath = packagePath + "/";
+        }
+
+        SortedSet<String> names = new TreeSet<>();
+
+        Enumeration<URL> roots = classLoader.getResources(packagePath);
+        while (roots.hasMoreElements()) {
+            URL root = roots.nextElement();
+            switch (root.getProtocol()) {
+                case "file":
+                    listDirectory(root, packagePath, names);
+                    break;
+                case "jar":
+                    listJar(root, packagePath, names, complete);
+                    break;
+                default:
+                    if (complete) {
+                        throw new IOException("Unable to list resources in " + root + "; unsupported protocol");
+                    }
+
+                    log.warn("Unable to list resources in " + root + "; unsupported protocol");
+                    break;
+            }
+        }
+
+        return new ArrayList<>(names);
+    }
+
+    private static void listDirectory(URL root, String packagePath, SortedSet<String> names) throws IOException {
+        Path directory;
+        try {
+            directory = Paths.get(root.toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid classpath location: " + root, e);
+        }
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.filter(Files::isRegularFile).forEach(file -> {
+                String relative = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                names.add(packagePath + relative);
+            });
+        }
+    }
+
+    private static void listJar(URL root, String packagePath, SortedSet<String> names, boolean complete) throws IOException {
+        URLConnection connection = root.openConnection();
+        if (!(connection instanceof JarURLConnection)) {
+            if (complete) {
+                throw new IOException("Unable to list resources in " + root + "; not a JAR");
+            }
+
+            log.warn("Unable to list resources in " + root + "; not a JAR");
+            return;
+        }
+
+        // Don't share the JarFile with the class loader; we want to close it when we're done.
+        connection.setUseCaches(false);
+
+        try (JarFile jar = ((JarURLConnection) connection).getJarFile()) {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && entry.getName().startsWith(packagePath)) {
+                    names.add(entry.getName());
+                }
+            }
+        }
+    }
+}
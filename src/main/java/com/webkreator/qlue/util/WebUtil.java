@@ -22,52 +22,274 @@ import com.webkreator.qlue.view.View;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * This class contains various utility methods useful in web applications.
  */
 public class WebUtil {
 
+    // Characters allowed in the path as they are, other than the slash and the
+    // percent sign, which start segments and escapes, respectively (RFC 2396).
+    private static final boolean[] PATH_CHARS = new boolean[128];
+
+    // Characters allowed in the query string and the fragment, other than
+    // the percent sign; the same as above, plus a few reserved characters.
+    private static final boolean[] QUERY_CHARS = new boolean[128];
+
+    static {
+        String pathChars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789"
+                + "-_.!~*'()" + ":@&=+$," + ";";
+        for (int i = 0; i < pathChars.length(); i++) {
+            PATH_CHARS[pathChars.charAt(i)] = true;
+            QUERY_CHARS[pathChars.charAt(i)] = true;
+        }
+
+        QUERY_CHARS['/'] = true;
+        QUERY_CHARS['?'] = true;
+        QUERY_CHARS['['] = true;
+        QUERY_CHARS[']'] = true;
+    }
+
     /**
      * Normalize a URI, first by using the RFC 2396 algorithm, following by
      * compressing multiple occurrences of the forward slash character to one.
+     * Only the path is returned, with escaped characters decoded; the query
+     * string and the fragment, if present, are validated and then dropped.
+     * A path that is already normal is returned as it is.
      *
      * @param uri
      * @return
+     * @throws BadRequestException if the URI contains invalid characters or escapes
      */
     public static String normaliseUri(String uri) {
-        // This is a dirty way to avoid having
-        // to write RFC 2396 normalization code.
-        try {
-            URI u = new URI("http://localhost/" + uri);
-            uri = u.normalize().getPath();
-        } catch (URISyntaxException e) {
-            throw new BadRequestException("Invalid URI: " + uri);
+        if (isNormalPath(uri)) {
+            return uri;
         }
 
-        // Remove consecutive forward slash characters
-        StringBuilder sb = new StringBuilder();
-
-        boolean seenSlash = false;
+        // Only the path is normalised, but everything must be valid.
+        int end = uri.length();
         for (int i = 0; i < uri.length(); i++) {
             char c = uri.charAt(i);
+            if ((c == '?') || (c == '#')) {
+                end = i;
+                break;
+            }
+        }
 
-            if (c == '/') {
-                if (!seenSlash) {
-                    sb.append(c);
-                    seenSlash = true;
+        validateQueryAndFragment(uri, end);
+
+        // Remove empty and "." segments, and ".." segments together with
+        // the segments they follow, if any. The marks record where each
+        // segment written so far begins, so that it can be removed, and
+        // which of them are "..", as written (i.e., not escaped).
+        StringBuilder sb = new StringBuilder(end + 1);
+        sb.append('/');
+        int[] marks = new int[8];
+        boolean[] dotDots = new boolean[8];
+        int depth = 0;
+        boolean trailingSlash = false;
+        boolean decodedSlash = false;
+
+        int i = 0;
+        while (i < end) {
+            if (uri.charAt(i) == '/') {
+                i++;
+                continue;
+            }
+
+            int start = i;
+            boolean escaped = false;
+            while ((i < end) && (uri.charAt(i) != '/')) {
+                char c = uri.charAt(i);
+                if (c == '%') {
+                    escaped = true;
+                } else if (!isAllowed(c, PATH_CHARS)) {
+                    throw new BadRequestException("Invalid URI: " + uri);
                 }
+
+                i++;
+            }
+
+            int length = i - start;
+            boolean followedBySlash = (i < end);
+
+            if ((length == 1) && (uri.charAt(start) == '.')) {
+                // The segment before, if any, was followed by a slash.
+                trailingSlash = (depth != 0) || trailingSlash;
+                continue;
+            }
+
+            boolean dotDot = (length == 2) && (uri.charAt(start) == '.') && (uri.charAt(start + 1) == '.');
+            if (dotDot && (depth != 0) && !dotDots[depth - 1]) {
+                sb.setLength(marks[--depth]);
+                trailingSlash = true;
+                continue;
+            }
+
+            if (depth == marks.length) {
+                marks = Arrays.copyOf(marks, depth * 2);
+                dotDots = Arrays.copyOf(dotDots, depth * 2);
+            }
+
+            dotDots[depth] = dotDot;
+            marks[depth++] = sb.length();
+            if (depth > 1) {
+                sb.append('/');
+            }
+
+            if (escaped) {
+                decodedSlash |= decode(uri, start, i, sb);
             } else {
-                sb.append(c);
-                seenSlash = false;
+                sb.append(uri, start, i);
+            }
+
+            trailingSlash = followedBySlash;
+        }
+
+        if ((depth != 0) && trailingSlash) {
+            sb.append('/');
+        }
+
+        // Escaped slashes are decoded only now, and may need collapsing.
+        if (decodedSlash) {
+            for (int j = sb.length() - 1; j > 0; j--) {
+                if ((sb.charAt(j) == '/') && (sb.charAt(j - 1) == '/')) {
+                    sb.deleteCharAt(j);
+                }
             }
         }
 
         return sb.toString();
     }
 
+    /**
+     * Checks, without allocating anything, if the given URI is a path that
+     * normalisation wouldn't change: one that begins with a slash, doesn't have
+     * empty, "." or ".." segments, and doesn't use characters that need attention.
+     */
+    private static boolean isNormalPath(String uri) {
+        int length = uri.length();
+        if ((length == 0) || (uri.charAt(0) != '/')) {
+            return false;
+        }
+
+        // The position of the last slash seen.
+        int slash = 0;
+
+        for (int i = 1; i <= length; i++) {
+            char c = (i < length) ? uri.charAt(i) : '/';
+            if (c == '/') {
+                int segmentLength = i - slash - 1;
+                if (segmentLength == 0) {
+                    // Empty segments are fine only at the end (i.e., a trailing slash).
+                    if (i != length) {
+                        return false;
+                    }
+                } else if ((uri.charAt(slash + 1) == '.')
+                        && ((segmentLength == 1) || ((segmentLength == 2) && (uri.charAt(slash + 2) == '.')))) {
+                    return false;
+                }
+
+                slash = i;
+            } else if ((c >= 128) || !PATH_CHARS[c]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Is the character allowed as it is? Non-ASCII characters are,
+     * unless they are spaces or control characters.
+     */
+    private static boolean isAllowed(char c, boolean[] allowed) {
+        if (c < 128) {
+            return allowed[c];
+        }
+
+        return (c > 128) && !Character.isSpaceChar(c) && !Character.isISOControl(c);
+    }
+
+    private static void validateQueryAndFragment(String uri, int start) {
+        boolean fragment = false;
+        for (int i = start + 1; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c == '%') {
+                if ((i + 2 >= uri.length()) || (hexValue(uri.charAt(i + 1)) < 0) || (hexValue(uri.charAt(i + 2)) < 0)) {
+                    throw new BadRequestException("Invalid URI: " + uri);
+                }
+
+                i += 2;
+            } else if ((c == '#') && !fragment && (uri.charAt(start) == '?')) {
+                // The fragment follows the query string.
+                fragment = true;
+            } else if (!isAllowed(c, QUERY_CHARS)) {
+                throw new BadRequestException("Invalid URI: " + uri);
+            }
+        }
+    }
+
+    /**
+     * Appends a path segment, decoding escaped characters (as UTF-8) along the way.
+     *
+     * @return true if any of the decoded characters is a slash
+     */
+    private static boolean decode(String uri, int start, int end, StringBuilder sb) {
+        boolean slash = false;
+        byte[] bytes = null;
+
+        int i = start;
+        while (i < end) {
+            char c = uri.charAt(i);
+            if (c != '%') {
+                sb.append(c);
+                i++;
+                continue;
+            }
+
+            // Decode consecutive escapes together, because
+            // they may form a single multibyte character.
+            int count = 0;
+            while ((i < end) && (uri.charAt(i) == '%')) {
+                if ((i + 2 >= end) || (hexValue(uri.charAt(i + 1)) < 0) || (hexValue(uri.charAt(i + 2)) < 0)) {
+                    throw new BadRequestException("Invalid URI: " + uri);
+                }
+
+                if (bytes == null) {
+                    bytes = new byte[(end - start) / 3];
+                }
+
+                bytes[count++] = (byte) ((hexValue(uri.charAt(i + 1)) << 4) | hexValue(uri.charAt(i + 2)));
+                i += 3;
+            }
+
+            String decoded = new String(bytes, 0, count, StandardCharsets.UTF_8);
+            slash |= (decoded.indexOf('/') != -1);
+            sb.append(decoded);
+        }
+
+        return slash;
+    }
+
+    private static int hexValue(char c) {
+        if ((c >= '0') && (c <= '9')) {
+            return c - '0';
+        }
+
+        if ((c >= 'a') && (c <= 'f')) {
+            return c - 'a' + 10;
+        }
+
+        if ((c >= 'A') && (c <= 'F')) {
+            return c - 'A' + 10;
+        }
+
+        return -1;
+    }
+
     /**
      * Internet will not display the output of non-200 pages that are too small.
      * Thus, we have to pad output in order to break over the limit. This method
@@ -98,7 +320,14 @@ public class WebUtil {
     public static void writeMessage(TransactionContext context, String title,
                                     String message) throws IOException {
         context.response.setContentType(View.CONTENT_TYPE_TEXT_HTML_UTF8);
-        PrintWriter out = context.response.getWriter();
+        writeMessage(context.response.getWriter(), title, message);
+    }
+
+    /**
+     * Writes the same message as above, but to the given writer,
+     * for when the response is prepared ahead of time.
+     */
+    public static void writeMessage(PrintWriter out, String title, String message) {
         out.print("<html><head><title>");
         out.print(HtmlEncoder.html(title));
         out.println("</title></head>");
@@ -712,6 +712,24 @@ public class Canoe extends Writer {
      */
     protected int urlValueState = URLV_START;
 
+    /**
+     * How many warnings this instance has logged. Only {@link CanoeLiteralMemo} reads it, to avoid
+     * recording text whose replay would skip a warning.
+     */
+    protected int warnings;
+
+    /**
+     * Where static template text is looked up before it is parsed; null to parse everything.
+     */
+    private CanoeLiteralMemo literalMemo;
+
+    /**
+     * The text Velocity is about to write for a reference, which is data rather than static
+     * template text, and is therefore never looked up in the literal memo; see
+     * {@link #markInsertion(String)}.
+     */
+    private String insertion;
+
     /**
      * Create a Canoe instance with no application-level additions to the plain-text allowlist and no
      * trusted resource origins — resource-loading sinks accept same-origin-relative URLs only.
@@ -767,6 +785,21 @@ public class Canoe extends Writer {
         this.trustedResourceOrigins = HtmlEncoder.parseTrustedOrigins(trustedResourceOrigins);
     }
 
+    /**
+     * Create a Canoe instance with the configuration of another, for {@link #fork(Writer)}. The
+     * allowlist and the origins were validated when the other instance was constructed, and are
+     * shared rather than validated again.
+     */
+    private Canoe(Writer writer, Canoe parent) {
+        this.writer = writer;
+        this.extraPlainTextAttributes = parent.extraPlainTextAttributes;
+        this.trustedResourceOrigins = parent.trustedResourceOrigins;
+        this.literalMemo = parent.literalMemo;
+        new CanoeState(parent).restore(this);
+        this.currentLine = parent.currentLine;
+        this.currentPos = parent.currentPos;
+    }
+
     /**
      * Validates and normalises application-supplied plain-text attribute names.
      *
@@ -1030,19 +1063,106 @@ public class Canoe extends Writer {
         writer.flush();
     }
 
+    /**
+     * Makes this instance look static template text up in the given memo before parsing it, and
+     * record what it parsed. See {@link CanoeLiteralMemo} for what is and is not recorded. The memo
+     * must only be shared with instances that have the same plain-text attribute allowlist.
+     *
+     * @param literalMemo the memo, or null to parse everything
+     */
+    public void setLiteralMemo(CanoeLiteralMemo literalMemo) {
+        this.literalMemo = literalMemo;
+    }
+
+    /**
+     * Tells this instance that the given text, which is about to be written, is the value of a
+     * reference and not static template text, so that it stays out of the literal memo.
+     * {@code CanoeReferenceInsertionHandler} calls it for every value it hands back to Velocity.
+     */
+    public void markInsertion(String text) {
+        if (literalMemo != null) {
+            insertion = text;
+        }
+    }
+
+    /**
+     * An immutable copy of the parser's state: what decides the encoding of whatever is written
+     * next. See {@link CanoeState} for what it does and does not include.
+     */
+    public CanoeState snapshot() {
+        return new CanoeState(this);
+    }
+
+    /**
+     * Creates a parser that continues from exactly where this one is, writing to a different
+     * writer: same state, same line and position, same plain-text allowlist, trusted origins and
+     * literal memo. The two are independent from then on, so the fork can be written to from
+     * another thread while this instance carries on.
+     *
+     * <p>The fork is a plain {@code Canoe}, whatever the class of this instance.
+     *
+     * @param writer the writer the fork's output is passed to
+     * @return the fork
+     */
+    public Canoe fork(Writer writer) {
+        return new Canoe(writer, this);
+    }
+
+    /**
+     * Write a string to output. Velocity writes a template's static text this way, which is what
+     * makes it the place to consult the literal memo.
+     */
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (literalMemo == null) {
+            parse(str, off, len);
+        } else if ((insertion != null) && insertion.equals(str)) {
+            insertion = null;
+            parse(str, off, len);
+        } else {
+            literalMemo.write(this, str, off, len);
+        }
+    }
+
+    /**
+     * Parses a string the ordinary way, through {@link #write(char[], int, int)}.
+     */
+    void parse(String str, int off, int len) throws IOException {
+        super.write(str, off, len);
+    }
+
     /**
      * Write one or more characters to output.
      */
     @Override
     public void write(char[] cbuff, int offset, int len) throws IOException {
         int i = offset;
+        int end = offset + len;
 
         try {
             // Process characters one by one across the requested range
             // [offset, offset + len). The bound is offset + len, not len: len
-            // is a count, not an end index.
-            for (i = offset; i < offset + len; i++) {
+            // is a count, not an end index. Runs of characters that the current
+            // state ignores are skipped in bulk, and only the character that ends
+            // such a run goes through the state machine.
+            while (i < end) {
+                char stop = inertRunStop();
+                if (stop != 0) {
+                    int start = i;
+                    while ((i < end) && (cbuff[i] >= 0x20) && (cbuff[i] != stop)) {
+                        i++;
+                    }
+
+                    // A run never contains a newline, so only the position moves.
+                    currentPos += i - start;
+
+                    if (i == end) {
+                        break;
+                    }
+                }
+
                 processChar(cbuff[i]);
+                i++;
             }
         } catch (IOException e) {
             // Error -- write only the "good" characters. i is the absolute
@@ -1057,6 +1177,55 @@ public class Canoe extends Writer {
         writer.write(cbuff, offset, len);
     }
 
+    /**
+     * Returns the character that ends a run of characters the current state can skip without
+     * looking at them, or 0 if every character has to go through {@link #reallyProcessChar(char)}.
+     *
+     * <p>A run is skippable only when no character in it can change anything: not the state, not
+     * the buffer, not {@link #urlValueState}, and not {@link #textSeen}. Characters below 0x20 always
+     * end a run, which covers the control characters the {@link #HTML} state refuses and keeps
+     * newlines, and with them the line count, on the per-character path. The states qualify as
+     * follows:
+     *
+     * <ul>
+     *   <li>{@link #HTML}, once {@link #textSeen} is set; before that, the first non-whitespace
+     *   character has to be noticed;</li>
+     *   <li>{@link #SCRIPT} and {@link #CSS}, which look for nothing but the {@code '<'} of an end
+     *   tag;</li>
+     *   <li>{@link #COMMENT}, which looks for nothing but the first {@code '-'} of its end;</li>
+     *   <li>a quoted {@link #TAG_ATTR_VALUE}, once the value prefix scan has given up and the URL
+     *   position has reached {@link #URLV_PATH}, which nothing moves it out of. An unquoted value
+     *   ends at any whitespace, which is not a single character, so it is not skipped.</li>
+     * </ul>
+     */
+    private char inertRunStop() {
+        switch (state) {
+            case HTML:
+                return textSeen ? '<' : 0;
+
+            case SCRIPT:
+            case CSS:
+                return '<';
+
+            case COMMENT:
+                return '-';
+
+            case TAG_ATTR_VALUE:
+                if ((bufLen != -1) || (urlValueState != URLV_PATH)) {
+                    return 0;
+                }
+
+                if (attrQuotes == QUOTE_DOUBLE) {
+                    return '"';
+                }
+
+                return (attrQuotes == QUOTE_SINGLE) ? '\'' : 0;
+
+            default:
+                return 0;
+        }
+    }
+
     /**
      * Determines if the character can be used in tag name.
      *
@@ -1388,6 +1557,7 @@ public class Canoe extends Writer {
                                                 + " one, and the fix is to remove the declaration"
                                                 + " from the fragment.",
                                         currentLine, currentPos);
+                                warnings++;
                             }
 
                             if (textSeen) {
@@ -1398,6 +1568,7 @@ public class Canoe extends Writer {
                                                 + " so this declaration has no effect; move it above"
                                                 + " every character of output.",
                                         currentLine, currentPos);
+                                warnings++;
                             }
 
                             doctypeSeen = true;
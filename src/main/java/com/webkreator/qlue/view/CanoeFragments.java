@@ -0,0 +1,274 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.view;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Renders parts of a document on other threads while the rest of it is rendered on this one, and
+ * puts the output back together in document order.
+ *
+ * <p>This is the writer the main {@link Canoe} writes to. When the document reaches a fragment that
+ * can be rendered independently, {@link #fork(Canoe, Renderer)} hands it to the executor together
+ * with a {@link Canoe#fork(Writer) fork} of the main parser, so the fragment is parsed from exactly
+ * the state the document is in at that point. The main parser does not wait: it carries on with
+ * the text after the fragment, from the state it was in before it, into a new buffer.
+ *
+ * <p><strong>That is a guess, and {@link #writeTo(Writer)} checks it.</strong> The text after a
+ * fragment was parsed on the assumption that the fragment left the parser where it found it, which
+ * is true of a widget that is a balanced piece of markup and false of one that, say, opens an
+ * attribute value or a comment and leaves it open. So each fragment's exit state is compared with
+ * the state the text after it was parsed from, and only if every one matches is anything written.
+ * Otherwise nothing is, and the caller renders the document again, sequentially. The encoding of
+ * every character is therefore always the one sequential rendering would have chosen; a wrong guess
+ * costs a second render, never a wrong context.
+ *
+ * <p>A fragment that fails ends the document, as it would have ended a sequential render: the
+ * document is written up to the failure, provided the fragments before it fit, and the failure is
+ * then {@link #getFailure() reported} for the caller to throw. Rendering again would only repeat
+ * whatever the fragment did before it failed.
+ *
+ * <p>The line and position of the main parser are not advanced past a fragment, so they are wrong
+ * after one. They only matter for error messages, which can therefore be wrong about where an
+ * encoding error after a fragment is.
+ *
+ * <p>Not thread-safe: the instance belongs to the thread rendering the main document, and only the
+ * fragments run elsewhere, each into its own buffer.
+ */
+public class CanoeFragments extends Writer {
+
+    private static final Logger log = LoggerFactory.getLogger(CanoeFragments.class);
+
+    /**
+     * Renders one fragment into the parser it is given.
+     */
+    public interface Renderer {
+
+        void render(Canoe canoe) throws Exception;
+    }
+
+    /**
+     * A fragment: its buffer, the state the text after it was parsed from, and its exit state once
+     * it has been rendered, or its failure.
+     */
+    private static final class Fragment {
+
+        final StringWriter output = new StringWriter();
+
+        final CanoeState resumedFrom;
+
+        final FutureTask<CanoeState> task;
+
+        /**
+         * What the fragment threw, if it is the first that failed.
+         */
+        Throwable failure;
+
+        Fragment(Canoe canoe, Renderer renderer) {
+            Canoe fork = canoe.fork(output);
+            this.resumedFrom = canoe.snapshot();
+            this.task = new FutureTask<>(() -> {
+                renderer.render(fork);
+                return fork.snapshot();
+            });
+        }
+    }
+
+    private final Executor executor;
+
+    /**
+     * The document in order: text as {@link StringBuilder}s, and fragments between them.
+     */
+    private final List<Object> segments = new ArrayList<>();
+
+    private StringBuilder text = new StringBuilder();
+
+    /**
+     * What the first fragment that failed threw, once {@link #writeTo(Writer)} has found it.
+     */
+    private Throwable failure;
+
+    /**
+     * @param executor where fragments are rendered
+     */
+    public CanoeFragments(Executor executor) {
+        this.executor = executor;
+        segments.add(text);
+    }
+
+    /**
+     * The instance the given parser writes to, or null if it does not write to one. This is how a
+     * template directive finds out whether it is allowed to fork: a parser writing anywhere else,
+     * including the fork of a fragment, renders its fragments in place.
+     */
+    public static CanoeFragments of(Canoe canoe) {
+        if (canoe.writer instanceof CanoeFragments) {
+            return (CanoeFragments) canoe.writer;
+        }
+
+        return null;
+    }
+
+    /**
+     * Starts rendering a fragment on the executor, from the state the given parser is in now, and
+     * keeps its place in the output.
+     *
+     * @param canoe    the main parser, which must be writing to this instance
+     * @param renderer what writes the fragment
+     * @throws IllegalArgumentException if the parser writes elsewhere
+     */
+    public void fork(Canoe canoe, Renderer renderer) {
+        if (canoe.writer != this) {
+            throw new IllegalArgumentException("Canoe does not write to these fragments");
+        }
+
+        Fragment fragment = new Fragment(canoe, renderer);
+        segments.add(fragment);
+        text = new StringBuilder();
+        segments.add(text);
+
+        try {
+            executor.execute(fragment.task);
+        } catch (RejectedExecutionException e) {
+            // A saturated or shut-down executor costs the parallelism, not the fragment.
+            fragment.task.run();
+        }
+    }
+
+    /**
+     * Waits for every fragment and, if all of them ended in the state the text after them was
+     * parsed from, writes the whole document to the given writer. If a fragment failed, only the
+     * fragments before it have to fit, and the document is written up to and including what the
+     * fragment wrote before it failed; see {@link #getFailure()}.
+     *
+     * @param out where the document goes
+     * @return true if the document was written; false if nothing was, and it must be rendered again
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public boolean writeTo(Writer out) throws IOException {
+        if (!await()) {
+            return false;
+        }
+
+        for (Object segment : segments) {
+            if (segment instanceof Fragment) {
+                out.write(((Fragment) segment).output.toString());
+                if (((Fragment) segment).failure != null) {
+                    break;
+                }
+            } else {
+                out.append((StringBuilder) segment);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * What the first fragment that failed threw, if {@link #writeTo(Writer)} wrote the document up
+     * to it; null if no fragment failed.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Waits for every fragment, for a caller that is abandoning the document, so that no fragment is
+     * still rendering after the request it belongs to has finished.
+     *
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public void discard() throws IOException {
+        await();
+    }
+
+    /**
+     * Waits for every fragment, and reports whether the ones up to the first that failed, or all of
+     * them, can be stitched in.
+     */
+    private boolean await() throws IOException {
+        boolean stitchable = true;
+
+        for (Object segment : segments) {
+            if (!(segment instanceof Fragment)) {
+                continue;
+            }
+
+            Fragment fragment = (Fragment) segment;
+            try {
+                CanoeState exit = fragment.task.get();
+                if ((failure == null) && !exit.equals(fragment.resumedFrom)) {
+                    log.debug("Fragment ended in {}, but the text after it was parsed from {}",
+                            exit, fragment.resumedFrom);
+                    stitchable = false;
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                    fragment.failure = failure;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for fragments");
+            }
+        }
+
+        if (!stitchable) {
+            failure = null;
+        }
+
+        return stitchable;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        text.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        text.append(str, off, off + len);
+    }
+
+    @Override
+    public void write(int c) {
+        text.append((char) c);
+    }
+
+    /**
+     * Does nothing: nothing leaves this instance before {@link #writeTo(Writer)}.
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.view;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers what {@link Canoe} did with the static text of a template, so that the next render can
+ * copy the text straight through instead of parsing it again.
+ *
+ * <p>Velocity writes a template's static text one node at a time, as the same {@code String} on
+ * every render, and a given piece of text always takes the parser from the same entry state to the
+ * same exit state. The memo keeps, per piece of text, a few (entry {@link CanoeState}, exit
+ * {@code CanoeState}) pairs. A write whose text and entry state are both known is sent to the
+ * downstream writer as it is, the parser jumps to the recorded exit state, and the line and
+ * position move by arithmetic. Anything else is parsed in full, exactly as it would have been
+ * without the memo, and recorded on the way out. When the downstream writer is a
+ * {@link Utf8Writer}, the text is also encoded once, the first time it is replayed, and the bytes
+ * are copied on every replay after that.
+ *
+ * <p><strong>Only clean parses are recorded.</strong> Text that raised an error is not recorded, so
+ * it is parsed again, and raises the same error at the same position, every time. Text that made
+ * Canoe log a warning is not recorded either, so that replaying it cannot swallow the warning.
+ * Writes shorter than {@link #MIN_LITERAL_LENGTH} are not worth a lookup and are always parsed.
+ *
+ * <p><strong>Only static text is looked up.</strong> Reference values arrive through the same
+ * {@code write(String)} as the text around them, but they are data, which may be different on
+ * every render and belong to whoever the page was rendered for. {@code
+ * CanoeReferenceInsertionHandler} marks each value it hands back to Velocity with
+ * {@link Canoe#markInsertion(String)}, and Canoe parses a marked write without coming here. For the
+ * same reason, {@code VelocityViewFactory} uses the memo only when auto-escaping, and with it the
+ * handler, is on.
+ *
+ * <p>The transitions depend on the plain-text attribute allowlist, so a memo must only be shared
+ * between Canoe instances configured with the same one. {@code VelocityViewFactory} keeps one per
+ * factory and clears it when the allowlist changes. Safe for concurrent use; the memo is bounded
+ * by the total length of the text it holds, and is simply cleared when it fills up.
+ */
+public final class CanoeLiteralMemo {
+
+    /**
+     * The shortest write worth looking up.
+     */
+    public static final int MIN_LITERAL_LENGTH = 32;
+
+    /**
+     * How many entry states are remembered for the same text. Static text nearly always has one;
+     * text in a macro or an included fragment can be reached from a few.
+     */
+    static final int MAX_TRANSITIONS = 4;
+
+    private static final int DEFAULT_MAX_CHARACTERS = 1024 * 1024;
+
+    private final int maxCharacters;
+
+    private final ConcurrentHashMap<String, Literal> literals = new ConcurrentHashMap<>();
+
+    /**
+     * The total length of the text in the memo. Two renders recording at once can make it drift a
+     * little from the truth, which only moves the point at which the memo is cleared.
+     */
+    private final AtomicLong characters = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * One piece of text and the transitions recorded for it. The line arithmetic is worked out
+     * once, when the text is first recorded; the UTF-8 encoding, the first time it is needed.
+     */
+    private static final class Literal {
+
+        final int newlines;
+
+        final int tail;
+
+        /**
+         * Whether the text can be encoded on its own: it does not begin with the second half of a
+         * character or end with the first half of one, either of which pairs with a neighbour.
+         */
+        final boolean wholeCharacters;
+
+        volatile Transition[] transitions = new Transition[0];
+
+        /**
+         * Two renders encoding the text at once both store an encoding, and either will do.
+         */
+        volatile byte[] utf8;
+
+        Literal(String text) {
+            int count = 0;
+            int last = -1;
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '\n') {
+                    count++;
+                    last = i;
+                }
+            }
+
+            newlines = count;
+            tail = text.length() - last - 1;
+            wholeCharacters = !Character.isLowSurrogate(text.charAt(0))
+                    && !Character.isHighSurrogate(text.charAt(text.length() - 1));
+        }
+    }
+
+    private static final class Transition {
+
+        final CanoeState entry;
+
+        final CanoeState exit;
+
+        Transition(CanoeState entry, CanoeState exit) {
+            this.entry = entry;
+            this.exit = exit;
+        }
+    }
+
+    public CanoeLiteralMemo() {
+        this(DEFAULT_MAX_CHARACTERS);
+    }
+
+    /**
+     * @param maxCharacters how many characters of text to remember before starting over
+     */
+    public CanoeLiteralMemo(int maxCharacters) {
+        this.maxCharacters = maxCharacters;
+    }
+
+    /**
+     * Writes text through the given Canoe, replaying a recorded transition if there is one and
+     * parsing the text otherwise.
+     */
+    void write(Canoe canoe, String text, int offset, int len) throws IOException {
+        if ((offset != 0) || (len != text.length()) || (len < MIN_LITERAL_LENGTH)
+                || (canoe.state == Canoe.INVALID)) {
+            canoe.parse(text, offset, len);
+            return;
+        }
+
+        Literal literal = literals.get(text);
+        if (literal != null) {
+            for (Transition transition : literal.transitions) {
+                if (transition.entry.matches(canoe)) {
+                    if ((canoe.writer instanceof Utf8Writer) && literal.wholeCharacters) {
+                        byte[] utf8 = literal.utf8;
+                        if (utf8 == null) {
+                            utf8 = text.getBytes(StandardCharsets.UTF_8);
+                            literal.utf8 = utf8;
+                        }
+
+                        ((Utf8Writer) canoe.writer).writeUtf8(utf8);
+                    } else {
+                        canoe.writer.write(text, 0, len);
+                    }
+
+                    transition.exit.restore(canoe);
+                    if (literal.newlines == 0) {
+                        canoe.currentPos += len;
+                    } else {
+                        canoe.currentLine += literal.newlines;
+                        canoe.currentPos = literal.tail + 1;
+                    }
+
+                    hits.increment();
+                    return;
+                }
+            }
+        }
+
+        misses.increment();
+
+        CanoeState entry = new CanoeState(canoe);
+        int warnings = canoe.warnings;
+
+        // An error propagates from here and nothing is recorded.
+        canoe.parse(text, 0, len);
+
+        if (canoe.warnings != warnings) {
+            return;
+        }
+
+        record(text, literal, new Transition(entry, new CanoeState(canoe)));
+    }
+
+    private void record(String text, Literal literal, Transition transition) {
+        if (literal == null) {
+            if (text.length() > maxCharacters) {
+                return;
+            }
+
+            if (characters.get() + text.length() > maxCharacters) {
+                clear();
+            }
+
+            Literal recorded = new Literal(text);
+            literal = literals.putIfAbsent(text, recorded);
+            if (literal == null) {
+                literal = recorded;
+                characters.addAndGet(text.length());
+            }
+        }
+
+        // Two renders recording the same text at once can lose one of the two transitions, which
+        // costs a parse on a later render and nothing else.
+        Transition[] transitions = literal.transitions;
+        if (transitions.length < MAX_TRANSITIONS) {
+            Transition[] longer = Arrays.copyOf(transitions, transitions.length + 1);
+            longer[transitions.length] = transition;
+            literal.transitions = longer;
+        }
+    }
+
+    /**
+     * Forgets everything. Call when the configuration the transitions were recorded under changes.
+     */
+    public void clear() {
+        literals.clear();
+        characters.set(0);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int getSize() {
+        return literals.size();
+    }
+
+    /**
+     * The total length of the text in the memo.
+     */
+    public long getCharacters() {
+        return characters.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CanoeLiteralMemo{hits=" + hits.sum() + ", misses=" + misses.sum()
+                + ", literals=" + literals.size() + ", characters=" + characters.get() + "}";
+    }
+}
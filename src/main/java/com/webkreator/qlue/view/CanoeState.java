@@ -0,0 +1,192 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.view;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * An immutable copy of everything that decides what {@link Canoe} does with the next character.
+ *
+ * <p>The copy is of the parser, not of the document. The line and position are left out, because
+ * they decide only what an error message says and never which transition is taken, and so is the
+ * writer the output goes to. What is left is the state and the fields the states read: the tag and
+ * attribute buffer, the quoting and URL position of the current value, the attribute context, the
+ * three names the diagnostics and the resource-sink check read, and the three document-level flags
+ * that judge a DOCTYPE. Two Canoe instances with equal snapshots and the same configuration take
+ * exactly the same transitions on the same text.
+ *
+ * <p>The buffer's contents are copied only in the three states that read them: {@code TAG_NAME},
+ * {@code TAG_ATTR_NAME} and {@code TAG_ATTR_VALUE}. Each of those is entered through
+ * {@code resetBuffer()}, so in every other state whatever the buffer holds is a leftover that is
+ * cleared before anything reads it, and a snapshot that kept it would tell apart two parsers that
+ * behave identically - one that has just closed a {@code <div>} and one that has just closed a
+ * {@code <p>}. Where it is copied, it is copied whole rather than up to {@code bufLen}. Every reader
+ * of it is meant to stop at {@code bufLen}, but a snapshot that relied on that would be a second
+ * place the invariant has to hold; 128 characters is a small price for not needing it. The
+ * closing-tag flag is the same kind of leftover: it is read only in {@code TAG_NAME}, which sets
+ * it on entry, and so it is kept only there.
+ */
+public final class CanoeState {
+
+    private final int state;
+
+    private final int nextState;
+
+    private final boolean closingTag;
+
+    private final int attributeContext;
+
+    private final char[] buf;
+
+    private final int bufLen;
+
+    private final int attrQuotes;
+
+    private final int urlValueState;
+
+    private final boolean elementSeen;
+
+    private final boolean doctypeSeen;
+
+    private final boolean textSeen;
+
+    private final String tagName;
+
+    private final String unknownAttributeName;
+
+    private final String urlAttributeName;
+
+    /**
+     * The buffer of a snapshot taken in a state that does not read it.
+     */
+    private static final char[] UNREAD_BUFFER = new char[Canoe.MAX_TAGNAME_LEN];
+
+    CanoeState(Canoe canoe) {
+        state = canoe.state;
+        nextState = canoe.nextState;
+        closingTag = (state == Canoe.TAG_NAME) && canoe.closingTag;
+        attributeContext = canoe.attributeContext;
+        buf = readsBuffer(state) ? canoe.buf.clone() : UNREAD_BUFFER;
+        bufLen = canoe.bufLen;
+        attrQuotes = canoe.attrQuotes;
+        urlValueState = canoe.urlValueState;
+        elementSeen = canoe.elementSeen;
+        doctypeSeen = canoe.doctypeSeen;
+        textSeen = canoe.textSeen;
+        tagName = canoe.tagName;
+        unknownAttributeName = canoe.unknownAttributeName;
+        urlAttributeName = canoe.urlAttributeName;
+    }
+
+    /**
+     * Whether the given parser is in exactly this state. Compares in place, so that checking a
+     * snapshot costs no allocation; the cheap fields go first, and the buffer last.
+     */
+    boolean matches(Canoe canoe) {
+        return (state == canoe.state)
+                && (nextState == canoe.nextState)
+                && ((state != Canoe.TAG_NAME) || (closingTag == canoe.closingTag))
+                && (attributeContext == canoe.attributeContext)
+                && (bufLen == canoe.bufLen)
+                && (attrQuotes == canoe.attrQuotes)
+                && (urlValueState == canoe.urlValueState)
+                && (elementSeen == canoe.elementSeen)
+                && (doctypeSeen == canoe.doctypeSeen)
+                && (textSeen == canoe.textSeen)
+                && Objects.equals(tagName, canoe.tagName)
+                && Objects.equals(unknownAttributeName, canoe.unknownAttributeName)
+                && Objects.equals(urlAttributeName, canoe.urlAttributeName)
+                && (!readsBuffer(state) || Arrays.equals(buf, canoe.buf));
+    }
+
+    /**
+     * Whether the given state reads what is in the buffer, rather than only {@code bufLen}.
+     */
+    private static boolean readsBuffer(int state) {
+        return (state == Canoe.TAG_NAME) || (state == Canoe.TAG_ATTR_NAME)
+                || (state == Canoe.TAG_ATTR_VALUE);
+    }
+
+    /**
+     * Puts the given parser into this state. The line and position are not touched.
+     */
+    void restore(Canoe canoe) {
+        canoe.state = state;
+        canoe.nextState = nextState;
+        canoe.closingTag = closingTag;
+        canoe.attributeContext = attributeContext;
+        System.arraycopy(buf, 0, canoe.buf, 0, buf.length);
+        canoe.bufLen = bufLen;
+        canoe.attrQuotes = attrQuotes;
+        canoe.urlValueState = urlValueState;
+        canoe.elementSeen = elementSeen;
+        canoe.doctypeSeen = doctypeSeen;
+        canoe.textSeen = textSeen;
+        canoe.tagName = tagName;
+        canoe.unknownAttributeName = unknownAttributeName;
+        canoe.urlAttributeName = urlAttributeName;
+    }
+
+    /**
+     * The parser state, one of Canoe's state constants.
+     */
+    public int getState() {
+        return state;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof CanoeState)) {
+            return false;
+        }
+
+        CanoeState other = (CanoeState) o;
+        return (state == other.state)
+                && (nextState == other.nextState)
+                && (closingTag == other.closingTag)
+                && (attributeContext == other.attributeContext)
+                && (bufLen == other.bufLen)
+                && (attrQuotes == other.attrQuotes)
+                && (urlValueState == other.urlValueState)
+                && (elementSeen == other.elementSeen)
+                && (doctypeSeen == other.doctypeSeen)
+                && (textSeen == other.textSeen)
+                && Objects.equals(tagName, other.tagName)
+                && Objects.equals(unknownAttributeName, other.unknownAttributeName)
+                && Objects.equals(urlAttributeName, other.urlAttributeName)
+                && Arrays.equals(buf, other.buf);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(state, nextState, attributeContext, bufLen, attrQuotes, urlValueState,
+                tagName, urlAttributeName);
+    }
+
+    @Override
+    public String toString() {
+        return "CanoeState{state=" + state + ", nextState=" + nextState
+                + ", attributeContext=" + attributeContext + ", bufLen=" + bufLen
+                + ", attrQuotes=" + attrQuotes + ", urlValueState=" + urlValueState
+                + ", tagName=" + tagName + "}";
+    }
+}
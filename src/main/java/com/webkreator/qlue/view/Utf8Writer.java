@@ -0,0 +1,237 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.view;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Encodes characters to UTF-8 into a buffer, and writes the buffer to an output stream when it
+ * fills up or is flushed.
+ *
+ * <p>This is what a page is rendered into when it goes to {@code getOutputStream()} rather than to
+ * {@code getWriter()}. Velocity hands its writer one small write per reference and per piece of
+ * static text, and the buffer turns them into a few large writes to the container; the encoding is
+ * a loop over the characters, with nothing between it and the buffer. Text that has already been
+ * encoded - a template's static text, by {@link CanoeLiteralMemo} - is copied in with
+ * {@link #writeUtf8(byte[])}.
+ *
+ * <p>The buffers are pooled, so a render costs no allocation for one. A writer takes a buffer when
+ * it is created and must give it back with {@link #release()} when the render is over, whatever
+ * its outcome. An unpaired surrogate is encoded as {@code '?'}, as the JDK's encoder does.
+ *
+ * <p>Not thread-safe: a writer belongs to the thread rendering the page.
+ */
+public final class Utf8Writer extends Writer {
+
+    /**
+     * The size of a buffer, and the size of the largest write to the stream that is not a write of
+     * text already encoded. The servlet containers' own response buffers are of the same order.
+     */
+    public static final int BUFFER_SIZE = 8192;
+
+    private static final int POOL_SIZE = 64;
+
+    private static final ArrayBlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final OutputStream out;
+
+    private byte[] buf;
+
+    private int count;
+
+    /**
+     * The high surrogate that ended the previous write, waiting for its low surrogate, or 0.
+     */
+    private char highSurrogate;
+
+    public Utf8Writer(OutputStream out) {
+        this.out = out;
+        byte[] pooled = POOL.poll();
+        this.buf = (pooled != null) ? pooled : new byte[BUFFER_SIZE];
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        ensureOpen();
+        encode((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            char c = cbuf[i];
+            // ASCII is nearly every character of a page, and needs no more than this.
+            if ((c < 0x80) && (highSurrogate == 0)) {
+                if (count == buf.length) {
+                    drain();
+                }
+
+                buf[count++] = (byte) c;
+            } else {
+                encode(c);
+            }
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ensureOpen();
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            char c = str.charAt(i);
+            if ((c < 0x80) && (highSurrogate == 0)) {
+                if (count == buf.length) {
+                    drain();
+                }
+
+                buf[count++] = (byte) c;
+            } else {
+                encode(c);
+            }
+        }
+    }
+
+    /**
+     * Writes text that has already been encoded to UTF-8. A write that does not fit in what is left
+     * of the buffer, and is at least as large as a buffer, goes to the stream as it is.
+     */
+    public void writeUtf8(byte[] bytes) throws IOException {
+        ensureOpen();
+        if (highSurrogate != 0) {
+            // The previous write ended in half a character, and this one does not finish it.
+            highSurrogate = 0;
+            put((byte) '?');
+        }
+
+        if (bytes.length <= buf.length - count) {
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+            return;
+        }
+
+        drain();
+        if (bytes.length >= buf.length) {
+            out.write(bytes);
+        } else {
+            System.arraycopy(bytes, 0, buf, 0, bytes.length);
+            count = bytes.length;
+        }
+    }
+
+    /**
+     * Writes the buffer to the stream and flushes the stream. A high surrogate still waiting for
+     * its other half stays waiting.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Flushes, and gives the buffer back. A high surrogate still waiting for its other half is
+     * written as {@code '?'}. The stream is not closed: it belongs to the response.
+     */
+    @Override
+    public void close() throws IOException {
+        if (buf == null) {
+            return;
+        }
+
+        try {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                put((byte) '?');
+            }
+
+            flush();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Gives the buffer back to the pool, throwing away whatever in it has not been written to the
+     * stream yet. Nothing can be written after this; calling it again does nothing.
+     */
+    public void release() {
+        if (buf != null) {
+            POOL.offer(buf);
+            buf = null;
+            count = 0;
+        }
+    }
+
+    private void encode(char c) throws IOException {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int cp = Character.toCodePoint(high, c);
+                put((byte) (0xf0 | (cp >> 18)));
+                put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                put((byte) (0x80 | (cp & 0x3f)));
+                return;
+            }
+
+            put((byte) '?');
+        }
+
+        if (c < 0x80) {
+            put((byte) c);
+        } else if (c < 0x800) {
+            put((byte) (0xc0 | (c >> 6)));
+            put((byte) (0x80 | (c & 0x3f)));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            put((byte) '?');
+        } else {
+            put((byte) (0xe0 | (c >> 12)));
+            put((byte) (0x80 | ((c >> 6) & 0x3f)));
+            put((byte) (0x80 | (c & 0x3f)));
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (count == buf.length) {
+            drain();
+        }
+
+        buf[count++] = b;
+    }
+
+    private void drain() throws IOException {
+        if (count != 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (buf == null) {
+            throw new IOException("Writer released");
+        }
+    }
+}
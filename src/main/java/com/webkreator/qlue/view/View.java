@@ -51,6 +51,8 @@ public interface View {
 
     int STATUS_405_METHOD_NOT_ALLOWED = 405;
 
+    int STATUS_413_PAYLOAD_TOO_LARGE = 413;
+
     int STATUS_429_TOO_MANY_REQUESTS = 429;
 
     int STATUS_500_INTERNAL_SERVER_ERROR = 500;
@@ -28,4 +28,11 @@ public interface ViewFactory {
 	void init(QlueApplication qlueApp) throws Exception;
 
 	View constructView(String viewName) throws Exception;
+
+	/**
+	 * Releases what the factory holds, such as threads. Invoked when the
+	 * application is destroyed.
+	 */
+	default void destroy() {
+	}
 }
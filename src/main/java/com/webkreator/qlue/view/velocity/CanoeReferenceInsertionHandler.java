@@ -286,6 +286,10 @@ public class CanoeReferenceInsertionHandler implements ReferenceInsertionEventHa
         // SAFE_REFERENCE_PREFIXES for why it is a list of literal prefixes and not a matcher.
         for (String prefix : SAFE_REFERENCE_PREFIXES) {
             if (arg0.startsWith(prefix)) {
+                if (arg1 != null) {
+                    qlueWriter.markInsertion(arg1.toString());
+                }
+
                 return arg1;
             }
         }
@@ -309,6 +313,8 @@ public class CanoeReferenceInsertionHandler implements ReferenceInsertionEventHa
         // the static Canoe.encode(value, context) because a resource-loading URL sink needs this
         // writer's configured trusted-origin allowlist, which is per instance and not a function of
         // the context alone.
-        return qlueWriter.encode(arg1.toString());
+        String encoded = qlueWriter.encode(arg1.toString());
+        qlueWriter.markInsertion(encoded);
+        return encoded;
     }
 }
@@ -0,0 +1,111 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.view.velocity;
+
+import com.webkreator.qlue.view.Canoe;
+import com.webkreator.qlue.view.CanoeFragments;
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.event.EventHandlerUtil;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.directive.Parse;
+import org.apache.velocity.runtime.directive.Scope;
+import org.apache.velocity.runtime.parser.node.Node;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * {@code #fork("widget.vm")}: a {@code #parse} that may render the template on another thread.
+ *
+ * <p>When the factory has a fragment executor (see
+ * {@link VelocityViewFactory#QLUE_CANOE_FRAGMENT_THREADS}) and the directive is writing straight to
+ * the page's {@link Canoe}, the template is handed to {@link CanoeFragments} and the page carries
+ * on without waiting for it. Anywhere else - no executor, inside a string literal, inside another
+ * forked template, or on the sequential render that follows a fragment that could not be stitched
+ * in - it is exactly {@code #parse}.
+ *
+ * <p>A forked template gets a copy of the page's variables as they are at the {@code #fork}. What it
+ * {@code #set}s is not seen by the page, and the objects it shares with the page are shared with a
+ * thread that is still rendering, so only templates whose model calls are safe to make concurrently
+ * should be forked. Qlue's own model objects are safe to share; the shadow input ({@code $_i}),
+ * which otherwise works its values out as they are asked for, is worked out in full before the page
+ * is rendered. Velocity's scope objects ({@code $foreach}, {@code $template} and the others)
+ * are not copied, because the page goes on changing them; under strict mode a forked template that
+ * reads one fails, and fails the page with it.
+ *
+ * <p>The factory only renders a page this way if the page's own template uses {@code #fork}, and
+ * stops doing so for a template whose fragments did not fit.
+ */
+public class ForkDirective extends Parse {
+
+    @Override
+    public String getName() {
+        return "fork";
+    }
+
+    @Override
+    public boolean render(InternalContextAdapter context, Writer writer, Node node)
+            throws IOException, ResourceNotFoundException, ParseErrorException,
+            MethodInvocationException {
+        CanoeFragments fragments = (writer instanceof Canoe) ? CanoeFragments.of((Canoe) writer) : null;
+        if (!(fragments instanceof VelocityFragments) || (node.jjtGetNumChildren() != 1)) {
+            return super.render(context, writer, node);
+        }
+
+        Object value = node.jjtGetChild(0).value(context);
+        String name = (value == null) ? null : EventHandlerUtil.includeEvent(rsvc, context,
+                value.toString(), context.getCurrentTemplateName(), getName());
+
+        Template template;
+        try {
+            template = (name == null) ? null : rsvc.getTemplate(name, getInputEncoding(context));
+        } catch (ResourceNotFoundException | ParseErrorException e) {
+            template = null;
+        }
+
+        // Whatever #parse does with a null argument, a vetoed include or a template that cannot be
+        // loaded, it does here too, by doing it.
+        if (template == null) {
+            return super.render(context, writer, node);
+        }
+
+        VelocityContext fragmentContext;
+        Object pageContext = context.getInternalUserContext();
+        if (pageContext instanceof TransactionVelocityContext) {
+            fragmentContext = ((TransactionVelocityContext) pageContext).copyForFragment();
+        } else {
+            fragmentContext = new VelocityContext();
+        }
+
+        // Variables local to a macro are not in the page's context.
+        for (String key : context.getKeys()) {
+            if (!fragmentContext.containsKey(key)) {
+                Object variable = context.get(key);
+                if (!(variable instanceof Scope)) {
+                    fragmentContext.put(key, variable);
+                }
+            }
+        }
+
+        ((VelocityFragments) fragments).fork((Canoe) writer, template, fragmentContext);
+        return true;
+    }
+}
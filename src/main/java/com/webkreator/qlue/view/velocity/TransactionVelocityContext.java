@@ -0,0 +1,75 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.view.velocity;
+
+import com.webkreator.qlue.TransactionContext;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.directive.Scope;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The context a page's template is merged with. It notices when the template reads one of
+ * the values that belong to the transaction alone, and marks the transaction as
+ * personalised, so that the response isn't cached and given to someone else. The values
+ * are put in the model whether they are used or not, which is why it's the reads that count.
+ */
+class TransactionVelocityContext extends VelocityContext {
+
+    /**
+     * The model entries that belong to the transaction, or lead to ones that do.
+     */
+    private static final Set<String> TRANSACTION_KEYS = new HashSet<>(Arrays.asList(
+            "_ctx", "_req", "_sess", "_secret", "_qlue_nonce", "_qlue_publicSessionId",
+            "_qlue_userId"));
+
+    private final TransactionContext transaction;
+
+    TransactionVelocityContext(Map<String, Object> model, TransactionContext transaction) {
+        super(model);
+        this.transaction = transaction;
+    }
+
+    @Override
+    public Object internalGet(String key) {
+        if ((transaction != null) && TRANSACTION_KEYS.contains(key)) {
+            transaction.markPersonalised();
+        }
+
+        return super.internalGet(key);
+    }
+
+    /**
+     * A copy of this context for a template rendered on another thread, without Velocity's
+     * scope objects, which the page goes on changing. Copying doesn't count as reading.
+     */
+    TransactionVelocityContext copyForFragment() {
+        Map<String, Object> copy = new HashMap<>();
+        for (String key : getKeys()) {
+            Object value = super.internalGet(key);
+            if (!(value instanceof Scope)) {
+                copy.put(key, value);
+            }
+        }
+
+        return new TransactionVelocityContext(copy, transaction);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Qlue Web Application Framework
+ * Copyright 2009-2012 Ivan Ristic <ivanr@webkreator.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.webkreator.qlue.view.velocity;
+
+import com.webkreator.qlue.view.Canoe;
+import com.webkreator.qlue.view.CanoeFragments;
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The fragments of one page render, with the factory that renders them, so that
+ * {@link ForkDirective} can render a forked template the way the page itself is rendered.
+ */
+class VelocityFragments extends CanoeFragments {
+
+    private final VelocityViewFactory factory;
+
+    VelocityFragments(VelocityViewFactory factory, Executor executor) {
+        super(executor);
+        this.factory = factory;
+    }
+
+    void fork(Canoe canoe, Template template, VelocityContext context) {
+        fork(canoe, fork -> factory.merge(template, context, fork));
+    }
+}
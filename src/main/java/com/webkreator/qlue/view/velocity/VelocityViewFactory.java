@@ -19,19 +19,25 @@ package com.webkreator.qlue.view.velocity;
 import com.webkreator.qlue.Page;
 import com.webkreator.qlue.QlueApplication;
 import com.webkreator.qlue.QlueSession;
+import com.webkreator.qlue.ShadowInput;
 import com.webkreator.qlue.TransactionContext;
 import com.webkreator.qlue.view.Canoe;
 import com.webkreator.qlue.view.CanoeEncodingException;
+import com.webkreator.qlue.view.CanoeLiteralMemo;
+import com.webkreator.qlue.view.Utf8Writer;
 import com.webkreator.qlue.view.ViewFactory;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.app.event.EventCartridge;
 import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.io.Writer;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
@@ -39,11 +45,17 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Base class for the view implementation that uses Velocity. Needs subclassing
@@ -87,6 +99,27 @@ public abstract class VelocityViewFactory implements ViewFactory {
      */
     public static final String QLUE_CANOE_TRUSTED_RESOURCE_ORIGINS = "qlue.canoe.trustedResourceOrigins";
 
+    /**
+     * Qlue property that turns off Canoe's literal memo when set to false. The memo is on by
+     * default; see {@link CanoeLiteralMemo} for what it remembers.
+     */
+    public static final String QLUE_CANOE_LITERAL_MEMO = "qlue.canoe.literalMemo";
+
+    /**
+     * Qlue property setting how many threads render {@code #fork}ed templates, e.g.
+     * {@code qlue.canoe.fragmentThreads = 8}. Unset or 0, the default, means {@code #fork} renders
+     * in place like {@code #parse}. See {@link ForkDirective} and
+     * {@link com.webkreator.qlue.view.CanoeFragments}.
+     */
+    public static final String QLUE_CANOE_FRAGMENT_THREADS = "qlue.canoe.fragmentThreads";
+
+    /**
+     * Qlue property that, set to true, renders UTF-8 pages to the response's output stream through
+     * a {@link Utf8Writer} rather than to its writer. Off by default. See
+     * {@link #setByteOutput(boolean)}.
+     */
+    public static final String QLUE_CANOE_BYTE_OUTPUT = "qlue.canoe.byteOutput";
+
     protected static Logger log = LoggerFactory.getLogger(VelocityViewFactory.class);
 
     protected String inputEncoding = "UTF-8";
@@ -124,6 +157,34 @@ public abstract class VelocityViewFactory implements ViewFactory {
      */
     protected Set<String> trustedResourceOrigins = Collections.emptySet();
 
+    /**
+     * What Canoe did with each template's static text on earlier renders, shared by every
+     * {@link Canoe} the factory constructs; null when the application turned it off. Cleared when
+     * the plain-text allowlist changes, because the recorded transitions depend on it.
+     */
+    protected CanoeLiteralMemo literalMemo = new CanoeLiteralMemo();
+
+    /**
+     * Where {@code #fork}ed templates are rendered, or null to render them in place.
+     */
+    protected Executor fragmentExecutor;
+
+    /**
+     * The pool {@link #setFragmentThreads(int)} created, which, unlike an executor the application
+     * supplied, this factory has to shut down; null if there is none.
+     */
+    private ExecutorService fragmentThreadPool;
+
+    /**
+     * Whether each template, by name, uses {@code #fork}, and whether its fragments fit.
+     */
+    private final ConcurrentHashMap<String, ForkProfile> forkProfiles = new ConcurrentHashMap<>();
+
+    /**
+     * Whether UTF-8 pages are rendered to the response's output stream.
+     */
+    protected boolean byteOutput = false;
+
     protected Properties buildDefaultVelocityProperties(QlueApplication qlueApp) {
         Properties properties = new Properties();
 
@@ -178,6 +239,7 @@ public abstract class VelocityViewFactory implements ViewFactory {
         properties.setProperty("context.scope_control.macro", "true");
         properties.setProperty("runtime.strict_mode.enable", "true");
         properties.setProperty("runtime.strict_math", "true");
+        properties.setProperty("runtime.custom_directives", ForkDirective.class.getName());
 
         // Pass-through the maxLogLevel setting into Velocity properties, for SLF4JLogChute to consume.
         String maxLogLevel = qlueApp.getProperty(VelocityViewFactory.QLUE_VELOCITY_MAX_LOG_LEVEL);
@@ -191,6 +253,19 @@ public abstract class VelocityViewFactory implements ViewFactory {
         addPlainTextAttributesFromProperty(qlueApp.getProperty(QLUE_CANOE_PLAIN_TEXT_ATTRIBUTES));
         addTrustedResourceOriginsFromProperty(qlueApp.getProperty(QLUE_CANOE_TRUSTED_RESOURCE_ORIGINS));
 
+        if ("false".equals(qlueApp.getProperty(QLUE_CANOE_LITERAL_MEMO))) {
+            literalMemo = null;
+        }
+
+        String fragmentThreads = qlueApp.getProperty(QLUE_CANOE_FRAGMENT_THREADS);
+        if (fragmentThreads != null) {
+            setFragmentThreads(Integer.parseInt(fragmentThreads.trim()));
+        }
+
+        if ("true".equals(qlueApp.getProperty(QLUE_CANOE_BYTE_OUTPUT))) {
+            byteOutput = true;
+        }
+
         // Pass raw Velocity configuration from Qlue properties.
         Properties qlueProperties = qlueApp.getProperties();
         Enumeration e = qlueProperties.propertyNames();
@@ -219,18 +294,43 @@ public abstract class VelocityViewFactory implements ViewFactory {
      * the half-written page instead of leaving it in the response buffer. See
      * {@link #discardPartialResponse(HttpServletResponse, CanoeEncodingException)}.
      *
+     * <p>With byte output on, a UTF-8 page is rendered into a {@link Utf8Writer} over the response's
+     * output stream. What the writer has not yet passed on when Canoe refuses is thrown away with
+     * its buffer, the same as what the response buffer holds is.
+     *
      * @param page
      * @param view
      * @throws Exception
      */
     public void render(Page page, VelocityView view) throws Exception {
         HttpServletResponse response = page.getContext().getResponse();
+        Utf8Writer utf8Writer = byteOutput ? openUtf8Writer(response) : null;
 
         try {
-            render(page, view, response.getWriter());
+            render(page, view, (utf8Writer != null) ? utf8Writer : response.getWriter());
         } catch (CanoeEncodingException e) {
             discardPartialResponse(response, e);
             throw e;
+        } finally {
+            if (utf8Writer != null) {
+                utf8Writer.release();
+            }
+        }
+    }
+
+    /**
+     * A UTF-8 writer over the response's output stream, or null if the response is not UTF-8 or
+     * something has already taken its writer, in which case the page goes to the writer.
+     */
+    private static Utf8Writer openUtf8Writer(HttpServletResponse response) throws IOException {
+        if (!"UTF-8".equalsIgnoreCase(response.getCharacterEncoding())) {
+            return null;
+        }
+
+        try {
+            return new Utf8Writer(response.getOutputStream());
+        } catch (IllegalStateException e) {
+            return null;
         }
     }
 
@@ -278,7 +378,9 @@ public abstract class VelocityViewFactory implements ViewFactory {
             model.put("_ctx", context);
             model.put("_req", context.request);
             model.put("_res", context.response);
-            model.put("_qlue_nonce", context.getNonce());
+            // Read without marking the transaction as personalised; the template's context
+            // does that if the template reads them.
+            model.put("_qlue_nonce", context.getProperties().getProperty("_qlue_nonce"));
             model.put("_qlue_publicSessionId", context.getProperties().getProperty("_qlue_publicSessionId"));
             model.put("_qlue_userId", context.getUserId());
 
@@ -308,20 +410,12 @@ public abstract class VelocityViewFactory implements ViewFactory {
         boolean flushOutput = true;
 
         try {
-            Canoe qlueWriter = new Canoe(writer, plainTextAttributes, trustedResourceOrigins);
-
-            Template template = view.getTemplate();
-            VelocityContext velocityContext = new VelocityContext(model);
-
-            if (useAutoEscaping) {
-                EventCartridge ec = new EventCartridge();
-                ec.addReferenceInsertionEventHandler(new CanoeReferenceInsertionHandler(qlueWriter));
-                ec.attachToContext(velocityContext);
+            ForkProfile profile = (fragmentExecutor != null) ? forkProfile(view.getTemplate()) : null;
+            if ((profile == null) || !profile.forks || !profile.stitches
+                    || !renderWithFragments(view, model, page.getContext(), writer, profile)) {
+                merge(view.getTemplate(), new TransactionVelocityContext(model, page.getContext()),
+                        newCanoe(writer));
             }
-
-            tweakVelocityContext(velocityContext);
-
-            template.merge(velocityContext, qlueWriter);
         } catch (Exception e) {
             CanoeEncodingException encodingError = CanoeEncodingException.findIn(e);
             if (encodingError == null) {
@@ -351,6 +445,138 @@ public abstract class VelocityViewFactory implements ViewFactory {
         }
     }
 
+    /**
+     * Renders a page whose {@code #fork}ed templates go to the fragment executor, and writes it out
+     * if every fragment could be stitched in.
+     *
+     * <p>Nothing reaches the writer unless the page does, so when this returns false the caller can
+     * render the page again, sequentially, as if this had not been tried. The page is rendered
+     * against a copy of the model for the same reason: what its {@code #set}s leave behind must not
+     * be seen by the second render. A template whose fragments didn't fit once is not forked again.
+     *
+     * <p>A failure is not a reason to render again, which would only repeat what the page did before
+     * it failed. The page is written up to the failure, the first in the order of the page, whether
+     * it was the page's or a fragment's, and the failure is thrown, as sequential rendering would
+     * have thrown it.
+     *
+     * @return true if the page was written, false if it must be rendered again sequentially
+     */
+    private boolean renderWithFragments(VelocityView view, Map<String, Object> model,
+                                        TransactionContext transaction, Writer writer,
+                                        ForkProfile profile) throws Exception {
+        // Fragments can read $_i on their own threads while the page is rendered on this one. The
+        // shadow input works its values out as they're asked for, so it's worked out in full now.
+        Object shadowInput = model.get("_i");
+        if (shadowInput instanceof ShadowInput) {
+            ((ShadowInput) shadowInput).resolveAll();
+        }
+
+        VelocityFragments fragments = new VelocityFragments(this, fragmentExecutor);
+
+        Exception failure = null;
+        try {
+            merge(view.getTemplate(), new TransactionVelocityContext(new HashMap<>(model), transaction),
+                    newCanoe(fragments));
+        } catch (Exception e) {
+            failure = e;
+        }
+
+        if (!fragments.writeTo(writer)) {
+            log.debug("A fragment of template {} did not fit, rendering it sequentially",
+                    view.getTemplate().getName());
+            profile.stitches = false;
+            return false;
+        }
+
+        Throwable fragmentFailure = fragments.getFailure();
+        if (fragmentFailure instanceof Error) {
+            throw (Error) fragmentFailure;
+        } else if (fragmentFailure != null) {
+            throw (Exception) fragmentFailure;
+        } else if (failure != null) {
+            throw failure;
+        }
+
+        return true;
+    }
+
+    /**
+     * What is known about the given template's use of {@code #fork}.
+     */
+    private ForkProfile forkProfile(Template template) {
+        ForkProfile profile = forkProfiles.get(template.getName());
+        if ((profile == null) || (profile.data != template.getData())) {
+            profile = new ForkProfile(template.getData());
+            forkProfiles.put(template.getName(), profile);
+        }
+
+        return profile;
+    }
+
+    /**
+     * What is known about a template's use of {@code #fork}, for one parse of it: whether it uses
+     * the directive itself, which is the only way it can fork, and whether its fragments have fit.
+     */
+    private static final class ForkProfile {
+
+        // The parsed template; a template that is loaded again is profiled again.
+        final Object data;
+
+        final boolean forks;
+
+        volatile boolean stitches = true;
+
+        ForkProfile(Object data) {
+            this.data = data;
+            this.forks = (data instanceof Node) && containsFork((Node) data);
+        }
+
+        private static boolean containsFork(Node node) {
+            if ((node instanceof ASTDirective) && "fork".equals(((ASTDirective) node).getDirectiveName())) {
+                return true;
+            }
+
+            for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+                if (containsFork(node.jjtGetChild(i))) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * A Canoe writing to the given writer, configured the way this factory configures all of them.
+     */
+    private Canoe newCanoe(Writer writer) {
+        Canoe qlueWriter = new Canoe(writer, plainTextAttributes, trustedResourceOrigins);
+
+        // Without auto-escaping, no handler tells Canoe which writes are reference
+        // values, and those must never be remembered.
+        if (useAutoEscaping) {
+            qlueWriter.setLiteralMemo(literalMemo);
+        }
+
+        return qlueWriter;
+    }
+
+    /**
+     * Merges a template through the given Canoe: the page on the thread rendering it, and each
+     * {@code #fork}ed template on the fragment executor.
+     */
+    void merge(Template template, VelocityContext velocityContext, Canoe qlueWriter) {
+        if (useAutoEscaping) {
+            EventCartridge ec = new EventCartridge();
+            ec.addReferenceInsertionEventHandler(new CanoeReferenceInsertionHandler(qlueWriter));
+            ec.attachToContext(velocityContext);
+        }
+
+        tweakVelocityContext(velocityContext);
+
+        template.merge(velocityContext, qlueWriter);
+    }
+
     /**
      * Throws away whatever of the page has already been written, after Canoe has refused to render
      * the rest of it.
@@ -489,6 +715,10 @@ public abstract class VelocityViewFactory implements ViewFactory {
         Set<String> merged = new LinkedHashSet<>(plainTextAttributes);
         merged.addAll(Canoe.normalisePlainTextAttributeNames(names));
         plainTextAttributes = Collections.unmodifiableSet(merged);
+
+        if (literalMemo != null) {
+            literalMemo.clear();
+        }
     }
 
     /**
@@ -522,6 +752,90 @@ public abstract class VelocityViewFactory implements ViewFactory {
         return plainTextAttributes;
     }
 
+    /**
+     * The memo of static template text shared by this factory's renders, or null if it is off.
+     */
+    public CanoeLiteralMemo getLiteralMemo() {
+        return literalMemo;
+    }
+
+    /**
+     * Renders {@code #fork}ed templates on the given executor; null renders them in place, like
+     * {@code #parse}. The executor is shared by every page this factory renders.
+     */
+    public void setFragmentExecutor(Executor fragmentExecutor) {
+        ExecutorService previousPool = fragmentThreadPool;
+
+        this.fragmentThreadPool = null;
+        this.fragmentExecutor = fragmentExecutor;
+
+        if (previousPool != null) {
+            previousPool.shutdown();
+        }
+    }
+
+    /**
+     * Renders {@code #fork}ed templates on a pool of the given number of daemon threads; 0 renders
+     * them in place. The property form is {@link #QLUE_CANOE_FRAGMENT_THREADS}. A pool created by an
+     * earlier call is shut down, and so is this one when the factory is destroyed.
+     *
+     * @throws IllegalArgumentException if the number is negative
+     */
+    public void setFragmentThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Invalid number of fragment threads: " + threads);
+        }
+
+        if (threads == 0) {
+            setFragmentExecutor(null);
+            return;
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "qlue-fragment-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        setFragmentExecutor(pool);
+        fragmentThreadPool = pool;
+    }
+
+    /**
+     * Shuts down the fragment threads this factory created, if any. Fragments already handed to
+     * them are still rendered; pages rendered afterwards render theirs in place.
+     */
+    @Override
+    public void destroy() {
+        setFragmentExecutor(null);
+    }
+
+    /**
+     * Where {@code #fork}ed templates are rendered, or null if they are rendered in place.
+     */
+    public Executor getFragmentExecutor() {
+        return fragmentExecutor;
+    }
+
+    /**
+     * Renders UTF-8 pages to the response's output stream rather than to its writer: Canoe's
+     * output is encoded by a {@link Utf8Writer} into a pooled buffer, which reaches the container
+     * in a few large writes, and static template text the literal memo replays is encoded once
+     * rather than on every render. The property form is {@link #QLUE_CANOE_BYTE_OUTPUT}.
+     *
+     * <p>A response can give out its writer or its output stream, not both, so anything that
+     * writes to the response after the page has to ask for the stream too. Qlue's own development
+     * output does.
+     */
+    public void setByteOutput(boolean byteOutput) {
+        this.byteOutput = byteOutput;
+    }
+
+    public boolean isByteOutput() {
+        return byteOutput;
+    }
+
     /**
      * Adds origins a resource-loading URL sink may load from, on top of the page's own — the CDN
      * escape hatch.
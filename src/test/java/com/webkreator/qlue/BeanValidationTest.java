@@ -0,0 +1,119 @@
+package com.webkreator.qlue;
+
+import jakarta.validation.Validation;
+import jakarta.validation.Validator;
+import jakarta.validation.ValidatorFactory;
+import jakarta.validation.constraints.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Bean validation uses one validator for the lifetime of the application, and doesn't
+ * involve it at all for objects whose classes declare nothing to validate.
+ */
+public class BeanValidationTest {
+
+    public static class Unconstrained {
+
+        public String name;
+    }
+
+    public static class Constrained {
+
+        @NotNull
+        public String name;
+    }
+
+    private ValidatorFactory factory;
+
+    private Validator validator;
+
+    private final AtomicInteger factoryRequests = new AtomicInteger();
+
+    private QlueApplication app;
+
+    private final Page page = new Page() {
+    };
+
+    @BeforeEach
+    public void setUp() {
+        factory = Validation.buildDefaultValidatorFactory();
+        validator = spy(factory.getValidator());
+
+        app = new QlueApplication() {
+            @Override
+            protected ValidatorFactory getBeanValidationFactory() {
+                factoryRequests.incrementAndGet();
+                return factory;
+            }
+
+            @Override
+            protected Validator getBeanValidator() {
+                // Substitute the spy, but keep the caching behaviour under test.
+                return (super.getBeanValidator() != null) ? validator : null;
+            }
+        };
+    }
+
+    @AfterEach
+    public void tearDown() {
+        factory.close();
+    }
+
+    @Test
+    public void validatorIsObtainedOnce() {
+        app.doBeanValidation(new Constrained(), null, page);
+        app.doBeanValidation(new Constrained(), null, page);
+
+        assertEquals(1, factoryRequests.get());
+    }
+
+    @Test
+    public void unconstrainedObjectsAreNotValidated() {
+        assertFalse(app.doBeanValidation(new Unconstrained(), null, page));
+
+        verify(validator, never()).validate(any());
+    }
+
+    @Test
+    public void constrainedObjectsAreValidated() {
+        assertTrue(app.doBeanValidation(new Constrained(), "body", page));
+        assertTrue(page.hasErrors());
+
+        verify(validator, times(1)).validate(any());
+    }
+
+    @Test
+    public void validationIsDisabledWithoutAFactory() {
+        QlueApplication disabled = new QlueApplication();
+
+        assertNull(disabled.getBeanValidator());
+        assertFalse(disabled.doBeanValidation(new Constrained(), null, page));
+    }
+
+    @Test
+    public void validatorIsShared() {
+        QlueApplication plain = new QlueApplication() {
+            @Override
+            protected ValidatorFactory getBeanValidationFactory() {
+                return factory;
+            }
+        };
+
+        assertSame(plain.getBeanValidator(), plain.getBeanValidator());
+    }
+}
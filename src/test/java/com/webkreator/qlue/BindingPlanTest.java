@@ -0,0 +1,162 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.annotations.QlueBodyParameter;
+import com.webkreator.qlue.annotations.QlueParameter;
+import com.webkreator.qlue.editors.IntegerEditor;
+import com.webkreator.qlue.exceptions.QlueException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The per-class binding plan: everything QlueApplication.bindParameters() used to work out again on
+ * every request is worked out here once, so these cases check that what the plan holds is what the
+ * annotations say, and that annotation misuse surfaces when the plan is built.
+ */
+public class BindingPlanTest {
+
+    public static class Form {
+
+        @QlueParameter(mandatory = false, pattern = "[a-z]+", tfn = "trim, lowercase")
+        public String name;
+
+        @QlueParameter(mandatory = false, valueWhenAbsent = "none")
+        public String mode;
+
+        @QlueParameter(mandatory = false)
+        public Integer[] ids;
+
+        @QlueBodyParameter(format = QlueBodyParameter.JSON)
+        public Object body;
+
+        public String notAParameter;
+    }
+
+    public static class NonPublicField {
+
+        @QlueParameter
+        String hidden;
+    }
+
+    public static class UnknownTransformation {
+
+        @QlueParameter(tfn = "reverse")
+        public String value;
+    }
+
+    public static class InvalidPattern {
+
+        @QlueParameter(pattern = "(")
+        public String value;
+    }
+
+    QlueApplication app;
+
+    @BeforeEach
+    public void setUp() {
+        app = new QlueApplication();
+    }
+
+    @Test
+    public void thePlanIsBuiltOnceAndShared() {
+        assertSame(app.getBindingPlan(Form.class), app.getBindingPlan(Form.class));
+    }
+
+    @Test
+    public void parametersAndBodyParametersAreSeparated() {
+        BindingPlan plan = app.getBindingPlan(Form.class);
+
+        assertEquals(3, plan.getParameters().size());
+        assertEquals(1, plan.getBodyParameters().size());
+        assertEquals("body", plan.getBodyParameters().get(0).getName());
+    }
+
+    @Test
+    public void transformationsAndPatternAreTakenFromTheAnnotation() {
+        BindingPlan.FieldBinding name = find(app.getBindingPlan(Form.class).getParameters(), "name");
+
+        assertEquals("abc", name.transform("  ABC "));
+        assertTrue(name.matchesPattern("abc"));
+        assertFalse(name.matchesPattern("ab1"));
+    }
+
+    @Test
+    public void valueWhenAbsentIsNullUnlessConfigured() {
+        List<BindingPlan.FieldBinding> parameters = app.getBindingPlan(Form.class).getParameters();
+
+        assertEquals("none", find(parameters, "mode").getValueWhenAbsent());
+        assertNull(find(parameters, "name").getValueWhenAbsent());
+    }
+
+    @Test
+    public void arrayParametersUseTheComponentTypeEditor() {
+        BindingPlan.FieldBinding ids = find(app.getBindingPlan(Form.class).getParameters(), "ids");
+
+        assertTrue(ids.isArray());
+        assertEquals(Integer.class, ids.getValueType());
+        assertTrue(ids.getEditor() instanceof IntegerEditor);
+    }
+
+    @Test
+    public void accessorsReadAndWriteTheField() throws Exception {
+        Form form = new Form();
+        BindingPlan.FieldBinding name = find(app.getBindingPlan(Form.class).getParameters(), "name");
+
+        name.set(form, "value");
+        assertEquals("value", form.name);
+        assertEquals("value", name.get(form));
+    }
+
+    @Test
+    public void theOverridableValidationUsesThePlan() throws Exception {
+        Page page = new Page() {
+        };
+        Field field = Form.class.getField("name");
+        QlueParameter qp = field.getAnnotation(QlueParameter.class);
+
+        assertEquals("abc", app.validateParameter(page, field, qp, "  ABC "));
+        assertFalse(page.hasErrors());
+
+        assertNull(app.validateParameter(page, field, qp, "ab1"));
+        assertTrue(page.hasErrors());
+    }
+
+    @Test
+    public void annotationMisuseIsReportedWhenThePlanIsBuilt() {
+        assertThrows(QlueException.class, () -> app.getBindingPlan(NonPublicField.class));
+        assertThrows(RuntimeException.class, () -> app.getBindingPlan(UnknownTransformation.class));
+        assertThrows(RuntimeException.class, () -> app.getBindingPlan(InvalidPattern.class));
+    }
+
+    @Test
+    public void deletingFilesDoesNotBuildAPlan() {
+        Page page = new Page() {
+            @QlueParameter
+            String hidden;
+        };
+        page.setApp(app);
+
+        // The plan can't be built, so the request has already failed; cleanup must not fail again.
+        page.deleteFiles();
+        assertNull(app.findBindingPlan(page.getClass()));
+    }
+
+    private static BindingPlan.FieldBinding find(List<BindingPlan.FieldBinding> bindings, String name) {
+        for (BindingPlan.FieldBinding binding : bindings) {
+            if (binding.getName().equals(name)) {
+                return binding;
+            }
+        }
+
+        throw new AssertionError("No binding for field: " + name);
+    }
+}
@@ -0,0 +1,98 @@
+package com.webkreator.qlue;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * JSON body parsing: the same results as Gson.fromJson() for well-formed documents, and each of
+ * the limits enforced.
+ */
+public class JsonBodyParserTest {
+
+    public static class Form {
+
+        public String name;
+
+        public int count;
+
+        public List<Integer> items;
+    }
+
+    private final JsonBodyParser parser = new JsonBodyParser(new Gson(), 4, 10);
+
+    private Object parse(String json, Class<?> type, long maxSize) {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        return parser.parse(parser.newReader(new ByteArrayInputStream(data), -1, StandardCharsets.UTF_8, maxSize), type);
+    }
+
+    @Test
+    public void documentIsBound() {
+        Form form = (Form) parse("{\"name\":\"abc\",\"count\":3,\"items\":[1,2]}", Form.class, 1000);
+
+        assertEquals("abc", form.name);
+        assertEquals(3, form.count);
+        assertEquals(Arrays.asList(1, 2), form.items);
+    }
+
+    @Test
+    public void emptyDocumentIsNull() {
+        assertNull(parse("", Form.class, 1000));
+        assertNull(parse("null", Form.class, 1000));
+    }
+
+    @Test
+    public void adaptersAreCached() {
+        assertSame(parser.getAdapter(Form.class), parser.getAdapter(Form.class));
+    }
+
+    @Test
+    public void invalidDocumentsAreSyntaxErrors() {
+        assertThrows(JsonSyntaxException.class, () -> parse("{\"name\":", Form.class, 1000));
+        assertThrows(JsonSyntaxException.class, () -> parse("{} {}", Form.class, 1000));
+        assertThrows(JsonSyntaxException.class, () -> parse("{\"count\":\"x\"}", Form.class, 1000));
+    }
+
+    @Test
+    public void longStringsAreRejected() {
+        assertThrows(JsonBodyParser.LimitExceededException.class, () -> parse("{\"name\":\"abcdefghijk\"}", Form.class, 1000));
+        assertThrows(JsonBodyParser.LimitExceededException.class, () -> parse("{\"abcdefghijk\":1}", Form.class, 1000));
+    }
+
+    @Test
+    public void deepDocumentsAreRejected() {
+        // Also when the deep part is an unknown property, which is skipped rather than bound.
+        assertThrows(JsonSyntaxException.class, () -> parse("[[[[[1]]]]]", Object.class, 1000));
+        assertThrows(JsonSyntaxException.class, () -> parse("{\"x\":[[[[[1]]]]]}", Form.class, 1000));
+    }
+
+    @Test
+    public void largeDocumentsAreRejected() {
+        assertThrows(JsonBodyParser.LimitExceededException.class,
+                () -> parse("{\"items\":[1,2,3,4,5,6,7,8,9,10,11,12,13,14]}", Form.class, 20));
+    }
+
+    @Test
+    public void declaredLengthOverLimitIsRejectedWithoutReading() {
+        InputStream unreadable = new InputStream() {
+            @Override
+            public int read() {
+                throw new AssertionError("Body should not have been read");
+            }
+        };
+
+        assertThrows(JsonBodyParser.LimitExceededException.class,
+                () -> parser.newReader(unreadable, 21, StandardCharsets.UTF_8, 20));
+    }
+}
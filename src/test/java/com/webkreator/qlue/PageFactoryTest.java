@@ -0,0 +1,118 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.annotations.QlueCommandObject;
+import com.webkreator.qlue.exceptions.QlueException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Page factories replace per-request reflection, so these cases check that they create
+ * the same pages and command objects that Class.newInstance() and the command object
+ * lookup used to.
+ */
+public class PageFactoryTest {
+
+    public static class PlainPage extends Page {
+    }
+
+    public static class Form {
+
+        public String name;
+    }
+
+    public static class FormPage extends Page {
+
+        @QlueCommandObject
+        public Form form;
+    }
+
+    public static class InnerFormPage extends Page {
+
+        public class InnerForm {
+
+            public String name;
+        }
+
+        @QlueCommandObject
+        public InnerForm form;
+    }
+
+    public static class PresetFormPage extends Page {
+
+        @QlueCommandObject
+        public final Form form = new Form();
+    }
+
+    public static class NoDefaultConstructorPage extends Page {
+
+        public NoDefaultConstructorPage(String unused) {
+        }
+    }
+
+    @Test
+    public void factoriesAreCachedPerClass() {
+        assertSame(PageFactory.forClass(PlainPage.class), PageFactory.forClass(PlainPage.class));
+    }
+
+    @Test
+    public void createsNewPageInstances() {
+        PageFactory factory = PageFactory.forClass(PlainPage.class);
+
+        Page first = factory.newPage();
+        Page second = factory.newPage();
+
+        assertTrue(first instanceof PlainPage);
+        assertTrue(first != second);
+    }
+
+    @Test
+    public void pagesWithoutDefaultConstructorAreReportedWhenCreated() {
+        PageFactory factory = PageFactory.forClass(NoDefaultConstructorPage.class);
+
+        assertThrows(QlueException.class, factory::newPage);
+    }
+
+    @Test
+    public void pageIsItsOwnCommandObjectByDefault() {
+        PageFactory factory = PageFactory.forClass(PlainPage.class);
+
+        assertEquals(PlainPage.class, factory.getCommandObjectClass());
+        assertNull(factory.getCommandObject(new PlainPage()));
+    }
+
+    @Test
+    public void commandObjectIsCreatedAndStoredInTheField() {
+        FormPage page = new FormPage();
+        PageFactory factory = PageFactory.forClass(FormPage.class);
+
+        Object commandObject = factory.getCommandObject(page);
+
+        assertEquals(Form.class, factory.getCommandObjectClass());
+        assertNotNull(page.form);
+        assertSame(page.form, commandObject);
+        assertSame(commandObject, factory.getCommandObject(page));
+    }
+
+    @Test
+    public void innerClassCommandObjectsAreCreatedWithTheirPage() {
+        InnerFormPage page = new InnerFormPage();
+
+        Object commandObject = PageFactory.forClass(InnerFormPage.class).getCommandObject(page);
+
+        assertTrue(commandObject instanceof InnerFormPage.InnerForm);
+        assertSame(page.form, commandObject);
+    }
+
+    @Test
+    public void existingCommandObjectIsUsed() {
+        PresetFormPage page = new PresetFormPage();
+
+        assertSame(page.form, PageFactory.forClass(PresetFormPage.class).getCommandObject(page));
+    }
+}
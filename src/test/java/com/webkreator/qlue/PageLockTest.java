@@ -0,0 +1,107 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.annotations.QluePersistentPage;
+import com.webkreator.qlue.exceptions.TooManyRequestsException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Requests for a persistent page that's already in use wait for it, but only up to the
+ * configured timeout, and the outcome of every attempt is reflected in the metrics.
+ */
+public class PageLockTest {
+
+    @QluePersistentPage
+    public static class Wizard extends Page {
+    }
+
+    private final QlueApplication app = new QlueApplication() {
+        @Override
+        protected int getPageLockTimeout() {
+            return 100;
+        }
+    };
+
+    @Test
+    public void uncontendedLockIsObtainedImmediately() {
+        Wizard page = new Wizard();
+
+        ReentrantLock lock = app.acquirePageLock(page);
+        assertTrue(lock.isHeldByCurrentThread());
+        lock.unlock();
+
+        assertEquals(1, app.getPageLockMetrics().getAcquisitions());
+        assertEquals(0, app.getPageLockMetrics().getContended());
+    }
+
+    @Test
+    public void busyPageIsRejectedAfterTheTimeout() throws Exception {
+        Wizard page = new Wizard();
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Thread other = new Thread(() -> {
+            page.getServiceLock().lock();
+            try {
+                held.countDown();
+                release.await();
+            } catch (InterruptedException e) {
+                // Done.
+            } finally {
+                page.getServiceLock().unlock();
+            }
+        });
+        other.start();
+        assertTrue(held.await(5, TimeUnit.SECONDS));
+
+        try {
+            assertThrows(TooManyRequestsException.class, () -> app.acquirePageLock(page));
+            assertFalse(page.getServiceLock().isHeldByCurrentThread());
+        } finally {
+            release.countDown();
+            other.join();
+        }
+
+        PageLockMetrics metrics = app.getPageLockMetrics();
+        assertEquals(0, metrics.getAcquisitions());
+        assertEquals(1, metrics.getContended());
+        assertEquals(1, metrics.getTimeouts());
+        assertTrue(metrics.getMaxWaitMillis() >= 100);
+    }
+
+    @Test
+    public void waitingRequestProceedsWhenThePageIsReleased() throws Exception {
+        Wizard page = new Wizard();
+        QlueApplication patientApp = new QlueApplication() {
+            @Override
+            protected int getPageLockTimeout() {
+                return 10000;
+            }
+        };
+
+        page.getServiceLock().lock();
+        Thread waiter = new Thread(() -> patientApp.acquirePageLock(page).unlock());
+        waiter.start();
+
+        // Release the page only once the other request is waiting for it.
+        while (!page.getServiceLock().hasQueuedThread(waiter)) {
+            Thread.sleep(1);
+        }
+
+        page.getServiceLock().unlock();
+        waiter.join(5000);
+
+        assertFalse(waiter.isAlive());
+        assertEquals(1, patientApp.getPageLockMetrics().getAcquisitions());
+        assertEquals(1, patientApp.getPageLockMetrics().getContended());
+        assertEquals(0, patientApp.getPageLockMetrics().getTimeouts());
+    }
+}
@@ -0,0 +1,59 @@
+package com.webkreator.qlue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Uploads received by QlueFile fields are ordinary files; the accessors read them, and moving
+ * one leaves nothing behind for cleanup to remove.
+ */
+public class QlueFileTest {
+
+    private static final byte[] CONTENT = "uploaded content".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void uploadsAreReadFromDisk() throws Exception {
+        Path path = Files.write(dir.resolve("upload.tmp"), CONTENT);
+        QlueFile qf = new QlueFile(path.toString());
+
+        assertEquals(CONTENT.length, qf.getSize());
+        assertArrayEquals(CONTENT, qf.getBytes());
+        try (InputStream in = qf.openStream()) {
+            assertArrayEquals(CONTENT, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void moveToKeepsTheContent() throws Exception {
+        QlueFile qf = new QlueFile(Files.write(dir.resolve("upload.tmp"), CONTENT).toString());
+        Path moved = qf.moveTo(dir.resolve("moved"));
+        assertArrayEquals(CONTENT, Files.readAllBytes(moved));
+        assertFalse(qf.exists());
+
+        // Nothing is left behind for cleanup to remove.
+        qf.delete();
+        assertTrue(Files.exists(moved));
+    }
+
+    @Test
+    public void deleteRemovesTheFile() throws Exception {
+        File file = Files.write(dir.resolve("upload.tmp"), CONTENT).toFile();
+        QlueFile qf = new QlueFile(file.getPath());
+        assertTrue(qf.delete());
+        assertFalse(file.exists());
+    }
+}
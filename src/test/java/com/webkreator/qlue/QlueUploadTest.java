@@ -0,0 +1,98 @@
+package com.webkreator.qlue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Uploads received by QlueUpload fields are either held in memory or stored on disk; the
+ * accessors must behave the same for both, a file must be available for either, and deleting
+ * must release either.
+ */
+public class QlueUploadTest {
+
+    private static final byte[] CONTENT = "uploaded content".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path dir;
+
+    private QlueUpload inMemory() {
+        return new QlueUpload(CONTENT, "text/plain", "notes.txt", dir.toFile());
+    }
+
+    private QlueUpload onDisk() throws Exception {
+        QlueFile qf = new QlueFile(Files.write(dir.resolve("upload.tmp"), CONTENT).toString());
+        qf.setContentType("text/plain");
+        qf.setSubmittedFilename("notes.txt");
+        return new QlueUpload(qf);
+    }
+
+    @Test
+    public void theContentIsTheSameForEitherKind() throws Exception {
+        for (QlueUpload upload : new QlueUpload[] { inMemory(), onDisk() }) {
+            assertEquals(CONTENT.length, upload.getSize());
+            assertEquals("text/plain", upload.getContentType());
+            assertEquals("notes.txt", upload.getSubmittedFilename());
+            assertArrayEquals(CONTENT, upload.getBytes());
+            try (InputStream in = upload.openStream()) {
+                assertArrayEquals(CONTENT, in.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    public void uploadsInMemoryAreStoredWhenAFileIsNeeded() throws Exception {
+        QlueUpload upload = inMemory();
+        assertTrue(upload.isInMemory());
+
+        QlueFile qf = upload.toFile();
+        assertFalse(upload.isInMemory());
+        assertTrue(qf.exists());
+        assertEquals(dir.toFile(), qf.getParentFile());
+        assertEquals(CONTENT.length, qf.length());
+        assertEquals("notes.txt", qf.getSubmittedFilename());
+        assertArrayEquals(CONTENT, Files.readAllBytes(qf.toPath()));
+
+        // The stored file belongs to the upload, so it goes when the upload does.
+        assertTrue(upload.delete());
+        assertFalse(qf.exists());
+    }
+
+    @Test
+    public void moveToKeepsTheContentOfEitherKind() throws Exception {
+        QlueUpload memory = inMemory();
+        Path first = memory.moveTo(dir.resolve("first"));
+        assertArrayEquals(CONTENT, Files.readAllBytes(first));
+
+        QlueUpload disk = onDisk();
+        Path second = disk.moveTo(dir.resolve("second"));
+        assertArrayEquals(CONTENT, Files.readAllBytes(second));
+        assertFalse(Files.exists(dir.resolve("upload.tmp")));
+
+        // Nothing is left behind for cleanup to remove.
+        assertFalse(memory.delete());
+        assertFalse(disk.delete());
+        assertTrue(Files.exists(first));
+        assertTrue(Files.exists(second));
+    }
+
+    @Test
+    public void deleteReleasesEitherKind() throws Exception {
+        QlueUpload memory = inMemory();
+        assertTrue(memory.delete());
+        assertFalse(memory.isInMemory());
+
+        QlueUpload disk = onDisk();
+        assertTrue(disk.delete());
+        assertFalse(Files.exists(dir.resolve("upload.tmp")));
+    }
+}
@@ -0,0 +1,148 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.exceptions.PayloadTooLargeException;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Reading @QlueBodyParameter bodies: the size limit, spooling above the threshold, conversion to
+ * each supported type, and release of spooled bodies at the end of the request.
+ */
+public class RequestBodyTest {
+
+    private TransactionContext context;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        // Sessionless, so that the mocked request needs no session.
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRequestURI()).thenReturn("/body");
+        when(request.getAttribute(QlueConstants.QLUE_SESSIONLESS_REQUEST)).thenReturn(Boolean.TRUE);
+
+        context = new TransactionContext(new QlueApplication(), mock(ServletConfig.class),
+                mock(ServletContext.class), request, mock(HttpServletResponse.class));
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + (i % 26));
+        }
+
+        return data;
+    }
+
+    private static RequestBody read(byte[] data, long contentLength, long maxSize, long threshold) throws IOException {
+        return RequestBody.read(new ByteArrayInputStream(data), contentLength, maxSize, threshold);
+    }
+
+    @Test
+    public void bodyIsReadWhetherOrNotLengthIsKnown() throws Exception {
+        byte[] data = bytes(100_000);
+
+        assertArrayEquals(data, (byte[]) read(data, data.length, 1_000_000, Long.MAX_VALUE).convert(byte[].class, StandardCharsets.UTF_8, context));
+        assertArrayEquals(data, (byte[]) read(data, -1, 1_000_000, Long.MAX_VALUE).convert(byte[].class, StandardCharsets.UTF_8, context));
+    }
+
+    @Test
+    public void declaredLengthOverLimitIsRejectedWithoutReading() {
+        InputStream unreadable = new InputStream() {
+            @Override
+            public int read() {
+                throw new AssertionError("Body should not have been read");
+            }
+        };
+
+        assertThrows(PayloadTooLargeException.class, () -> RequestBody.read(unreadable, 101, 100, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void actualLengthOverLimitIsRejected() {
+        assertThrows(PayloadTooLargeException.class, () -> read(bytes(101), -1, 100, Long.MAX_VALUE));
+        assertThrows(PayloadTooLargeException.class, () -> read(bytes(101), 50, 100, Long.MAX_VALUE));
+        assertThrows(PayloadTooLargeException.class, () -> read(bytes(101), -1, 100, 10));
+    }
+
+    @Test
+    public void bodyAtLimitIsAccepted() throws Exception {
+        assertEquals(100, read(bytes(100), -1, 100, Long.MAX_VALUE).getSize());
+    }
+
+    @Test
+    public void stringsAndReadersAreDecoded() throws Exception {
+        byte[] data = "\u010d\u0107\u017e\u0161\u0111".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals("\u010d\u0107\u017e\u0161\u0111", read(data, data.length, 100, Long.MAX_VALUE).convert(String.class, StandardCharsets.UTF_8, context));
+
+        try (BufferedReader reader = new BufferedReader((Reader) read(data, -1, 100, 4).convert(Reader.class, StandardCharsets.UTF_8, context))) {
+            assertEquals("\u010d\u0107\u017e\u0161\u0111", reader.readLine());
+        }
+
+        context.closeRequestResources();
+    }
+
+    @Test
+    public void byteBufferCoversOnlyTheBody() throws Exception {
+        ByteBuffer buffer = (ByteBuffer) read(bytes(10), -1, 100, Long.MAX_VALUE).convert(ByteBuffer.class, StandardCharsets.UTF_8, context);
+
+        assertEquals(10, buffer.remaining());
+    }
+
+    @Test
+    public void largeStreamsAreSpooledAndDeletedWhenTheRequestCompletes() throws Exception {
+        byte[] data = bytes(200_000);
+
+        InputStream in = (InputStream) read(data, -1, 1_000_000, 64 * 1024).convert(InputStream.class, StandardCharsets.UTF_8, context);
+        assertArrayEquals(data, in.readAllBytes());
+
+        Path spooled = (Path) read(data, -1, 1_000_000, RequestBody.spoolThreshold(Path.class, 0)).convert(Path.class, StandardCharsets.UTF_8, context);
+        assertArrayEquals(data, Files.readAllBytes(spooled));
+
+        context.closeRequestResources();
+        assertFalse(Files.exists(spooled));
+    }
+
+    @Test
+    public void emptyBodyStillProducesAPath() throws Exception {
+        Path spooled = (Path) read(new byte[0], 0, 100, 0).convert(Path.class, StandardCharsets.UTF_8, context);
+
+        assertTrue(Files.exists(spooled));
+        assertEquals(0, Files.size(spooled));
+
+        context.closeRequestResources();
+        assertFalse(Files.exists(spooled));
+    }
+
+    @Test
+    public void supportedTypes() {
+        for (Class<?> type : Arrays.asList(String.class, Object.class, CharSequence.class, byte[].class,
+                ByteBuffer.class, InputStream.class, Reader.class, Path.class)) {
+            assertTrue(RequestBody.isSupportedType(type), type.getName());
+        }
+
+        assertFalse(RequestBody.isSupportedType(Integer.class));
+    }
+}
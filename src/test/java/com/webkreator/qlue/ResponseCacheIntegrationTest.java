@@ -0,0 +1,117 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.cacheTestPages.shared;
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The response cache in a real container: what it stores is rendered without a session, and a
+ * response that renders values that belong to its transaction is never stored, because the next
+ * visitor would otherwise get someone else's session secret and nonce.
+ */
+public class ResponseCacheIntegrationTest {
+
+    @TempDir
+    static Path docBase;
+
+    static Tomcat tomcat;
+
+    static QlueServlet servlet;
+
+    static int port;
+
+    @BeforeAll
+    static void startTomcat() throws Exception {
+        Path webInf = Files.createDirectories(docBase.resolve("WEB-INF"));
+
+        // See TomcatIntegrationTest for why this file has to exist on disk.
+        Files.writeString(webInf.resolve(QlueApplication.PROPERTIES_FILENAME),
+                "# Intentionally minimal: the response cache is on by default.\n");
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(Files.createDirectories(docBase.resolve("tomcat-base")).toString());
+
+        tomcat.setPort(0);
+        tomcat.getConnector().setProperty("address", "127.0.0.1");
+
+        servlet = new QlueServlet();
+        Context context = tomcat.addContext("", docBase.toString());
+        Tomcat.addServlet(context, "qlue", servlet)
+                .addInitParameter("QLUE_PAGES_ROOT_PACKAGE", shared.class.getPackageName());
+        context.addServletMappingDecoded("/*", "qlue");
+
+        tomcat.start();
+        port = tomcat.getConnector().getLocalPort();
+    }
+
+    @AfterAll
+    static void stopTomcat() throws Exception {
+        if (tomcat != null) {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    @Test
+    public void sharedResponsesAreStoredWithoutASession() throws Exception {
+        // The first request teaches the cache that the page is cacheable, and the second one
+        // renders it without a session for everyone after it.
+        HttpResponse<String> first = get("/shared");
+        HttpResponse<String> second = get("/shared");
+
+        long hits = servlet.getApp().getResponseCache().getHits();
+        HttpResponse<String> third = get("/shared");
+
+        assertEquals(200, third.statusCode(), "body: " + third.body());
+        assertEquals(first.body(), third.body());
+        assertEquals(hits + 1, servlet.getApp().getResponseCache().getHits());
+        assertTrue(second.headers().firstValue("Set-Cookie").isEmpty(),
+                "the response the cache stores must not have started a session");
+        assertTrue(third.headers().firstValue("Set-Cookie").isEmpty(),
+                "a stored response must not carry a session cookie");
+    }
+
+    @Test
+    public void personalResponsesAreNotStored() throws Exception {
+        HttpResponse<String> first = get("/personal");
+        HttpResponse<String> second = get("/personal");
+        HttpResponse<String> third = get("/personal");
+
+        assertEquals(200, first.statusCode(), "body: " + first.body());
+        assertEquals(200, third.statusCode(), "body: " + third.body());
+
+        // Each response has its own secret and nonce, so none of them came from the cache.
+        assertNotEquals(first.body(), second.body());
+        assertNotEquals(second.body(), third.body());
+        assertNotEquals(first.body(), third.body());
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        // No CookieHandler: every request is anonymous, as the cache requires.
+        try (HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .build()) {
+            return client.send(HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + path))
+                    .timeout(Duration.ofSeconds(10))
+                    .GET()
+                    .build(), HttpResponse.BodyHandlers.ofString());
+        }
+    }
+}
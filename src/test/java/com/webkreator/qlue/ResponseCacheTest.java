@@ -0,0 +1,284 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.annotations.QlueCacheable;
+import com.webkreator.qlue.annotations.QluePersistentPage;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The response cache: a page is rendered once for all the requests that want the same
+ * response, what's stored is what the page sent, and responses that belong to someone
+ * (cookies, sessions, persistent pages) are never shared.
+ */
+public class ResponseCacheTest {
+
+    @QlueCacheable(ttl = 60, varyBy = "Accept-Language")
+    public static class CacheablePage extends Page {
+    }
+
+    @QlueCacheable(ttl = 60)
+    @QluePersistentPage
+    public static class PersistentCacheablePage extends Page {
+    }
+
+    /**
+     * Collects what's sent, the way a container would.
+     */
+    static class Sent {
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+
+        WriteListener listener;
+
+        Sent() throws IOException {
+            when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    listener = writeListener;
+                }
+            });
+
+            when(response.getStatus()).thenReturn(HttpServletResponse.SC_OK);
+            when(response.getCharacterEncoding()).thenReturn("UTF-8");
+            when(response.getContentType()).thenReturn("text/html;charset=UTF-8");
+            when(response.getHeaderNames()).thenReturn(Collections.singletonList("X-Page"));
+            when(response.getHeaders("X-Page")).thenReturn(Collections.singletonList("rendered"));
+        }
+
+        String text() {
+            return body.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    ResponseCache cache;
+
+    QlueCacheable cacheable;
+
+    @BeforeEach
+    public void setUp() {
+        cache = new ResponseCache(1024 * 1024, 10000);
+        cacheable = PageFactory.forClass(CacheablePage.class).getCacheable();
+    }
+
+    private static HttpServletRequest request(String uri, String language) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getRequestURI()).thenReturn(uri);
+        when(request.getHeaders(anyString())).thenAnswer(invocation -> Collections.emptyEnumeration());
+        when(request.getHeaders("Accept-Language")).thenAnswer(invocation ->
+                Collections.enumeration(Collections.singletonList(language)));
+        return request;
+    }
+
+    private void render(ResponseCache.Flight flight, Sent sent, String text) throws IOException {
+        ResponseCapture capture = new ResponseCapture(sent.response, cache.getMaxEntrySize());
+        capture.getWriter().print(text);
+        capture.finish();
+        cache.complete(flight, capture);
+    }
+
+    @Test
+    public void persistentPagesAreNeverCacheable() {
+        assertNotNull(cacheable);
+        assertNull(PageFactory.forClass(PersistentCacheablePage.class).getCacheable());
+    }
+
+    @Test
+    public void requestsWithSessionsAreNotEligible() {
+        HttpServletRequest request = request("/", "en");
+        assertTrue(cache.isEligible(request));
+
+        when(request.getRequestedSessionId()).thenReturn("F00D");
+        assertFalse(cache.isEligible(request));
+
+        when(request.getAttribute(QlueConstants.QLUE_SESSIONLESS_REQUEST)).thenReturn(Boolean.TRUE);
+        assertTrue(cache.isEligible(request));
+    }
+
+    @Test
+    public void storedResponsesAreFoundBeforeRouting() throws Exception {
+        assertNull(cache.find(request("/page", "en")));
+
+        ResponseCache.Flight flight = cache.join(request("/page", "en"), cacheable);
+        assertTrue(flight.isLeader());
+        Sent first = new Sent();
+        render(flight, first, "Hello");
+        assertEquals("Hello", first.text());
+
+        ResponseCache.Entry entry = cache.find(request("/page", "en"));
+        assertNotNull(entry);
+
+        Sent second = new Sent();
+        entry.send(second.response);
+        assertEquals("Hello", second.text());
+
+        // The page varies by language.
+        assertNull(cache.find(request("/page", "de")));
+    }
+
+    @Test
+    public void concurrentMissesRenderOnce() throws Exception {
+        int requests = 16;
+        AtomicInteger renders = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(requests);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    Sent sent = new Sent();
+                    ResponseCache.Flight flight = cache.join(request("/slow", "en"), cacheable);
+                    if (flight.getEntry() != null) {
+                        flight.getEntry().send(sent.response);
+                    } else {
+                        renders.incrementAndGet();
+                        Thread.sleep(100);
+                        render(flight, sent, "Slow");
+                    }
+
+                    return sent.text();
+                }));
+            }
+
+            start.countDown();
+
+            for (Future<String> result : results) {
+                assertEquals("Slow", result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, renders.get());
+        assertEquals(requests - 1, cache.getCoalesced());
+    }
+
+    @Test
+    public void responsesWithCookiesAreNotStored() throws Exception {
+        Sent sent = new Sent();
+        ResponseCache.Flight flight = cache.join(request("/cookie", "en"), cacheable);
+        ResponseCapture capture = new ResponseCapture(sent.response, cache.getMaxEntrySize());
+        capture.addCookie(new Cookie("name", "value"));
+        capture.getWriter().print("Personal");
+        capture.finish();
+        cache.complete(flight, capture);
+
+        assertEquals("Personal", sent.text());
+        assertNull(cache.find(request("/cookie", "en")));
+    }
+
+    @Test
+    public void personalResponsesAreNotStored() throws Exception {
+        HttpServletRequest request = request("/personal", "en");
+        assertFalse(cache.isRenderedWithoutSession(request));
+
+        cache.learn(request);
+        assertTrue(cache.isRenderedWithoutSession(request));
+
+        Sent sent = new Sent();
+        ResponseCache.Flight flight = cache.join(request, cacheable);
+        ResponseCapture capture = new ResponseCapture(sent.response, cache.getMaxEntrySize());
+        capture.getWriter().print("Nonce");
+        capture.finish();
+        cache.complete(flight, capture, true);
+
+        assertEquals("Nonce", sent.text());
+        assertNull(cache.find(request));
+
+        // Until the page's time to live runs out, its URI is processed with sessions.
+        cache.learn(request);
+        assertFalse(cache.isRenderedWithoutSession(request));
+    }
+
+    @Test
+    public void nonBlockingResponsesAreSentAndNotStored() throws Exception {
+        Sent sent = new Sent();
+        ResponseCache.Flight flight = cache.join(request("/async", "en"), cacheable);
+        ResponseCapture capture = new ResponseCapture(sent.response, cache.getMaxEntrySize());
+        ServletOutputStream out = capture.getOutputStream();
+        out.write("Before".getBytes(StandardCharsets.UTF_8));
+
+        WriteListener listener = mock(WriteListener.class);
+        out.setWriteListener(listener);
+        assertSame(listener, sent.listener);
+        assertEquals("Before", sent.text());
+        assertTrue(out.isReady());
+
+        out.write("After".getBytes(StandardCharsets.UTF_8));
+        capture.finish();
+        cache.complete(flight, capture);
+
+        assertEquals("BeforeAfter", sent.text());
+        assertNull(cache.find(request("/async", "en")));
+    }
+
+    @Test
+    public void errorsAreNotStored() throws Exception {
+        Sent sent = new Sent();
+        ResponseCache.Flight flight = cache.join(request("/error", "en"), cacheable);
+        ResponseCapture capture = new ResponseCapture(sent.response, cache.getMaxEntrySize());
+        capture.getWriter().print("Partial");
+        capture.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        capture.finish();
+        cache.complete(flight, capture);
+
+        assertEquals("", sent.text());
+        assertNull(cache.find(request("/error", "en")));
+    }
+
+    @Test
+    public void leastRecentlyUsedResponsesAreEvicted() throws Exception {
+        cache = new ResponseCache(16 * 1024, 10000);
+
+        for (int i = 0; i < 100; i++) {
+            render(cache.join(request("/page" + i, "en"), cacheable), new Sent(), new String(new char[512]));
+        }
+
+        assertTrue(cache.getSize() <= 16 * 1024);
+        assertTrue(cache.getEvictions() > 0);
+        assertNull(cache.find(request("/page0", "en")));
+        assertNotNull(cache.find(request("/page99", "en")));
+    }
+}
@@ -0,0 +1,155 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.view.View;
+import jakarta.servlet.ServletException;
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * An application that overrides how requests are routed or handled must see every request,
+ * including those for routes whose responses could otherwise be sent before a transaction
+ * context is created.
+ */
+public class RouteOverrideIntegrationTest {
+
+    static final AtomicInteger routed = new AtomicInteger();
+
+    @TempDir
+    static Path docBase;
+
+    static Tomcat tomcat;
+
+    static int port;
+
+    public static class RoutingApplication extends QlueApplication {
+
+        @Override
+        protected Object route(TransactionContext context) {
+            routed.incrementAndGet();
+            return super.route(context);
+        }
+    }
+
+    @BeforeAll
+    static void startTomcat() throws Exception {
+        Path webInf = Files.createDirectories(docBase.resolve("WEB-INF"));
+
+        // See TomcatIntegrationTest for why this file has to exist on disk.
+        Files.writeString(webInf.resolve(QlueApplication.PROPERTIES_FILENAME),
+                "# Intentionally minimal: constant responses are on by default.\n");
+        Path assets = Files.createDirectories(docBase.resolve("assets"));
+        Files.writeString(assets.resolve("app.css"), "body { color: black }\n");
+        Files.writeString(webInf.resolve(QlueApplication.ROUTES_FILENAME), "/gone status:410\n"
+                + "/assets/{} static:" + assets.toAbsolutePath() + "\n");
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(Files.createDirectories(docBase.resolve("tomcat-base")).toString());
+
+        tomcat.setPort(0);
+        tomcat.getConnector().setProperty("address", "127.0.0.1");
+
+        QlueServlet servlet = new QlueServlet() {
+            @Override
+            protected void createApplicationObject() {
+                setApp(new RoutingApplication());
+            }
+        };
+
+        Context context = tomcat.addContext("", docBase.toString());
+        Tomcat.addServlet(context, "qlue", servlet);
+        context.addServletMappingDecoded("/*", "qlue");
+
+        tomcat.start();
+        port = tomcat.getConnector().getLocalPort();
+    }
+
+    @AfterAll
+    static void stopTomcat() throws Exception {
+        if (tomcat != null) {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    @Test
+    public void constantResponsesAreRouted() throws Exception {
+        int before = routed.get();
+
+        HttpResponse<String> response = get("/gone");
+
+        assertEquals(410, response.statusCode(), "body: " + response.body());
+        assertTrue(routed.get() > before, "the request must have gone through route()");
+    }
+
+    @Test
+    public void staticFilesAreRouted() throws Exception {
+        int before = routed.get();
+
+        HttpResponse<String> response = get("/assets/app.css");
+
+        assertEquals(200, response.statusCode(), "body: " + response.body());
+        assertEquals("body { color: black }\n", response.body());
+        assertTrue(routed.get() > before, "the request must have gone through route()");
+    }
+
+    @Test
+    public void overridesOfEachHandlingMethodAreDetected() {
+        assertFalse(new QlueApplication() {
+        }.isRequestHandlingOverridden());
+
+        assertTrue(new RoutingApplication().isRequestHandlingOverridden());
+
+        assertTrue(new QlueApplication() {
+            @Override
+            protected void serviceInternal(TransactionContext context) throws ServletException, IOException {
+                super.serviceInternal(context);
+            }
+        }.isRequestHandlingOverridden());
+
+        assertTrue(new QlueApplication() {
+            @Override
+            protected View processPage(Page page) throws Exception {
+                return super.processPage(page);
+            }
+        }.isRequestHandlingOverridden());
+
+        // Overrides are found further up the hierarchy, too.
+        class DirectViews extends QlueApplication {
+            @Override
+            protected Page newDirectViewPage(View view) {
+                return super.newDirectViewPage(view);
+            }
+        }
+        assertTrue(new DirectViews() {
+        }.isRequestHandlingOverridden());
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        try (HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .build()) {
+            return client.send(HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + path))
+                    .timeout(Duration.ofSeconds(10))
+                    .GET()
+                    .build(), HttpResponse.BodyHandlers.ofString());
+        }
+    }
+}
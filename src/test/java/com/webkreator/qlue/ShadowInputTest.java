@@ -0,0 +1,124 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.annotations.QlueParameter;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Shadow input values are worked out when first asked for, from the request if it has
+ * the parameter and from the command object otherwise, and are fixed from then on.
+ */
+public class ShadowInputTest {
+
+    public static class Form {
+
+        @QlueParameter(mandatory = false)
+        public Integer count;
+
+        @QlueParameter(mandatory = false)
+        public Integer[] ids;
+
+        @QlueParameter(mandatory = false)
+        public String name;
+    }
+
+    private final QlueApplication app = new QlueApplication();
+
+    private ShadowInput shadowInputFor(Form form, TransactionContext context) {
+        return new ShadowInput(app.getBindingPlan(Form.class), form, context);
+    }
+
+    @Test
+    public void valuesAreWorkedOutOnFirstAccess() {
+        Form form = new Form();
+        ShadowInput shadowInput = shadowInputFor(form, null);
+
+        // Changes made before the first access are visible...
+        form.count = 42;
+        assertEquals("42", shadowInput.get("count"));
+
+        // ...but not after it.
+        form.count = 7;
+        assertEquals("42", shadowInput.get("count"));
+    }
+
+    @Test
+    public void requestValuesTakePrecedence() throws Exception {
+        Form form = new Form();
+        form.count = 42;
+        form.ids = new Integer[] { 1, 2 };
+
+        TransactionContext context = mock(TransactionContext.class);
+        when(context.getParameter("count")).thenReturn("forty-two");
+
+        ShadowInput shadowInput = shadowInputFor(form, context);
+
+        assertEquals("forty-two", shadowInput.get("count"));
+        assertArrayEquals(new String[] { "1", "2" }, shadowInput.getArray("ids"));
+        assertNull(shadowInput.get("name"));
+    }
+
+    @Test
+    public void unusedValuesAreNeverWorkedOut() throws Exception {
+        TransactionContext context = mock(TransactionContext.class);
+        ShadowInput shadowInput = shadowInputFor(new Form(), context);
+
+        shadowInput.get("name");
+
+        verify(context, never()).getParameter("count");
+    }
+
+    @Test
+    public void resolveAllDetachesFromTheCommandObject() {
+        Form form = new Form();
+        form.name = "before";
+        ShadowInput shadowInput = shadowInputFor(form, null);
+
+        shadowInput.resolveAll();
+        form.name = "after";
+
+        assertEquals("before", shadowInput.get("name"));
+    }
+
+    @Test
+    public void serialisedShadowInputKeepsItsValues() throws Exception {
+        Form form = new Form();
+        form.count = 3;
+        ShadowInput shadowInput = shadowInputFor(form, null);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(shadowInput);
+        }
+
+        ShadowInput copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (ShadowInput) in.readObject();
+        }
+
+        assertEquals("3", copy.get("count"));
+    }
+
+    @Test
+    public void explicitlySetValuesAreKept() {
+        Form form = new Form();
+        form.name = "computed";
+        ShadowInput shadowInput = shadowInputFor(form, null);
+
+        shadowInput.set("name", "explicit");
+
+        assertEquals("explicit", shadowInput.get("name"));
+    }
+}
@@ -0,0 +1,48 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.exceptions.QlueException;
+import com.webkreator.qlue.router.RouteFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Startup warm-up, run against the routing test pages (which are all well-formed and include a
+ * direct view) and against a package holding a single misannotated page.
+ */
+public class StartupWarmUpTest {
+
+    QlueApplication app;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        app = new QlueApplication();
+        app.getVelocityViewFactory().init(app);
+    }
+
+    @Test
+    public void pagesAndTemplatesArePrepared() {
+        app.routeManager.add(RouteFactory.create(app.routeManager, "/{} package:com.webkreator.qlue.router.testPages"));
+
+        StartupWarmUp warmUp = new StartupWarmUp(app);
+        warmUp.run();
+
+        assertTrue(warmUp.getProblems().isEmpty());
+        assertTrue(warmUp.getPageCount() > 0);
+        assertEquals(1, warmUp.getTemplateCount());
+    }
+
+    @Test
+    public void annotationMisuseFailsStartup() {
+        app.routeManager.add(RouteFactory.create(app.routeManager, "/{} package:com.webkreator.qlue.warmUpTestPages"));
+
+        StartupWarmUp warmUp = new StartupWarmUp(app);
+        assertThrows(QlueException.class, warmUp::run);
+
+        assertEquals(1, warmUp.getProblems().size());
+        assertTrue(warmUp.getProblems().get(0).startsWith("com.webkreator.qlue.warmUpTestPages.misannotated"));
+    }
+}
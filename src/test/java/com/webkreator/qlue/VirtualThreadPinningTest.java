@@ -0,0 +1,315 @@
+package com.webkreator.qlue;
+
+import com.webkreator.qlue.pinningTestPages.smoke;
+import com.webkreator.qlue.util.EmailSender;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * The {@link TomcatIntegrationTest} flows, with Tomcat handing requests to virtual threads. A
+ * virtual thread that blocks while it can't be unmounted pins its carrier, and with only a handful
+ * of carriers, a few pinned requests are enough to stall the whole container.
+ *
+ * <p>Since JDK 24 (JEP 491), a virtual thread that blocks while holding a monitor is unmounted like
+ * any other, and JFR no longer reports jdk.VirtualThreadPinned for it; on the JDK this project
+ * builds with, the event is only emitted for native frames and class initialisation. A recording
+ * therefore can't tell whether Qlue holds monitors, so the places that used to hold them are
+ * probed directly: the code under test calls {@link #probe}, which blocks on network I/O there, the
+ * way rendering or SMTP would, and checks with {@link Thread#holdsLock} that none of the objects
+ * Qlue used to synchronise on is locked. The recording stays, for the pinning JFR can still see.
+ *
+ * <p>Tagged so that it runs in the virtualThreadTest task rather than in test; see build.gradle.
+ */
+@Tag("virtualThreads")
+public class VirtualThreadPinningTest {
+
+    public static final String PERSISTENT_PAGE = "persistent page";
+
+    static final String ADMIN_EMAIL = "admin email";
+
+    static final String COMMAND_OBJECT = "getCommandObject";
+
+    static final String STORE_PAGE = "storePage";
+
+    private static final int CONCURRENT_REQUESTS = 64;
+
+    // What each probe found, by where it was; an empty string means nothing.
+    private static final Map<String, String> probes = new ConcurrentHashMap<>();
+
+    @TempDir
+    static Path docBase;
+
+    static Tomcat tomcat;
+
+    static int port;
+
+    static QlueApplication app;
+
+    @BeforeAll
+    static void startTomcat() throws Exception {
+        Path webInf = Files.createDirectories(docBase.resolve("WEB-INF"));
+        Files.writeString(webInf.resolve(QlueApplication.PROPERTIES_FILENAME),
+                "qlue.adminEmail=admin@example.com\n" + "qlue.urgentEmail=urgent@example.com\n");
+
+        app = new QlueApplication(smoke.class.getPackageName()) {
+            @Override
+            public EmailSender getEmailSender() {
+                return email -> {
+                    probe(ADMIN_EMAIL, null, this);
+                    return null;
+                };
+            }
+        };
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(Files.createDirectories(docBase.resolve("tomcat-base")).toString());
+        tomcat.setPort(0);
+        tomcat.getConnector().setProperty("address", "127.0.0.1");
+        tomcat.getConnector().setProperty("useVirtualThreads", "true");
+
+        QlueServlet servlet = new QlueServlet() {
+            @Override
+            protected void createApplicationObject() {
+                setApp(app);
+            }
+        };
+
+        Context context = tomcat.addContext("", docBase.toString());
+        Tomcat.addServlet(context, "qlue", servlet);
+        context.addServletMappingDecoded("/*", "qlue");
+
+        tomcat.start();
+        port = tomcat.getConnector().getLocalPort();
+    }
+
+    @AfterAll
+    static void stopTomcat() throws Exception {
+        if (tomcat != null) {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    public static class CommandPage extends Page {
+
+        @Override
+        protected void determineCommandObject() {
+            probe(COMMAND_OBJECT, null, this);
+            super.determineCommandObject();
+        }
+    }
+
+    public static class StoredPage extends Page {
+
+        private final QluePageManager manager;
+
+        StoredPage(QluePageManager manager) {
+            this.manager = manager;
+        }
+
+        @Override
+        public void cleanup() {
+            probe(STORE_PAGE, null, manager);
+        }
+    }
+
+    /**
+     * Probes a page that Qlue is processing. A persistent page must be processed under its lock,
+     * but neither under its monitor nor under the application's.
+     */
+    public static void probePage(String where, Page page) {
+        probe(where, page.isPersistent() ? page.getServiceLock() : null, page, page.getApp());
+    }
+
+    /**
+     * Blocks on network I/O, and records whether the thread was virtual, whether it held the
+     * given lock (if any) and whether it held any of the given monitors.
+     */
+    static void probe(String where, ReentrantLock held, Object... monitors) {
+        StringBuilder problems = new StringBuilder();
+
+        if (!Thread.currentThread().isVirtual()) {
+            problems.append("not on a virtual thread; ");
+        }
+
+        try (InputStream in = URI.create("http://127.0.0.1:" + port + "/smoke").toURL().openStream()) {
+            in.readAllBytes();
+        } catch (IOException e) {
+            problems.append("I/O failed: ").append(e).append("; ");
+        }
+
+        if ((held != null) && !held.isHeldByCurrentThread()) {
+            problems.append("the lock wasn't held; ");
+        }
+
+        for (Object monitor : monitors) {
+            if (Thread.holdsLock(monitor)) {
+                problems.append("held the monitor of ").append(monitor.getClass().getName()).append("; ");
+            }
+        }
+
+        probes.put(where, problems.toString());
+    }
+
+    @Test
+    public void persistentPagesAreProcessedUnderTheirLockAlone() throws Exception {
+        try (HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build()) {
+            assertEquals(200, client.send(request("/wizard"), HttpResponse.BodyHandlers.ofString()).statusCode());
+        }
+
+        assertProbed(PERSISTENT_PAGE);
+    }
+
+    @Test
+    public void adminEmailIsSentWithoutAMonitor() throws Exception {
+        try (HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build()) {
+            assertEquals(500, client.send(request("/failure"), HttpResponse.BodyHandlers.ofString()).statusCode());
+        }
+
+        assertProbed(ADMIN_EMAIL);
+    }
+
+    @Test
+    public void commandObjectIsDeterminedWithoutAMonitor() throws Exception {
+        CommandPage page = new CommandPage();
+
+        onVirtualThread(page::getCommandObject);
+
+        assertProbed(COMMAND_OBJECT);
+    }
+
+    @Test
+    public void evictedPagesAreCleanedUpWithoutAMonitor() throws Exception {
+        QluePageManager manager = new QluePageManager();
+
+        // Page IDs are random, and a colliding one replaces a page rather than adding
+        // one, so the exact number of pages it takes to evict one isn't known.
+        onVirtualThread(() -> {
+            for (int i = 0; (i < 1000) && !probes.containsKey(STORE_PAGE); i++) {
+                manager.storePage(new StoredPage(manager));
+            }
+
+            return null;
+        });
+
+        assertProbed(STORE_PAGE);
+    }
+
+    @Test
+    public void requestsDoNotPinCarrierThreads() throws Exception {
+        try (HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build()) {
+            // One unrecorded round first. Class initialisation blocks while it runs, and
+            // that happens only once per class; it isn't what this test is looking for.
+            sendConcurrently(client);
+
+            Path dump = docBase.resolve("pinning.jfr");
+            try (Recording recording = new Recording()) {
+                recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+                recording.start();
+
+                sendConcurrently(client);
+
+                recording.stop();
+                recording.dump(dump);
+            }
+
+            List<RecordedEvent> pinned = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+                if (event.getEventType().getName().equals("jdk.VirtualThreadPinned")) {
+                    pinned.add(event);
+                }
+            }
+
+            if (!pinned.isEmpty()) {
+                fail(pinned.size() + " request(s) pinned their carrier thread; first at:\n" + describe(pinned.get(0)));
+            }
+        }
+    }
+
+    private static void assertProbed(String where) {
+        String problems = probes.get(where);
+        assertNotNull(problems, where + " was never probed");
+        assertEquals("", problems, where);
+    }
+
+    private static void onVirtualThread(Callable<?> task) throws Exception {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            executor.submit(task).get();
+        }
+    }
+
+    private void sendConcurrently(HttpClient client) throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> smokes = new ArrayList<>();
+        List<CompletableFuture<HttpResponse<String>>> devMode = new ArrayList<>();
+
+        for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+            smokes.add(client.sendAsync(request("/smoke"), HttpResponse.BodyHandlers.ofString()));
+            devMode.add(client.sendAsync(request("/_qlue/devMode"), HttpResponse.BodyHandlers.ofString()));
+        }
+
+        for (CompletableFuture<HttpResponse<String>> f : smokes) {
+            HttpResponse<String> response = f.get();
+            assertEquals(200, response.statusCode());
+            assertEquals(smoke.BODY, response.body());
+        }
+
+        for (CompletableFuture<HttpResponse<String>> f : devMode) {
+            assertTrue(f.get().statusCode() < 500);
+        }
+    }
+
+    private HttpRequest request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + path))
+                .timeout(Duration.ofSeconds(10))
+                .GET()
+                .build();
+    }
+
+    private static String describe(RecordedEvent event) {
+        if (event.getStackTrace() == null) {
+            return "  (no stack trace)";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+            sb.append("  ").append(frame.getMethod().getType().getName())
+                    .append('.').append(frame.getMethod().getName())
+                    .append(':').append(frame.getLineNumber()).append('\n');
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,19 @@
+package com.webkreator.qlue.cacheTestPages;
+
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.annotations.QlueCacheable;
+import com.webkreator.qlue.view.DefaultView;
+import com.webkreator.qlue.view.View;
+
+/**
+ * Fixture for {@link com.webkreator.qlue.ResponseCacheIntegrationTest}: a cacheable page whose
+ * template renders the session secret and the nonce, which belong to the transaction.
+ */
+@QlueCacheable(ttl = 60)
+public class personal extends Page {
+
+    @Override
+    public View onGet() throws Exception {
+        return new DefaultView();
+    }
+}
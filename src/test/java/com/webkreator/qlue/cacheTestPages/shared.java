@@ -0,0 +1,19 @@
+package com.webkreator.qlue.cacheTestPages;
+
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.annotations.QlueCacheable;
+import com.webkreator.qlue.view.DefaultView;
+import com.webkreator.qlue.view.View;
+
+/**
+ * Fixture for {@link com.webkreator.qlue.ResponseCacheIntegrationTest}: a cacheable page whose
+ * template renders the same thing for everyone.
+ */
+@QlueCacheable(ttl = 60)
+public class shared extends Page {
+
+    @Override
+    public View onGet() throws Exception {
+        return new DefaultView();
+    }
+}
@@ -0,0 +1,16 @@
+package com.webkreator.qlue.pinningTestPages;
+
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.view.View;
+
+/**
+ * Fixture for {@link com.webkreator.qlue.VirtualThreadPinningTest}: a page that fails, so that
+ * the application emails the administrators about it.
+ */
+public class failure extends Page {
+
+    @Override
+    public View onGet() throws Exception {
+        throw new IllegalStateException("Intentional failure");
+    }
+}
@@ -0,0 +1,21 @@
+package com.webkreator.qlue.pinningTestPages;
+
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.view.StringView;
+import com.webkreator.qlue.view.View;
+
+/**
+ * Fixture for {@link com.webkreator.qlue.VirtualThreadPinningTest}: the page its concurrent
+ * requests ask for, and the one its probes read from when they need to block on network I/O.
+ * Its body is a fixed string, the same trick {@code tomcatSmoke} uses in
+ * {@code TomcatIntegrationTest}.
+ */
+public class smoke extends Page {
+
+    public static final String BODY = "qlue-on-virtual-threads";
+
+    @Override
+    public View onGet() throws Exception {
+        return new StringView(BODY, "text/plain; charset=utf-8");
+    }
+}
@@ -0,0 +1,21 @@
+package com.webkreator.qlue.pinningTestPages;
+
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.VirtualThreadPinningTest;
+import com.webkreator.qlue.annotations.QluePersistentPage;
+import com.webkreator.qlue.view.StringView;
+import com.webkreator.qlue.view.View;
+
+/**
+ * Fixture for {@link com.webkreator.qlue.VirtualThreadPinningTest}: a persistent page, which
+ * Qlue processes while it holds the page's lock.
+ */
+@QluePersistentPage
+public class wizard extends Page {
+
+    @Override
+    public View onGet() throws Exception {
+        VirtualThreadPinningTest.probePage(VirtualThreadPinningTest.PERSISTENT_PAGE, this);
+        return new StringView("wizard", "text/plain; charset=utf-8");
+    }
+}
@@ -0,0 +1,191 @@
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.view.View;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Constant responses are sent instead of routing, so they must be given out only when the
+ * route they come from is the one that would have handled the request, and must be the same
+ * responses that the views would have produced.
+ */
+public class ConstantResponseTest {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    @Mock
+    HttpSession session;
+
+    QlueApplication app;
+
+    QlueRouteManager routeManager;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.getSession()).thenReturn(session);
+        when(request.getSession(true)).thenReturn(session);
+
+        app = new TestApplication();
+        routeManager = new QlueRouteManager(app);
+        routeManager.add(RouteFactory.create(routeManager, "@header Cache-Control no-cache"));
+        routeManager.add(RouteFactory.create(routeManager, "/legacy/page.php redirect:/pageOne 301"));
+        routeManager.add(RouteFactory.create(routeManager, "/gone status:410 Gone for good"));
+        routeManager.add(RouteFactory.create(routeManager, "/empty status:204"));
+        routeManager.add(RouteFactory.create(routeManager, "/folder/ redirect:/elsewhere/"));
+        routeManager.add(RouteFactory.create(routeManager, "POST /form status:202"));
+        routeManager.add(RouteFactory.create(routeManager, "/items/{id} redirect:/pageOne"));
+        routeManager.add(RouteFactory.create(routeManager, "/pageTwo com.webkreator.qlue.router.testPages.pageTwo"));
+        routeManager.add(RouteFactory.create(routeManager, "/pageTwo redirect:/pageOne"));
+        routeManager.add(RouteFactory.create(routeManager, "@header X-Nonce ${_qlue_nonce}"));
+        routeManager.add(RouteFactory.create(routeManager, "/dynamic redirect:/pageOne"));
+        routeManager.add(RouteFactory.create(routeManager, "/{} package:com.webkreator.qlue.router.testPages"));
+        routeManager.tuneRoutesForMethodNotFound();
+    }
+
+    public class TestApplication extends QlueApplication {
+
+        @Override
+        public String getPriorityTemplatePath() {
+            return "./src/test/java";
+        }
+    }
+
+    @Test
+    public void redirectionsCarryLocationAndHeaders() throws Exception {
+        ConstantResponse r = routeManager.findConstantResponse("/legacy/page.php", "GET");
+        Assert.assertNotNull(r);
+        Assert.assertTrue(r.isRedirection());
+
+        r.send(response);
+        verify(response).setStatus(301);
+        verify(response).setHeader("Location", "/pageOne");
+        verify(response).setHeader("Cache-Control", "no-cache");
+    }
+
+    @Test
+    public void statusResponsesMatchTheView() throws Exception {
+        ConstantResponse r = routeManager.findConstantResponse("/gone", "GET");
+        Assert.assertNotNull(r);
+        Assert.assertEquals(410, r.getStatus());
+        Assert.assertFalse(r.isRedirection());
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(new CapturingOutputStream(sent));
+        r.send(response);
+        verify(response).setContentType(View.CONTENT_TYPE_TEXT_HTML_UTF8);
+
+        // What the route would have produced through the view.
+        StringWriter rendered = new StringWriter();
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getRequestURI()).thenReturn("/gone");
+        when(response.getWriter()).thenReturn(new PrintWriter(rendered));
+        TransactionContext context = new TransactionContext(app, servletConfig, servletContext, request, response);
+        ((View) routeManager.route(context)).render(context, null);
+        response.getWriter().flush();
+
+        Assert.assertEquals(rendered.toString(), new String(sent.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertTrue(rendered.toString().contains("Gone for good"));
+    }
+
+    @Test
+    public void noContentHasNoBody() throws Exception {
+        ConstantResponse r = routeManager.findConstantResponse("/empty", "GET");
+        Assert.assertNotNull(r);
+        r.send(response);
+        verify(response).setStatus(204);
+        verify(response, org.mockito.Mockito.never()).getOutputStream();
+    }
+
+    @Test
+    public void requestsOtherRoutesMightHandleAreRoutedAsUsual() {
+        // A page route comes first.
+        Assert.assertNull(routeManager.findConstantResponse("/pageTwo", "GET"));
+
+        // The package route.
+        Assert.assertNull(routeManager.findConstantResponse("/pageOne", "GET"));
+
+        // Folder without a trailing slash gets a different redirection.
+        Assert.assertNull(routeManager.findConstantResponse("/folder", "GET"));
+        Assert.assertNotNull(routeManager.findConstantResponse("/folder/", "GET"));
+
+        // Method not allowed.
+        Assert.assertNull(routeManager.findConstantResponse("/form", "GET"));
+        Assert.assertNotNull(routeManager.findConstantResponse("/form", "POST"));
+    }
+
+    @Test
+    public void routesWithParametersOrDynamicHeadersAreNotConstant() {
+        Assert.assertNull(routeManager.findConstantResponse("/items/1", "GET"));
+        Assert.assertNull(routeManager.findConstantResponse("/dynamic", "GET"));
+    }
+
+    @Test
+    public void constantResponsesAreCounted() {
+        routeManager.findConstantResponse("/legacy/page.php", "HEAD");
+        routeManager.findConstantResponse("/legacy/page.php", "GET");
+
+        Route route = routeManager.getRoutes().get(1);
+        Assert.assertEquals(2, route.getHits());
+        Assert.assertEquals(2, route.getRedirections());
+        Assert.assertEquals(2, routeManager.getRoutingMetrics().getMatched());
+    }
+
+    private static class CapturingOutputStream extends ServletOutputStream {
+
+        private final ByteArrayOutputStream out;
+
+        CapturingOutputStream(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        @Override
+        public void write(int b) {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            out.write(b, off, len);
+        }
+    }
+}
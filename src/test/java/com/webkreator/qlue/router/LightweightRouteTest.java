@@ -0,0 +1,171 @@
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.QlueApplication;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Static files are served before a transaction context is created, but only when
+ * the static route is certain to be the one that handles the request. Everything
+ * else, including the unusual cases a static route handles itself (redirections
+ * for directories, invalid paths), must be left to routing, untouched.
+ */
+public class LightweightRouteTest {
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    QlueApplication app;
+
+    QlueRouteManager routeManager;
+
+    File directory;
+
+    ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+        when(response.getOutputStream()).thenReturn(new CapturingOutputStream(sent));
+
+        directory = Files.createTempDirectory("qlue-static").toFile();
+        write(new File(directory, "app.css"), "body{}");
+        new File(directory, "sub").mkdir();
+        write(new File(directory, "sub/index.html"), "<p>");
+        new File(directory, "empty").mkdir();
+
+        app = new TestApplication();
+        routeManager = new QlueRouteManager(app);
+        routeManager.add(RouteFactory.create(routeManager, "@header Cache-Control public"));
+        routeManager.add(RouteFactory.create(routeManager, "/assets/{} static:" + directory.getAbsolutePath()));
+        routeManager.add(RouteFactory.create(routeManager, "@header X-Nonce ${_qlue_nonce}"));
+        routeManager.add(RouteFactory.create(routeManager, "/private/{} static:" + directory.getAbsolutePath()));
+        routeManager.add(RouteFactory.create(routeManager, "/{} package:com.webkreator.qlue.router.testPages"));
+    }
+
+    @After
+    public void tearDown() {
+        new File(directory, "app.css").delete();
+        new File(directory, "sub/index.html").delete();
+        new File(directory, "sub").delete();
+        new File(directory, "empty").delete();
+        directory.delete();
+    }
+
+    public class TestApplication extends QlueApplication {
+
+        @Override
+        public String getPriorityTemplatePath() {
+            return "./src/test/java";
+        }
+    }
+
+    @Test
+    public void filesAreServedWithRouteHeaders() throws Exception {
+        Assert.assertTrue(routeManager.serveWithoutContext("/assets/app.css", request, response));
+
+        verify(response).setContentType("text/css");
+        verify(response).setContentLength(6);
+        verify(response).setHeader("Cache-Control", "public");
+        Assert.assertEquals("body{}", new String(sent.toByteArray(), StandardCharsets.UTF_8));
+
+        Assert.assertEquals(1, routeManager.getRoutes().get(1).getHits());
+        Assert.assertEquals(1, routeManager.getRoutingMetrics().getMatched());
+    }
+
+    @Test
+    public void directoriesWithTrailingSlashGetTheirIndex() throws Exception {
+        Assert.assertTrue(routeManager.serveWithoutContext("/assets/sub/", request, response));
+        Assert.assertEquals("<p>", new String(sent.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void unusualRequestsAreLeftToRouting() throws Exception {
+        // Missing files, which may be handled by later routes.
+        assertUntouched("/assets/missing.css");
+
+        // Directories without a trailing slash, or without an index.
+        assertUntouched("/assets/sub");
+        assertUntouched("/assets/empty/");
+        assertUntouched("/assets");
+
+        // Paths that routing rejects.
+        assertUntouched("/assets/WEB-INF/web.xml");
+
+        // Requests for other routes.
+        assertUntouched("/pageOne");
+    }
+
+    @Test
+    public void routesAfterDynamicHeadersAreNotLightweight() throws Exception {
+        assertUntouched("/private/app.css");
+    }
+
+    @Test
+    public void lightweightRoutesCanBeDisabled() throws Exception {
+        routeManager.setLightweightRoutes(false);
+        assertUntouched("/assets/app.css");
+    }
+
+    private void assertUntouched(String uri) throws Exception {
+        Assert.assertFalse(uri, routeManager.serveWithoutContext(uri, request, response));
+        verify(response, never()).setHeader(anyString(), anyString());
+        verify(response, never()).setStatus(org.mockito.ArgumentMatchers.anyInt());
+        verify(response, never()).getOutputStream();
+    }
+
+    private static void write(File file, String text) throws Exception {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class CapturingOutputStream extends ServletOutputStream {
+
+        private final ByteArrayOutputStream out;
+
+        CapturingOutputStream(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        @Override
+        public void write(int b) {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            out.write(b, off, len);
+        }
+    }
+}
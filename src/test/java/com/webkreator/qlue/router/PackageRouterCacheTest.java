@@ -0,0 +1,160 @@
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.view.RedirectView;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Package routes remember how paths resolved, so these cases check that remembered
+ * outcomes are the same as freshly worked out ones, and that the cache stays within
+ * its limit and is not used at all when it has been disabled.
+ */
+public class PackageRouterCacheTest {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    @Mock
+    HttpSession session;
+
+    TestApplication app;
+
+    QlueRouteManager routeManager;
+
+    PackageRouter router;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.getSession()).thenReturn(session);
+        when(request.getSession(true)).thenReturn(session);
+
+        app = new TestApplication();
+        routeManager = new QlueRouteManager(app);
+        routeManager.add(RouteFactory.create(routeManager, "/{} package:com.webkreator.qlue.router.testPages"));
+        router = (PackageRouter) routeManager.getRoutes().get(0).getRouter();
+    }
+
+    public class TestApplication extends QlueApplication {
+
+        int routerCacheSize = 100;
+
+        @Override
+        public String getPriorityTemplatePath() {
+            return "./src/test/java";
+        }
+
+        @Override
+        public int getRouterCacheSize() {
+            return routerCacheSize;
+        }
+    }
+
+    private Object route(String path) throws Exception {
+        when(request.getRequestURI()).thenReturn(path);
+
+        TransactionContext context = new TransactionContext(
+                app,
+                servletConfig,
+                servletContext,
+                request,
+                response);
+
+        return routeManager.route(context);
+    }
+
+    @Test
+    public void cachedPagesAreNewInstances() throws Exception {
+        Object first = route("/pageOne");
+        Object second = route("/pageOne");
+
+        Assert.assertTrue(first instanceof com.webkreator.qlue.router.testPages.pageOne);
+        Assert.assertTrue(second instanceof com.webkreator.qlue.router.testPages.pageOne);
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(1, router.getResolutionCacheCount());
+    }
+
+    @Test
+    public void missesAreRemembered() throws Exception {
+        Assert.assertNull(route("/doesNotExist"));
+        Assert.assertEquals(1, router.getResolutionCacheCount());
+        Assert.assertNull(route("/doesNotExist"));
+        Assert.assertEquals(1, router.getResolutionCacheCount());
+    }
+
+    @Test
+    public void redirectionsAreRemembered() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            Object o = route("/subdir");
+            Assert.assertTrue(o instanceof RedirectView);
+            Assert.assertEquals("/subdir/", ((RedirectView) o).getUri());
+
+            o = route("/subdir/index");
+            Assert.assertTrue(o instanceof RedirectView);
+            Assert.assertEquals("/subdir/", ((RedirectView) o).getUri());
+        }
+
+        Assert.assertEquals(2, router.getResolutionCacheCount());
+    }
+
+    @Test
+    public void convertedDashesShareEntries() throws Exception {
+        routeManager.setConcertDashesToUnderscores(true);
+
+        Assert.assertTrue(route("/page-three") instanceof com.webkreator.qlue.router.testPages.page_three);
+        Assert.assertTrue(route("/page_three") instanceof com.webkreator.qlue.router.testPages.page_three);
+        Assert.assertEquals(1, router.getResolutionCacheCount());
+    }
+
+    @Test
+    public void cacheStaysWithinItsLimit() throws Exception {
+        app.routerCacheSize = 3;
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNull(route("/missing" + i));
+            Assert.assertTrue(router.getResolutionCacheCount() <= 3);
+        }
+    }
+
+    @Test
+    public void disabledCacheIsEmptied() throws Exception {
+        route("/pageOne");
+        Assert.assertEquals(1, router.getResolutionCacheCount());
+
+        app.routerCacheSize = 0;
+
+        Assert.assertTrue(route("/pageOne") instanceof com.webkreator.qlue.router.testPages.pageOne);
+        Assert.assertEquals(0, router.getResolutionCacheCount());
+    }
+
+    @Test
+    public void cachesCanBeCleared() throws Exception {
+        route("/pageOne");
+        route("/pageTwo");
+        Assert.assertEquals(2, router.getResolutionCacheCount());
+
+        routeManager.clearResolutionCaches();
+        Assert.assertEquals(0, router.getResolutionCacheCount());
+    }
+}
@@ -0,0 +1,175 @@
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.view.RedirectView;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * A scanned package router must resolve every path exactly as one that looks for pages
+ * on the classpath on each request, without actually going to the class loader.
+ */
+public class PackageRouterScanTest {
+
+    private static final String[] PATHS = {
+            "/", "/index", "/pageOne", "/pageOne/", "/pageOne.html", "/PAGEONE", "/pageTwo",
+            "/page_three", "/page-three", "/$pageFour", "/subdir", "/subdir/", "/subdir/index",
+            "/subdir/$pageFour", "/$subdir/index", "/$api/Update", "/subdir.index", "/subdir//",
+            "//pageOne", "/redirSubdir", "/redirSubdir/", "/noRedirSubdir/", "/missing",
+            "/subdir/missing", "/tomcatSmoke" };
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    @Mock
+    HttpSession session;
+
+    QlueApplication app;
+
+    QlueRouteManager plainManager;
+
+    QlueRouteManager scannedManager;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.getSession()).thenReturn(session);
+        when(request.getSession(true)).thenReturn(session);
+
+        app = new TestApplication();
+
+        plainManager = new QlueRouteManager(app);
+        plainManager.add(RouteFactory.create(plainManager, "/{} package:com.webkreator.qlue.router.testPages"));
+
+        scannedManager = new QlueRouteManager(app);
+        scannedManager.add(RouteFactory.create(scannedManager, "/{} package:com.webkreator.qlue.router.testPages"));
+        scannedManager.scanPackages();
+    }
+
+    public class TestApplication extends QlueApplication {
+
+        @Override
+        public String getPriorityTemplatePath() {
+            return "./src/test/java";
+        }
+
+        @Override
+        public int getRouterCacheSize() {
+            return 0;
+        }
+    }
+
+    private String route(QlueRouteManager manager, String path) throws Exception {
+        return route(manager, path, Thread.currentThread().getContextClassLoader());
+    }
+
+    private String route(QlueRouteManager manager, String path, ClassLoader classLoader) throws Exception {
+        when(request.getRequestURI()).thenReturn(path);
+
+        TransactionContext context = new TransactionContext(
+                app,
+                servletConfig,
+                servletContext,
+                request,
+                response);
+
+        Thread thread = Thread.currentThread();
+        ClassLoader original = thread.getContextClassLoader();
+        thread.setContextClassLoader(classLoader);
+
+        Object o;
+        try {
+            o = manager.route(context);
+        } finally {
+            thread.setContextClassLoader(original);
+        }
+
+        if (o == null) {
+            return "null";
+        } else if (o instanceof RedirectView) {
+            return "redirect " + ((RedirectView) o).getUri();
+        } else {
+            return o.getClass().getName();
+        }
+    }
+
+    @Test
+    public void pathsLeadingToPagesAreResolvedInAdvance() {
+        PackageRouter router = (PackageRouter) scannedManager.getRoutes().get(0).getRouter();
+        Assert.assertTrue(router.getScannedPathCount() > 0);
+    }
+
+    @Test
+    public void scannedRouterAgreesWithPlainRouter() throws Exception {
+        for (boolean convertDashes : new boolean[] { false, true }) {
+            plainManager.setConcertDashesToUnderscores(convertDashes);
+            scannedManager.setConcertDashesToUnderscores(convertDashes);
+
+            for (String path : PATHS) {
+                Assert.assertEquals(path, route(plainManager, path), route(scannedManager, path));
+            }
+        }
+    }
+
+    @Test
+    public void scannedRouterDoesNotUseTheClassLoader() throws Exception {
+        ClassLoader failing = new ClassLoader(null) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) {
+                throw new AssertionError("Class loader used for " + name);
+            }
+        };
+
+        for (String path : PATHS) {
+            Assert.assertEquals(path, route(plainManager, path), route(scannedManager, path, failing));
+        }
+    }
+
+    @Test
+    public void developmentModeLooksForPagesAddedSinceTheScan() throws Exception {
+        QlueRouteManager developmentManager = new QlueRouteManager(app) {
+            @Override
+            public boolean isDevelopmentMode() {
+                return true;
+            }
+        };
+        developmentManager.add(RouteFactory.create(developmentManager, "/{} package:com.webkreator.qlue.router.testPages"));
+        developmentManager.scanPackages();
+
+        List<String> loaded = new ArrayList<>();
+        ClassLoader recording = new ClassLoader(Thread.currentThread().getContextClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                loaded.add(name);
+                return super.loadClass(name, resolve);
+            }
+        };
+
+        // The scan resolved /subdir to a redirection, but a page by that name may have been added since.
+        Assert.assertEquals(route(plainManager, "/subdir"), route(developmentManager, "/subdir", recording));
+        Assert.assertTrue(loaded.toString(), loaded.contains("com.webkreator.qlue.router.testPages.subdir"));
+    }
+}
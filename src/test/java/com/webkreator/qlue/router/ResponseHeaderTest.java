@@ -0,0 +1,160 @@
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Header values are compiled when routes are loaded and resolved from the transaction
+ * when needed, so these cases check that the results are those the variable expander
+ * used to produce on every request, and that routing hands the transaction the headers
+ * configured above the matching route, as invoking the header routes one by one did.
+ */
+public class ResponseHeaderTest {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    @Mock
+    HttpSession session;
+
+    QlueApplication app;
+
+    QlueRouteManager routeManager;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.getSession()).thenReturn(session);
+        when(request.getSession(true)).thenReturn(session);
+
+        app = new TestApplication();
+        routeManager = new QlueRouteManager(app);
+        routeManager.add(RouteFactory.create(routeManager, "@header Cache-Control no-cache"));
+        routeManager.add(RouteFactory.create(routeManager, "@header Content-Security-Policy script-src 'nonce-${_qlue_nonce}'"));
+        routeManager.add(RouteFactory.create(routeManager, "@header X-Removed yes"));
+        routeManager.add(RouteFactory.create(routeManager, "/pageOne com.webkreator.qlue.router.testPages.pageOne"));
+        routeManager.add(RouteFactory.create(routeManager, "@header X-Removed"));
+        routeManager.add(RouteFactory.create(routeManager, "@header Cache-Control no-store"));
+        routeManager.add(RouteFactory.create(routeManager, "@header X-User user=${_qlue_userId};x=${unknown}"));
+        routeManager.add(RouteFactory.create(routeManager, "/{} package:com.webkreator.qlue.router.testPages"));
+    }
+
+    public class TestApplication extends QlueApplication {
+
+        @Override
+        public String getPriorityTemplatePath() {
+            return "./src/test/java";
+        }
+    }
+
+    private TransactionContext createContext(String path) throws Exception {
+        when(request.getRequestURI()).thenReturn(path);
+        return new TransactionContext(app, servletConfig, servletContext, request, response);
+    }
+
+    @Test
+    public void staticValuesAreUsedAsIs() throws Exception {
+        ResponseHeader header = ResponseHeader.compile("Cache-Control", "no-cache");
+
+        Assert.assertTrue(header.isStatic());
+        Assert.assertEquals("no-cache", header.resolve(createContext("/")));
+    }
+
+    @Test
+    public void placeholdersAreResolvedFromTheTransaction() throws Exception {
+        TransactionContext context = createContext("/");
+        context.setUserId("alice");
+        context.getProperties().setProperty("custom", "[${_qlue_userId}]");
+
+        ResponseHeader header = ResponseHeader.compile("X", "a ${_qlue_nonce} b ${_qlue_userId} c ${custom} d ${missing}${}");
+
+        Assert.assertFalse(header.isStatic());
+        Assert.assertEquals("a " + context.getNonce() + " b alice c [alice] d ", header.resolve(context));
+    }
+
+    @Test
+    public void unterminatedPlaceholdersAreLiteral() throws Exception {
+        ResponseHeader header = ResponseHeader.compile("X", "a ${b");
+
+        Assert.assertTrue(header.isStatic());
+        Assert.assertEquals("a ${b", header.resolve(createContext("/")));
+    }
+
+    @Test
+    public void valuesMatchTheVariableExpander() throws Exception {
+        TransactionContext context = createContext("/");
+        context.setUserId("bob");
+
+        String[] values = { "plain", "${_qlue_nonce}", "x${_qlue_userId}y${_qlue_nonce}z", "${nothing}", "${_qlue_publicSessionId}" };
+        for (String value : values) {
+            Assert.assertEquals(value,
+                    com.webkreator.qlue.util.VariableExpander.expand(value, context.getProperties(), true),
+                    ResponseHeader.compile("X", value).resolve(context));
+        }
+    }
+
+    @Test
+    public void routedHeadersAreThoseAboveTheMatchingRoute() throws Exception {
+        for (String path : new String[] { "/pageOne", "/pageTwo", "/missing" }) {
+            TransactionContext linear = createContext(path);
+            routeManager.routeLinearly(linear);
+            Map<String, String> expected = new HashMap<>(linear.getResponseHeaders());
+
+            TransactionContext indexed = createContext(path);
+            routeManager.route(indexed);
+            Map<String, String> actual = new HashMap<>(indexed.getResponseHeaders());
+
+            // The nonce differs between transactions.
+            expected.computeIfPresent("Content-Security-Policy", (k, v) -> v.replace(linear.getNonce(), "N"));
+            actual.computeIfPresent("Content-Security-Policy", (k, v) -> v.replace(indexed.getNonce(), "N"));
+
+            Assert.assertEquals(path, expected, actual);
+        }
+
+        TransactionContext context = createContext("/pageOne");
+        routeManager.route(context);
+        Assert.assertEquals("no-cache", context.getResponseHeaders().get("Cache-Control"));
+        Assert.assertEquals("yes", context.getResponseHeaders().get("X-Removed"));
+
+        context = createContext("/pageTwo");
+        routeManager.route(context);
+        Assert.assertEquals("no-store", context.getResponseHeaders().get("Cache-Control"));
+        Assert.assertFalse(context.getResponseHeaders().containsKey("X-Removed"));
+        Assert.assertEquals("user=;x=", context.getResponseHeaders().get("X-User"));
+    }
+
+    @Test
+    public void headersSetDirectlyTakePrecedence() throws Exception {
+        TransactionContext context = createContext("/pageOne");
+        routeManager.route(context);
+        context.setResponseHeader("Cache-Control", "private");
+        context.setResponseHeader("X-Removed", null);
+
+        Assert.assertEquals("private", context.getResponseHeaders().get("Cache-Control"));
+        Assert.assertFalse(context.getResponseHeaders().containsKey("X-Removed"));
+    }
+}
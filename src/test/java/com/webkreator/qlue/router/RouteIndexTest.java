@@ -0,0 +1,205 @@
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import com.webkreator.qlue.view.RedirectView;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * The route index must only ever narrow down the routes that are tried, never change the
+ * outcome, so these cases route the same URIs with and without it and compare the results.
+ * The routes are those from TestRouting, plus a few that exercise literal prefixes that end
+ * part way through a segment, named parameters with custom patterns, "/?" and 405 handling.
+ */
+public class RouteIndexTest {
+
+    private static final String[] METHODS = { "GET", "POST", "PUT" };
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    @Mock
+    HttpSession session;
+
+    QlueApplication app;
+
+    QlueRouteManager routeManager;
+
+    List<String> uris = new ArrayList<>(Arrays.asList(
+            "", "/", "/index", "/pageOne", "/pageOne.html", "/PAGEONE", "/pageTwo", "/page_three",
+            "/page-three", "/$pageFour", "/subdir", "/subdir/", "/subdir/index", "/subdir/$pageFour",
+            "/$subdir/index", "/api/update", "/api/update/", "/api/updates", "/api",
+            "/noRedirSubdir", "/noRedirSubdir/", "/noRedirSubdirX", "/noRedirSubdir/index",
+            "/redirSubdir", "/redirSubdir/", "/redirSubdir/index", "/redirSubdirX",
+            "/items/1", "/items/1/", "/items/", "/items", "/itemsX/1", "/files/42.txt",
+            "/files/x.txt", "/files/42.txtx", "/old", "/old/", "/older", "/gone", "/gone/x",
+            "/exact", "/exactly", "/exac", "/exact/", "//", "/a//b", "pageOne"));
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.getSession()).thenReturn(session);
+        when(request.getSession(true)).thenReturn(session);
+
+        app = new TestApplication();
+        routeManager = new QlueRouteManager(app);
+        routeManager.add(RouteFactory.create(routeManager, "GET /items/{id} com.webkreator.qlue.router.testPages.pageOne"));
+        routeManager.add(RouteFactory.create(routeManager, "/files/{<[0-9]+>n}.txt com.webkreator.qlue.router.testPages.pageTwo"));
+        routeManager.add(RouteFactory.create(routeManager, "/old/ redirect:/new/"));
+        routeManager.add(RouteFactory.create(routeManager, "/gone/?{} status:410"));
+        routeManager.add(RouteFactory.create(routeManager, "/exact com.webkreator.qlue.router.testPages.page_three"));
+        routeManager.add(RouteFactory.create(routeManager, "POST /api/update com.webkreator.qlue.router.testPages.$api.Update"));
+        routeManager.add(RouteFactory.create(routeManager, "/noRedirSubdir/?{} package:com.webkreator.qlue.router.testPages.noRedirSubdir"));
+        routeManager.add(RouteFactory.create(routeManager, "/redirSubdir/{} package:com.webkreator.qlue.router.testPages.redirSubdir"));
+        routeManager.add(RouteFactory.create(routeManager, "/{} package:com.webkreator.qlue.router.testPages"));
+        routeManager.tuneRoutesForMethodNotFound();
+
+        // Random URIs built from the bits the routes are made of.
+        String[] pieces = { "/", "/", "api", "update", "items", "1", "files", "42.txt", "old",
+                "gone", "exact", "subdir", "index", "pageOne", "noRedirSubdir", "redirSubdir", "x" };
+        Random random = new Random(11);
+        for (int i = 0; i < 500; i++) {
+            StringBuilder sb = new StringBuilder();
+            int count = random.nextInt(6);
+            for (int j = 0; j < count; j++) {
+                sb.append(pieces[random.nextInt(pieces.length)]);
+            }
+
+            uris.add(sb.toString());
+        }
+    }
+
+    public class TestApplication extends QlueApplication {
+
+        @Override
+        public String getPriorityTemplatePath() {
+            return "./src/test/java";
+        }
+    }
+
+    @Test
+    public void literalPrefixStopsAtTheFirstParameter() {
+        Assert.assertEquals("/items", prefix("/items/{id}"));
+        Assert.assertEquals("/files", prefix("/files/{<[0-9]+>n}.txt"));
+        Assert.assertEquals("/a/b", prefix("/a/b{x}"));
+    }
+
+    @Test
+    public void literalPrefixDropsOptionalTrailingSlash() {
+        Assert.assertEquals("/old", prefix("/old/"));
+        Assert.assertEquals("/old", prefix("/old/?"));
+        Assert.assertEquals("/gone", prefix("/gone/?{}"));
+        Assert.assertEquals("", prefix("/{}"));
+        Assert.assertEquals("/exact", prefix("/exact"));
+    }
+
+    @Test
+    public void metaRoutesHaveNoLiteralPrefix() {
+        Route route = new Route(null, null, null, routeManager);
+        Assert.assertNull(route.getLiteralPrefix());
+    }
+
+    @Test
+    public void candidatesIncludeEveryRouteWhosePathMatches() {
+        RouteIndex index = new RouteIndex(routeManager.getRoutes());
+        List<Route> routes = routeManager.getRoutes();
+
+        for (String uri : uris) {
+            int[] candidates = index.candidates(uri);
+            for (int i = 1; i < candidates.length; i++) {
+                Assert.assertTrue(candidates[i - 1] < candidates[i]);
+            }
+
+            for (int i = 0; i < routes.size(); i++) {
+                if (routes.get(i).matchesPath(uri)) {
+                    Assert.assertTrue("Route " + routes.get(i).getPath() + " missing for " + uri,
+                            Arrays.binarySearch(candidates, i) >= 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void indexedRoutingAgreesWithLinearRouting() throws Exception {
+        for (String method : METHODS) {
+            for (String uri : uris) {
+                for (String queryString : new String[] { null, "x=y" }) {
+                    TransactionContext linear = createContext(method, uri, queryString);
+                    String expected = describe(routeManager.routeLinearly(linear), linear);
+
+                    TransactionContext indexed = createContext(method, uri, queryString);
+                    String actual = describe(routeManager.route(indexed), indexed);
+
+                    Assert.assertEquals(method + " " + uri, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void indexIsRebuiltWhenRoutesAreAdded() throws Exception {
+        Assert.assertTrue(routeManager.route(createContext("GET", "/pageOne", null))
+                instanceof com.webkreator.qlue.router.testPages.pageOne);
+
+        QlueRouteManager manager = new QlueRouteManager(app);
+        Assert.assertNull(manager.route(createContext("GET", "/pageOne", null)));
+
+        manager.add(RouteFactory.create(manager, "/{} package:com.webkreator.qlue.router.testPages"));
+        Assert.assertTrue(manager.route(createContext("GET", "/pageOne", null))
+                instanceof com.webkreator.qlue.router.testPages.pageOne);
+    }
+
+    private String prefix(String path) {
+        return new Route(null, path, null, routeManager).getLiteralPrefix();
+    }
+
+    private TransactionContext createContext(String method, String uri, String queryString) throws Exception {
+        when(request.getMethod()).thenReturn(method);
+        when(request.getRequestURI()).thenReturn(uri);
+        when(request.getQueryString()).thenReturn(queryString);
+
+        return new TransactionContext(app, servletConfig, servletContext, request, response);
+    }
+
+    private static String describe(Object o, TransactionContext context) {
+        if (o == null) {
+            return "null";
+        }
+
+        StringBuilder sb = new StringBuilder(o.getClass().getName());
+        if (o instanceof RedirectView) {
+            sb.append(' ').append(((RedirectView) o).getUri());
+        }
+
+        for (String name : new String[] { "id", "n", "pathSuffix" }) {
+            sb.append(' ').append(name).append('=').append(context.getUrlParameter(name));
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,147 @@
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Per-route counters and the routing metrics kept by the route manager: each outcome
+ * must be counted against the route that produced it, and only against that route.
+ */
+public class RouteStatisticsTest {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    @Mock
+    HttpSession session;
+
+    QlueApplication app;
+
+    QlueRouteManager routeManager;
+
+    List<Route> routes;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.getSession()).thenReturn(session);
+        when(request.getSession(true)).thenReturn(session);
+
+        app = new TestApplication();
+        routeManager = new QlueRouteManager(app);
+        routeManager.add(RouteFactory.create(routeManager, "GET /items/{id} com.webkreator.qlue.router.testPages.pageOne"));
+        routeManager.add(RouteFactory.create(routeManager, "/old/ redirect:/new/"));
+        routeManager.add(RouteFactory.create(routeManager, "POST /api/update com.webkreator.qlue.router.testPages.$api.Update"));
+        routeManager.add(RouteFactory.create(routeManager, "/redirSubdir/{} package:com.webkreator.qlue.router.testPages.redirSubdir"));
+        routeManager.add(RouteFactory.create(routeManager, "/{} package:com.webkreator.qlue.router.testPages"));
+        routeManager.tuneRoutesForMethodNotFound();
+        routes = routeManager.getRoutes();
+    }
+
+    public class TestApplication extends QlueApplication {
+
+        @Override
+        public String getPriorityTemplatePath() {
+            return "./src/test/java";
+        }
+    }
+
+    @Test
+    public void hitsAreCountedAgainstTheMatchingRoute() throws Exception {
+        route("GET", "/items/1");
+        route("GET", "/items/2");
+        route("GET", "/pageOne");
+
+        Assert.assertEquals(2, routes.get(0).getHits());
+        Assert.assertEquals(1, routes.get(4).getHits());
+        Assert.assertEquals(0, routes.get(1).getHits());
+        Assert.assertEquals(0, routes.get(0).getRedirections());
+    }
+
+    @Test
+    public void redirectionsAreCounted() throws Exception {
+        route("GET", "/old/");
+        route("GET", "/redirSubdir");
+
+        Assert.assertEquals(1, routes.get(1).getHits());
+        Assert.assertEquals(1, routes.get(1).getRedirections());
+        Assert.assertEquals(1, routes.get(3).getHits());
+        Assert.assertEquals(1, routes.get(3).getRedirections());
+    }
+
+    @Test
+    public void methodNotAllowedIsNotAHit() throws Exception {
+        Assert.assertTrue(route("GET", "/api/update") instanceof StatusCodeRouter);
+
+        Assert.assertEquals(1, routes.get(2).getMethodNotAllowed());
+        Assert.assertEquals(0, routes.get(2).getHits());
+    }
+
+    @Test
+    public void routingMetricsCountMatchesAndMisses() throws Exception {
+        route("GET", "/items/1");
+        route("GET", "/pageOne");
+        Assert.assertNull(route("GET", "/noSuchPage"));
+
+        RoutingMetrics metrics = routeManager.getRoutingMetrics();
+        Assert.assertEquals(2, metrics.getMatched());
+        Assert.assertEquals(1, metrics.getUnmatched());
+        Assert.assertTrue(metrics.getRoutesTried() >= 2);
+        Assert.assertTrue(metrics.getUnmatchedRoutesTried() >= 1);
+
+        long total = 0;
+        for (long count : metrics.getBucketCounts()) {
+            total += count;
+        }
+
+        Assert.assertEquals(2, total);
+    }
+
+    @Test
+    public void routesTriedAreBucketed() {
+        RoutingMetrics metrics = new RoutingMetrics();
+        metrics.recordMatch(1, 0);
+        metrics.recordMatch(3, 0);
+        metrics.recordMatch(4, 0);
+        metrics.recordMatch(1000, 0);
+
+        long[] counts = metrics.getBucketCounts();
+        Assert.assertEquals(metrics.getBucketBounds().length + 1, counts.length);
+        Assert.assertEquals(1, counts[0]);
+        Assert.assertEquals(0, counts[1]);
+        Assert.assertEquals(2, counts[2]);
+        Assert.assertEquals(1, counts[counts.length - 1]);
+        Assert.assertEquals(1008, metrics.getRoutesTried());
+    }
+
+    private Object route(String method, String uri) throws Exception {
+        when(request.getMethod()).thenReturn(method);
+        when(request.getRequestURI()).thenReturn(uri);
+        when(request.getQueryString()).thenReturn(null);
+
+        return routeManager.route(new TransactionContext(app, servletConfig, servletContext, request, response));
+    }
+}
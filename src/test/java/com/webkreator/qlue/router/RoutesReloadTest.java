@@ -0,0 +1,188 @@
+package com.webkreator.qlue.router;
+
+import com.webkreator.qlue.QlueApplication;
+import com.webkreator.qlue.TransactionContext;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Reloading routes builds a new route table and swaps it in, so these cases check that
+ * the new routes are used once a reload succeeds, that the old ones stay when it doesn't,
+ * and that changes to the watched files are noticed.
+ */
+public class RoutesReloadTest {
+
+    @Mock
+    ServletConfig servletConfig;
+
+    @Mock
+    ServletContext servletContext;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    @Mock
+    HttpSession session;
+
+    QlueApplication app;
+
+    QlueRouteManager routeManager;
+
+    File directory;
+
+    File routesFile;
+
+    File propertiesFile;
+
+    RoutesReloader reloader;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(request.getSession()).thenReturn(session);
+        when(request.getSession(true)).thenReturn(session);
+
+        app = new TestApplication();
+        routeManager = new QlueRouteManager(app);
+
+        directory = Files.createTempDirectory("qlue-routes").toFile();
+        routesFile = new File(directory, "routes.conf");
+        propertiesFile = new File(directory, "qlue.properties");
+
+        write(propertiesFile, "page=pageOne\n");
+        write(routesFile, "/page com.webkreator.qlue.router.testPages.${page}\n");
+        routeManager.reload(routesFile, propertiesFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (reloader != null) {
+            reloader.close();
+        }
+
+        new File(directory, "routes.conf").delete();
+        new File(directory, "qlue.properties").delete();
+        directory.delete();
+    }
+
+    public class TestApplication extends QlueApplication {
+
+        @Override
+        public String getPriorityTemplatePath() {
+            return "./src/test/java";
+        }
+    }
+
+    private static void write(File file, String text) throws Exception {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Object route(String path) throws Exception {
+        when(request.getRequestURI()).thenReturn(path);
+
+        TransactionContext context = new TransactionContext(
+                app,
+                servletConfig,
+                servletContext,
+                request,
+                response);
+
+        return routeManager.route(context);
+    }
+
+    @Test
+    public void reloadReplacesTheRoutes() throws Exception {
+        Assert.assertTrue(route("/page") instanceof com.webkreator.qlue.router.testPages.pageOne);
+
+        List<Route> before = routeManager.getRoutes();
+
+        write(routesFile, "/page com.webkreator.qlue.router.testPages.pageTwo\n"
+                + "/three com.webkreator.qlue.router.testPages.page_three\n");
+        Assert.assertTrue(routeManager.reload(routesFile, propertiesFile));
+
+        Assert.assertTrue(route("/page") instanceof com.webkreator.qlue.router.testPages.pageTwo);
+        Assert.assertTrue(route("/three") instanceof com.webkreator.qlue.router.testPages.page_three);
+
+        // Tables are never changed, only replaced.
+        Assert.assertEquals(1, before.size());
+        Assert.assertEquals(2, routeManager.getRoutes().size());
+
+        Assert.assertEquals(2, routeManager.getReloadMetrics().getReloads());
+        Assert.assertEquals(2, routeManager.getReloadMetrics().getRouteCount());
+    }
+
+    @Test
+    public void failedReloadKeepsTheRoutes() throws Exception {
+        write(routesFile, "/page com.webkreator.qlue.router.testPages.pageTwo\n"
+                + "/broken\n");
+        Assert.assertFalse(routeManager.reload(routesFile, propertiesFile));
+
+        Assert.assertTrue(route("/page") instanceof com.webkreator.qlue.router.testPages.pageOne);
+        Assert.assertEquals(1, routeManager.getReloadMetrics().getFailures());
+        Assert.assertTrue(routeManager.getReloadMetrics().getLastFailure().contains("/broken"));
+    }
+
+    @Test
+    public void variablesComeFromThePropertiesFileAndDefines() throws Exception {
+        write(propertiesFile, "page=pageTwo\n");
+        Assert.assertTrue(routeManager.reload(routesFile, propertiesFile));
+        Assert.assertTrue(route("/page") instanceof com.webkreator.qlue.router.testPages.pageTwo);
+
+        write(routesFile, "@define page page_three\n"
+                + "/page com.webkreator.qlue.router.testPages.${page}\n");
+        Assert.assertTrue(routeManager.reload(routesFile, propertiesFile));
+        Assert.assertTrue(route("/page") instanceof com.webkreator.qlue.router.testPages.page_three);
+        Assert.assertEquals("page_three", app.getProperties().getProperty("page"));
+    }
+
+    @Test
+    public void reloadKeepsTheMethodNotFoundTuning() throws Exception {
+        write(routesFile, "POST /page com.webkreator.qlue.router.testPages.pageOne\n");
+        Assert.assertTrue(routeManager.reload(routesFile, propertiesFile));
+        routeManager.tuneRoutesForMethodNotFound();
+
+        when(request.getMethod()).thenReturn("GET");
+        Assert.assertTrue(route("/page") instanceof StatusCodeRouter);
+
+        write(routesFile, "POST /page com.webkreator.qlue.router.testPages.pageTwo\n");
+        Assert.assertTrue(routeManager.reload(routesFile, propertiesFile));
+        Assert.assertTrue(route("/page") instanceof StatusCodeRouter);
+
+        when(request.getMethod()).thenReturn("POST");
+        Assert.assertTrue(route("/page") instanceof com.webkreator.qlue.router.testPages.pageTwo);
+    }
+
+    @Test
+    public void changesAreNoticed() throws Exception {
+        reloader = new RoutesReloader(routeManager, routesFile, propertiesFile);
+        reloader.start();
+
+        write(routesFile, "/page com.webkreator.qlue.router.testPages.pageTwo\n");
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while ((routeManager.getReloadMetrics().getReloads() < 2) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(50);
+        }
+
+        Assert.assertTrue(route("/page") instanceof com.webkreator.qlue.router.testPages.pageTwo);
+    }
+}
@@ -0,0 +1,87 @@
+package com.webkreator.qlue.util;
+
+import com.webkreator.qlue.exceptions.BadRequestException;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * URI normalisation used to be delegated to java.net.URI; the hand-written normaliser must give
+ * the same results, and reject the same inputs, so most of these cases compare the two.
+ */
+public class WebUtilTest {
+
+    private static final String[] FRAGMENTS = {
+            "/", "/", "/", ".", "..", "%", "a", "b", "Z", "0", "-", "%2F", "%2f", "%2e", "%2E",
+            "%C3%A9", "%FF", "%e2%82", "%ac", "%4", "%g0", "%00", "%25", "?", "#", "[", "]",
+            " ", "\t", "\"", "<", "\\", "|", "\u0080", "\u00a0", "\u00e9", "\u4e2d", "\ud83d", "\ude00",
+            ";", ":", "@", "&", "=", "+", "$", ",", "~", "!", "*", "'", "(", ")", ".a", "a."
+    };
+
+    @Test
+    public void normalPathsAreReturnedAsTheyAre() {
+        for (String uri : new String[]{"/", "/index.html", "/a/b/", "/a/.b/c..", "/x;y=1/@~"}) {
+            assertSame(uri, WebUtil.normaliseUri(uri));
+        }
+    }
+
+    @Test
+    public void dotSegmentsAndSlashesAreResolved() {
+        assertEquals("/a/c", WebUtil.normaliseUri("/a/./b/../c"));
+        assertEquals("/a/", WebUtil.normaliseUri("//a//b/.."));
+        assertEquals("/../a", WebUtil.normaliseUri("/../a"));
+        assertEquals("/a", WebUtil.normaliseUri("a?b=/..#c"));
+        assertEquals("/a/b", WebUtil.normaliseUri("/a%2F%2Fb"));
+        assertEquals("/é", WebUtil.normaliseUri("/%C3%A9"));
+    }
+
+    @Test
+    public void invalidUrisAreRejected() {
+        assertThrows(BadRequestException.class, () -> WebUtil.normaliseUri("/a b"));
+        assertThrows(BadRequestException.class, () -> WebUtil.normaliseUri("/%4"));
+        assertThrows(BadRequestException.class, () -> WebUtil.normaliseUri("/a?b#c#d"));
+    }
+
+    @Test
+    public void resultsMatchTheUriBasedImplementation() {
+        Random random = new Random(2396);
+
+        for (int i = 0; i < 500000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(16);
+            for (int j = 0; j < length; j++) {
+                sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+
+            String uri = sb.toString();
+            assertEquals(normaliseWithUri(uri), normalise(uri), uri);
+        }
+    }
+
+    private static String normalise(String uri) {
+        try {
+            return WebUtil.normaliseUri(uri);
+        } catch (BadRequestException e) {
+            return "(rejected)";
+        }
+    }
+
+    /**
+     * The previous implementation, kept as the reference.
+     */
+    private static String normaliseWithUri(String uri) {
+        try {
+            uri = new URI("http://localhost/" + uri).normalize().getPath();
+        } catch (URISyntaxException e) {
+            return "(rejected)";
+        }
+
+        return uri.replaceAll("/{2,}", "/");
+    }
+}
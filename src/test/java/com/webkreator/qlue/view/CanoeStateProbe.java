@@ -73,6 +73,24 @@ public class CanoeStateProbe extends Canoe {
         return this;
     }
 
+    /**
+     * Feeds text through {@code processChar()} one character at a time, which is what
+     * {@code write()} did before it learned to skip inert runs in bulk, so that the two can be
+     * compared. Nothing reaches the underlying writer.
+     */
+    public CanoeStateProbe feedPerCharacter(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            processChar(text.charAt(i));
+        }
+
+        return this;
+    }
+
+    /** How many warnings this instance has logged. */
+    public int warnings() {
+        return warnings;
+    }
+
     /** Everything that reached the underlying writer. */
     public String output() {
         return sink.toString();
@@ -83,6 +101,21 @@ public class CanoeStateProbe extends Canoe {
         return state;
     }
 
+    /** The line error messages would report, starting at 1. */
+    public int line() {
+        return currentLine;
+    }
+
+    /** The position within the line error messages would report, starting at 1. */
+    public int pos() {
+        return currentPos;
+    }
+
+    /** Whether non-whitespace text has been written in the HTML state. */
+    public boolean textSeen() {
+        return textSeen;
+    }
+
     /** The state the parser will move to when the current tag closes. */
     public int nextState() {
         return nextState;
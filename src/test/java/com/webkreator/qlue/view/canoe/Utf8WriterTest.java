@@ -0,0 +1,162 @@
+package com.webkreator.qlue.view.canoe;
+
+import com.webkreator.qlue.view.Canoe;
+import com.webkreator.qlue.view.CanoeLiteralMemo;
+import com.webkreator.qlue.view.Utf8Writer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The byte-level writer a page is rendered into when it goes to the response's output stream: the
+ * bytes must be exactly the JDK's UTF-8 encoding of the text, however the text was split into
+ * writes, and they must reach the stream in few writes.
+ */
+public class Utf8WriterTest {
+
+    private static final long SEED = Long.getLong("canoe.fuzz.seed", 20260726L);
+
+    private static final String[] PIECES = {
+            "a", "<p>", "text ", "\n", "é", "ü", "€", "中", "😀", "\ud83d",
+            "\ude00", "\u007f", "\u0080", "߿", "ࠀ", "￿"
+    };
+
+    /**
+     * Counts the writes that reach it, which is what the container would see.
+     */
+    private static final class CountingStream extends ByteArrayOutputStream {
+
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+
+    @Test
+    public void bytesAreTheJdkEncodingWhateverTheWrites() throws IOException {
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int j = 0; j < length; j++) {
+                sb.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+
+            String text = sb.toString();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Utf8Writer writer = new Utf8Writer(out);
+
+            int pos = 0;
+            while (pos < text.length()) {
+                int len = Math.min(text.length() - pos, 1 + random.nextInt(5));
+                switch (random.nextInt(3)) {
+                    case 0:
+                        writer.write(text, pos, len);
+                        break;
+                    case 1:
+                        writer.write(text.toCharArray(), pos, len);
+                        break;
+                    default:
+                        for (int k = pos; k < pos + len; k++) {
+                            writer.write(text.charAt(k));
+                        }
+                }
+                pos += len;
+            }
+
+            writer.close();
+            assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), out.toByteArray(), text);
+        }
+    }
+
+    @Test
+    public void smallWritesReachTheStreamTogether() throws IOException {
+        CountingStream out = new CountingStream();
+        Utf8Writer writer = new Utf8Writer(out);
+
+        for (int i = 0; i < 1000; i++) {
+            writer.write("<td>");
+            writer.write(Integer.toString(i));
+            writer.write("</td>");
+        }
+        assertEquals(1, out.writes);
+
+        writer.flush();
+        assertEquals(2, out.writes);
+        writer.release();
+    }
+
+    @Test
+    public void encodedTextKeepsItsPlace() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8Writer writer = new Utf8Writer(out);
+        StringBuilder expected = new StringBuilder();
+
+        String small = "<li class=\"entry\">café</li>";
+        StringBuilder large = new StringBuilder();
+        while (large.length() <= Utf8Writer.BUFFER_SIZE) {
+            large.append("<p>static text</p>\n");
+        }
+
+        for (String text : new String[]{"x", small, "y", large.toString(), "z", small}) {
+            if (text.length() > 1) {
+                writer.writeUtf8(text.getBytes(StandardCharsets.UTF_8));
+            } else {
+                writer.write(text);
+            }
+            expected.append(text);
+        }
+
+        writer.close();
+        assertEquals(expected.toString(), out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void releaseThrowsAwayWhatWasNotWritten() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8Writer writer = new Utf8Writer(out);
+
+        writer.write("sent");
+        writer.flush();
+        writer.write("<img");
+        writer.release();
+        writer.release();
+
+        assertEquals("sent", out.toString(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> writer.write("more"));
+    }
+
+    @Test
+    public void replayedStaticTextIsTheParsedText() throws IOException {
+        CanoeLiteralMemo memo = new CanoeLiteralMemo();
+        String layout = "<html>\n<head><title>Café € 😀</title></head>\n<body>\n";
+
+        for (int render = 0; render < 3; render++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Utf8Writer writer = new Utf8Writer(out);
+            Canoe canoe = new Canoe(writer);
+            canoe.setLiteralMemo(memo);
+
+            canoe.write(layout);
+            canoe.write("<p>text</p>");
+            canoe.flush();
+            writer.release();
+
+            assertEquals(layout + "<p>text</p>", out.toString(StandardCharsets.UTF_8));
+        }
+
+        assertTrue(memo.getHits() >= 2);
+    }
+}
@@ -0,0 +1,111 @@
+package com.webkreator.qlue.view.canoe.property;
+
+import com.webkreator.qlue.view.Canoe;
+import com.webkreator.qlue.view.CanoeStateProbe;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The bulk scan: {@code write()} skips runs of characters that the current state ignores, instead of
+ * handing each of them to {@code processChar()}. <strong>Skipping must be unobservable.</strong> The
+ * state, every field the states read, the line and position, and the message of any error must be
+ * exactly what feeding the same text one character at a time produces.
+ *
+ * <p>The directed cases put a run in each of the places the scan is allowed to skip (text, script,
+ * style, comment bodies and quoted attribute values), and next to each of the places it is not:
+ * text before the first non-whitespace character, an unquoted value, a value whose prefix is still
+ * being read, and a value whose URL authority is still open. The random half mixes the same
+ * ingredients at random, with a seed, so that runs end at every kind of character the state machine
+ * cares about.
+ */
+public class BulkScanEquivalenceTest {
+
+    private static final long SEED = Long.getLong("canoe.fuzz.seed", 20260726L);
+
+    private static final String[] FRAGMENTS = {
+            "<", ">", "<!--", "-->", "-", "<script>", "</script>", "</scr", "<style>", "</style>",
+            " href=\"", "\"", "'", " src='", " title='", " value=", "javascript:", "http://x/", "/",
+            "a", "some longer text", " ", "\n", "\t", "\r", "\u0001", "=", "<a", "<img", "<p",
+            "<!DOCTYPE html>", "é", ":", "?", "#", "/>", "</a>", "<!"
+    };
+
+    private static String outcome(String text, boolean bulk) {
+        CanoeStateProbe probe = new CanoeStateProbe();
+        String error = null;
+        try {
+            if (bulk) {
+                probe.feed(text);
+            } else {
+                probe.feedPerCharacter(text);
+            }
+        } catch (IOException e) {
+            error = e.getMessage();
+        }
+
+        return CanoeStateProbe.stateName(probe.state())
+                + " line=" + probe.line() + " pos=" + probe.pos()
+                + " bufLen=" + probe.bufLen()
+                + " url=" + CanoeStateProbe.urlValueStateName(probe.urlValueState())
+                + " quotes=" + probe.attrQuotes()
+                + " textSeen=" + probe.textSeen()
+                + " context=" + probe.currentContext()
+                + " error=" + error;
+    }
+
+    private static void assertEquivalent(String text) {
+        assertEquals(outcome(text, false), outcome(text, true), text);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "  \n  leading whitespace, then text, then <b>a tag</b> and more text\n",
+            "text with a control character \u0001 in the middle",
+            "<script>var a = 1 < 2; var b = '</scriptx>';</script> after",
+            "<style>p { color: red } a:hover { }</style> after",
+            "<!-- a comment with - dashes -- and more --> after",
+            "<a href=\"/some/long/path/to/a/page?x=1\" title=\"a long title\">x</a>",
+            "<a href='/some/long/path/to/a/page?x=1' title='a long title'>x</a>",
+            "<a href=/some/long/path/to/a/page?x=1 title=unquoted-long-title>x</a>",
+            "<img src=\"http://example.com/image.png\">",
+            "<a href=\"javascript:alert(1)\">x</a>",
+            "<a title=\"short\">x</a>",
+            "line one\nline two\nline three with text <p>\n</p>",
+    })
+    public void directedCasesMatchPerCharacterProcessing(String text) {
+        assertEquivalent(text);
+    }
+
+    @Test
+    public void randomDocumentsMatchPerCharacterProcessing() {
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int j = 0; j < length; j++) {
+                sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+
+            assertEquivalent(sb.toString());
+        }
+    }
+
+    @Test
+    public void errorsAfterARunReportTheirPosition() {
+        CanoeStateProbe probe = new CanoeStateProbe();
+        try {
+            probe.feed("<p>some text\u0001");
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        assertEquals(Canoe.INVALID, probe.state());
+        assertEquals(13, probe.pos());
+    }
+}
@@ -0,0 +1,272 @@
+package com.webkreator.qlue.view.canoe.property;
+
+import com.webkreator.qlue.view.Canoe;
+import com.webkreator.qlue.view.CanoeFragments;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Fragments rendered on other threads and stitched back in: a stitched document is either exactly
+ * the document sequential rendering produces, up to the error it ends in if there is one, or it is
+ * not written at all.
+ *
+ * <p>A "document" here is a prefix, a fragment and a suffix. The fragment is written to a fork of
+ * the main parser on an executor while the suffix is written to the main parser, from the state it
+ * was in before the fragment. Whether that guess was right is up to the fragment, and the random
+ * half of this test makes plenty of fragments that leave the parser somewhere else.
+ */
+public class FragmentStitchingTest {
+
+    private static final long SEED = Long.getLong("canoe.fuzz.seed", 20260726L);
+
+    private static final String[] FRAGMENTS = {
+            "<", ">", "<!--", "-->", "<script>", "</script>", "<style>", "</style>",
+            " href=\"", "\"", "'", " title='", " value=", "javascript:", "http://x/", "/",
+            "a", "some text", " ", "\n", "=", "<a", "<img", "<p>", "</p>", "<div class=\"box\">",
+            "</div>", "<!DOCTYPE html>", "\u0001"
+    };
+
+    private static final String FAILED = " [failed]";
+
+    private static ExecutorService executor;
+
+    @BeforeAll
+    public static void startExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterAll
+    public static void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The document, marked as failed if it ended in an error.
+     */
+    private static String sequential(String prefix, String fragment, String suffix) {
+        StringWriter out = new StringWriter();
+        try {
+            new Canoe(out).write(prefix + fragment + suffix);
+            return out.toString();
+        } catch (IOException e) {
+            return out + FAILED;
+        }
+    }
+
+    /**
+     * The stitched document, marked as failed if it ended in an error, or null if the fragments
+     * declined to write it.
+     */
+    private static String stitched(String prefix, String fragment, String suffix) {
+        CanoeFragments fragments = new CanoeFragments(executor);
+        StringWriter out = new StringWriter();
+        boolean failed = false;
+        try {
+            Canoe canoe = new Canoe(fragments);
+            canoe.write(prefix);
+            fragments.fork(canoe, fork -> fork.write(fragment));
+            canoe.write(suffix);
+        } catch (IOException e) {
+            failed = true;
+        }
+
+        try {
+            if (!fragments.writeTo(out)) {
+                assertEquals("", out.toString());
+                return null;
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        return out + ((failed || (fragments.getFailure() != null)) ? FAILED : "");
+    }
+
+    private static String randomText(Random random, int maxFragments) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(maxFragments);
+        for (int i = 0; i < length; i++) {
+            sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        }
+
+        return sb.toString();
+    }
+
+    @Test
+    public void stitchedDocumentsAreTheSequentialOnes() {
+        Random random = new Random(SEED);
+        int written = 0;
+
+        for (int i = 0; i < 5000; i++) {
+            String prefix = randomText(random, 6);
+            String fragment = random.nextBoolean() ? "<p>widget</p>" : randomText(random, 6);
+            String suffix = randomText(random, 6);
+
+            String stitched = stitched(prefix, fragment, suffix);
+            if (stitched != null) {
+                assertEquals(sequential(prefix, fragment, suffix), stitched,
+                        prefix + " | " + fragment + " | " + suffix);
+                written++;
+            }
+        }
+
+        assertTrue(written > 0);
+    }
+
+    @Test
+    public void balancedFragmentsAreStitchedInOrder() throws IOException {
+        CanoeFragments fragments = new CanoeFragments(executor);
+        Canoe canoe = new Canoe(fragments);
+        CountDownLatch first = new CountDownLatch(1);
+
+        canoe.write("<title>Dashboard</title><body>");
+        fragments.fork(canoe, fork -> {
+            // Finishes after the second fragment, which must not change where it goes.
+            first.await(10, TimeUnit.SECONDS);
+            fork.write("<div>one</div>");
+        });
+        canoe.write("\n");
+        fragments.fork(canoe, fork -> {
+            fork.write("<div>two</div>");
+            first.countDown();
+        });
+        canoe.write("</body>");
+
+        StringWriter out = new StringWriter();
+        assertTrue(fragments.writeTo(out));
+        assertEquals("<title>Dashboard</title><body><div>one</div>\n<div>two</div></body>",
+                out.toString());
+    }
+
+    @Test
+    public void theFirstTextOfADocumentCannotBeInAFragment() throws IOException {
+        // Whether the document has had text yet decides whether a DOCTYPE after it is warned
+        // about, so it is part of the state a fragment must leave as it found it.
+        CanoeFragments fragments = new CanoeFragments(executor);
+        Canoe canoe = new Canoe(fragments);
+
+        canoe.write("<body>");
+        fragments.fork(canoe, fork -> fork.write("<div>text</div>"));
+        canoe.write("</body>");
+
+        assertFalse(fragments.writeTo(new StringWriter()));
+    }
+
+    @Test
+    public void aFragmentThatEndsElsewhereIsNotStitched() throws IOException {
+        CanoeFragments fragments = new CanoeFragments(executor);
+        Canoe canoe = new Canoe(fragments);
+
+        canoe.write("<p>");
+        fragments.fork(canoe, fork -> fork.write("<a title=\""));
+        canoe.write("text</p>");
+
+        StringWriter out = new StringWriter();
+        assertFalse(fragments.writeTo(out));
+        assertEquals("", out.toString());
+    }
+
+    @Test
+    public void aFragmentThatFailsEndsTheDocument() throws IOException {
+        CanoeFragments fragments = new CanoeFragments(executor);
+        Canoe canoe = new Canoe(fragments);
+
+        canoe.write("<p>Before</p>");
+        fragments.fork(canoe, fork -> {
+            fork.write("<div>");
+            throw new IllegalStateException("model call failed");
+        });
+        canoe.write("<p>After</p>");
+
+        // It would not fit, but the document never gets this far.
+        fragments.fork(canoe, fork -> fork.write("<a title=\""));
+
+        StringWriter out = new StringWriter();
+        assertTrue(fragments.writeTo(out));
+        assertEquals("<p>Before</p><div>", out.toString());
+        assertTrue(fragments.getFailure() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void aFragmentThatFailsAfterOneThatDoesNotFitIsRenderedAgain() throws IOException {
+        CanoeFragments fragments = new CanoeFragments(executor);
+        Canoe canoe = new Canoe(fragments);
+
+        canoe.write("<p>");
+        fragments.fork(canoe, fork -> fork.write("<a title=\""));
+        canoe.write("text</p>");
+        fragments.fork(canoe, fork -> fork.write("<p>\u0001</p>"));
+
+        StringWriter out = new StringWriter();
+        assertFalse(fragments.writeTo(out));
+        assertEquals("", out.toString());
+        assertNull(fragments.getFailure());
+    }
+
+    @Test
+    public void aForkContinuesFromItsParent() throws IOException {
+        Set<String> plainText = Collections.singleton("hx-target");
+        StringWriter parentOut = new StringWriter();
+        Canoe parent = new Canoe(parentOut, plainText, Collections.singletonList("cdn.example.com"));
+        parent.write("line one\n<div hx-target=\"");
+
+        StringWriter forkOut = new StringWriter();
+        Canoe fork = parent.fork(forkOut);
+
+        assertEquals(parent.snapshot(), fork.snapshot());
+        assertEquals(parent.currentContext(), fork.currentContext());
+
+        fork.write("value\">");
+        assertEquals("value\">", forkOut.toString());
+        assertEquals(Canoe.TAG_ATTR_VALUE, parent.snapshot().getState());
+
+        IOException e = assertThrows(IOException.class, () -> fork.write("\u0001"));
+        assertTrue(e.getMessage().contains("(line: 2, pos: 24)"), e.getMessage());
+    }
+
+    @Test
+    public void onlyTheMainParserCanFork() {
+        CanoeFragments fragments = new CanoeFragments(executor);
+        Canoe canoe = new Canoe(fragments);
+        Canoe elsewhere = new Canoe(new StringWriter());
+
+        assertSame(fragments, CanoeFragments.of(canoe));
+        assertNull(CanoeFragments.of(elsewhere));
+        assertThrows(IllegalArgumentException.class,
+                () -> fragments.fork(elsewhere, fork -> fork.write("x")));
+    }
+
+    @Test
+    public void aRejectingExecutorRendersInPlace() throws IOException {
+        ExecutorService stopped = Executors.newSingleThreadExecutor();
+        stopped.shutdown();
+
+        CanoeFragments fragments = new CanoeFragments(stopped);
+        Canoe canoe = new Canoe(fragments);
+        canoe.write("<p>Text, ");
+        fragments.fork(canoe, fork -> fork.write("in place"));
+        canoe.write("</p>");
+
+        StringWriter out = new StringWriter();
+        assertTrue(fragments.writeTo(out));
+        assertEquals("<p>Text, in place</p>", out.toString());
+    }
+}
@@ -0,0 +1,226 @@
+package com.webkreator.qlue.view.canoe.property;
+
+import com.webkreator.qlue.view.Canoe;
+import com.webkreator.qlue.view.CanoeLiteralMemo;
+import com.webkreator.qlue.view.CanoeStateProbe;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The literal memo: a render that replays recorded transitions for static text must be
+ * indistinguishable from one that parses everything. The output, the parser state, the line and
+ * position, and any error must all be the same, on the first render and on every later one.
+ *
+ * <p>A "template" here is a list of writes, the way Velocity issues them: each element is written
+ * with {@code write(String)}, and the same {@code String} instances are written on every render.
+ */
+public class LiteralMemoEquivalenceTest {
+
+    private static final long SEED = Long.getLong("canoe.fuzz.seed", 20260726L);
+
+    private static final String[] FRAGMENTS = {
+            "<", ">", "<!--", "-->", "<script>", "</script>", "<style>", "</style>",
+            " href=\"", "\"", "'", " src='", " title='", " value=", "javascript:", "http://x/", "/",
+            "a", "some longer text", " ", "\n", "\t", "=", "<a", "<img", "<p", "<div class=\"box\">",
+            "</div>", "<!DOCTYPE html>", ":", "?", "#", "/>", "</a>", "\u0001"
+    };
+
+    private static String outcome(List<String> template, CanoeLiteralMemo memo) {
+        CanoeStateProbe probe = new CanoeStateProbe();
+        probe.setLiteralMemo(memo);
+        String error = null;
+        try {
+            for (String write : template) {
+                probe.feed(write);
+            }
+        } catch (IOException e) {
+            error = e.getMessage();
+        }
+
+        return "state=" + probe.snapshot()
+                + " line=" + probe.line() + " pos=" + probe.pos()
+                + " error=" + error
+                + " output=" + probe.output();
+    }
+
+    private static List<String> randomTemplate(Random random) {
+        List<String> template = new ArrayList<>();
+        int writes = 1 + random.nextInt(8);
+        for (int i = 0; i < writes; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(16);
+            for (int j = 0; j < length; j++) {
+                sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+
+            template.add(sb.toString());
+        }
+
+        return template;
+    }
+
+    @Test
+    public void repeatedRendersMatchRendersWithoutTheMemo() {
+        Random random = new Random(SEED);
+        CanoeLiteralMemo memo = new CanoeLiteralMemo();
+
+        for (int i = 0; i < 5000; i++) {
+            List<String> template = randomTemplate(random);
+            String expected = outcome(template, null);
+
+            for (int render = 0; render < 3; render++) {
+                assertEquals(expected, outcome(template, memo), template.toString());
+            }
+        }
+
+        assertTrue(memo.getHits() > 0);
+    }
+
+    @Test
+    public void staticTextIsReplayedFromTheSecondRender() throws IOException {
+        CanoeLiteralMemo memo = new CanoeLiteralMemo();
+        String layout = "<html>\n<head><title>Title</title></head>\n<body class=\"page\">\n<p>";
+
+        for (int render = 0; render < 3; render++) {
+            CanoeStateProbe probe = new CanoeStateProbe();
+            probe.setLiteralMemo(memo);
+            probe.feed(layout).feed("text").feed(layout);
+
+            assertEquals(layout + "text" + layout, probe.output());
+            assertEquals(7, probe.line());
+            assertEquals(4, probe.pos());
+        }
+
+        // The layout is reached from two entry states, so it is parsed twice and replayed after.
+        assertEquals(2, memo.getMisses());
+        assertEquals(4, memo.getHits());
+    }
+
+    @Test
+    public void textFromAnotherEntryStateIsParsed() throws IOException {
+        CanoeLiteralMemo memo = new CanoeLiteralMemo();
+        String text = "x\" onclick=\"alert(1)\" title=\"long enough to be looked up";
+
+        CanoeStateProbe inText = new CanoeStateProbe();
+        inText.setLiteralMemo(memo);
+        inText.feed("<p>").feed(text);
+
+        CanoeStateProbe inValue = new CanoeStateProbe();
+        inValue.setLiteralMemo(memo);
+        inValue.feed("<p title=\"").feed(text);
+
+        assertEquals(Canoe.HTML, inText.state());
+        assertEquals(Canoe.TAG_ATTR_VALUE, inValue.state());
+        assertEquals(0, memo.getHits());
+    }
+
+    @Test
+    public void errorsAreRaisedOnEveryRender() {
+        CanoeLiteralMemo memo = new CanoeLiteralMemo();
+        String broken = "<p>a paragraph with a control character \u0001 in it</p>";
+
+        for (int render = 0; render < 3; render++) {
+            CanoeStateProbe probe = new CanoeStateProbe();
+            probe.setLiteralMemo(memo);
+            IOException e = assertThrows(IOException.class, () -> probe.feed(broken));
+            assertTrue(e.getMessage().contains("(line: 1, pos: 41)"), e.getMessage());
+        }
+
+        assertEquals(0, memo.getSize());
+    }
+
+    @Test
+    public void textThatWarnsIsNotRecorded() throws IOException {
+        CanoeLiteralMemo memo = new CanoeLiteralMemo();
+        String fragment = "<!DOCTYPE html>\n<!-- an included fragment -->";
+
+        for (int render = 0; render < 3; render++) {
+            CanoeStateProbe probe = new CanoeStateProbe();
+            probe.setLiteralMemo(memo);
+            probe.feed("<!DOCTYPE html>").feed(fragment);
+            assertEquals(1, probe.warnings());
+        }
+
+        assertEquals(0, memo.getHits());
+    }
+
+    @Test
+    public void shortWritesAndSlicesAreNotLookedUp() throws IOException {
+        CanoeLiteralMemo memo = new CanoeLiteralMemo();
+        String text = "<div class=\"a fairly long piece of static text\">";
+
+        for (int render = 0; render < 2; render++) {
+            CanoeStateProbe probe = new CanoeStateProbe();
+            probe.setLiteralMemo(memo);
+            probe.write("<p>");
+            probe.write(text, 1, text.length() - 1);
+            probe.write(text, 0, text.length() - 1);
+            assertEquals("<p>" + text.substring(1) + text.substring(0, text.length() - 1),
+                    probe.output());
+        }
+
+        assertEquals(0, memo.getHits());
+        assertEquals(0, memo.getMisses());
+    }
+
+    @Test
+    public void referenceValuesAreNotLookedUp() throws IOException {
+        CanoeLiteralMemo memo = new CanoeLiteralMemo();
+        String value = "a reference value long enough to be looked up";
+
+        for (int render = 0; render < 3; render++) {
+            CanoeStateProbe probe = new CanoeStateProbe();
+            probe.setLiteralMemo(memo);
+            probe.feed("<p>");
+            probe.markInsertion(value);
+            probe.feed(value);
+            assertEquals("<p>" + value, probe.output());
+        }
+
+        assertEquals(0, memo.getMisses());
+        assertEquals(0, memo.getSize());
+    }
+
+    @Test
+    public void anInvalidParserIsNotLookedUp() throws IOException {
+        CanoeLiteralMemo memo = new CanoeLiteralMemo();
+        CanoeStateProbe probe = new CanoeStateProbe();
+        probe.setLiteralMemo(memo);
+
+        assertThrows(IOException.class, () -> probe.feed("\u0001"));
+        probe.feed("<p>text written after the parser gave up</p>");
+
+        assertEquals(0, memo.getMisses());
+    }
+
+    @Test
+    public void theMemoIsBounded() throws IOException {
+        CanoeLiteralMemo memo = new CanoeLiteralMemo(100);
+        CanoeStateProbe probe = new CanoeStateProbe();
+        probe.setLiteralMemo(memo);
+
+        for (int i = 0; i < 10; i++) {
+            probe.feed("<p>paragraph number " + i + " of a long document</p>");
+            assertTrue(memo.getCharacters() <= 100);
+            assertTrue(memo.getSize() <= 2);
+        }
+
+        // One text, reached from more entry states than are remembered for it.
+        String text = "a piece of text that is written in many places";
+        for (String entry : new String[]{"<p>", "<p title=\"", "<p title='", "<script>",
+                "<style>", "<!--"}) {
+            CanoeStateProbe other = new CanoeStateProbe();
+            other.setLiteralMemo(memo);
+            other.feed(entry).feed(text);
+            assertEquals(entry + text, other.output());
+        }
+    }
+}
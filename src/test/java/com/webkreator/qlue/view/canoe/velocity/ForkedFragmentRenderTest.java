@@ -0,0 +1,127 @@
+package com.webkreator.qlue.view.canoe.velocity;
+
+import com.webkreator.qlue.view.velocity.ProductionRenderProbe;
+import com.webkreator.qlue.view.velocity.ProductionRenderProbe.Options;
+import com.webkreator.qlue.view.velocity.ProductionRenderProbe.Outcome;
+import com.webkreator.qlue.view.velocity.VelocityViewFactory;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@code #fork} on the production render path: with a fragment executor, a page must come out
+ * exactly as it does without one, whether its fragments were stitched in or the page had to be
+ * rendered again sequentially.
+ */
+public class ForkedFragmentRenderTest {
+
+    private static ExecutorService executor;
+
+    @BeforeAll
+    public static void publishFragments() {
+        executor = Executors.newFixedThreadPool(2);
+        ProductionRenderProbe.publishFragment("fork-widget.vm", "<div class=\"widget\">$data</div>");
+        ProductionRenderProbe.publishFragment("fork-open-attribute.vm", "<a title=\"");
+        ProductionRenderProbe.publishFragment("fork-broken.vm", "<div>$missing</div>");
+    }
+
+    @AfterAll
+    public static void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    private static Map<String, Object> model(String data) {
+        Map<String, Object> model = new LinkedHashMap<>();
+        model.put("data", data);
+        return model;
+    }
+
+    private static void assertSameAsSequential(String template, String data) {
+        Outcome sequential = ProductionRenderProbe.render(template, model(data));
+        Outcome forked = ProductionRenderProbe.render(template, model(data),
+                Options.defaults().withFragmentExecutor(executor));
+
+        assertEquals(sequential.output(), forked.output(), template);
+        assertEquals(sequential.exceptionEscaped(), forked.exceptionEscaped(), template);
+    }
+
+    @Test
+    public void withoutAnExecutorForkIsParse() {
+        Outcome forked = ProductionRenderProbe.render(
+                "<title>t</title><body>#fork('fork-widget.vm')</body>", model("<b>"));
+        Outcome parsed = ProductionRenderProbe.render(
+                "<title>t</title><body>#parse('fork-widget.vm')</body>", model("<b>"));
+
+        assertFalse(forked.exceptionEscaped());
+        assertEquals(parsed.output(), forked.output());
+    }
+
+    @Test
+    public void stitchedPagesAreTheSequentialOnes() {
+        String template = "<title>t</title><body>#fork('fork-widget.vm')\n"
+                + "<p>$data</p>\n#fork('fork-widget.vm')</body>";
+
+        Outcome forked = ProductionRenderProbe.render(template, model("<b>"),
+                Options.defaults().withFragmentExecutor(executor));
+        assertTrue(forked.output().contains("<div class=\"widget\">&lt;b&gt;</div>"),
+                forked.output());
+        assertSameAsSequential(template, "<b>");
+    }
+
+    @Test
+    public void aFragmentThatDoesNotFitIsRenderedSequentially() {
+        // The fragment leaves the page inside an attribute value, so $data after it must be
+        // encoded for one, which only the sequential render knows.
+        assertSameAsSequential(
+                "<title>t</title><p>#fork('fork-open-attribute.vm')$data\">link</a></p>",
+                "\" onmouseover=\"alert(1)");
+    }
+
+    @Test
+    public void aFragmentThatFailsFailsThePage() {
+        assertSameAsSequential("<title>t</title><body>#fork('fork-broken.vm')</body>", "x");
+    }
+
+    @Test
+    public void fragmentThreadsAreShutDownWhenReplacedOrDestroyed() {
+        VelocityViewFactory factory = ProductionRenderProbe.newFactory();
+
+        factory.setFragmentThreads(1);
+        ExecutorService first = (ExecutorService) factory.getFragmentExecutor();
+        factory.setFragmentThreads(1);
+        ExecutorService second = (ExecutorService) factory.getFragmentExecutor();
+
+        assertTrue(first.isShutdown());
+        assertFalse(second.isShutdown());
+
+        factory.destroy();
+        assertTrue(second.isShutdown());
+        assertNull(factory.getFragmentExecutor());
+    }
+
+    @Test
+    public void anExecutorTheApplicationSuppliedIsNotShutDown() {
+        VelocityViewFactory factory = ProductionRenderProbe.newFactory();
+
+        factory.setFragmentExecutor(executor);
+        factory.destroy();
+
+        assertFalse(executor.isShutdown());
+    }
+
+    @Test
+    public void anEncodingErrorIsReportedAsWithoutFragments() {
+        assertSameAsSequential(
+                "<title>t</title><body>#fork('fork-widget.vm')<p>\u0001</p></body>", "x");
+    }
+}
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -105,6 +106,7 @@ public final class ProductionRenderProbe {
         private boolean directOutput = false;
         private String[] plainTextAttributes = new String[0];
         private String[] trustedResourceOrigins = new String[0];
+        private Executor fragmentExecutor;
 
         public static Options defaults() {
             return new Options();
@@ -151,6 +153,15 @@ public final class ProductionRenderProbe {
             this.trustedResourceOrigins = origins;
             return this;
         }
+
+        /**
+         * {@code VelocityViewFactory.setFragmentExecutor(...)}: {@code #fork}ed templates are
+         * rendered on the executor and stitched back in, rather than rendered in place.
+         */
+        public Options withFragmentExecutor(Executor executor) {
+            this.fragmentExecutor = executor;
+            return this;
+        }
     }
 
     private static VelocityEngine createEngine() {
@@ -176,6 +187,7 @@ public final class ProductionRenderProbe {
         properties.setProperty("context.scope_control.macro", "true");
         properties.setProperty("runtime.strict_mode.enable", "true");
         properties.setProperty("runtime.strict_math", "true");
+        properties.setProperty("runtime.custom_directives", ForkDirective.class.getName());
 
         VelocityEngine engine = new VelocityEngine(properties);
         engine.init();
@@ -228,6 +240,7 @@ public final class ProductionRenderProbe {
         properties.setProperty("context.scope_control.macro", "true");
         properties.setProperty("runtime.strict_mode.enable", "true");
         properties.setProperty("runtime.strict_math", "true");
+        properties.setProperty("runtime.custom_directives", ForkDirective.class.getName());
 
         VelocityEngine engine = new VelocityEngine(properties);
         engine.init();
@@ -723,6 +736,7 @@ public final class ProductionRenderProbe {
         factory.setAutoEscaping(options.autoEscaping);
         factory.addPlainTextAttributes(options.plainTextAttributes);
         factory.addTrustedResourceOrigins(options.trustedResourceOrigins);
+        factory.setFragmentExecutor(options.fragmentExecutor);
 
         VelocityView view = new VelocityView(factory, template);
 
@@ -0,0 +1,14 @@
+package com.webkreator.qlue.warmUpTestPages;
+
+import com.webkreator.qlue.Page;
+import com.webkreator.qlue.annotations.QlueParameter;
+
+/**
+ * Fixture for {@link com.webkreator.qlue.StartupWarmUpTest}: a @QlueParameter on a field that
+ * binding cannot reach, which warm-up is expected to report before any request arrives.
+ */
+public class misannotated extends Page {
+
+    @QlueParameter(mandatory = false)
+    protected String hidden;
+}